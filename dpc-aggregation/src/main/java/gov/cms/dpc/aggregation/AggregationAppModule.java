@@ -4,7 +4,7 @@ import ca.uhn.fhir.context.FhirContext;
 import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Binder;
 import com.google.inject.Provides;
-import gov.cms.dpc.aggregation.engine.AggregationEngine;
+import com.google.inject.multibindings.OptionalBinder;
 import gov.cms.dpc.aggregation.engine.JobBatchProcessor;
 import gov.cms.dpc.aggregation.engine.OperationsConfig;
 import gov.cms.dpc.aggregation.health.AggregationEngineHealthCheck;
@@ -15,12 +15,20 @@ import gov.cms.dpc.common.annotations.JobTimeout;
 import gov.cms.dpc.common.hibernate.consent.DPCConsentManagedSessionFactory;
 import gov.cms.dpc.common.jdbi.ConsentDAO;
 import gov.cms.dpc.fhir.hapi.ContextUtils;
+import gov.cms.dpc.queue.ClaimPolicy;
+import gov.cms.dpc.queue.FairShareClaimPolicy;
+import gov.cms.dpc.queue.StuckBatchReaper;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 import jakarta.inject.Named;
 import jakarta.inject.Singleton;
 import org.hibernate.SessionFactory;
 import ru.vyarus.dropwizard.guice.module.support.DropwizardAwareModule;
 
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
 public class AggregationAppModule extends DropwizardAwareModule<DPCAggregationConfiguration> {
 
 
@@ -31,14 +39,20 @@ public class AggregationAppModule extends DropwizardAwareModule<DPCAggregationCo
     @Override
     public void configure() {
         Binder binder = binder();
-        binder.bind(AggregationEngine.class);
         binder.bind(AggregationManager.class).asEagerSingleton();
+        binder.bind(StuckBatchReaper.class).asEagerSingleton();
         binder.bind(JobBatchProcessor.class);
         binder.bind(AggregationEngineHealthCheck.class);
 
         binder.bind(ConsentDAO.class);
         binder.bind(TruncateDatabase.class);
 
+        if (configuration().isFairShareEnabled()) {
+            OptionalBinder.newOptionalBinder(binder, ClaimPolicy.class)
+                    .setBinding()
+                    .toInstance(buildFairShareClaimPolicy());
+        }
+
         // Healthchecks
         // Additional health-checks can be added here
         // By default, Dropwizard adds a check for Hibernate and each additional database (e.g. auth, queue, etc)
@@ -101,10 +115,39 @@ public class AggregationAppModule extends DropwizardAwareModule<DPCAggregationCo
             config.getPollingFrequency(),
             config.getLookBackMonths(),
             config.getLookBackExemptOrgs(),
-            config.getFetchWarnThresholdSeconds()
+            config.getFetchWarnThresholdSeconds(),
+            config.getPatientConcurrency(),
+            config.getEngineCount(),
+            config.getResourceFetchThreads(),
+            config.isRawJsonPassthrough(),
+            config.getCheckpointPatients(),
+            config.getCheckpointIntervalSeconds()
         );
     }
 
+    @Provides
+    @Named("stuckBatchThreshold")
+    Duration provideStuckBatchThreshold() {
+        return Duration.ofMinutes(configuration().getStuckBatchMinutes());
+    }
+
+    @Provides
+    @Named("stuckBatchReaperInterval")
+    Duration provideStuckBatchReaperInterval() {
+        return Duration.ofSeconds(configuration().getStuckBatchReaperIntervalSeconds());
+    }
+
+    private FairShareClaimPolicy buildFairShareClaimPolicy() {
+        final var config = configuration();
+        final Map<UUID, Integer> weights = config.getFairShareOrganizationWeights()
+                .entrySet()
+                .stream()
+                .collect(Collectors.toMap(entry -> UUID.fromString(entry.getKey()), Map.Entry::getValue));
+        return new FairShareClaimPolicy(weights,
+                config.getFairShareMaxRunningPerOrg(),
+                Duration.ofMinutes(config.getFairSharePriorityAgingMinutes()));
+    }
+
     @Provides
     @JobTimeout
     public int provideJobTimeoutInSeconds() {
@@ -138,7 +181,19 @@ public class AggregationAppModule extends DropwizardAwareModule<DPCAggregationCo
     }
 
     @Provides
-    ConsentService provideConsentService(@Named("consentDAO") ConsentDAO consentDAO, @Named("fhirReferenceURL") String fhirReferenceURL) {
-        return new ConsentServiceImpl(consentDAO, fhirReferenceURL);
+    @Singleton
+    OptOutIndex provideOptOutIndex(@Named("consentDAO") ConsentDAO consentDAO, MetricRegistry metricRegistry) {
+        final var config = configuration();
+        final OptOutIndex index = new OptOutIndex(consentDAO,
+                metricRegistry,
+                Duration.ofSeconds(config.getOptOutIndexRefreshSeconds()),
+                Duration.ofSeconds(config.getOptOutIndexMaxStalenessSeconds()));
+        environment().lifecycle().manage(index);
+        return index;
+    }
+
+    @Provides
+    ConsentService provideConsentService(@Named("consentDAO") ConsentDAO consentDAO, @Named("fhirReferenceURL") String fhirReferenceURL, OptOutIndex optOutIndex) {
+        return new ConsentServiceImpl(consentDAO, fhirReferenceURL, optOutIndex);
     }
 }
@@ -1,35 +1,94 @@
 package gov.cms.dpc.aggregation;
 
 import gov.cms.dpc.aggregation.engine.AggregationEngine;
+import gov.cms.dpc.aggregation.engine.JobBatchProcessor;
+import gov.cms.dpc.aggregation.engine.OperationsConfig;
+import gov.cms.dpc.queue.IJobQueue;
+import gov.cms.dpc.queue.annotations.AggregatorID;
 import io.dropwizard.lifecycle.Managed;
 import jakarta.inject.Inject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
+/**
+ * Runs one or more {@link AggregationEngine}s, each on its own thread and under its own aggregator ID, so a single
+ * aggregator process can work on several job batches at once.  The engines share a single {@link JobBatchProcessor},
+ * and with it the BlueButton client, its connection pool and all metrics.  The queue listens for queued batches while
+ * the engines are running.
+ */
 public class AggregationManager implements Managed {
 
     private static final Logger logger = LoggerFactory.getLogger(AggregationManager.class);
 
-    private final Thread thread;
-    private final AggregationEngine engine;
+    private final IJobQueue queue;
+    private final List<AggregationEngine> engines;
+    private final List<Thread> threads;
 
     @Inject
-    public AggregationManager(AggregationEngine engine) {
-        logger.info("Instantiating Aggregation Manager");
-        this.engine = engine;
-        thread = new Thread(this.engine);
+    public AggregationManager(@AggregatorID UUID aggregatorID, IJobQueue queue, OperationsConfig operationsConfig, JobBatchProcessor jobBatchProcessor) {
+        this(queue, buildEngines(aggregatorID, queue, operationsConfig, jobBatchProcessor));
+    }
+
+    public AggregationManager(IJobQueue queue, List<AggregationEngine> engines) {
+        logger.info("Instantiating Aggregation Manager with {} engine(s)", engines.size());
+        this.queue = queue;
+        this.engines = List.copyOf(engines);
+        this.threads = new ArrayList<>();
+        for (int i = 0; i < this.engines.size(); i++) {
+            threads.add(new Thread(this.engines.get(i), "aggregation-engine-" + i));
+        }
     }
 
     @Override
     public void start() {
-        logger.debug("Starting Aggregation thread");
-        thread.start();
+        logger.debug("Starting {} Aggregation thread(s)", threads.size());
+        this.queue.startListening();
+        threads.forEach(Thread::start);
     }
 
     @Override
     public void stop() {
-        logger.debug("Stopping Aggregation thread");
-        this.engine.stop();
+        logger.debug("Stopping {} Aggregation thread(s)", threads.size());
+        // Tell every engine to stop first, so they all finish their current patient at the same time
+        this.engines.forEach(AggregationEngine::requestStop);
+        this.engines.forEach(AggregationEngine::awaitStopped);
+        try {
+            this.queue.stopListening();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for the queue to stop listening");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public List<AggregationEngine> getEngines() {
+        return engines;
+    }
+
+    /**
+     * Forms the aggregator ID for a single engine.  The first engine keeps the aggregator's own ID, so a single engine
+     * aggregator behaves exactly as it always has.
+     *
+     * @param aggregatorID - The ID of the aggregator process
+     * @param engineIndex  - The index of the engine within the process
+     * @return the {@link UUID} the engine uses to claim and pause batches
+     */
+    static UUID formEngineAggregatorID(UUID aggregatorID, int engineIndex) {
+        if (engineIndex == 0) {
+            return aggregatorID;
+        }
+        return UUID.nameUUIDFromBytes(String.format("%s-%d", aggregatorID, engineIndex).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<AggregationEngine> buildEngines(UUID aggregatorID, IJobQueue queue, OperationsConfig operationsConfig, JobBatchProcessor jobBatchProcessor) {
+        final List<AggregationEngine> engines = new ArrayList<>();
+        for (int i = 0; i < operationsConfig.getEngineCount(); i++) {
+            engines.add(new AggregationEngine(formEngineAggregatorID(aggregatorID, i), queue, operationsConfig, jobBatchProcessor));
+        }
+        return engines;
     }
 }
@@ -1,5 +1,6 @@
 package gov.cms.dpc.aggregation;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import gov.cms.dpc.bluebutton.config.BBClientConfiguration;
 import gov.cms.dpc.bluebutton.config.BlueButtonBundleConfiguration;
@@ -9,6 +10,7 @@ import gov.cms.dpc.queue.config.DPCAwsQueueConfiguration;
 import gov.cms.dpc.queue.config.DPCQueueConfig;
 import io.dropwizard.core.Configuration;
 import io.dropwizard.db.DataSourceFactory;
+import io.dropwizard.validation.ValidationMethod;
 import jakarta.validation.Valid;
 import jakarta.validation.constraints.Max;
 import jakarta.validation.constraints.Min;
@@ -16,6 +18,7 @@ import jakarta.validation.constraints.NotEmpty;
 import jakarta.validation.constraints.NotNull;
 
 import java.util.List;
+import java.util.Map;
 
 public class DPCAggregationConfiguration extends Configuration implements BlueButtonBundleConfiguration, IDPCConsentDatabase, IDPCQueueDatabase, DPCQueueConfig {
 
@@ -52,7 +55,7 @@ public class DPCAggregationConfiguration extends Configuration implements BlueBu
     @Max(100000) // Keep files under a GB
     private final int resourcesPerFileCount = 10000;
 
-    // How often in milliseconds to check the queue for new batches
+    // How often in milliseconds to check an empty queue for new batches, when the queue can't notify us of them
     @Min(50)
     private final int pollingFrequency = 500;
 
@@ -72,6 +75,68 @@ public class DPCAggregationConfiguration extends Configuration implements BlueBu
     @NotEmpty
     private String fhirReferenceURL;
 
+    // The number of patients within a batch that are fetched from BlueButton at the same time
+    @Min(1)
+    @Max(64)
+    private int patientConcurrency = 1;
+
+    // The number of aggregation engines, each working its own batch, that run in this process
+    @Min(1)
+    @Max(16)
+    private int engineCount = 1;
+
+    // The number of threads that fetch a patient's Coverage while their EoBs are fetched, 0 fetches them one after the other
+    @Min(0)
+    @Max(256)
+    private int resourceFetchThreads = 0;
+
+    // Copy EoBs from BlueButton's JSON straight into the export files, without parsing them into FHIR resources
+    private boolean rawJsonPassthrough = false;
+
+    // The number of patients written between saves of a batch's progress
+    @Min(1)
+    @Max(1000)
+    private int checkpointPatients = 1;
+
+    // Save a batch's progress once this long has passed since the last save, even if fewer patients have been written.
+    // Kept well under the time the queue health check gives a batch to be updated, 0 only counts patients
+    @Min(0)
+    @Max(30)
+    private int checkpointIntervalSeconds = 0;
+
+    // How often the in-memory opt-out index reads consent changes, 0 checks every patient against the consent database
+    @Min(0)
+    private int optOutIndexRefreshSeconds = 60;
+
+    // How long the opt-out index can go without a refresh before consent is checked against the database again
+    @Min(1)
+    private int optOutIndexMaxStalenessSeconds = 600;
+
+    // How long a running batch can go without an update before it's considered stuck and restarted
+    @Min(1)
+    private int stuckBatchMinutes = 15;
+
+    // How often to look for stuck batches, 0 turns the reaper off
+    @Min(0)
+    @Max(3600)
+    private int stuckBatchReaperIntervalSeconds = 60;
+
+    // Share the aggregators between organizations, instead of claiming batches strictly by priority and submit time
+    private boolean fairShareEnabled = false;
+
+    // Under fair share, the most batches one organization can have running at once, 0 for no cap
+    @Min(0)
+    private int fairShareMaxRunningPerOrg = 0;
+
+    // Under fair share, how long an organization can wait without a batch starting before its priority is raised a step,
+    // 0 never raises it
+    @Min(0)
+    private int fairSharePriorityAgingMinutes = 60;
+
+    // Under fair share, the share of the aggregators given to specific organizations, every other organization has a weight of 1
+    @NotNull
+    private Map<String, Integer> fairShareOrganizationWeights = Map.of();
+
     @Override
     public DataSourceFactory getQueueDatabase() {
         return queueDatabase;
@@ -140,4 +205,67 @@ public class DPCAggregationConfiguration extends Configuration implements BlueBu
     public String getFhirReferenceURL() {
         return fhirReferenceURL;
     }
+
+    public int getPatientConcurrency() {
+        return patientConcurrency;
+    }
+
+    public int getEngineCount() {
+        return engineCount;
+    }
+
+    public int getResourceFetchThreads() {
+        return resourceFetchThreads;
+    }
+
+    public boolean isRawJsonPassthrough() {
+        return rawJsonPassthrough;
+    }
+
+    public int getCheckpointPatients() {
+        return checkpointPatients;
+    }
+
+    public int getCheckpointIntervalSeconds() {
+        return checkpointIntervalSeconds;
+    }
+
+    // A slow patient can hold up a count-only checkpoint long enough for the batch to look stuck
+    @JsonIgnore
+    @ValidationMethod(message = "checkpointIntervalSeconds must be set when checkpointPatients is more than 1")
+    public boolean isCheckpointIntervalSet() {
+        return checkpointPatients == 1 || checkpointIntervalSeconds > 0;
+    }
+
+    public int getOptOutIndexRefreshSeconds() {
+        return optOutIndexRefreshSeconds;
+    }
+
+    public int getOptOutIndexMaxStalenessSeconds() {
+        return optOutIndexMaxStalenessSeconds;
+    }
+
+    public int getStuckBatchMinutes() {
+        return stuckBatchMinutes;
+    }
+
+    public int getStuckBatchReaperIntervalSeconds() {
+        return stuckBatchReaperIntervalSeconds;
+    }
+
+    public boolean isFairShareEnabled() {
+        return fairShareEnabled;
+    }
+
+    public int getFairShareMaxRunningPerOrg() {
+        return fairShareMaxRunningPerOrg;
+    }
+
+    public int getFairSharePriorityAgingMinutes() {
+        return fairSharePriorityAgingMinutes;
+    }
+
+    public Map<String, Integer> getFairShareOrganizationWeights() {
+        return fairShareOrganizationWeights;
+    }
 }
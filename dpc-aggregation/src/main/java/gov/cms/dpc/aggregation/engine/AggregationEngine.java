@@ -1,17 +1,22 @@
 package gov.cms.dpc.aggregation.engine;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import gov.cms.dpc.aggregation.util.AggregationUtils;
 import gov.cms.dpc.common.MDCConstants;
 import gov.cms.dpc.common.logging.SplunkTimestamp;
 import gov.cms.dpc.queue.IJobQueue;
 import gov.cms.dpc.queue.annotations.AggregatorID;
+import gov.cms.dpc.queue.exceptions.JobQueueFailure;
 import gov.cms.dpc.queue.models.JobQueueBatch;
+import gov.cms.dpc.queue.models.JobQueueBatchFile;
 import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Context;
 import io.opentelemetry.instrumentation.annotations.WithSpan;
 import io.reactivex.Observable;
 import io.reactivex.disposables.Disposable;
 import io.reactivex.exceptions.UndeliverableException;
 import io.reactivex.plugins.RxJavaPlugins;
+import io.reactivex.schedulers.Schedulers;
 import jakarta.inject.Inject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,9 +24,15 @@ import org.slf4j.MDC;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Optional;
-import java.util.UUID;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -34,17 +45,27 @@ import java.util.concurrent.atomic.AtomicReference;
  * - There is a single flow that does the work for a job
  * - It starts with an iteration of resource types in a job and produces a series of JobQueueBatchFile for that resource type
  * - Partial job batches are saved out and written along the way
- * - When the aggregator shuts down, a batch is paused and another aggregator can claim the batch to continue processing
+ * - When patientConcurrency is above 1, several patients of a batch are fetched at once, but are still written out one
+ *   at a time in patient order
+ * - When the aggregator shuts down, a batch is paused once its files are closed, and another aggregator can claim the
+ *   batch to continue processing
+ * - After finishing a batch the queue is checked again right away, only an empty queue is waited on
  */
 public class AggregationEngine implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(AggregationEngine.class);
+    // How long stop() waits for the current batch to be paused, after that it's left to the stuck batch reaper
+    private static final Duration STOP_TIMEOUT = Duration.ofSeconds(30);
 
     private final UUID aggregatorID;
     private final IJobQueue queue;
     private final OperationsConfig operationsConfig;
     private final JobBatchProcessor jobBatchProcessor;
+    private final ExecutorService patientExecutor;
+    // Patients being fetched for the current batch, so stop() can cancel them
+    private final Set<Future<?>> inFlightFetches = ConcurrentHashMap.newKeySet();
     private Disposable subscribe;
     private final AtomicReference<Optional<JobQueueBatch>> currentBatch = new AtomicReference<>(Optional.empty());
+    private final AtomicBoolean queueEmpty = new AtomicBoolean(false);
 
     /**
      * The initial value is set to true so when the aggregation instance starts up,
@@ -66,6 +87,15 @@ public class AggregationEngine implements Runnable {
         this.queue = queue;
         this.operationsConfig = operationsConfig;
         this.jobBatchProcessor = jobBatchProcessor;
+
+        // Only spin up worker threads if we're going to process more than one patient at a time
+        final int patientConcurrency = operationsConfig.getPatientConcurrency();
+        this.patientExecutor = patientConcurrency > 1 ?
+                Executors.newFixedThreadPool(patientConcurrency, new ThreadFactoryBuilder()
+                        .setNameFormat("patient-fetch-%d")
+                        .setDaemon(true)
+                        .build()) :
+                null;
     }
 
     /**
@@ -74,19 +104,29 @@ public class AggregationEngine implements Runnable {
     @Override
     public void run() {
         // Run loop
-        logger.info("Starting aggregation engine with exportPath:\"{}\" resourcesPerFile:{} ",
+        logger.info("Starting aggregation engine with exportPath:\"{}\" resourcesPerFile:{} patientConcurrency:{}",
                 operationsConfig.getExportPath(),
-                operationsConfig.getResourcesPerFileCount());
+                operationsConfig.getResourcesPerFileCount(),
+                operationsConfig.getPatientConcurrency());
         setGlobalErrorHandler();
         queueRunning.set(true);
         this.pollQueue();
     }
 
     /**
-     * Stop the engine.  This is usually called from the AggregationManager in a Jetty shutdown thread.  This means it
-     * can be called at the same time the main thread is either polling or processing a patient.
+     * Stop the engine, and wait for it to pause the batch it's working on.  This is usually called from the
+     * AggregationManager in a Jetty shutdown thread.  This means it can be called at the same time the main thread is
+     * either polling or processing a patient.
      */
     public void stop() {
+        requestStop();
+        awaitStopped();
+    }
+
+    /**
+     * Tell the engine to stop, without waiting for it to pause the batch it's working on.  See {@link #stop()}.
+     */
+    public void requestStop() {
         logger.info("Shutting down aggregation engine from thread: {}", Thread.currentThread().getId());
 
         // Stop and dispose of queue
@@ -95,18 +135,54 @@ public class AggregationEngine implements Runnable {
             this.subscribe.dispose();
         }
 
-        // If a batch is currently running, mark it paused.
-        Optional<JobQueueBatch> optionalBatch = this.currentBatch.get();
-        optionalBatch.ifPresent(jobQueueBatch -> {
-            logger.info("Pausing batch: {}", jobQueueBatch.getBatchID());
-            this.queue.pauseBatch(jobQueueBatch, aggregatorID);
-        });
+        // Abandon any patients that are still being fetched, they'll be picked up again when the batch is resumed.
+        // Cancelling them, instead of shutting the pool down now, also cancels any that haven't started, so nothing
+        // waiting on them is left blocked.
+        if (this.patientExecutor != null) {
+            this.inFlightFetches.forEach(future -> future.cancel(true));
+            this.patientExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Waits for a stopping engine to let go of the batch it's working on.  The batch isn't paused from here, because
+     * its files are still open until the engine thread finishes the patient it's on.  Once paused, another aggregator
+     * can claim the batch and append to them, so the engine thread closes the files and then pauses the batch itself.
+     * A batch that's still running after a while is left to the stuck batch reaper.
+     */
+    public synchronized void awaitStopped() {
+        final long deadline = System.nanoTime() + STOP_TIMEOUT.toNanos();
+        try {
+            while (this.currentBatch.get().isPresent()) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    logger.warn("Batch {} is still being processed after {}, leaving it for the stuck batch reaper",
+                            this.currentBatch.get().map(JobQueueBatch::getBatchID).orElse(null), STOP_TIMEOUT);
+                    return;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void releaseCurrentBatch() {
+        this.currentBatch.set(Optional.empty());
+        notifyAll();
     }
 
     public boolean isRunning() {
         return queueRunning.get();
     }
 
+    /**
+     * @return The batch this engine is currently working on, if any.
+     */
+    public Optional<JobQueueBatch> getCurrentBatch() {
+        return currentBatch.get();
+    }
+
     /**
      * The main run-loop of the engine.
      */
@@ -115,10 +191,7 @@ public class AggregationEngine implements Runnable {
         logger.info("Starting to poll queue on thread: {}", Thread.currentThread().getId());
 
         this.subscribe = this.createQueueObserver()
-                .repeatWhen(completed -> {
-                    logger.debug("Configuring queue to poll every {} milliseconds", operationsConfig.getPollingFrequency());
-                    return completed.delay(operationsConfig.getPollingFrequency(), TimeUnit.MILLISECONDS);
-                })
+                .repeatWhen(completed -> completed.concatMap(ignored -> this.awaitBatch()))
                 .doOnEach(item -> logger.trace("Processing item: {}", item))
                 .doOnError(error -> logger.error("Unable to complete job.", error))
                 .retry()
@@ -151,10 +224,26 @@ public class AggregationEngine implements Runnable {
         // Create using fromCallable. This ensures that no events are omitted before a subscriber connects
         return Observable.fromCallable(() -> {
             logger.trace("Polling queue for job...");
-            return this.queue.claimBatch(this.aggregatorID);
+            final Optional<JobQueueBatch> batch = this.queue.claimBatch(this.aggregatorID);
+            this.queueEmpty.set(batch.isEmpty());
+            return batch;
         });
     }
 
+    /**
+     * Waits for the queue to have a batch to claim, unless the last poll found one and there may be more waiting.
+     * The wait blocks, so it's done on the IO scheduler, where the next poll and batch are then worked on.
+     */
+    private Observable<Boolean> awaitBatch() {
+        return Observable.fromCallable(() -> {
+            if (this.queueEmpty.get()) {
+                logger.trace("Waiting up to {} milliseconds for a job...", operationsConfig.getPollingFrequency());
+                this.queue.awaitBatch(this.aggregatorID, Duration.ofMillis(operationsConfig.getPollingFrequency()));
+            }
+            return true;
+        }).subscribeOn(Schedulers.io());
+    }
+
     /**
      * Loops over the partials of a job batch and handles completed, error, and paused job scenarios
      *
@@ -183,16 +272,22 @@ public class AggregationEngine implements Runnable {
             logger.info("dpcMetric=queueComplete,jobID={},queueCompleteTime={}",  job.getJobID(), queueCompleteTime);
             logger.debug("Has {} attributed beneficiaries", job.getPatients().size());
 
-            Optional<String> nextPatientID = job.fetchNextPatient(aggregatorID);
-            while (nextPatientID.isPresent()) {
-                String patientId = nextPatientID.get();
-                nextPatientID = processPatient(job, patientId);
+            // Look the batch's patients up together, instead of one search per patient
+            jobBatchProcessor.resolvePatients(job);
+
+            if (this.patientExecutor != null) {
+                processPatientsConcurrently(job);
+            } else {
+                processPatientsSequentially(job);
             }
 
+            // Finish the batch's files before anything else looks at them
+            jobBatchProcessor.closeBatchFiles(job);
+
             // Finish processing the batch
             if (this.isRunning()) {
                 final String jobTime = SplunkTimestamp.getSplunkTimestamp();
-                // Calculate metadata for the file (length and checksum)
+                // Fill in any metadata (length and checksum) that couldn't be worked out while writing
                 calculateFileMetadata(job);
                 logger.info("dpcMetric=jobComplete,completionResult={},jobID={},jobCompleteTime={}", "COMPLETE", job.getJobID(), jobTime);
                 this.queue.completeBatch(job, aggregatorID);
@@ -201,26 +296,161 @@ public class AggregationEngine implements Runnable {
                 this.queue.pauseBatch(job, aggregatorID);
             }
         } catch (Exception error) {
+            try {
+                jobBatchProcessor.closeBatchFiles(job);
+            } catch (Exception closeException) {
+                logger.error("Unable to close files of job {} batch {}", job.getJobID(), job.getBatchID(), closeException);
+            }
             try {
                 final String jobTime = SplunkTimestamp.getSplunkTimestamp();
                 logger.info("dpcMetric=jobFail,completionResult={},jobID={},jobCompleteTime={},failureReason={}", "FAILED", job.getJobID(), jobTime, error.getMessage());
                 this.queue.failBatch(job, aggregatorID);
             } catch (Exception failedBatchException) {
-                logger.error("FAILED to mark job {} batch {} as failed. Batch will remain in the running state, and stuck job logic will retry this in 15 minutes...", job.getJobID(), job.getBatchID(), failedBatchException);
+                logger.error("FAILED to mark job {} batch {} as failed. Batch will remain in the running state until the stuck batch reaper restarts it...", job.getJobID(), job.getBatchID(), failedBatchException);
             }
         } finally {
-            this.currentBatch.set(Optional.empty());
+            jobBatchProcessor.clearResolvedPatients(job);
+            releaseCurrentBatch();
         }
 
         // Clear the MDC before the next batch
         resetMDC();
     }
 
-    private Optional<String> processPatient(JobQueueBatch job, String patientId) {
-        jobBatchProcessor.processJobBatchPartial(aggregatorID, queue, job, patientId);
+    /**
+     * Fetches and writes the patients of the batch one at a time, each patient's resources being written as they're
+     * fetched.  A patient cut short by stop() is fetched again when the paused batch is resumed, as long as none of
+     * their resources made it to disk.  Otherwise the batch fails, rather than resuming with the patient half written.
+     *
+     * @param job - the job to process
+     */
+    private void processPatientsSequentially(JobQueueBatch job) {
+        Optional<String> nextPatientID = job.fetchNextPatient(aggregatorID);
+        while (nextPatientID.isPresent()) {
+            final int written = countWrittenResources(job);
+            try {
+                jobBatchProcessor.processJobBatchPartial(aggregatorID, queue, job, nextPatientID.get());
+            } catch (RuntimeException e) {
+                if (this.isRunning() || countWrittenResources(job) != written) {
+                    throw e;
+                }
+                // Most likely interrupted by stop().  The interrupt isn't kept, since the batch's files still have to
+                // be closed and the batch paused.
+                Thread.interrupted();
+                logger.info("Abandoning patient of stopping engine: {}", e.getMessage());
+                job.rewindPatient(aggregatorID);
+                return;
+            }
 
-        // Stop processing when no patients or early shutdown
-        return this.isRunning() ? job.fetchNextPatient(aggregatorID) : Optional.empty();
+            // Stop processing when no patients or early shutdown
+            nextPatientID = this.isRunning() ? job.fetchNextPatient(aggregatorID) : Optional.empty();
+        }
+    }
+
+    private static int countWrittenResources(JobQueueBatch job) {
+        return job.getJobQueueBatchFiles().stream().mapToInt(JobQueueBatchFile::getCount).sum();
+    }
+
+    /**
+     * Fetches up to patientConcurrency patients of the batch at once, but writes them out one at a time in the order
+     * they appear in the batch.  The batch's patient index is only moved forward right before a patient is written, so
+     * a paused batch always picks back up on the first patient that didn't make it to disk.
+     *
+     * @param job - the job to process
+     */
+    private void processPatientsConcurrently(JobQueueBatch job) {
+        final List<String> patients = job.getPatients();
+        final Map<String, String> mdc = MDC.getCopyOfContextMap();
+        final Deque<Future<JobBatchProcessor.PatientResources>> inFlight = new ArrayDeque<>();
+        int nextToFetch = job.getPatientIndex().orElse(-1) + 1;
+
+        try {
+            while (true) {
+                // Keep the pool full
+                while (this.isRunning() && inFlight.size() < operationsConfig.getPatientConcurrency() && nextToFetch < patients.size()) {
+                    final String mbi = patients.get(nextToFetch);
+                    final Future<JobBatchProcessor.PatientResources> future;
+                    try {
+                        future = patientExecutor.submit(Context.current().wrap(() -> fetchPatientResources(job, mbi, mdc)));
+                    } catch (RejectedExecutionException e) {
+                        // The pool was shut down by stop(), which is handled below like any other early shutdown
+                        if (this.isRunning()) {
+                            throw e;
+                        }
+                        break;
+                    }
+                    nextToFetch++;
+                    inFlight.add(future);
+                    inFlightFetches.add(future);
+                }
+
+                // Write the oldest patient, so files are always written in patient order
+                final Future<JobBatchProcessor.PatientResources> oldest = inFlight.poll();
+                if (oldest == null) {
+                    return;
+                }
+                final Optional<JobBatchProcessor.PatientResources> fetched = awaitPatientResources(job, oldest);
+                inFlightFetches.remove(oldest);
+
+                // Stop processing on early shutdown, the patient index still points at the last written patient
+                if (fetched.isEmpty() || !this.isRunning()) {
+                    return;
+                }
+                job.fetchNextPatient(aggregatorID);
+                jobBatchProcessor.writePatientResources(aggregatorID, queue, job, fetched.get());
+            }
+        } finally {
+            inFlight.forEach(future -> future.cancel(true));
+            inFlightFetches.removeAll(inFlight);
+        }
+    }
+
+    private JobBatchProcessor.PatientResources fetchPatientResources(JobQueueBatch job, String mbi, Map<String, String> mdc) {
+        if (mdc != null) {
+            MDC.setContextMap(mdc);
+        }
+        try {
+            return jobBatchProcessor.fetchPatientResources(job, mbi);
+        } finally {
+            MDC.clear();
+        }
+    }
+
+    /**
+     * Waits for a patient to be fetched.  If the engine is stopping, a fetch that was cancelled, interrupted or failed
+     * doesn't fail the batch, since it was most likely cut short by stop().  The patient is fetched again when the
+     * paused batch is resumed.
+     *
+     * @param job    - the job the patient belongs to
+     * @param future - the patient's fetch
+     * @return the patient's resources, or empty if the engine is stopping and the patient couldn't be fetched
+     */
+    private Optional<JobBatchProcessor.PatientResources> awaitPatientResources(JobQueueBatch job, Future<JobBatchProcessor.PatientResources> future) {
+        try {
+            return Optional.of(future.get());
+        } catch (CancellationException e) {
+            if (!this.isRunning()) {
+                return Optional.empty();
+            }
+            throw new JobQueueFailure(job.getJobID(), job.getBatchID(), "Patient fetch was cancelled", e);
+        } catch (InterruptedException e) {
+            if (!this.isRunning()) {
+                // Most likely disposed by stop().  The interrupt isn't kept, since the batch's files still have to be
+                // closed and the batch paused.
+                return Optional.empty();
+            }
+            Thread.currentThread().interrupt();
+            throw new JobQueueFailure(job.getJobID(), job.getBatchID(), "Interrupted while fetching patient", e);
+        } catch (ExecutionException e) {
+            if (!this.isRunning()) {
+                logger.info("Abandoning patient fetch of stopping engine: {}", e.getCause().getMessage());
+                return Optional.empty();
+            }
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new JobQueueFailure(job.getJobID(), job.getBatchID(), "Failed to fetch patient", e.getCause());
+        }
     }
 
 
@@ -228,6 +458,11 @@ public class AggregationEngine implements Runnable {
     private void calculateFileMetadata(JobQueueBatch job) {
         job.getJobQueueBatchFiles()
                 .forEach(batchFile -> {
+                    // Usually worked out while the file was written, only fall back to reading the file when it wasn't
+                    if (batchFile.getChecksum() != null) {
+                        return;
+                    }
+                    logger.info("Recomputing checksum for file {}", batchFile.getFileName());
                     final File file = new File(String.format("%s/%s.ndjson.gz", this.operationsConfig.getExportPath(), batchFile.getFileName()));
                     try {
                         final byte[] checksum = AggregationUtils.generateChecksum(file);
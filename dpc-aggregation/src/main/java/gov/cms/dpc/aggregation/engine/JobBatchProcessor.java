@@ -4,6 +4,7 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import gov.cms.dpc.aggregation.service.*;
 import gov.cms.dpc.aggregation.util.AggregationUtils;
 import gov.cms.dpc.bluebutton.client.BlueButtonClient;
@@ -12,9 +13,11 @@ import gov.cms.dpc.common.utils.MetricMaker;
 import gov.cms.dpc.fhir.DPCResourceType;
 import gov.cms.dpc.fhir.FHIRExtractors;
 import gov.cms.dpc.queue.IJobQueue;
+import gov.cms.dpc.queue.exceptions.JobQueueFailure;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 import gov.cms.dpc.queue.models.JobQueueBatchFile;
 import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Context;
 import io.opentelemetry.instrumentation.annotations.WithSpan;
 import io.reactivex.Flowable;
 import jakarta.inject.Inject;
@@ -26,11 +29,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
+import java.io.IOException;
 import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.YearMonth;
 import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -45,8 +57,18 @@ public class JobBatchProcessor {
     private final FhirContext fhirContext;
     private final Meter resourceMeter;
     private final Meter operationalOutcomeMeter;
+    private final Meter deferredCheckpointMeter;
     private final LookBackService lookBackService;
     private final ConsentService consentService;
+    private final Map<UUID, ResourceFileStreams> batchFileStreams = new ConcurrentHashMap<>();
+    // Progress since each batch was last saved, by batch ID
+    private final Map<UUID, PendingCheckpoint> pendingCheckpoints = new ConcurrentHashMap<>();
+    // Patients looked up ahead of time by resolvePatients, by batch ID and then MBI
+    private final Map<UUID, Map<String, Patient>> resolvedPatients = new ConcurrentHashMap<>();
+    // Fetches the next page of a resource bundle while the current page is being written
+    private final ExecutorService pagePrefetchExecutor;
+    // Fetches a patient's Coverage while their EoBs are fetched, null when they're fetched one after the other
+    private final ExecutorService resourceFetchExecutor;
 
     @Inject
     public JobBatchProcessor(BlueButtonClient bbclient, FhirContext fhirContext, MetricRegistry metricRegistry, OperationsConfig operationsConfig, LookBackService lookBackService, ConsentService consentService) {
@@ -55,11 +77,14 @@ public class JobBatchProcessor {
         this.operationsConfig = operationsConfig;
         this.lookBackService = lookBackService;
         this.consentService = consentService;
+        this.resourceFetchExecutor = buildResourceFetchExecutor(operationsConfig.getResourceFetchThreads());
+        this.pagePrefetchExecutor = buildPagePrefetchExecutor(operationsConfig);
 
         // Metrics
         final var metricFactory = new MetricMaker(metricRegistry, JobBatchProcessor.class);
         resourceMeter = metricFactory.registerMeter("resourceFetched");
         operationalOutcomeMeter = metricFactory.registerMeter("operationalOutcomes");
+        deferredCheckpointMeter = metricFactory.registerMeter("deferredCheckpoint");
     }
 
     /**
@@ -73,6 +98,33 @@ public class JobBatchProcessor {
      */
     @WithSpan()
     public List<JobQueueBatchFile> processJobBatchPartial(UUID aggregatorID, IJobQueue queue, JobQueueBatch job, String mbi) {
+        // Resources are written as they're fetched
+        return writePatientResources(aggregatorID, queue, job, streamPatientResources(job, mbi));
+    }
+
+    /**
+     * Fetches and filters all the resources for a single patient of a job batch, without writing anything or touching
+     * the batch's progress.  Safe to call for several patients of the same batch at once.
+     *
+     * @param job the job to process
+     * @param mbi the current patient mbi to process
+     * @return A {@link PatientResources} to hand to {@link #writePatientResources(UUID, IJobQueue, JobQueueBatch, PatientResources)}
+     */
+    public PatientResources fetchPatientResources(JobQueueBatch job, String mbi) {
+        final PatientResources streamed = streamPatientResources(job, mbi);
+        final List<Resource> resources = streamed.getResources().toList().blockingGet();
+        return new PatientResources(streamed.getPatientId(), Flowable.fromIterable(resources), streamed.getFailReason(), streamed.getStopWatch());
+    }
+
+    /**
+     * Runs the checks for a single patient of a job batch, and sets up the fetch of the rest of their resources.  Those
+     * resources are only fetched from BlueButton, a page at a time, as the returned flow is consumed.
+     *
+     * @param job the job to process
+     * @param mbi the current patient mbi to process
+     * @return A {@link PatientResources} whose resources can only be consumed once
+     */
+    private PatientResources streamPatientResources(JobQueueBatch job, String mbi) {
         StopWatch stopWatch = StopWatch.createStarted();
 
         Optional<OutcomeReason> failReason = Optional.empty();
@@ -98,9 +150,23 @@ public class JobBatchProcessor {
             }
         }
 
+        // Start on the patient's Coverage while their EoBs are fetched for the look back check
+        Optional<Future<List<Resource>>> coverageFetch = Optional.empty();
+        if(flowable.isEmpty() && resourceFetchExecutor != null && job.getResourceTypes().contains(DPCResourceType.Coverage)) {
+            coverageFetch = Optional.of(fetchResourceAsync(job, optPatient.get(), DPCResourceType.Coverage, job.getSince().orElse(null)));
+        }
+
         // Check if the patient passes look back
         if(flowable.isEmpty()) {
-            Pair<Flowable<Resource>, OutcomeReason> lookBackResult = checkLookBack(optPatient.get(), job);
+            Pair<Flowable<Resource>, OutcomeReason> lookBackResult = null;
+            try {
+                lookBackResult = checkLookBack(optPatient.get(), job);
+            } finally {
+                // Nothing is going to wait on the Coverage of a patient whose look back check couldn't be done
+                if (lookBackResult == null) {
+                    coverageFetch.ifPresent(coverage -> coverage.cancel(true));
+                }
+            }
                 flowable = Optional.of(lookBackResult.getLeft());  // if passing, list of EOBs
                 failReason = lookBackResult.getRight() == null ?
                         Optional.empty() : Optional.of(lookBackResult.getRight());
@@ -109,7 +175,10 @@ public class JobBatchProcessor {
         // All checks passed, load resources
         if(failReason.isEmpty()) {
             Flowable<Resource> coverageFlow = Flowable.empty();
-            if (job.getResourceTypes().contains(DPCResourceType.Coverage)) {
+            if (coverageFetch.isPresent()) {
+                final Future<List<Resource>> coverage = coverageFetch.get();
+                coverageFlow = Flowable.fromCallable(() -> awaitResources(job, coverage)).flatMapIterable(resources -> resources);
+            } else if (job.getResourceTypes().contains(DPCResourceType.Coverage)) {
                 coverageFlow = fetchResource(job, optPatient.get(), DPCResourceType.Coverage, job.getSince().orElse(null));
             }
 
@@ -122,6 +191,11 @@ public class JobBatchProcessor {
             for (DPCResourceType jobType : job.getResourceTypes()) {
                 resultFlowable = Flowable.concat(resultFlowable, resourceFlowables.get(jobType));
             }
+            if (coverageFetch.isPresent()) {
+                // Stops the Coverage fetch if the patient's flow ends before it gets to the Coverage
+                final Future<List<Resource>> coverage = coverageFetch.get();
+                resultFlowable = resultFlowable.doFinally(() -> coverage.cancel(true));
+            }
 
             Date sinceParam = job.getSince().isPresent() ?
                     Date.from(job.getSince().get().toInstant()) : Date.from(Instant.EPOCH);
@@ -131,10 +205,39 @@ public class JobBatchProcessor {
             );
         }
 
-        final var results = writeResource(job, flowable.get())
+        // Coverage won't be written for a patient that failed a check
+        if(failReason.isPresent()) {
+            coverageFetch.ifPresent(coverage -> coverage.cancel(true));
+        }
+
+        final String patientId = optPatient.isPresent() ? optPatient.get().getId() : "-1";
+        return new PatientResources(patientId, flowable.get(), failReason, stopWatch);
+    }
+
+    /**
+     * Writes the resources fetched for a patient and marks the partial as completed.  Patients of a batch must be
+     * written one at a time, in the same order as the batch's patient list, to keep file sequences deterministic.
+     * The batch's progress is only saved every checkpointPatients patients or checkpointIntervalSeconds, whichever
+     * comes first.
+     *
+     * @param aggregatorID the current aggregatorID
+     * @param queue        the queue
+     * @param job          the job to process
+     * @param fetched      the resources returned by {@link #fetchPatientResources(JobQueueBatch, String)}
+     * @return A list of batch files {@link JobQueueBatchFile}
+     */
+    public List<JobQueueBatchFile> writePatientResources(UUID aggregatorID, IJobQueue queue, JobQueueBatch job, PatientResources fetched) {
+        final Optional<OutcomeReason> failReason = fetched.getFailReason();
+        final StopWatch stopWatch = fetched.getStopWatch();
+
+        final var results = writeResource(job, fetched.getResources())
                 .toList()
                 .blockingGet();
-        queue.completePartialBatch(job, aggregatorID);
+        if (isCheckpointDue(job)) {
+            queue.completePartialBatch(job, aggregatorID);
+        } else {
+            deferredCheckpointMeter.mark();
+        }
 
         AtomicReference<String> fileSize = new AtomicReference<>("");
         results.forEach(file -> {
@@ -146,12 +249,107 @@ public class JobBatchProcessor {
         double durationInSeconds = stopWatch.getDuration().getSeconds() + ((double) stopWatch.getDuration().getNano() / 1000000000);
         final String failReasonLabel = failReason.map(Enum::name).orElse("NA");
         stopWatch.stop();
-        String patientId = optPatient.isPresent() ? optPatient.get().getId() : "-1";
         logger.info("dpcMetric=DataExportResult,PatientId={}, AggregatorId={}, dataRetrieved={},failReason={},duration={} , resourceFileSizes={}",
-                patientId, aggregatorID,failReason.isEmpty(), failReasonLabel, durationInSeconds,fileSize.get());
+                fetched.getPatientId(), aggregatorID,failReason.isEmpty(), failReasonLabel, durationInSeconds,fileSize.get());
         return results;
     }
 
+    /**
+     * Looks up the patients of the batch that haven't been processed yet with a few batched searches, so that each
+     * patient doesn't need a search of its own.  Any MBI that doesn't resolve to exactly one patient, or all of them if
+     * the searches fail, is left to be looked up on its own when its patient is processed.
+     * Call {@link #clearResolvedPatients(JobQueueBatch)} once the batch is done.
+     *
+     * @param job the job whose patients to look up
+     */
+    public void resolvePatients(JobQueueBatch job) {
+        final List<String> patients = job.getPatients();
+        final List<String> remaining = patients.subList(job.getPatientIndex().orElse(-1) + 1, patients.size());
+        // A single patient gains nothing from a batched search
+        if (remaining.size() < 2) {
+            return;
+        }
+
+        final Bundle bundle;
+        try {
+            bundle = bbclient.requestPatientsFromServerByMbis(remaining, buildJobHeaders(job).buildHeaders());
+        } catch (Exception e) {
+            logger.warn("Failed to look up the batch's patients together, looking them up one at a time", e);
+            return;
+        }
+
+        final Set<String> requested = new HashSet<>(remaining);
+        final Map<String, Patient> byMbi = new ConcurrentHashMap<>();
+        final Set<String> ambiguous = new HashSet<>();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (!(entry.getResource() instanceof Patient patient)) {
+                continue;
+            }
+            for (String mbi : getPatientMBIs(patient)) {
+                if (!requested.contains(mbi)) {
+                    continue;
+                }
+                final Patient existing = byMbi.putIfAbsent(mbi, patient);
+                if (existing != null && !existing.getIdElement().getIdPart().equals(patient.getIdElement().getIdPart())) {
+                    ambiguous.add(mbi);
+                }
+            }
+        }
+        // Leave these for the single lookup to report
+        ambiguous.forEach(byMbi::remove);
+
+        resolvedPatients.put(job.getBatchID(), byMbi);
+        logger.debug("Resolved {} of {} patients ahead of time", byMbi.size(), remaining.size());
+    }
+
+    /**
+     * Drops any patients looked up by {@link #resolvePatients(JobQueueBatch)} that weren't used.
+     *
+     * @param job the job whose patients to drop
+     */
+    public void clearResolvedPatients(JobQueueBatch job) {
+        resolvedPatients.remove(job.getBatchID());
+    }
+
+    /**
+     * Counts a written patient towards the batch's next checkpoint, and starts counting again if it's due.
+     *
+     * @param job the job a patient was written for
+     * @return whether the batch's progress should be saved now
+     */
+    private boolean isCheckpointDue(JobQueueBatch job) {
+        final PendingCheckpoint pending = pendingCheckpoints.computeIfAbsent(job.getBatchID(), id -> new PendingCheckpoint());
+        pending.patients++;
+
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(operationsConfig.getCheckpointIntervalSeconds());
+        final boolean due = pending.patients >= operationsConfig.getCheckpointPatients()
+                || (intervalNanos > 0 && System.nanoTime() - pending.sinceNanos >= intervalNanos);
+        if (due) {
+            pendingCheckpoints.put(job.getBatchID(), new PendingCheckpoint());
+        }
+        return due;
+    }
+
+    /**
+     * Finishes every file of the batch that is still open and syncs it to disk.  Files are kept open between patients,
+     * so this must be called before the batch is completed or paused.  Any progress that hasn't been checkpointed is
+     * dropped too, since completing, pausing or failing the batch saves all of it.
+     *
+     * @param job the job whose files to close
+     */
+    public void closeBatchFiles(JobQueueBatch job) {
+        pendingCheckpoints.remove(job.getBatchID());
+        final ResourceFileStreams fileStreams = batchFileStreams.remove(job.getBatchID());
+        if (fileStreams == null) {
+            return;
+        }
+        try {
+            fileStreams.close();
+        } catch (IOException e) {
+            throw new JobQueueFailure(job.getJobID(), job.getBatchID(), "IO error closing batch files", e);
+        }
+    }
+
     /**
      * Checks the given patient against the consent service and returns any issues if the check doesn't pass.
      * @param patient   {@link Patient} resource we're checking consent for.
@@ -194,36 +392,42 @@ public class JobBatchProcessor {
         if (isLookBackExempt(job.getOrgID()) ) {
             logger.info("Skipping lookBack for org: {}", job.getOrgID());
             MDC.put(MDCConstants.IS_SMOKE_TEST_ORG, "true");
-
-            // If the org is exempt from lookback and they're not asking for EoBs, we don't have to do anything
-            if (!job.getResourceTypes().contains(DPCResourceType.ExplanationOfBenefit)) {
-                return Pair.of(Flowable.empty(), null);
+        } else {
+            // EoBs are only fetched as far as the first one that passes
+            List<LookBackAnswer> answers = new ArrayList<>();
+            if (!streamLookBack(job, patient, answers)) {
+                return lookBackFailure(patient, answers);
             }
         }
 
-        Pair<List<LookBackAnswer>, Flowable<Resource>> lookBackPair = getLookBackAnswers(job, patient);
-        List<LookBackAnswer> answers = lookBackPair.getLeft();
-        Flowable<Resource> eobs = lookBackPair.getRight();
-
-        // If the org isn't exempt, check if they pass lookback
-        if (!isLookBackExempt(job.getOrgID())) {
-            if (!passesLookBack(answers)) {
-                OutcomeReason failReason = LookBackAnalyzer.analyze(answers);
-                return Pair.of(
-                    Flowable.just(
-                        AggregationUtils.toOperationOutcome(
-                            failReason,
-                            patient.getId(),
-                            OperationOutcome.IssueType.SUPPRESSED
-                        )
-                    ),
-                    failReason
-                );
-            }
+        // If the customer isn't asking for EoBs, we only needed them for the look back check
+        if (!job.getResourceTypes().contains(DPCResourceType.ExplanationOfBenefit)) {
+            return Pair.of(Flowable.empty(), null);
         }
 
-        // Passes lookback check or is exempt, return Explanations of Benefit and no fail reason
-        return Pair.of(eobs, null);
+        // Passes lookback check or is exempt.  The EoBs are fetched again to be written as they come in, rather than
+        // holding on to all of the ones fetched for the check.
+        return Pair.of(streamEoBs(job, patient), null);
+    }
+
+    /**
+     * Works out why a patient failed the look back check.
+     * @param patient   {@link Patient} resource that failed the check.
+     * @param answers   Every {@link LookBackAnswer} for the patient's EoBs.
+     * @return A pair of a {@link Flowable} {@link OperationOutcome} and the {@link OutcomeReason}.
+     */
+    private Pair<Flowable<Resource>, OutcomeReason> lookBackFailure(Patient patient, List<LookBackAnswer> answers) {
+        OutcomeReason failReason = LookBackAnalyzer.analyze(answers);
+        return Pair.of(
+            Flowable.just(
+                AggregationUtils.toOperationOutcome(
+                    failReason,
+                    patient.getId(),
+                    OperationOutcome.IssueType.SUPPRESSED
+                )
+            ),
+            failReason
+        );
     }
 
     private boolean isLookBackExempt(UUID orgId) {
@@ -242,17 +446,97 @@ public class JobBatchProcessor {
      * @return A flowable and resourceType the user requested
      */
     private Flowable<Resource> fetchResource(JobQueueBatch job, Patient patient, DPCResourceType resourceType, OffsetDateTime since) {
-        // Make this flow hot (ie. only called once) when multiple subscribers attach
         final var fetcher = new ResourceFetcher(bbclient,
                 job.getJobID(),
                 job.getBatchID(),
                 resourceType,
                 since,
                 job.getTransactionTime(),
-                operationsConfig.getFetchWarnThresholdSeconds());
-        List<Resource> bundles = fetcher.fetchResources(patient, new JobHeaders(job.getRequestingIP(),job.getJobID().toString(),
-                        job.getProviderNPI(),job.getTransactionTime().toString(),job.isBulk()).buildHeaders());
-        return Flowable.just(bundles).flatMap(Flowable::fromIterable);
+                operationsConfig.getFetchWarnThresholdSeconds(),
+                pagePrefetchExecutor,
+                operationsConfig.isRawJsonPassthrough());
+        return fetcher.streamResources(patient, buildJobHeaders(job).buildHeaders());
+    }
+
+    private static JobHeaders buildJobHeaders(JobQueueBatch job) {
+        return new JobHeaders(
+                job.getRequestingIP(),
+                job.getJobID().toString(),
+                job.getProviderNPI(),
+                job.getTransactionTime().toString(),
+                job.isBulk());
+    }
+
+    /**
+     * Fetch a specific resource type in the background.  Errors from BlueButton become {@link OperationOutcome}s in the
+     * result, the same as with {@link #fetchResource(JobQueueBatch, Patient, DPCResourceType, OffsetDateTime)}.
+     *
+     * @param job       the job to associate the fetch
+     * @param patient   the {@link Patient} we're fetching data for
+     * @return A {@link Future} of every resource fetched
+     */
+    private Future<List<Resource>> fetchResourceAsync(JobQueueBatch job, Patient patient, DPCResourceType resourceType, OffsetDateTime since) {
+        final Map<String, String> mdc = MDC.getCopyOfContextMap();
+        return resourceFetchExecutor.submit(Context.current().wrap(() -> {
+            // When the pool is busy this runs on the caller, whose MDC has to be put back afterwards
+            final Map<String, String> previous = MDC.getCopyOfContextMap();
+            if (mdc != null) {
+                MDC.setContextMap(mdc);
+            }
+            try {
+                return fetchResource(job, patient, resourceType, since).toList().blockingGet();
+            } finally {
+                if (previous != null) {
+                    MDC.setContextMap(previous);
+                } else {
+                    MDC.clear();
+                }
+            }
+        }));
+    }
+
+    private List<Resource> awaitResources(JobQueueBatch job, Future<List<Resource>> resources) throws InterruptedException {
+        try {
+            return resources.get();
+        } catch (InterruptedException e) {
+            // Most likely stopping, which pauses the batch rather than failing it
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new JobQueueFailure(job.getJobID(), job.getBatchID(), "Failed to fetch resources", e.getCause());
+        }
+    }
+
+    /**
+     * A fixed number of threads with no queue.  When every thread is busy the fetch runs on the caller, just as if
+     * resources were fetched one after the other.
+     */
+    private static ExecutorService buildResourceFetchExecutor(int threads) {
+        if (threads < 1) {
+            return null;
+        }
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("bfd-resource-fetch-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * One thread for each fetch that can be streaming at once: a patient on each of every engine's patient threads,
+     * plus the Coverage fetches running alongside them.  Each fetch only has one page being prefetched at a time.
+     */
+    private static ExecutorService buildPagePrefetchExecutor(OperationsConfig operationsConfig) {
+        final int threads = Math.max(1, operationsConfig.getEngineCount()) * Math.max(1, operationsConfig.getPatientConcurrency())
+                + Math.max(0, operationsConfig.getResourceFetchThreads());
+        return Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("bfd-page-prefetch-%d")
+                .setDaemon(true)
+                .build());
     }
 
     /**
@@ -263,17 +547,24 @@ public class JobBatchProcessor {
      * @return      The {@link Patient}
      */
     private Optional<Patient> fetchPatient(JobQueueBatch job, String mbi) {
-        JobHeaders headers = new JobHeaders(
-                job.getRequestingIP(),
-                job.getJobID().toString(),
-                job.getProviderNPI(),
-                job.getTransactionTime().toString(),
-                job.isBulk());
+        // Use the patient if it was already looked up with the rest of the batch
+        final Map<String, Patient> resolved = resolvedPatients.get(job.getBatchID());
+        final Patient resolvedPatient = resolved == null ? null : resolved.remove(mbi);
+        if (resolvedPatient != null) {
+            MDC.put(MDCConstants.PATIENT_FHIR_ID, resolvedPatient.getIdPart());
+            return Optional.of(resolvedPatient);
+        }
+
+        JobHeaders headers = buildJobHeaders(job);
 
         Bundle patients;
         try {
-            patients = bbclient.requestPatientFromServerByMbi(mbi, headers.buildHeaders());
+            patients = ResourceFetcher.retryWhileLimited(() -> bbclient.requestPatientFromServerByMbi(mbi, headers.buildHeaders()));
         } catch (Exception e) {
+            // Not the patient's fault, so it's not reported as one
+            if (ResourceFetcher.isInterruption(e)) {
+                throw e;
+            }
             logger.error("Failed to retrieve Patient", e);
             return Optional.empty();
         }
@@ -289,25 +580,42 @@ public class JobBatchProcessor {
         return Optional.empty();
     }
 
-    private Pair<List<LookBackAnswer>, Flowable<Resource>> getLookBackAnswers(JobQueueBatch job, Patient patient) {
-        List<LookBackAnswer> result = new ArrayList<>();
-        Flowable<Resource> eobs = Flowable.empty();
+    /**
+     * Streams the patient's EoBs from BlueButton, a page at a time, as they're consumed.
+     * @param job       {@link JobQueueBatch} currently running.
+     * @param patient   {@link Patient} resource to fetch EoBs for.
+     * @return A flow of {@link ExplanationOfBenefit} as Resource objects.
+     */
+    private Flowable<Resource> streamEoBs(JobQueueBatch job, Patient patient) {
+        return fetchResource(job, patient, DPCResourceType.ExplanationOfBenefit, getSinceForEoB(job))
+                .filter(resource -> Objects.requireNonNull(DPCResourceType.ExplanationOfBenefit.getPath()).equals(resource.getResourceType().getPath()));
+    }
+
+    /**
+     * Checks the patient's EoBs against look back as they're fetched, and stops fetching them from BlueButton as soon as
+     * one passes.
+     * @param job       {@link JobQueueBatch} currently running.
+     * @param patient   {@link Patient} resource we're looking for a relationship for.
+     * @param answers   Collects the {@link LookBackAnswer} of each EoB checked.  If none passed, this is all of them.
+     * @return Whether one of the EoBs passed the look back check.
+     */
+    private boolean streamLookBack(JobQueueBatch job, Patient patient, List<LookBackAnswer> answers) {
         final String practitionerNPI = job.getProviderNPI();
         final String organizationNPI = job.getOrgNPI();
-        if (practitionerNPI != null && organizationNPI != null) {
-            MDC.put(MDCConstants.PROVIDER_NPI, practitionerNPI);
-            Flowable<Resource> flowable = fetchResource(job, patient, DPCResourceType.ExplanationOfBenefit, getSinceForEoB(job));
-            eobs = flowable.filter(resource -> Objects.requireNonNull(DPCResourceType.ExplanationOfBenefit.getPath()).equals(resource.getResourceType().getPath()));
-            result = eobs
-                    .map(ExplanationOfBenefit.class::cast)
-                    .map(resource -> lookBackService.getLookBackAnswer(resource, organizationNPI, practitionerNPI))
-                    .toList()
-                    .doOnError(e -> new ArrayList<>())
-                    .blockingGet();
-        } else {
+        if (practitionerNPI == null || organizationNPI == null) {
             logger.error("couldn't get practitionerNPI and organizationNPI from job");
+            return false;
         }
-        return Pair.of(result, eobs);
+
+        MDC.put(MDCConstants.PROVIDER_NPI, practitionerNPI);
+        final boolean passed = streamEoBs(job, patient)
+                .map(ExplanationOfBenefit.class::cast)
+                .map(resource -> lookBackService.getLookBackAnswer(resource, organizationNPI, practitionerNPI))
+                .doOnNext(answers::add)
+                .any(this::passesLookBack)
+                .blockingGet();
+        logger.debug("Checked {} EoBs for look back, passed: {}", answers.size(), passed);
+        return passed;
     }
 
     /**
@@ -343,6 +651,7 @@ public class JobBatchProcessor {
     }
 
     private Flowable<JobQueueBatchFile> writeResource(JobQueueBatch job, Flowable<Resource> flow) {
+        final var fileStreams = batchFileStreams.computeIfAbsent(job.getBatchID(), batchID -> new ResourceFileStreams());
         return flow.groupBy(Resource::getResourceType)
                 .flatMap(groupedByResourceFlow -> {
                     final var resourceCount = new AtomicInteger();
@@ -353,7 +662,7 @@ public class JobBatchProcessor {
                         resourceCount.set(file.getCount());
                         sequenceCount.set(file.getSequence());
                     });
-                    final var writer = new ResourceWriter(fhirContext, job, dpcResourceType, operationsConfig);
+                    final var writer = new ResourceWriter(fhirContext, job, dpcResourceType, operationsConfig, fileStreams);
                     return groupedByResourceFlow.compose(upstream -> bufferAndWrite(upstream, writer, resourceCount, sequenceCount));
                 });
     }
@@ -434,8 +743,50 @@ public class JobBatchProcessor {
         return true;
     }
 
-    private boolean passesLookBack(List<LookBackAnswer> answers) {
-        return answers.stream()
-                .anyMatch(a -> a.matchDateCriteria() && (a.orgNPIMatchAnyEobNPIs() || a.practitionerNPIMatchAnyEobNPIs()));
+    private boolean passesLookBack(LookBackAnswer answer) {
+        return answer.matchDateCriteria() && (answer.orgNPIMatchAnyEobNPIs() || answer.practitionerNPIMatchAnyEobNPIs());
+    }
+
+    /**
+     * The resources fetched for a single patient, waiting to be written out.
+     */
+    public static class PatientResources {
+        private final String patientId;
+        private final Flowable<Resource> resources;
+        private final Optional<OutcomeReason> failReason;
+        private final StopWatch stopWatch;
+
+        @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+        PatientResources(String patientId, Flowable<Resource> resources, Optional<OutcomeReason> failReason, StopWatch stopWatch) {
+            this.patientId = patientId;
+            this.resources = resources;
+            this.failReason = failReason;
+            this.stopWatch = stopWatch;
+        }
+
+        public String getPatientId() {
+            return patientId;
+        }
+
+        public Flowable<Resource> getResources() {
+            return resources;
+        }
+
+        public Optional<OutcomeReason> getFailReason() {
+            return failReason;
+        }
+
+        StopWatch getStopWatch() {
+            return stopWatch;
+        }
+    }
+
+    /**
+     * The patients written for a batch since its progress was last saved.  Only touched by the thread writing the
+     * batch's patients.
+     */
+    private static class PendingCheckpoint {
+        private final long sinceNanos = System.nanoTime();
+        private int patients;
     }
 }
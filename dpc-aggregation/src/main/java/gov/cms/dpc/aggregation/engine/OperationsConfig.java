@@ -16,6 +16,12 @@ public class OperationsConfig {
     private int lookBackMonths;
     private List<String> lookBackExemptOrgs;
     private final int fetchWarnThresholdSeconds;
+    private final int patientConcurrency;
+    private final int engineCount;
+    private final int resourceFetchThreads;
+    private final boolean rawJsonPassthrough;
+    private final int checkpointPatients;
+    private final int checkpointIntervalSeconds;
 
     public OperationsConfig(
             int resourcesPerFileCount,
@@ -24,7 +30,13 @@ public class OperationsConfig {
             int pollingFrequency,
             int lookBackMonths,
             List<String> lookBackExemptOrgs,
-            int fetchWarnThresholdSeconds
+            int fetchWarnThresholdSeconds,
+            int patientConcurrency,
+            int engineCount,
+            int resourceFetchThreads,
+            boolean rawJsonPassthrough,
+            int checkpointPatients,
+            int checkpointIntervalSeconds
     ) {
         this.retryCount = retryCount;
         this.resourcesPerFileCount = resourcesPerFileCount;
@@ -33,6 +45,40 @@ public class OperationsConfig {
         this.lookBackMonths = lookBackMonths;
         this.lookBackExemptOrgs = lookBackExemptOrgs;
         this.fetchWarnThresholdSeconds = fetchWarnThresholdSeconds;
+        this.patientConcurrency = patientConcurrency;
+        this.engineCount = engineCount;
+        this.resourceFetchThreads = resourceFetchThreads;
+        this.rawJsonPassthrough = rawJsonPassthrough;
+        this.checkpointPatients = checkpointPatients;
+        this.checkpointIntervalSeconds = checkpointIntervalSeconds;
+    }
+
+    public OperationsConfig(
+            int resourcesPerFileCount,
+            String exportPath,
+            int retryCount,
+            int pollingFrequency,
+            int lookBackMonths,
+            List<String> lookBackExemptOrgs,
+            int fetchWarnThresholdSeconds,
+            int patientConcurrency,
+            int engineCount,
+            int resourceFetchThreads,
+            boolean rawJsonPassthrough
+    ) {
+        this(resourcesPerFileCount, exportPath, retryCount, pollingFrequency, lookBackMonths, lookBackExemptOrgs, fetchWarnThresholdSeconds, patientConcurrency, engineCount, resourceFetchThreads, rawJsonPassthrough, 1, 0);
+    }
+
+    public OperationsConfig(
+            int resourcesPerFileCount,
+            String exportPath,
+            int retryCount,
+            int pollingFrequency,
+            int lookBackMonths,
+            List<String> lookBackExemptOrgs,
+            int fetchWarnThresholdSeconds
+    ) {
+        this(resourcesPerFileCount, exportPath, retryCount, pollingFrequency, lookBackMonths, lookBackExemptOrgs, fetchWarnThresholdSeconds, 1, 1, 0, false);
     }
 
     // This constructor is only used in testing, so set sensible defaults for members that aren't provided.
@@ -47,6 +93,12 @@ public class OperationsConfig {
         this.pollingFrequency = pollingFrequency;
         this.fetchWarnThresholdSeconds = 30;
         this.lookBackMonths = 18;
+        this.patientConcurrency = 1;
+        this.engineCount = 1;
+        this.resourceFetchThreads = 0;
+        this.rawJsonPassthrough = false;
+        this.checkpointPatients = 1;
+        this.checkpointIntervalSeconds = 0;
     }
 
     @SuppressWarnings("unused")
@@ -77,4 +129,37 @@ public class OperationsConfig {
     public List<String> getLookBackExemptOrgs() { return lookBackExemptOrgs; }
 
     public int getFetchWarnThresholdSeconds() { return fetchWarnThresholdSeconds; }
+
+    /**
+     * @return The number of patients of a single batch that can be fetched from BlueButton at the same time.
+     */
+    public int getPatientConcurrency() { return patientConcurrency; }
+
+    /**
+     * @return The number of {@link AggregationEngine}s, and therefore batches, an aggregator works on at the same time.
+     */
+    public int getEngineCount() { return engineCount; }
+
+    /**
+     * @return The number of threads used to fetch a patient's Coverage while their EoBs are fetched, 0 to fetch them one
+     * after the other.
+     */
+    public int getResourceFetchThreads() { return resourceFetchThreads; }
+
+    /**
+     * @return Whether EoBs are copied from BlueButton's JSON straight into the export files, instead of being parsed
+     * into FHIR resources and encoded again.
+     */
+    public boolean isRawJsonPassthrough() { return rawJsonPassthrough; }
+
+    /**
+     * @return The number of patients of a batch that are written between saves of its progress.
+     */
+    public int getCheckpointPatients() { return checkpointPatients; }
+
+    /**
+     * @return How long, in seconds, a batch can go without its progress being saved, even if fewer than
+     * {@link #getCheckpointPatients()} patients have been written, 0 to only count patients.
+     */
+    public int getCheckpointIntervalSeconds() { return checkpointIntervalSeconds; }
 }
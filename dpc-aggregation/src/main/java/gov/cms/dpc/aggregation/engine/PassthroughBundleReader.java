@@ -0,0 +1,223 @@
+package gov.cms.dpc.aggregation.engine;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import gov.cms.dpc.fhir.DPCResourceType;
+import org.hl7.fhir.dstu3.model.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads a BlueButton {@link Bundle} of {@link ExplanationOfBenefit}s with a streaming JSON parser, instead of building
+ * the full FHIR object graph. Only what the aggregator looks at is read: the bundle's meta.lastUpdated and links, and
+ * each EoB's id, meta.lastUpdated, billablePeriod.end and the identifiers of its organization, provider and care team.
+ * <p>
+ * Each EoB is returned as a {@link PassthroughExplanationOfBenefit} holding its original JSON, less any whitespace
+ * between tokens, so that it can be copied to an export file as it is.
+ */
+final class PassthroughBundleReader {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private PassthroughBundleReader() {
+        // Static methods only
+    }
+
+    /**
+     * Read a bundle of EoBs
+     *
+     * @param json - the UTF-8 encoded JSON of the bundle
+     * @return a {@link Bundle} of {@link PassthroughExplanationOfBenefit}s
+     * @throws IOException - If the JSON is malformed
+     * @throws IllegalStateException - If the bundle contains anything other than EoBs
+     */
+    static Bundle read(byte[] json) throws IOException {
+        final Bundle bundle = new Bundle();
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected a Bundle");
+            }
+            readObject(parser, field -> {
+                switch (field) {
+                    case "meta" -> readMeta(parser, bundle.getMeta());
+                    case "link" -> readArray(parser, () -> bundle.addLink(readLink(parser)));
+                    case "entry" -> readArray(parser, () -> readObject(parser, entryField -> {
+                        if ("resource".equals(entryField)) {
+                            bundle.addEntry().setResource(readExplanationOfBenefit(parser, json));
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }));
+                    default -> parser.skipChildren();
+                }
+            });
+        }
+        return bundle;
+    }
+
+    /**
+     * Read an EoB, keeping its original JSON
+     *
+     * @param parser - positioned at the start of the resource
+     * @param json   - the JSON being parsed
+     * @return the {@link PassthroughExplanationOfBenefit}
+     */
+    private static PassthroughExplanationOfBenefit readExplanationOfBenefit(JsonParser parser, byte[] json) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected a resource");
+        }
+        final int start = (int) parser.currentTokenLocation().getByteOffset();
+
+        final PassthroughExplanationOfBenefit eob = new PassthroughExplanationOfBenefit();
+        final String[] resourceType = new String[1];
+        readObject(parser, field -> {
+            switch (field) {
+                case "resourceType" -> resourceType[0] = parser.getText();
+                case "id" -> eob.setIdElement(new IdType(eob.fhirType(), parser.getText()));
+                case "meta" -> readMeta(parser, eob.getMeta());
+                case "billablePeriod" -> readObject(parser, periodField -> {
+                    if ("end".equals(periodField)) {
+                        eob.getBillablePeriod().setEndElement(new DateTimeType(parser.getText()));
+                    } else {
+                        parser.skipChildren();
+                    }
+                });
+                case "organization" -> eob.setOrganization(readReference(parser));
+                case "provider" -> eob.setProvider(readReference(parser));
+                case "careTeam" -> readArray(parser, () -> readObject(parser, careTeamField -> {
+                    if ("provider".equals(careTeamField)) {
+                        eob.addCareTeam().setProvider(readReference(parser));
+                    } else {
+                        parser.skipChildren();
+                    }
+                }));
+                default -> parser.skipChildren();
+            }
+        });
+        final int end = (int) parser.currentLocation().getByteOffset();
+
+        if (!eob.fhirType().equals(resourceType[0])) {
+            throw new IllegalStateException(String.format("Unexpected resource type: got %s expected: %s", resourceType[0], DPCResourceType.ExplanationOfBenefit));
+        }
+
+        eob.setJson(compact(json, start, end));
+        return eob;
+    }
+
+    private static void readMeta(JsonParser parser, Meta meta) throws IOException {
+        readObject(parser, field -> {
+            if ("lastUpdated".equals(field)) {
+                meta.setLastUpdatedElement(new InstantType(parser.getText()));
+            } else {
+                parser.skipChildren();
+            }
+        });
+    }
+
+    private static Bundle.BundleLinkComponent readLink(JsonParser parser) throws IOException {
+        final Bundle.BundleLinkComponent link = new Bundle.BundleLinkComponent();
+        readObject(parser, field -> {
+            switch (field) {
+                case "relation" -> link.setRelation(parser.getText());
+                case "url" -> link.setUrl(parser.getText());
+                default -> parser.skipChildren();
+            }
+        });
+        return link;
+    }
+
+    private static Reference readReference(JsonParser parser) throws IOException {
+        final Reference reference = new Reference();
+        readObject(parser, field -> {
+            if ("identifier".equals(field)) {
+                final Identifier identifier = reference.getIdentifier();
+                readObject(parser, identifierField -> {
+                    switch (identifierField) {
+                        case "system" -> identifier.setSystem(parser.getText());
+                        case "value" -> identifier.setValue(parser.getText());
+                        default -> parser.skipChildren();
+                    }
+                });
+            } else {
+                parser.skipChildren();
+            }
+        });
+        return reference;
+    }
+
+    /**
+     * Calls the reader with each field of the object the parser is positioned at, after moving the parser to the
+     * field's value. The reader has to consume the value, skipping it if it isn't needed.
+     * Anything other than an object is skipped.
+     */
+    private static void readObject(JsonParser parser, FieldReader reader) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.currentName();
+            parser.nextToken();
+            reader.read(field);
+        }
+    }
+
+    /**
+     * Calls the reader with the parser positioned at each element of the array it's positioned at.
+     * Anything other than an array is skipped.
+     */
+    private static void readArray(JsonParser parser, ElementReader reader) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            reader.read();
+        }
+    }
+
+    /**
+     * Copies part of a JSON document, dropping whitespace outside of strings so that the copy is on a single line.
+     *
+     * @param json  - UTF-8 encoded JSON
+     * @param start - offset of the first byte to copy
+     * @param end   - offset after the last byte to copy
+     * @return the copy
+     */
+    static byte[] compact(byte[] json, int start, int end) {
+        final byte[] copy = new byte[end - start];
+        int length = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        for (int i = start; i < end; i++) {
+            final byte b = json[i];
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                }
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                continue;
+            }
+            copy[length++] = b;
+        }
+        return length == copy.length ? copy : Arrays.copyOf(copy, length);
+    }
+
+    @FunctionalInterface
+    private interface FieldReader {
+        void read(String field) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface ElementReader {
+        void read() throws IOException;
+    }
+}
@@ -0,0 +1,24 @@
+package gov.cms.dpc.aggregation.engine;
+
+import org.hl7.fhir.dstu3.model.ExplanationOfBenefit;
+
+/**
+ * An {@link ExplanationOfBenefit} read by {@link PassthroughBundleReader}. Only the fields the aggregator looks at are
+ * set, the resource itself is kept as the JSON BlueButton sent, which is what {@link ResourceWriter} writes out.
+ */
+class PassthroughExplanationOfBenefit extends ExplanationOfBenefit {
+    private static final long serialVersionUID = 42L;
+
+    private byte[] json;
+
+    /**
+     * @return The resource's UTF-8 encoded JSON, on a single line
+     */
+    byte[] getJson() {
+        return json;
+    }
+
+    void setJson(byte[] json) {
+        this.json = json;
+    }
+}
@@ -4,10 +4,14 @@ import ca.uhn.fhir.rest.param.DateRangeParam;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import gov.cms.dpc.bluebutton.client.BlueButtonClient;
+import gov.cms.dpc.bluebutton.exceptions.BlueButtonLimitExceededException;
 import gov.cms.dpc.common.MDCConstants;
 import gov.cms.dpc.fhir.DPCIdentifierSystem;
 import gov.cms.dpc.fhir.DPCResourceType;
 import gov.cms.dpc.queue.exceptions.JobQueueFailure;
+import io.opentelemetry.context.Context;
+import io.reactivex.Emitter;
+import io.reactivex.Flowable;
 import org.apache.commons.lang3.time.StopWatch;
 import org.hl7.fhir.dstu3.model.*;
 import org.slf4j.Logger;
@@ -15,10 +19,16 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.slf4j.spi.LoggingEventBuilder;
 
+import java.io.IOException;
 import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import static gov.cms.dpc.fhir.FHIRExtractors.getPatientMBI;
 
@@ -34,6 +44,8 @@ class ResourceFetcher {
     private final OffsetDateTime since;
     private final OffsetDateTime transactionTime;
     private final int fetchWarnThresholdSeconds;
+    private final ExecutorService prefetchExecutor;
+    private final boolean rawJsonPassthrough;
 
     /**
      * Create a context for fetching FHIR resources
@@ -51,6 +63,30 @@ class ResourceFetcher {
                     OffsetDateTime since,
                     OffsetDateTime transactionTime,
                     int fetchWarnThresholdSeconds) {
+        this(blueButtonClient, jobID, batchID, resourceType, since, transactionTime, fetchWarnThresholdSeconds, null, false);
+    }
+
+    /**
+     * Create a context for fetching FHIR resources that fetches the next page of a bundle in the background
+     * @param blueButtonClient - client to BlueButton to use
+     * @param jobID - the jobID for logging and reporting
+     * @param batchID - the batchID for logging and reporting
+     * @param resourceType - the resource type to fetch
+     * @param since - the since parameter for the job
+     * @param transactionTime - the start time of this job
+     * @param prefetchExecutor - where to fetch next pages, or null to fetch them when they're needed
+     * @param rawJsonPassthrough - whether to read EoBs with {@link PassthroughBundleReader}, so they're written as they
+     *                           came from BlueButton
+     */
+    ResourceFetcher(BlueButtonClient blueButtonClient,
+                    UUID jobID,
+                    UUID batchID,
+                    DPCResourceType resourceType,
+                    OffsetDateTime since,
+                    OffsetDateTime transactionTime,
+                    int fetchWarnThresholdSeconds,
+                    ExecutorService prefetchExecutor,
+                    boolean rawJsonPassthrough) {
         this.blueButtonClient = blueButtonClient;
         this.jobID = jobID;
         this.batchID = batchID;
@@ -58,6 +94,8 @@ class ResourceFetcher {
         this.since = since;
         this.transactionTime = transactionTime;
         this.fetchWarnThresholdSeconds = fetchWarnThresholdSeconds;
+        this.prefetchExecutor = prefetchExecutor;
+        this.rawJsonPassthrough = rawJsonPassthrough && resourceType == DPCResourceType.ExplanationOfBenefit;
     }
 
     /**
@@ -66,51 +104,155 @@ class ResourceFetcher {
      *
      * @param patient {@link Patient} we're fetching resources for
      * @param headers headers
-     * @return a flow with all the resources for specific patient
+     * @return a list with all the resources for specific patient
      */
     List<Resource> fetchResources(Patient patient, Map<String, String> headers) {
-        try {
-            StopWatch stopWatch = StopWatch.createStarted();
+        return streamResources(patient, headers).toList().blockingGet();
+    }
 
-            String fetchId = UUID.randomUUID().toString();
-            logger.debug("Fetching first {} from BlueButton for {}", resourceType.toString(), fetchId);
-            final Bundle firstFetched = fetchFirst(patient, headers);
-            List<Resource> bundles = fetchAllBundles(firstFetched, fetchId, headers);
+    /**
+     * Stream all the resources for a specific patient, a page at a time. Each page's resources are emitted as soon as
+     * the page has been fetched, and while they're consumed the next page is fetched in the background. Pages are
+     * only fetched as they're requested, so a slow consumer holds back the fetching.
+     * <p>
+     * If errors are encountered from BlueButton, a OperationOutcome resource is emitted after any resources from pages
+     * that were already emitted. Requests turned away by the limit on requests to BlueButton are tried again, and an
+     * interrupted fetch ends in an error, since neither says anything about the patient.
+     *
+     * @param patient {@link Patient} we're fetching resources for
+     * @param headers headers
+     * @return a flow with all the resources for specific patient
+     */
+    Flowable<Resource> streamResources(Patient patient, Map<String, String> headers) {
+        return Flowable.defer(() -> {
+            final StopWatch stopWatch = StopWatch.createStarted();
+            final String fetchId = UUID.randomUUID().toString();
+            final AtomicInteger resourceCount = new AtomicInteger();
+
+            return Flowable.generate(
+                            () -> new PageState(patient, headers, fetchId),
+                            this::nextPage,
+                            PageState::cancel)
+                    .concatMapIterable(this::getResources, 1)
+                    .doOnNext(resource -> resourceCount.incrementAndGet())
+                    .doOnComplete(() -> {
+                        stopWatch.stop();
+                        logFetchDuration(stopWatch.getDuration(), resourceCount.get(), fetchId);
+                    });
+        }).onErrorResumeNext((Throwable error) -> {
+            if (error instanceof JobQueueFailure || isInterruption(error)) {
+                return Flowable.error(error);
+            }
+            return Flowable.fromIterable(handleError(patient, error));
+        });
+    }
 
-            stopWatch.stop();
-            logFetchDuration(stopWatch.getDuration(), bundles.size(), fetchId);
+    /**
+     * Emits the next page of resources, and starts fetching the page after it.
+     *
+     * @param state   - the {@link PageState} of this fetch
+     * @param emitter - the emitter for the page
+     * @throws Exception - If the page couldn't be fetched
+     */
+    private void nextPage(PageState state, Emitter<Bundle> emitter) throws Exception {
+        final Bundle bundle;
+        if (state.previous == null) {
+            logger.debug("Fetching first {} from BlueButton for {}", resourceType.toString(), state.fetchId);
+            bundle = retryWhileLimited(() -> fetchFirst(state.patient, state.headers));
+        } else if (state.next != null) {
+            bundle = awaitPage(state.next, state);
+            state.next = null;
+        } else {
+            logger.debug("Fetching next bundle {} from BlueButton for {}", resourceType.toString(), state.fetchId);
+            bundle = retryWhileLimited(() -> fetchNext(state.previous, state.headers));
+        }
+        checkBundleTransactionTime(bundle);
+        state.previous = bundle;
+
+        final boolean hasNext = bundle.getLink(Bundle.LINK_NEXT) != null;
+        if (hasNext && prefetchExecutor != null) {
+            state.next = prefetchPage(bundle, state);
+        }
 
-            return bundles;
-        } catch (JobQueueFailure jqf) {
-            throw jqf;
-        } catch (Exception e) {
-            return handleError(patient, e);
+        emitter.onNext(bundle);
+        if (!hasNext) {
+            logger.debug("Done fetching bundles {} for {}", resourceType.toString(), state.fetchId);
+            emitter.onComplete();
+        }
+    }
+
+    private Future<Bundle> prefetchPage(Bundle bundle, PageState state) {
+        final Map<String, String> mdc = MDC.getCopyOfContextMap();
+        return prefetchExecutor.submit(Context.current().wrap(() -> {
+            // Put back whatever the thread had before, in case the executor runs tasks on the caller
+            final Map<String, String> previous = MDC.getCopyOfContextMap();
+            if (mdc != null) {
+                MDC.setContextMap(mdc);
+            }
+            try {
+                logger.debug("Fetching next bundle {} from BlueButton for {}", resourceType.toString(), state.fetchId);
+                return fetchNext(bundle, state.headers);
+            } finally {
+                if (previous != null) {
+                    MDC.setContextMap(previous);
+                } else {
+                    MDC.clear();
+                }
+            }
+        }));
+    }
+
+    private Bundle awaitPage(Future<Bundle> page, PageState state) throws Exception {
+        try {
+            return page.get();
+        } catch (InterruptedException e) {
+            // Most likely stopping, which pauses the batch rather than failing it
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BlueButtonLimitExceededException) {
+                // Turned away in the background, wait for a slot here instead
+                return retryWhileLimited(() -> fetchNext(state.previous, state.headers));
+            }
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
         }
     }
 
     /**
-     * Given a bundle, return a list of resources in the passed in bundle and all
-     * the resources from the next bundles.
+     * Makes a request to BlueButton, trying it again for as long as it's turned away by the limit on requests to
+     * BlueButton. Waiting on the limit is what slows the export down to what BlueButton can cope with, so it isn't an
+     * error. The wait ends if the thread is interrupted.
      *
-     * @param firstBundle of resources. Included in the result list
-     * @return a list of all the resources in the first bundle and all next bundles
+     * @param request - the request
+     * @param <T>     - what the request returns
+     * @return what the request returned
      */
-    private List<Resource> fetchAllBundles(Bundle firstBundle, String fetchId,  Map<String, String> headers) {
-        final var resources = new ArrayList<Resource>();
-        checkBundleTransactionTime(firstBundle);
-        addResources(resources, firstBundle);
-
-        // Loop until no more next bundles
-        var bundle = firstBundle;
-        while (bundle.getLink(Bundle.LINK_NEXT) != null) {
-            logger.debug("Fetching next bundle {} from BlueButton for {}", resourceType.toString(), fetchId);
-            bundle = blueButtonClient.requestNextBundleFromServer(bundle, headers);
-            checkBundleTransactionTime(bundle);
-            addResources(resources, bundle);
+    static <T> T retryWhileLimited(Supplier<T> request) {
+        while (true) {
+            try {
+                return request.get();
+            } catch (BlueButtonLimitExceededException e) {
+                logger.warn("Request to BlueButton was turned away, trying again: {}", e.getMessage());
+            }
         }
+    }
 
-        logger.debug("Done fetching bundles {} for {}", resourceType.toString(), fetchId);
-        return resources;
+    /**
+     * @return true if the error came from the thread being interrupted, rather than from BlueButton
+     */
+    static boolean isInterruption(Throwable error) {
+        if (Thread.currentThread().isInterrupted()) {
+            return true;
+        }
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedException) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -145,7 +287,9 @@ class ResourceFetcher {
             case Patient:
                 return blueButtonClient.requestPatientFromServer(patientId, lastUpdated, headers);
             case ExplanationOfBenefit:
-                return blueButtonClient.requestEOBFromServer(patientId, lastUpdated, headers);
+                return rawJsonPassthrough ?
+                        readPassthroughBundle(blueButtonClient.requestEOBJsonFromServer(patientId, lastUpdated, headers)) :
+                        blueButtonClient.requestEOBFromServer(patientId, lastUpdated, headers);
             case Coverage:
                 return blueButtonClient.requestCoverageFromServer(patientId, lastUpdated, headers);
             default:
@@ -154,12 +298,34 @@ class ResourceFetcher {
     }
 
     /**
-     * Add resources in a bundle to a list
+     * Fetch the bundle after the given one
+     *
+     * @param bundle  - the previous bundle, with a next link
+     * @param headers - headers
+     * @return the next bundle of resources
+     */
+    private Bundle fetchNext(Bundle bundle, Map<String, String> headers) {
+        return rawJsonPassthrough ?
+                readPassthroughBundle(blueButtonClient.requestNextBundleJsonFromServer(bundle, headers)) :
+                blueButtonClient.requestNextBundleFromServer(bundle, headers);
+    }
+
+    private Bundle readPassthroughBundle(byte[] json) {
+        try {
+            return PassthroughBundleReader.read(json);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read bundle from BlueButton", e);
+        }
+    }
+
+    /**
+     * Get the resources in a bundle, after checking they're all of the type we asked for
      *
-     * @param resources - the list to add resources to
      * @param bundle - the bundle to extract resources from
+     * @return the resources in the bundle
      */
-    private void addResources(ArrayList<Resource> resources, Bundle bundle) {
+    private List<Resource> getResources(Bundle bundle) {
+        final var resources = new ArrayList<Resource>(bundle.getEntry().size());
         bundle.getEntry().forEach((entry) -> {
             final var resource = entry.getResource();
             if (!resource.getResourceType().getPath().equals(resourceType.getPath())) {
@@ -167,6 +333,7 @@ class ResourceFetcher {
             }
             resources.add(resource);
         });
+        return resources;
     }
 
     /**
@@ -255,4 +422,27 @@ class ResourceFetcher {
             resourceType.toString(), fetchId, seconds, resourceCount
         );
     }
+
+    /**
+     * Where a single streaming fetch is up to
+     */
+    private static class PageState {
+        private final Patient patient;
+        private final Map<String, String> headers;
+        private final String fetchId;
+        private Bundle previous;
+        private Future<Bundle> next;
+
+        private PageState(Patient patient, Map<String, String> headers, String fetchId) {
+            this.patient = patient;
+            this.headers = headers;
+            this.fetchId = fetchId;
+        }
+
+        private void cancel() {
+            if (next != null) {
+                next.cancel(true);
+            }
+        }
+    }
 }
@@ -0,0 +1,331 @@
+package gov.cms.dpc.aggregation.engine;
+
+import gov.cms.dpc.aggregation.util.AggregationUtils;
+import gov.cms.dpc.fhir.DPCResourceType;
+import gov.cms.dpc.queue.GzipSeekIndex;
+import gov.cms.dpc.queue.models.JobQueueBatchFile;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CloseShieldWriter;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the compressed output files of a single batch open between writes, so that each file is written as a few large
+ * gzip members for as long as this aggregator works the batch, instead of as a new member for every patient.
+ * <p>
+ * A new member is started every {@link GzipSeekIndex#MEMBER_SIZE} uncompressed bytes, and the start of each is
+ * recorded in a {@link GzipSeekIndex} on the file, so a range request can start decompressing from the nearest member.
+ * <p>
+ * Only one file per resource type is open at a time. Opening the next sequence of a resource type closes the previous
+ * one, since the writer only moves on to a new file once the current one is full. Files must be closed, with
+ * {@link #close()}, before the batch is completed or paused.
+ * <p>
+ * The checksum of the uncompressed contents and the compressed length of each file are worked out as it is written, and
+ * recorded on its {@link JobQueueBatchFile} when the file is closed. The running digest's state is recorded after every
+ * write, so that a batch resumed by another aggregator can keep hashing where this one left off.
+ */
+class ResourceFileStreams implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ResourceFileStreams.class);
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Map<DPCResourceType, OpenFile> openFiles = new EnumMap<>(DPCResourceType.class);
+
+    /**
+     * Returns the open file at the given path, opening it if needed.
+     *
+     * @param batchFile - {@link JobQueueBatchFile} the file belongs to
+     * @param path      - full path of the file
+     * @param append    - whether to append to an existing file when it isn't already open
+     * @return the {@link OpenFile}
+     * @throws IOException - If the file can't be opened, or the previous file of the same type can't be closed
+     */
+    synchronized OpenFile open(JobQueueBatchFile batchFile, String path, boolean append) throws IOException {
+        final DPCResourceType resourceType = batchFile.getResourceType();
+        final OpenFile current = openFiles.get(resourceType);
+        if (current != null) {
+            if (current.path.equals(path)) {
+                return current;
+            }
+            // The previous file is full, roll over to the new one
+            openFiles.remove(resourceType);
+            current.close();
+        }
+
+        final OpenFile file = new OpenFile(batchFile, path, append);
+        openFiles.put(resourceType, file);
+        return file;
+    }
+
+    /**
+     * Finishes every open file and syncs it to disk.
+     *
+     * @throws IOException - If any of the files can't be closed. Every file is still attempted.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (OpenFile file : openFiles.values()) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                logger.error("Unable to close file {}", file.path, e);
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        openFiles.clear();
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * A single gzip compressed file, open for writing.
+     */
+    static class OpenFile {
+        private final JobQueueBatchFile batchFile;
+        private final String path;
+        private final FileOutputStream fileStream;
+        private final CountingOutputStream compressedStream;
+        private final MemberOutputStream memberStream;
+        private final DigestingOutputStream uncompressedStream;
+        private final Writer writer;
+        private final long startLength;
+
+        private OpenFile(JobQueueBatchFile batchFile, String path, boolean append) throws IOException {
+            this.batchFile = batchFile;
+            this.path = path;
+
+            final File file = new File(path);
+            final boolean appending = append && file.exists();
+            this.startLength = appending ? file.length() : 0;
+
+            // Pick the checksum back up if we're appending. Without the digest's state we leave the checksum to be
+            // recomputed from the finished file.
+            SHA256Digest digest = new SHA256Digest();
+            if (appending) {
+                final byte[] digestState = batchFile.getDigestState();
+                digest = digestState == null ? null : new SHA256Digest(digestState);
+            }
+
+            // Likewise the seek index, a file appended to without one goes without
+            GzipSeekIndex seekIndex = new GzipSeekIndex();
+            if (appending) {
+                seekIndex = decodeSeekIndex(batchFile);
+            }
+
+            this.fileStream = new FileOutputStream(file, appending);
+            this.compressedStream = new CountingOutputStream(fileStream);
+            try {
+                this.memberStream = new MemberOutputStream(compressedStream, startLength, seekIndex);
+            } catch (IOException e) {
+                fileStream.close();
+                throw e;
+            }
+            this.uncompressedStream = new DigestingOutputStream(memberStream, digest);
+            // Encoders get a shielded writer, so they can't close the file out from under us
+            this.writer = CloseShieldWriter.wrap(new OutputStreamWriter(uncompressedStream, StandardCharsets.UTF_8));
+
+            // Anything recorded for the file is stale now that we're writing to it again
+            batchFile.setChecksum(null);
+            batchFile.setDigestState(digest == null ? null : digest.getEncodedState());
+            batchFile.setSeekIndex(seekIndex == null ? null : seekIndex.encode());
+        }
+
+        private static GzipSeekIndex decodeSeekIndex(JobQueueBatchFile batchFile) {
+            final byte[] seekIndex = batchFile.getSeekIndex();
+            if (seekIndex == null) {
+                return null;
+            }
+            try {
+                return GzipSeekIndex.decode(seekIndex);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unable to decode seek index of file {}, continuing without one", batchFile.getFileName(), e);
+                return null;
+            }
+        }
+
+        /**
+         * @return A {@link Writer} that encodes to UTF-8 and compresses into the file. Flush it with {@link #flush()}.
+         */
+        Writer getWriter() {
+            return writer;
+        }
+
+        /**
+         * Writes a line that's already been encoded to UTF-8, after anything written to {@link #getWriter()}.
+         *
+         * @param line - the line, without its line break
+         * @throws IOException - If the line can't be written
+         */
+        void writeLine(byte[] line) throws IOException {
+            writer.flush();
+            uncompressedStream.write(line, 0, line.length);
+            uncompressedStream.write('\n');
+        }
+
+        /**
+         * @return The number of uncompressed bytes flushed through {@link #getWriter()}, or written with
+         * {@link #writeLine(byte[])}, since the file was opened
+         */
+        long getUncompressedSize() {
+            return uncompressedStream.getByteCount();
+        }
+
+        /**
+         * Flushes the writer and records the state of the running checksum and the seek index on the file.
+         *
+         * @throws IOException - If the writer can't be flushed
+         */
+        void flush() throws IOException {
+            writer.flush();
+            final SHA256Digest digest = uncompressedStream.getDigest();
+            if (digest != null) {
+                batchFile.setDigestState(digest.getEncodedState());
+            }
+            final GzipSeekIndex seekIndex = memberStream.getSeekIndex();
+            if (seekIndex != null) {
+                batchFile.setSeekIndex(seekIndex.encode());
+            }
+        }
+
+        private void close() throws IOException {
+            try (fileStream) {
+                flush();
+                memberStream.finish();
+                fileStream.flush();
+                fileStream.getFD().sync();
+
+                final SHA256Digest digest = uncompressedStream.getDigest();
+                if (digest != null) {
+                    batchFile.setChecksum(AggregationUtils.finishChecksum(digest));
+                }
+                batchFile.setFileLength(startLength + compressedStream.getByteCount());
+            }
+        }
+    }
+
+    /**
+     * Compresses what's written to it as a series of gzip members, starting a new one once the current one holds
+     * {@link GzipSeekIndex#MEMBER_SIZE} bytes, and records where each member starts in the seek index, when given one.
+     */
+    private static class MemberOutputStream extends OutputStream {
+        private final CountingOutputStream compressedStream;
+        private final long compressedStart;
+        private final GzipSeekIndex seekIndex;
+        private final long uncompressedStart;
+        private GZIPOutputStream member;
+        private long memberBytes;
+        private long byteCount;
+
+        private MemberOutputStream(CountingOutputStream compressedStream, long compressedStart, GzipSeekIndex seekIndex) throws IOException {
+            this.compressedStream = compressedStream;
+            this.compressedStart = compressedStart;
+            this.seekIndex = seekIndex;
+            this.uncompressedStart = seekIndex == null ? 0 : seekIndex.getUncompressedLength();
+            startMember();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            nextMemberIfFull();
+            member.write(b);
+            memberBytes++;
+            byteCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            nextMemberIfFull();
+            member.write(b, off, len);
+            memberBytes += len;
+            byteCount += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            member.flush();
+        }
+
+        /**
+         * Finishes the current member and releases its deflater, leaving the file open.
+         *
+         * @throws IOException - If the member can't be finished
+         */
+        void finish() throws IOException {
+            member.close();
+        }
+
+        GzipSeekIndex getSeekIndex() {
+            if (seekIndex != null) {
+                seekIndex.setUncompressedLength(uncompressedStart + byteCount);
+            }
+            return seekIndex;
+        }
+
+        private void nextMemberIfFull() throws IOException {
+            if (memberBytes >= GzipSeekIndex.MEMBER_SIZE) {
+                finish();
+                startMember();
+            }
+        }
+
+        private void startMember() throws IOException {
+            if (seekIndex != null) {
+                seekIndex.addMember(uncompressedStart + byteCount, compressedStart + compressedStream.getByteCount());
+            }
+            // Closing a member only finishes it, the file stays open for the next one
+            member = new GZIPOutputStream(CloseShieldOutputStream.wrap(compressedStream), BUFFER_SIZE);
+            memberBytes = 0;
+        }
+    }
+
+    /**
+     * Counts the bytes passing through it and, when given a digest, feeds them to it.
+     */
+    private static class DigestingOutputStream extends FilterOutputStream {
+        private final SHA256Digest digest;
+        private long byteCount;
+
+        private DigestingOutputStream(OutputStream out, SHA256Digest digest) {
+            super(out);
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (digest != null) {
+                digest.update((byte) b);
+            }
+            byteCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (digest != null) {
+                digest.update(b, off, len);
+            }
+            byteCount += len;
+        }
+
+        SHA256Digest getDigest() {
+            return digest;
+        }
+
+        long getByteCount() {
+            return byteCount;
+        }
+    }
+}
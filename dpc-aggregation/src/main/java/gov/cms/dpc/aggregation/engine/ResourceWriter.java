@@ -9,15 +9,11 @@ import org.hl7.fhir.dstu3.model.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
+import java.io.Writer;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * Writes files from batches of FHIR Resources
@@ -30,6 +26,7 @@ class ResourceWriter {
     private OperationsConfig config;
     private JobQueueBatch job;
     private DPCResourceType resourceType;
+    private ResourceFileStreams fileStreams;
 
     /**
      * Form the full file name of an output file
@@ -48,15 +45,18 @@ class ResourceWriter {
      * @param job - the context for logging and reporting
      * @param resourceType - the resource type to fetch
      * @param config - config to use for the engine
+     * @param fileStreams - the open files of the batch
      */
     ResourceWriter(FhirContext fhirContext,
                     JobQueueBatch job,
                     DPCResourceType resourceType,
-                    OperationsConfig config) {
+                    OperationsConfig config,
+                    ResourceFileStreams fileStreams) {
         this.fhirContext = fhirContext;
         this.config = config;
         this.job = job;
         this.resourceType = resourceType;
+        this.fileStreams = fileStreams;
     }
 
     /**
@@ -67,7 +67,8 @@ class ResourceWriter {
     }
 
     /**
-     * Write a batch of resources to a file.
+     * Write a batch of resources to a file. The file is left open, so the next batch for the same file is appended to
+     * the same gzip member.
      *
      * @param batch is the list of resources to write
      * @param counter is general counter for batch number
@@ -75,27 +76,29 @@ class ResourceWriter {
      */
     JobQueueBatchFile writeBatch(AtomicInteger counter, List<Resource> batch) {
         try {
-            final var byteStream = new ByteArrayOutputStream();
             final var sequence = counter.getAndIncrement();
             final var jsonParser = fhirContext.newJsonParser();
-            OutputStream writer = byteStream;
             String outputPath = formOutputFilePath(config.getExportPath(), job.getBatchID(), resourceType, sequence);
             JobQueueBatchFile file = job.addJobQueueFile(resourceType, sequence, batch.size());
 
+            // Only a resumed batch should have to append to a file that isn't already open
             boolean isStartOfFile = batch.size() == file.getCount();
-            Boolean shouldAppendToFile = !isStartOfFile;
+            final var outputFile = fileStreams.open(file, outputPath, !isStartOfFile);
+            final Writer writer = outputFile.getWriter();
+            final long startSize = outputFile.getUncompressedSize();
 
             logger.debug("Start writing to {}", outputPath);
             for (var resource: batch) {
-                final String str = jsonParser.encodeResourceToString(resource);
-                writer.write(str.getBytes(StandardCharsets.UTF_8));
-                writer.write(DELIM);
+                if (resource instanceof PassthroughExplanationOfBenefit passthrough) {
+                    // Already JSON, copy it as is
+                    outputFile.writeLine(passthrough.getJson());
+                } else {
+                    jsonParser.encodeResourceToWriter(resource, writer);
+                    writer.write(DELIM);
+                }
             }
-            int dataSize = byteStream.size();
-            file.setPatientFileSize(dataSize);
-            writer.flush();
-            writer.close();
-            writeToFile(byteStream.toByteArray(), outputPath, shouldAppendToFile);
+            outputFile.flush();
+            file.setPatientFileSize(outputFile.getUncompressedSize() - startSize);
             logger.debug("Finished writing to '{}'", outputPath);
 
             return file;
@@ -107,26 +110,4 @@ class ResourceWriter {
             throw new JobQueueFailure(job.getJobID(), job.getBatchID(), "General failure consuming a resource", ex);
         }
     }
-
-    /**
-     * Write a array of bytes to a file. Name the file according to the supplied name
-     *
-     * @param bytes - Bytes to write
-     * @param fileName - The fileName to write too
-     * @param append - If the
-     * @throws IOException - If the write fails
-     */
-    private void writeToFile(byte[] bytes, String fileName, Boolean append) throws IOException {
-        if (bytes.length == 0) {
-            return;
-        }
-        try (
-            // It shouldn't be possible for append=true, but we support it anyway.
-            final FileOutputStream fileOutputStream = new FileOutputStream(fileName, append);
-            final GZIPOutputStream gzipOutputStream = new GZIPOutputStream(fileOutputStream);
-        ) {
-            gzipOutputStream.write(bytes);
-            gzipOutputStream.finish();
-        }
-    }
 }
@@ -1,27 +1,53 @@
 package gov.cms.dpc.aggregation.health;
 
+import gov.cms.dpc.aggregation.AggregationManager;
 import gov.cms.dpc.aggregation.engine.AggregationEngine;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 import ru.vyarus.dropwizard.guice.module.installer.feature.health.NamedHealthCheck;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Singleton
 public class AggregationEngineHealthCheck extends NamedHealthCheck {
 
-    private final AggregationEngine aggregationEngine;
+    private final List<AggregationEngine> aggregationEngines;
 
     @Inject
+    public AggregationEngineHealthCheck(AggregationManager aggregationManager) {
+        this(aggregationManager.getEngines());
+    }
+
     public AggregationEngineHealthCheck(AggregationEngine aggregationEngine) {
-        this.aggregationEngine = aggregationEngine;
+        this(List.of(aggregationEngine));
+    }
+
+    AggregationEngineHealthCheck(List<AggregationEngine> aggregationEngines) {
+        this.aggregationEngines = aggregationEngines;
     }
 
     @Override
     public Result check() {
-        Result result = Result.healthy();
-        if (!aggregationEngine.isRunning()) {
-            result = Result.unhealthy("Aggregation Engine instance: " + aggregationEngine.getAggregatorID() + " in error state");
+        final var builder = Result.builder();
+        final List<String> stoppedEngines = new ArrayList<>();
+        for (AggregationEngine aggregationEngine : aggregationEngines) {
+            final String aggregatorID = aggregationEngine.getAggregatorID().toString();
+            if (!aggregationEngine.isRunning()) {
+                stoppedEngines.add(aggregatorID);
+            }
+            // Report the batch each engine is working on
+            builder.withDetail(aggregatorID, aggregationEngine.getCurrentBatch()
+                    .map(batch -> batch.getBatchID().toString())
+                    .orElse("idle"));
+        }
+
+        if (stoppedEngines.isEmpty()) {
+            return builder.healthy().build();
         }
-        return result;
+        return builder.unhealthy()
+                .withMessage("Aggregation Engine instance: " + String.join(", ", stoppedEngines) + " in error state")
+                .build();
     }
 
     @Override
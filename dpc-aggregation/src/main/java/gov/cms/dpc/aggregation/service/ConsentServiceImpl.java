@@ -13,10 +13,21 @@ import java.util.Optional;
 public class ConsentServiceImpl implements ConsentService {
     private final ConsentDAO consentDAO;
     private final String fhirReferenceURL;
+    private final OptOutIndex optOutIndex;
 
     public ConsentServiceImpl(@Named("consentDAO") ConsentDAO consentDAO, @Named("fhirReferenceURL") String fhirReferenceURL) {
+        this(consentDAO, fhirReferenceURL, null);
+    }
+
+    /**
+     * @param consentDAO       - {@link ConsentDAO} to search when there's no index, or the index is cold
+     * @param fhirReferenceURL - base URL of the FHIR references in consent records
+     * @param optOutIndex      - {@link OptOutIndex} to check before the database, may be null
+     */
+    public ConsentServiceImpl(ConsentDAO consentDAO, String fhirReferenceURL, OptOutIndex optOutIndex) {
         this.consentDAO = consentDAO;
         this.fhirReferenceURL = fhirReferenceURL;
+        this.optOutIndex = optOutIndex;
     }
 
     @Override
@@ -26,7 +37,15 @@ public class ConsentServiceImpl implements ConsentService {
 
     @Override
     public Optional<List<ConsentResult>> getConsent(List<String> mbis) {
-        final List<ConsentEntity> entities = doConsentSearch(mbis);
+        final List<String> fullMbis = toFullMbis(mbis);
+        if (optOutIndex != null) {
+            final Optional<List<ConsentResult>> indexed = optOutIndex.lookup(fullMbis);
+            if (indexed.isPresent()) {
+                return indexed;
+            }
+        }
+
+        final List<ConsentEntity> entities = this.consentDAO.findByMbis(fullMbis);
 
         return Optional.of(
             entities.stream().map( entity -> {
@@ -41,11 +60,9 @@ public class ConsentServiceImpl implements ConsentService {
         );
     }
 
-    private List<ConsentEntity> doConsentSearch(List<String> mbis) {
-        List<String> fullMbis = mbis.stream()
+    private List<String> toFullMbis(List<String> mbis) {
+        return mbis.stream()
                 .map( mbi -> String.format("%s|%s", DPCIdentifierSystem.MBI.getSystem(), mbi) )
                 .toList();
-
-        return this.consentDAO.findByMbis(fullMbis);
     }
 }
@@ -0,0 +1,252 @@
+package gov.cms.dpc.aggregation.service;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import gov.cms.dpc.common.consent.entities.ConsentEntity;
+import gov.cms.dpc.common.jdbi.ConsentDAO;
+import gov.cms.dpc.common.utils.MetricMaker;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * An in-memory copy of the consent records the aggregator needs to decide whether a patient has opted out, so that
+ * checking a patient doesn't take a trip to the consent database.
+ * <p>
+ * Only MBIs with at least one opt-out record are kept, along with every other record for those MBIs, since a later
+ * opt-in overrides an opt-out. Any MBI that isn't in the index has nothing that could opt it out. Each record is kept as
+ * just its id, effective date and policy.
+ * <p>
+ * The index is loaded in full when the aggregator starts, then kept up to date by reading the records whose updated_at
+ * has moved past the latest one already seen. Until it has loaded, or if it hasn't been refreshed within the max
+ * staleness, the index is cold and {@link #lookup(List)} returns nothing, so callers go to the database instead.
+ */
+public class OptOutIndex implements Managed {
+    private static final Logger logger = LoggerFactory.getLogger(OptOutIndex.class);
+
+    // Changes are re-read with some overlap, so that records committed out of order with their updated_at aren't missed
+    static final Duration WATERMARK_OVERLAP = Duration.ofMinutes(1);
+
+    private final ConsentDAO consentDAO;
+    private final Duration refreshInterval;
+    private final Duration maxStaleness;
+    private final Meter hitMeter;
+    private final Meter coldMeter;
+    private final Meter refreshFailureMeter;
+
+    private volatile Map<String, List<IndexedConsent>> consents = new ConcurrentHashMap<>();
+    private volatile Instant lastRefresh;
+    private volatile OffsetDateTime watermark;
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param consentDAO      - {@link ConsentDAO} the index is loaded from
+     * @param metricRegistry  - {@link MetricRegistry} to register the index's metrics with
+     * @param refreshInterval - how often to read changes, zero turns the index off and every lookup goes to the database
+     * @param maxStaleness    - how long the index can go without a successful refresh before it's considered cold
+     */
+    public OptOutIndex(ConsentDAO consentDAO, MetricRegistry metricRegistry, Duration refreshInterval, Duration maxStaleness) {
+        this.consentDAO = consentDAO;
+        this.refreshInterval = refreshInterval;
+        this.maxStaleness = maxStaleness;
+
+        final var metricFactory = new MetricMaker(metricRegistry, OptOutIndex.class);
+        this.hitMeter = metricFactory.registerMeter("hit");
+        this.coldMeter = metricFactory.registerMeter("cold");
+        this.refreshFailureMeter = metricFactory.registerMeter("refreshFailure");
+        metricFactory.registerCachedGauge("size", () -> consents.size());
+        metricFactory.registerCachedGauge("secondsSinceRefresh", this::getSecondsSinceRefresh);
+        metricFactory.registerCachedGauge("watermarkAgeSeconds", this::getWatermarkAgeSeconds);
+    }
+
+    @Override
+    public void start() {
+        if (refreshInterval.isZero()) {
+            logger.info("Opt-out index is turned off, consent will be checked against the database");
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "opt-out-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The first run loads the whole index, consent is checked against the database until it's done
+        executor.scheduleWithFixedDelay(this::refreshQuietly, 0, refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Looks up the consent records for the given MBIs.
+     *
+     * @param mbis - MBIs in the same form they're stored in the consent table
+     * @return the {@link ConsentResult}s of the MBIs, or empty if the index is cold
+     */
+    public Optional<List<ConsentResult>> lookup(List<String> mbis) {
+        if (!isWarm()) {
+            coldMeter.mark();
+            return Optional.empty();
+        }
+        hitMeter.mark();
+
+        final Map<String, List<IndexedConsent>> current = consents;
+        return Optional.of(mbis.stream()
+                .distinct()
+                .flatMap(mbi -> current.getOrDefault(mbi, List.of()).stream())
+                .map(IndexedConsent::toConsentResult)
+                .toList());
+    }
+
+    /**
+     * @return true if the index has loaded, and has been refreshed within the max staleness
+     */
+    public boolean isWarm() {
+        final Instant refreshed = lastRefresh;
+        return refreshed != null && Duration.between(refreshed, Instant.now()).compareTo(maxStaleness) < 0;
+    }
+
+    /**
+     * Brings the index up to date, loading it in full the first time.
+     */
+    synchronized void refresh() {
+        if (watermark == null) {
+            load();
+        } else {
+            update();
+        }
+        lastRefresh = Instant.now();
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (Exception e) {
+            // Keep the schedule going, the index goes cold if this keeps failing
+            refreshFailureMeter.mark();
+            logger.error("Unable to refresh the opt-out index", e);
+        }
+    }
+
+    private void load() {
+        final List<ConsentEntity> entities = consentDAO.list();
+
+        final Map<String, List<IndexedConsent>> loaded = new ConcurrentHashMap<>();
+        entities.stream()
+                .filter(entity -> entity.getMbi() != null)
+                .collect(Collectors.groupingBy(ConsentEntity::getMbi))
+                .forEach((mbi, records) -> {
+                    if (records.stream().anyMatch(OptOutIndex::isOptOut)) {
+                        loaded.put(mbi, records.stream().map(IndexedConsent::fromEntity).toList());
+                    }
+                });
+
+        consents = loaded;
+        watermark = latestUpdate(entities, OffsetDateTime.of(1970, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC));
+        logger.info("Loaded opt-out index with {} MBI(s) from {} consent record(s)", loaded.size(), entities.size());
+    }
+
+    private void update() {
+        final List<ConsentEntity> entities = consentDAO.findUpdatedSince(watermark.minus(WATERMARK_OVERLAP));
+
+        final Set<String> newMbis = new HashSet<>();
+        for (ConsentEntity entity : entities) {
+            final String mbi = entity.getMbi();
+            if (mbi == null) {
+                continue;
+            }
+            if (consents.containsKey(mbi)) {
+                consents.compute(mbi, (key, records) -> replace(records, IndexedConsent.fromEntity(entity)));
+            } else if (isOptOut(entity)) {
+                newMbis.add(mbi);
+            }
+        }
+
+        // An MBI's first opt-out brings in all of its records, including any opt-ins we skipped over before
+        if (!newMbis.isEmpty()) {
+            consentDAO.findByMbis(List.copyOf(newMbis)).stream()
+                    .collect(Collectors.groupingBy(ConsentEntity::getMbi))
+                    .forEach((mbi, records) -> consents.put(mbi, records.stream().map(IndexedConsent::fromEntity).toList()));
+        }
+
+        watermark = latestUpdate(entities, watermark);
+        logger.debug("Refreshed opt-out index with {} changed consent record(s)", entities.size());
+    }
+
+    private static List<IndexedConsent> replace(List<IndexedConsent> records, IndexedConsent changed) {
+        final List<IndexedConsent> replaced = new ArrayList<>(records.size() + 1);
+        for (IndexedConsent record : records) {
+            if (!record.id().equals(changed.id())) {
+                replaced.add(record);
+            }
+        }
+        replaced.add(changed);
+        return List.copyOf(replaced);
+    }
+
+    private static OffsetDateTime latestUpdate(List<ConsentEntity> entities, OffsetDateTime current) {
+        return entities.stream()
+                .map(ConsentEntity::getUpdatedAt)
+                .filter(Objects::nonNull)
+                .max(Comparator.naturalOrder())
+                .filter(latest -> latest.isAfter(current))
+                .orElse(current);
+    }
+
+    private static boolean isOptOut(ConsentEntity entity) {
+        return ConsentEntity.OPT_OUT.equals(entity.getPolicyCode());
+    }
+
+    private Long getSecondsSinceRefresh() {
+        final Instant refreshed = lastRefresh;
+        return refreshed == null ? -1 : Duration.between(refreshed, Instant.now()).toSeconds();
+    }
+
+    private Long getWatermarkAgeSeconds() {
+        final OffsetDateTime current = watermark;
+        return current == null ? -1 : Duration.between(current.toInstant(), Instant.now()).toSeconds();
+    }
+
+    /**
+     * The parts of a consent record that the opt-out check looks at.
+     */
+    private record IndexedConsent(UUID id, LocalDate effectiveDate, ConsentResult.PolicyType policyType) {
+        static IndexedConsent fromEntity(ConsentEntity entity) {
+            // A record with any other policy is kept without one, so it can't opt anyone out
+            ConsentResult.PolicyType policyType = null;
+            if (ConsentEntity.OPT_IN.equals(entity.getPolicyCode())) {
+                policyType = ConsentResult.PolicyType.OPT_IN;
+            } else if (isOptOut(entity)) {
+                policyType = ConsentResult.PolicyType.OPT_OUT;
+            }
+            return new IndexedConsent(entity.getId(), entity.getEffectiveDate(), policyType);
+        }
+
+        @SuppressWarnings("JdkObsolete") // Date is what ConsentResult uses
+        ConsentResult toConsentResult() {
+            // Matches what ConsentServiceImpl builds from the FHIR Consent, which is always active
+            final ConsentResult result = new ConsentResult();
+            result.setConsentId(id.toString());
+            result.setConsentDate(Date.from(effectiveDate.atStartOfDay().atOffset(ZoneOffset.UTC).toInstant()));
+            result.setActive(true);
+            result.setPolicyType(policyType);
+            return result;
+        }
+    }
+}
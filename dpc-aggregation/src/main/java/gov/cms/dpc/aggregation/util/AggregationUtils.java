@@ -1,7 +1,7 @@
 package gov.cms.dpc.aggregation.util;
 
 import gov.cms.dpc.aggregation.engine.OutcomeReason;
-import org.bouncycastle.jcajce.provider.digest.SHA256;
+import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.OperationOutcome;
 import org.hl7.fhir.dstu3.model.StringType;
@@ -15,6 +15,8 @@ import java.util.zip.GZIPInputStream;
 
 public final class AggregationUtils {
 
+    private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+
     private AggregationUtils() {
         // static methods only
     }
@@ -35,13 +37,31 @@ public final class AggregationUtils {
     }
 
     /**
-     * Reads the contents of the given input stream to the end and returns its checksum.
+     * Reads the contents of the given input stream to the end, a buffer at a time, and returns its checksum.
      * @param inputStream The {@link InputStream} to read.
      * @return Checksum
      * @throws IOException If the stream can't be read.
      */
     public static byte[] generateChecksum(InputStream inputStream) throws IOException {
-        return new SHA256.Digest().digest(inputStream.readAllBytes());
+        final SHA256Digest digest = new SHA256Digest();
+        final byte[] buffer = new byte[CHECKSUM_BUFFER_SIZE];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return finishChecksum(digest);
+    }
+
+    /**
+     * Returns the checksum of everything fed to the given digest so far, without disturbing the digest itself.
+     * @param digest A running {@link SHA256Digest}.
+     * @return Checksum
+     */
+    public static byte[] finishChecksum(SHA256Digest digest) {
+        final SHA256Digest copy = new SHA256Digest(digest);
+        final byte[] checksum = new byte[copy.getDigestSize()];
+        copy.doFinal(checksum, 0);
+        return checksum;
     }
 
     /**
@@ -1,29 +1,78 @@
 package gov.cms.dpc.aggregation;
 
 import gov.cms.dpc.aggregation.engine.AggregationEngine;
+import gov.cms.dpc.queue.IJobQueue;
 import gov.cms.dpc.testing.BufferedLoggerHandler;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 
 @ExtendWith(BufferedLoggerHandler.class)
 class AggregationManagerTest {
 
+    private IJobQueue queue;
     private AggregationEngine engine;
 
     @BeforeEach
     void setup() {
+        queue = mock(IJobQueue.class);
         engine = mock(AggregationEngine.class);
         Mockito.reset(engine);
     }
 
     @Test
-    void testShutdown() {
-        new AggregationManager(engine).stop();
-        verify(engine).stop();
+    void testStartListensForBatches() {
+        new AggregationManager(queue, List.of(engine)).start();
+        verify(queue).startListening();
+    }
+
+    @Test
+    void testShutdown() throws InterruptedException {
+        new AggregationManager(queue, List.of(engine)).stop();
+        // The queue stops listening once nothing is waiting on it
+        final InOrder inOrder = inOrder(engine, queue);
+        inOrder.verify(engine).requestStop();
+        inOrder.verify(engine).awaitStopped();
+        inOrder.verify(queue).stopListening();
+    }
+
+    @Test
+    void testShutdownStopsAllEngines() {
+        final AggregationEngine secondEngine = mock(AggregationEngine.class);
+        final AggregationManager manager = new AggregationManager(queue, List.of(engine, secondEngine));
+        assertEquals(2, manager.getEngines().size(), "Should manage both engines");
+
+        manager.stop();
+        // Both engines are told to stop before either is waited on
+        final InOrder inOrder = inOrder(engine, secondEngine);
+        inOrder.verify(engine).requestStop();
+        inOrder.verify(secondEngine).requestStop();
+        inOrder.verify(engine).awaitStopped();
+        inOrder.verify(secondEngine).awaitStopped();
+    }
+
+    @Test
+    void testEngineAggregatorIDs() {
+        final UUID aggregatorID = UUID.randomUUID();
+        assertEquals(aggregatorID, AggregationManager.formEngineAggregatorID(aggregatorID, 0), "First engine should keep the aggregator ID");
+        assertEquals(AggregationManager.formEngineAggregatorID(aggregatorID, 3), AggregationManager.formEngineAggregatorID(aggregatorID, 3), "Engine IDs should be stable");
+
+        final Set<UUID> ids = IntStream.range(0, 8)
+                .mapToObj(i -> AggregationManager.formEngineAggregatorID(aggregatorID, i))
+                .collect(Collectors.toSet());
+        assertEquals(8, ids.size(), "Every engine should have its own ID");
     }
 }
@@ -45,6 +45,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -364,13 +365,19 @@ class AggregationEngineTest {
     }
 
     /**
-     * Test that stopping the engine while a long running batch is still processing pauses the batch.
+     * Test that stopping the engine while a long running batch is still processing pauses the batch, but only once the
+     * engine has finished the patient it's on and closed the batch's files.
      */
     @Test
-    void stopEngineDuringBatchProcessing()  {
-        // Create a batch that will hang forever
+    void stopEngineDuringBatchProcessing() throws InterruptedException, GeneralSecurityException {
+        // Create a batch that will hang until it's released
         final var orgID = UUID.randomUUID();
         final List<String> mbis = List.of(MockBlueButtonClient.TEST_PATIENT_TIME_OUT);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            release.await();
+            return new Bundle();
+        }).when(bbclient).requestPatientFromServerByMbi(eq(MockBlueButtonClient.TEST_PATIENT_TIME_OUT), any());
 
         final var jobID = queue.createJob(
             orgID,
@@ -386,14 +393,100 @@ class AggregationEngineTest {
         Thread thread = new Thread(this.engine);
         thread.start();
 
-        // Wait for the engine to pick up the thread, set status to RUNNING and hang on getting the patient from BFD
+        // Wait for the engine to pick up the batch, set status to RUNNING and hang on getting the patient from BFD
         JobQueueBatch batch = queue.getJobBatches(jobID).get(0);
-        await().atMost(5, TimeUnit.SECONDS).until(() -> batch.getStatus() == JobStatus.RUNNING);
+        await().atMost(5, TimeUnit.SECONDS).until(() -> engine.getCurrentBatch().isPresent());
 
-        // Stop the engine and make sure it pauses the batch
+        // Stop the engine, it mustn't pause the batch while the patient is still being worked on
+        Thread stopping = new Thread(engine::stop);
+        stopping.start();
+        await().atMost(5, TimeUnit.SECONDS).until(() -> !engine.isRunning());
         assertEquals(JobStatus.RUNNING, batch.getStatus());
-        engine.stop();
+        assertTrue(stopping.isAlive(), "Stopping should wait for the batch to be paused");
+
+        // Once the patient is done, the engine pauses the batch itself and stop returns
+        release.countDown();
+        stopping.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(stopping.isAlive());
+        assertEquals(JobStatus.QUEUED, batch.getStatus());
+        verify(queue, never()).failBatch(any(JobQueueBatch.class), any(UUID.class));
+    }
+
+    /**
+     * Test that a patient cut short by stopping the engine is left to be fetched again when the batch is resumed, instead
+     * of being written out as an error or failing the batch.
+     */
+    @Test
+    void stopEngineInterruptsPatient() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            release.await();
+            throw new IllegalStateException("Interrupted waiting for BlueButton", new InterruptedException());
+        }).when(bbclient).requestPatientFromServerByMbi(eq(MockBlueButtonClient.TEST_PATIENT_TIME_OUT), any());
+
+        final var jobID = queue.createJob(
+            UUID.randomUUID(),
+            TEST_ORG_NPI,
+            TEST_PROVIDER_NPI,
+            List.of(MockBlueButtonClient.TEST_PATIENT_TIME_OUT),
+            Collections.singletonList(DPCResourceType.Patient),
+            null,
+            MockBlueButtonClient.getBfdTransactionTime(),
+            null, null, true, false);
+
+        Thread thread = new Thread(this.engine);
+        thread.start();
+
+        JobQueueBatch batch = queue.getJobBatches(jobID).get(0);
+        await().atMost(5, TimeUnit.SECONDS).until(() -> engine.getCurrentBatch().isPresent());
+
+        Thread stopping = new Thread(engine::stop);
+        stopping.start();
+        await().atMost(5, TimeUnit.SECONDS).until(() -> !engine.isRunning());
+        release.countDown();
+        stopping.join(TimeUnit.SECONDS.toMillis(5));
+
+        assertFalse(stopping.isAlive());
+        assertEquals(JobStatus.QUEUED, batch.getStatus());
+        assertTrue(batch.getPatientIndex().isEmpty(), "The patient should be fetched again");
+        assertTrue(batch.getJobQueueBatchFiles().isEmpty(), "Nothing should have been written for the patient");
+        verify(queue, never()).failBatch(any(JobQueueBatch.class), any(UUID.class));
+    }
+
+    /**
+     * Test that stopping an engine that fetches several patients at once pauses the batch, instead of failing it when
+     * the fetches it abandons are cancelled.
+     */
+    @Test
+    void stopConcurrentEngineDuringBatchProcessing() {
+        final var concurrentConfig = new OperationsConfig(1000, EXPORT_PATH, 3, 500, 18, List.of(), 30, 4, 1, 0, false);
+        final var concurrentProcessor = new JobBatchProcessor(bbclient, fhirContext, metricRegistry, concurrentConfig, Mockito.spy(EveryoneGetsDataLookBackServiceImpl.class), mockConsentService);
+        final var concurrentEngine = new AggregationEngine(aggregatorID, queue, concurrentConfig, concurrentProcessor);
+
+        // The first patient hangs, so the others are fetched but can't be written ahead of it
+        final List<String> mbis = List.of(MockBlueButtonClient.TEST_PATIENT_TIME_OUT, MockBlueButtonClient.TEST_PATIENT_MBIS.get(0), MockBlueButtonClient.TEST_PATIENT_MBIS.get(1));
+        final var jobID = queue.createJob(
+            UUID.randomUUID(),
+            TEST_ORG_NPI,
+            TEST_PROVIDER_NPI,
+            mbis,
+            Collections.singletonList(DPCResourceType.Patient),
+            null,
+            MockBlueButtonClient.getBfdTransactionTime(),
+            null, null, true, false);
+
+        Thread thread = new Thread(concurrentEngine);
+        thread.start();
+
+        JobQueueBatch batch = queue.getJobBatches(jobID).get(0);
+        await().atMost(5, TimeUnit.SECONDS).until(() -> concurrentEngine.getCurrentBatch().isPresent());
+
+        concurrentEngine.stop();
+        await().atMost(5, TimeUnit.SECONDS).until(() -> concurrentEngine.getCurrentBatch().isEmpty());
+
         assertEquals(JobStatus.QUEUED, batch.getStatus());
+        assertTrue(batch.getPatientIndex().isEmpty(), "No patient should have been written ahead of the hung one");
+        verify(queue, never()).failBatch(any(JobQueueBatch.class), any(UUID.class));
     }
 
     /**
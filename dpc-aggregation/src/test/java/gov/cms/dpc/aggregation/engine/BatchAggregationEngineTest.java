@@ -381,4 +381,58 @@ class BatchAggregationEngineTest {
         final var errorFilePath = ResourceWriter.formOutputFilePath(exportPath, completeJob.getBatchID(), DPCResourceType.OperationOutcome, 0);
         assertFalse(Files.exists(Path.of(errorFilePath)), "expect error file for failed patient");
     }
+
+    /**
+     * Test that fetching several patients at once writes out exactly the same files as processing them one at a time.
+     */
+    @Test
+    void concurrentPatientsMatchSequentialTest() throws IOException {
+        final OperationsConfig concurrentConfig = new OperationsConfig(10, exportPath, 3, 500, 18, List.of(), 30, 4, 1, 0, false);
+        final var bbclient = new MockBlueButtonClient(fhirContext);
+        final JobBatchProcessor concurrentProcessor = new JobBatchProcessor(bbclient, fhirContext, metricRegistry, concurrentConfig, lookBackService, consentService);
+        final AggregationEngine concurrentEngine = new AggregationEngine(aggregatorID, queue, concurrentConfig, concurrentProcessor);
+        final List<DPCResourceType> resourceTypes = List.of(DPCResourceType.Patient, DPCResourceType.Coverage);
+
+        final var sequentialJobID = queue.createJob(
+                UUID.randomUUID(),
+                TEST_ORG_NPI,
+                TEST_PROVIDER_NPI,
+                MockBlueButtonClient.TEST_PATIENT_WITH_BAD_IDS,
+                resourceTypes,
+                null,
+                MockBlueButtonClient.getBfdTransactionTime(),
+                null, null, true, false);
+        queue.claimBatch(engine.getAggregatorID())
+                .ifPresent(engine::processJobBatch);
+
+        final var concurrentJobID = queue.createJob(
+                UUID.randomUUID(),
+                TEST_ORG_NPI,
+                TEST_PROVIDER_NPI,
+                MockBlueButtonClient.TEST_PATIENT_WITH_BAD_IDS,
+                resourceTypes,
+                null,
+                MockBlueButtonClient.getBfdTransactionTime(),
+                null, null, true, false);
+        queue.claimBatch(concurrentEngine.getAggregatorID())
+                .ifPresent(concurrentEngine::processJobBatch);
+        concurrentEngine.stop();
+
+        final var sequentialJob = queue.getJobBatches(sequentialJobID).stream().findFirst().orElseThrow();
+        final var concurrentJob = queue.getJobBatches(concurrentJobID).stream().findFirst().orElseThrow();
+        assertEquals(JobStatus.COMPLETED, concurrentJob.getStatus());
+        assertEquals(sequentialJob.getJobQueueBatchFiles().size(), concurrentJob.getJobQueueBatchFiles().size());
+
+        for (JobQueueBatchFile sequentialFile : sequentialJob.getJobQueueBatchFiles()) {
+            final var concurrentFile = concurrentJob.getJobQueueBatchFiles().stream()
+                    .filter(file -> file.getResourceType() == sequentialFile.getResourceType() && file.getSequence() == sequentialFile.getSequence())
+                    .findFirst()
+                    .orElseThrow();
+            assertEquals(sequentialFile.getCount(), concurrentFile.getCount());
+            assertEquals(
+                    GzipUtil.decompress(ResourceWriter.formOutputFilePath(exportPath, sequentialJob.getBatchID(), sequentialFile.getResourceType(), sequentialFile.getSequence())),
+                    GzipUtil.decompress(ResourceWriter.formOutputFilePath(exportPath, concurrentJob.getBatchID(), concurrentFile.getResourceType(), concurrentFile.getSequence())),
+                    "Files should be written in patient order");
+        }
+    }
 }
@@ -1,6 +1,7 @@
 package gov.cms.dpc.aggregation.engine;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.param.DateRangeParam;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.AppenderBase;
@@ -8,10 +9,12 @@ import com.codahale.metrics.MetricRegistry;
 import gov.cms.dpc.aggregation.service.ConsentResult;
 import gov.cms.dpc.aggregation.service.ConsentService;
 import gov.cms.dpc.aggregation.service.EveryoneGetsDataLookBackServiceImpl;
+import gov.cms.dpc.aggregation.service.LookBackAnswer;
 import gov.cms.dpc.aggregation.service.LookBackService;
 import gov.cms.dpc.bluebutton.client.BlueButtonClient;
 import gov.cms.dpc.bluebutton.client.MockBlueButtonClient;
 import gov.cms.dpc.common.MDCConstants;
+import gov.cms.dpc.common.utils.GzipUtil;
 import gov.cms.dpc.common.utils.NPIUtil;
 import gov.cms.dpc.fhir.DPCResourceType;
 import gov.cms.dpc.queue.IJobQueue;
@@ -19,6 +22,7 @@ import gov.cms.dpc.queue.MemoryBatchQueue;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 import gov.cms.dpc.queue.models.JobQueueBatchFile;
 import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.ExplanationOfBenefit;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -30,6 +34,7 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.GeneralSecurityException;
@@ -38,10 +43,14 @@ import java.time.OffsetDateTime;
 import java.time.YearMonth;
 import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -233,6 +242,87 @@ class JobBatchProcessorUnitTest {
         assertNoError(completedJob2.getBatchID(), DPCResourceType.Patient);
     }
 
+    @Test
+    public void testCheckpointsAreDeferred() {
+        List<String> mbis = MockBlueButtonClient.TEST_PATIENT_MBIS.subList(0, 3);
+
+        IJobQueue queue = Mockito.spy(new MemoryBatchQueue());
+        final var jobID = queue.createJob(
+                UUID.randomUUID(),
+                TEST_ORG_NPI,
+                TEST_PROVIDER_NPI,
+                mbis,
+                Collections.singletonList(DPCResourceType.Patient),
+                null,
+                MockBlueButtonClient.getBfdTransactionTime(),
+                null, null, true, false
+        );
+        JobQueueBatch job = queue.getJobBatches(jobID).get(0);
+        OperationsConfig operationsConfig = new OperationsConfig(1000, exportPath, 3, 500, 18, List.of(), 30, 1, 1, 0, false, 2, 0);
+        JobBatchProcessor jobBatchProcessor = getJobBatchProcessor(bbClient, operationsConfig, new EveryoneGetsDataLookBackServiceImpl(), consentService);
+        Mockito.when(consentService.getConsent(anyList())).thenReturn(Optional.of(List.of(optIn)));
+
+        for (String mbi : mbis) {
+            jobBatchProcessor.processJobBatchPartial(UUID.randomUUID(), queue, job, mbi);
+        }
+
+        // Only the second patient is checkpointed, the third is left for the next checkpoint or the batch's completion
+        verify(queue, times(1)).completePartialBatch(eq(job), any(UUID.class));
+        assertEquals(2, metricRegistry.meter(MetricRegistry.name(JobBatchProcessor.class, "deferredCheckpoint")).getCount());
+    }
+
+    @Test
+    public void testResolvePatients() throws GeneralSecurityException {
+        List<String> mbis = List.of(
+                MockBlueButtonClient.TEST_PATIENT_MBIS.get(0),
+                MockBlueButtonClient.TEST_PATIENT_MBIS.get(1),
+                "-1"
+        );
+
+        IJobQueue queue = new MemoryBatchQueue();
+        JobQueueBatch job = createResolveJob(queue, mbis);
+        JobBatchProcessor jobBatchProcessor = getJobBatchProcessor(bbClient, getOperationsConfig(), new EveryoneGetsDataLookBackServiceImpl(), consentService);
+        Mockito.when(consentService.getConsent(anyList())).thenReturn(Optional.of(List.of(optIn)));
+
+        jobBatchProcessor.resolvePatients(job);
+        Mockito.verify(bbClient, times(1)).requestPatientsFromServerByMbis(eq(mbis), any());
+
+        for (String mbi : mbis) {
+            jobBatchProcessor.processJobBatchPartial(UUID.randomUUID(), queue, job, mbi);
+        }
+
+        // Only the MBI without a patient needs a search of its own
+        Mockito.verify(bbClient, never()).requestPatientFromServerByMbi(eq(mbis.get(0)), any());
+        Mockito.verify(bbClient, never()).requestPatientFromServerByMbi(eq(mbis.get(1)), any());
+        Mockito.verify(bbClient, times(1)).requestPatientFromServerByMbi(eq("-1"), any());
+        assertTrue(Files.exists(Path.of(ResourceWriter.formOutputFilePath(exportPath, job.getBatchID(), DPCResourceType.Patient, 0))));
+        assertTrue(Files.exists(Path.of(ResourceWriter.formOutputFilePath(exportPath, job.getBatchID(), DPCResourceType.OperationOutcome, 0))));
+    }
+
+    @Test
+    public void testResolvePatients_FallsBackOnError() throws GeneralSecurityException {
+        List<String> mbis = List.of(
+                MockBlueButtonClient.TEST_PATIENT_MBIS.get(0),
+                MockBlueButtonClient.TEST_PATIENT_MBIS.get(1)
+        );
+
+        IJobQueue queue = new MemoryBatchQueue();
+        JobQueueBatch job = createResolveJob(queue, mbis);
+        JobBatchProcessor jobBatchProcessor = getJobBatchProcessor(bbClient, getOperationsConfig(), new EveryoneGetsDataLookBackServiceImpl(), consentService);
+        Mockito.when(consentService.getConsent(anyList())).thenReturn(Optional.of(List.of(optIn)));
+        Mockito.doThrow(new IllegalStateException("bad batch test")).when(bbClient).requestPatientsFromServerByMbis(anyList(), any());
+
+        jobBatchProcessor.resolvePatients(job);
+        jobBatchProcessor.processJobBatchPartial(UUID.randomUUID(), queue, job, mbis.get(0));
+        assertEquals(MockBlueButtonClient.MBI_BENE_ID_MAP.get(mbis.get(0)), MDC.get(MDCConstants.PATIENT_FHIR_ID));
+        jobBatchProcessor.processJobBatchPartial(UUID.randomUUID(), queue, job, mbis.get(1));
+        assertEquals(MockBlueButtonClient.MBI_BENE_ID_MAP.get(mbis.get(1)), MDC.get(MDCConstants.PATIENT_FHIR_ID));
+
+        Mockito.verify(bbClient, times(1)).requestPatientFromServerByMbi(eq(mbis.get(0)), any());
+        Mockito.verify(bbClient, times(1)).requestPatientFromServerByMbi(eq(mbis.get(1)), any());
+        assertNoError(job.getBatchID(), DPCResourceType.Patient);
+    }
+
     @Test
     public void testHappyPath_NoConsent() {
         // No consent records gets treated like an opt in by the JobBatchProcessor
@@ -644,7 +734,8 @@ class JobBatchProcessorUnitTest {
 
         String patientId = MockBlueButtonClient.MBI_BENE_ID_MAP.get(mbi);
         ArgumentCaptor<DateRangeParam> dateRangeCaptor = ArgumentCaptor.forClass(DateRangeParam.class);
-        verify(bbClient).requestEOBFromServer(eq(patientId), dateRangeCaptor.capture(), any());
+        // Once for the look back check, and again as they're written
+        verify(bbClient, times(2)).requestEOBFromServer(eq(patientId), dateRangeCaptor.capture(), any());
 
         // We shouldn't send a lower bound in this case
         // Get the lower bound of the _lastUpdated parameter that was sent to BFD
@@ -684,7 +775,8 @@ class JobBatchProcessorUnitTest {
 
         String patientId = MockBlueButtonClient.MBI_BENE_ID_MAP.get(mbi);
         ArgumentCaptor<DateRangeParam> dateRangeCaptor = ArgumentCaptor.forClass(DateRangeParam.class);
-        verify(bbClient).requestEOBFromServer(eq(patientId), dateRangeCaptor.capture(), any());
+        // Once for the look back check, and again as they're written
+        verify(bbClient, times(2)).requestEOBFromServer(eq(patientId), dateRangeCaptor.capture(), any());
 
         // Get the lower bound of the _lastUpdated parameter that was sent to BFD
         DateRangeParam lastUpdated = dateRangeCaptor.getValue();
@@ -727,7 +819,8 @@ class JobBatchProcessorUnitTest {
 
         String patientId = MockBlueButtonClient.MBI_BENE_ID_MAP.get(mbi);
         ArgumentCaptor<DateRangeParam> dateRangeCaptor = ArgumentCaptor.forClass(DateRangeParam.class);
-        verify(bbClient).requestEOBFromServer(eq(patientId), dateRangeCaptor.capture(), any());
+        // Once for the look back check, and again as they're written
+        verify(bbClient, times(2)).requestEOBFromServer(eq(patientId), dateRangeCaptor.capture(), any());
 
         // Get the lower bound of the _lastUpdated parameter that was sent to BFD
         DateRangeParam lastUpdated = dateRangeCaptor.getValue();
@@ -780,6 +873,237 @@ class JobBatchProcessorUnitTest {
             .toOffsetDateTime();
     }
 
+    @Test
+    void testConcurrentCoverageFetch() {
+        String mbi = MockBlueButtonClient.TEST_PATIENT_MBIS.get(0);
+        String id = MockBlueButtonClient.MBI_BENE_ID_MAP.get(mbi);
+
+        OperationsConfig operationsConfig = getConcurrentFetchOperationsConfig();
+        JobBatchProcessor jobBatchProcessor = getJobBatchProcessor(bbClient, operationsConfig, new EveryoneGetsDataLookBackServiceImpl(), consentService);
+
+        IJobQueue queue = new MemoryBatchQueue();
+        final var jobID = queue.createJob(
+                UUID.randomUUID(),
+                TEST_ORG_NPI,
+                TEST_PROVIDER_NPI,
+                Collections.singletonList(mbi),
+                List.of(DPCResourceType.Patient, DPCResourceType.Coverage),
+                null,
+                MockBlueButtonClient.getBfdTransactionTime(),
+                null, null, true, false
+        );
+        List<JobQueueBatch> jobs = queue.getJobBatches(jobID);
+
+        Mockito.when(consentService.getConsent(List.of(mbi))).thenReturn(Optional.of(List.of(optIn)));
+
+        List<JobQueueBatchFile> results = jobBatchProcessor.processJobBatchPartial(
+                UUID.randomUUID(),
+                queue,
+                jobs.get(0),
+                mbi
+        );
+
+        assertEquals(2, results.size());
+        JobQueueBatchFile coverageFile = results.stream()
+                .filter(file -> file.getResourceType() == DPCResourceType.Coverage)
+                .findFirst()
+                .orElseThrow();
+        assertEquals(3, coverageFile.getCount());
+        assertNoError(coverageFile.getBatchID(), DPCResourceType.Coverage);
+        verify(bbClient).requestCoverageFromServer(eq(id), any(), any());
+    }
+
+    @Test
+    void testConcurrentCoverageFetch_FailsLookBackCheck() {
+        String mbi = MockBlueButtonClient.TEST_PATIENT_MBIS.get(0);
+        String id = MockBlueButtonClient.MBI_BENE_ID_MAP.get(mbi);
+
+        Bundle emptyBundle = new Bundle();
+        Mockito.doReturn(emptyBundle).when(bbClient).requestEOBFromServer(eq(id), any(), any());
+
+        OperationsConfig operationsConfig = getConcurrentFetchOperationsConfig();
+        JobBatchProcessor jobBatchProcessor = getJobBatchProcessor(bbClient, operationsConfig, new EveryoneGetsDataLookBackServiceImpl(), consentService);
+
+        IJobQueue queue = new MemoryBatchQueue();
+        final var jobID = queue.createJob(
+                UUID.randomUUID(),
+                TEST_ORG_NPI,
+                TEST_PROVIDER_NPI,
+                Collections.singletonList(mbi),
+                List.of(DPCResourceType.Patient, DPCResourceType.Coverage),
+                null,
+                MockBlueButtonClient.getBfdTransactionTime(),
+                null, null, true, false
+        );
+        List<JobQueueBatch> jobs = queue.getJobBatches(jobID);
+
+        Mockito.when(consentService.getConsent(List.of(mbi))).thenReturn(Optional.of(List.of(optIn)));
+
+        List<JobQueueBatchFile> results = jobBatchProcessor.processJobBatchPartial(
+                UUID.randomUUID(),
+                queue,
+                jobs.get(0),
+                mbi
+        );
+
+        // Only the look back failure is written, the Coverage is thrown away
+        assertEquals(1, results.size());
+        assertError(results.get(0).getBatchID(), DPCResourceType.Coverage);
+    }
+
+    @Test
+    void testConcurrentCoverageFetch_CancelledWhenLookBackThrows() throws InterruptedException {
+        String mbi = MockBlueButtonClient.TEST_PATIENT_MBIS.get(0);
+        String id = MockBlueButtonClient.MBI_BENE_ID_MAP.get(mbi);
+
+        // The Coverage fetch hangs until it's cancelled
+        CountDownLatch coverageStarted = new CountDownLatch(1);
+        CountDownLatch coverageCancelled = new CountDownLatch(1);
+        Mockito.doAnswer(invocation -> {
+            coverageStarted.countDown();
+            try {
+                new CountDownLatch(1).await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                coverageCancelled.countDown();
+            }
+            return new Bundle();
+        }).when(bbClient).requestCoverageFromServer(eq(id), any(), any());
+
+        LookBackService lookBackService = Mockito.mock(LookBackService.class);
+        Mockito.when(lookBackService.getLookBackAnswer(any(), any(), any())).thenAnswer(invocation -> {
+            coverageStarted.await(5, TimeUnit.SECONDS);
+            throw new IllegalStateException("Look back failed");
+        });
+        JobBatchProcessor jobBatchProcessor = getJobBatchProcessor(bbClient, getConcurrentFetchOperationsConfig(), lookBackService, consentService);
+
+        IJobQueue queue = new MemoryBatchQueue();
+        final var jobID = queue.createJob(
+                UUID.randomUUID(),
+                TEST_ORG_NPI,
+                TEST_PROVIDER_NPI,
+                Collections.singletonList(mbi),
+                List.of(DPCResourceType.Patient, DPCResourceType.Coverage),
+                null,
+                MockBlueButtonClient.getBfdTransactionTime(),
+                null, null, true, false
+        );
+        JobQueueBatch job = queue.getJobBatches(jobID).get(0);
+        Mockito.when(consentService.getConsent(List.of(mbi))).thenReturn(Optional.of(List.of(optIn)));
+
+        assertThrows(IllegalStateException.class, () -> jobBatchProcessor.processJobBatchPartial(UUID.randomUUID(), queue, job, mbi));
+        assertTrue(coverageCancelled.await(5, TimeUnit.SECONDS), "Coverage fetch should be cancelled");
+    }
+
+    @Test
+    void testLookBackStopsAtFirstMatch() {
+        String mbi = MockBlueButtonClient.TEST_PATIENT_MBIS.get(0);
+        LookBackService lookBackService = Mockito.spy(new EveryoneGetsDataLookBackServiceImpl());
+        JobBatchProcessor jobBatchProcessor = getJobBatchProcessor(bbClient, getOperationsConfig(), lookBackService, consentService);
+
+        IJobQueue queue = new MemoryBatchQueue();
+        JobQueueBatch job = createPatientOnlyJob(queue, mbi);
+        Mockito.when(consentService.getConsent(List.of(mbi))).thenReturn(Optional.of(List.of(optIn)));
+
+        List<JobQueueBatchFile> results = jobBatchProcessor.processJobBatchPartial(UUID.randomUUID(), queue, job, mbi);
+
+        // The first EoB passes, so none of the others should be checked
+        assertEquals(1, results.size());
+        assertNoError(results.get(0).getBatchID(), DPCResourceType.Patient);
+        verify(lookBackService, times(1)).getLookBackAnswer(any(), any(), any());
+    }
+
+    @Test
+    void testLookBackChecksEveryEobWithoutMatch() {
+        String mbi = MockBlueButtonClient.TEST_PATIENT_MBIS.get(0);
+        LookBackService lookBackService = Mockito.mock(LookBackService.class);
+        LookBackAnswer noNpiMatch = new LookBackAnswer(TEST_PROVIDER_NPI, TEST_ORG_NPI, 18, YearMonth.now(ZoneId.systemDefault()))
+                .addEobBillingPeriod(YearMonth.now(ZoneId.systemDefault()))
+                .addEobOrganization(NPIUtil.generateNPI())
+                .addEobProviders(List.of(NPIUtil.generateNPI()));
+        Mockito.when(lookBackService.getLookBackAnswer(any(), any(), any())).thenReturn(noNpiMatch);
+        JobBatchProcessor jobBatchProcessor = getJobBatchProcessor(bbClient, getOperationsConfig(), lookBackService, consentService);
+
+        IJobQueue queue = new MemoryBatchQueue();
+        JobQueueBatch job = createPatientOnlyJob(queue, mbi);
+        Mockito.when(consentService.getConsent(List.of(mbi))).thenReturn(Optional.of(List.of(optIn)));
+
+        List<JobQueueBatchFile> results = jobBatchProcessor.processJobBatchPartial(UUID.randomUUID(), queue, job, mbi);
+
+        // Every EoB has to be checked before the patient can fail
+        assertEquals(1, results.size());
+        assertError(results.get(0).getBatchID(), DPCResourceType.Patient);
+        verify(lookBackService, times(32)).getLookBackAnswer(any(), any(), any());
+    }
+
+    private JobQueueBatch createPatientOnlyJob(IJobQueue queue, String mbi) {
+        final var jobID = queue.createJob(
+                UUID.randomUUID(),
+                TEST_ORG_NPI,
+                TEST_PROVIDER_NPI,
+                Collections.singletonList(mbi),
+                Collections.singletonList(DPCResourceType.Patient),
+                null,
+                MockBlueButtonClient.getBfdTransactionTime(),
+                null, null, true, false
+        );
+        return queue.getJobBatches(jobID).get(0);
+    }
+
+    @Test
+    void testRawJsonPassthroughMatchesParsedOutput() throws IOException {
+        List<String> mbis = List.of(MockBlueButtonClient.TEST_PATIENT_MBIS.get(0), MockBlueButtonClient.TEST_PATIENT_MBIS.get(1));
+        Mockito.when(consentService.getConsent(any())).thenReturn(Optional.of(List.of(optIn)));
+
+        List<String> parsed = exportEobs(getOperationsConfig(), mbis);
+        List<String> passedThrough = exportEobs(getPassthroughOperationsConfig(), mbis);
+
+        assertEquals(33, parsed.size());
+        assertEquals(parsed.size(), passedThrough.size());
+
+        IParser parser = FhirContext.forDstu3().newJsonParser();
+        for (int i = 0; i < parsed.size(); i++) {
+            ExplanationOfBenefit expected = parser.parseResource(ExplanationOfBenefit.class, parsed.get(i));
+            ExplanationOfBenefit actual = parser.parseResource(ExplanationOfBenefit.class, passedThrough.get(i));
+
+            // The mock client stamps some EoBs' billable periods with the current time, so only compare those to the month
+            assertEquals(toYearMonth(expected.getBillablePeriod().getEnd()), toYearMonth(actual.getBillablePeriod().getEnd()));
+            expected.setBillablePeriod(null);
+            actual.setBillablePeriod(null);
+            assertTrue(expected.equalsDeep(actual), String.format("EoB %s should match", expected.getIdElement().getIdPart()));
+        }
+    }
+
+    // Exports the EoBs of the given patients, and returns the lines of the export file
+    private List<String> exportEobs(OperationsConfig operationsConfig, List<String> mbis) throws IOException {
+        JobBatchProcessor jobBatchProcessor = getJobBatchProcessor(bbClient, operationsConfig, new EveryoneGetsDataLookBackServiceImpl(), consentService);
+
+        IJobQueue queue = new MemoryBatchQueue();
+        final var jobID = queue.createJob(
+                UUID.randomUUID(),
+                TEST_ORG_NPI,
+                TEST_PROVIDER_NPI,
+                mbis,
+                Collections.singletonList(DPCResourceType.ExplanationOfBenefit),
+                null,
+                MockBlueButtonClient.getBfdTransactionTime(),
+                null, null, true, false
+        );
+        JobQueueBatch job = queue.getJobBatches(jobID).get(0);
+
+        for (String mbi : mbis) {
+            jobBatchProcessor.processJobBatchPartial(UUID.randomUUID(), queue, job, mbi);
+        }
+        jobBatchProcessor.closeBatchFiles(job);
+
+        final var outputFilePath = ResourceWriter.formOutputFilePath(exportPath, job.getBatchID(), DPCResourceType.ExplanationOfBenefit, 0);
+        return GzipUtil.decompress(outputFilePath).lines().toList();
+    }
+
+    @SuppressWarnings("JdkObsolete") // Date class is used by FHIR stu3 Period model
+    private static YearMonth toYearMonth(Date date) {
+        return date == null ? null : YearMonth.from(date.toInstant().atZone(ZoneId.systemDefault()));
+    }
+
     private JobBatchProcessor getJobBatchProcessor(BlueButtonClient bbClient, OperationsConfig config, LookBackService lookBackSrvc, ConsentService consentSrvc) {
         return new JobBatchProcessor(
                 bbClient,
@@ -792,6 +1116,20 @@ class JobBatchProcessorUnitTest {
     }
 
     // Creates a generic config
+    private JobQueueBatch createResolveJob(IJobQueue queue, List<String> mbis) {
+        final var jobID = queue.createJob(
+                UUID.randomUUID(),
+                TEST_ORG_NPI,
+                TEST_PROVIDER_NPI,
+                mbis,
+                List.of(DPCResourceType.Patient),
+                null,
+                MockBlueButtonClient.getBfdTransactionTime(),
+                null, null, true, false
+        );
+        return queue.getJobBatches(jobID).get(0);
+    }
+
     private OperationsConfig getOperationsConfig() {
         return getOperationsConfig(List.of());
     }
@@ -808,6 +1146,16 @@ class JobBatchProcessorUnitTest {
         );
     }
 
+    // Creates a config that fetches Coverage alongside EoBs
+    private OperationsConfig getConcurrentFetchOperationsConfig() {
+        return new OperationsConfig(1000, exportPath, 3, 500, 18, List.of(), 30, 1, 1, 2, false);
+    }
+
+    // Creates a config that copies EoBs straight from BlueButton's JSON
+    private OperationsConfig getPassthroughOperationsConfig() {
+        return new OperationsConfig(1000, exportPath, 3, 500, 18, List.of(), 30, 1, 1, 0, true);
+    }
+
     private void assertError(UUID batchId, DPCResourceType resourceType) {
         final var outputFilePath = ResourceWriter.formOutputFilePath(exportPath, batchId, resourceType, 0);
         final var errorFilePath = ResourceWriter.formOutputFilePath(exportPath, batchId, DPCResourceType.OperationOutcome, 0);
@@ -0,0 +1,79 @@
+package gov.cms.dpc.aggregation.engine;
+
+import gov.cms.dpc.fhir.DPCIdentifierSystem;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.ExplanationOfBenefit;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PassthroughBundleReaderUnitTest {
+    private static final String PRETTY_BUNDLE = """
+            {
+              "resourceType": "Bundle",
+              "meta": { "lastUpdated": "2024-05-01T12:00:00.000+00:00" },
+              "link": [
+                { "relation": "self", "url": "https://bfd/ExplanationOfBenefit?patient=1" },
+                { "relation": "next", "url": "https://bfd/ExplanationOfBenefit?patient=1&startIndex=10" }
+              ],
+              "entry": [ {
+                "resource": {
+                  "resourceType": "ExplanationOfBenefit",
+                  "id": "carrier-1",
+                  "meta": { "lastUpdated": "2024-04-01T12:00:00.000+00:00" },
+                  "extension": [ { "url": "https://bfd/note", "valueString": "two  spaces, a \\"quote\\" and \\\\" } ],
+                  "billablePeriod": { "start": "2024-01-01", "end": "2024-02-01" },
+                  "organization": { "identifier": { "system": "http://hl7.org/fhir/sid/us-npi", "value": "1111111112" } },
+                  "provider": { "identifier": { "system": "http://hl7.org/fhir/sid/us-npi", "value": "2222222228" } },
+                  "careTeam": [
+                    { "sequence": 1, "provider": { "identifier": { "system": "http://hl7.org/fhir/sid/us-npi", "value": "3333333334" } } },
+                    { "sequence": 2 }
+                  ]
+                }
+              } ]
+            }
+            """;
+
+    @Test
+    void testReadsOnlyWhatsNeeded() throws IOException {
+        Bundle bundle = PassthroughBundleReader.read(PRETTY_BUNDLE.getBytes(StandardCharsets.UTF_8));
+
+        assertNotNull(bundle.getMeta().getLastUpdated());
+        assertEquals("https://bfd/ExplanationOfBenefit?patient=1&startIndex=10", bundle.getLink(Bundle.LINK_NEXT).getUrl());
+        assertEquals(1, bundle.getEntry().size());
+
+        ExplanationOfBenefit eob = (ExplanationOfBenefit) bundle.getEntry().get(0).getResource();
+        assertEquals("carrier-1", eob.getIdElement().getIdPart());
+        assertNotNull(eob.getMeta().getLastUpdated());
+        assertEquals("2024-02-01", eob.getBillablePeriod().getEndElement().getValueAsString());
+        assertEquals(DPCIdentifierSystem.NPPES.getSystem(), eob.getOrganization().getIdentifier().getSystem());
+        assertEquals("1111111112", eob.getOrganization().getIdentifier().getValue());
+        assertEquals("2222222228", eob.getProvider().getIdentifier().getValue());
+        assertEquals(1, eob.getCareTeam().size());
+        assertEquals("3333333334", eob.getCareTeam().get(0).getProvider().getIdentifier().getValue());
+    }
+
+    @Test
+    void testKeepsResourceOnOneLine() throws IOException {
+        Bundle bundle = PassthroughBundleReader.read(PRETTY_BUNDLE.getBytes(StandardCharsets.UTF_8));
+        String json = new String(((PassthroughExplanationOfBenefit) bundle.getEntry().get(0).getResource()).getJson(), StandardCharsets.UTF_8);
+
+        assertTrue(json.startsWith("{\"resourceType\":\"ExplanationOfBenefit\",\"id\":\"carrier-1\","));
+        assertTrue(json.endsWith("}]}"));
+        assertFalse(json.contains("\n"));
+        // Whitespace within strings is kept
+        assertTrue(json.contains("\"valueString\":\"two  spaces, a \\\"quote\\\" and \\\\\""));
+    }
+
+    @Test
+    void testRejectsOtherResources() {
+        byte[] json = "{\"resourceType\":\"Bundle\",\"entry\":[{\"resource\":{\"resourceType\":\"Coverage\",\"id\":\"1\"}}]}"
+                .getBytes(StandardCharsets.UTF_8);
+
+        IllegalStateException exception = assertThrows(IllegalStateException.class, () -> PassthroughBundleReader.read(json));
+        assertEquals("Unexpected resource type: got Coverage expected: ExplanationOfBenefit", exception.getMessage());
+    }
+}
@@ -4,6 +4,7 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import gov.cms.dpc.bluebutton.client.MockBlueButtonClient;
+import gov.cms.dpc.bluebutton.exceptions.BlueButtonLimitExceededException;
 import gov.cms.dpc.fhir.DPCResourceType;
 import gov.cms.dpc.queue.exceptions.JobQueueFailure;
 import org.hl7.fhir.dstu3.model.*;
@@ -12,9 +13,14 @@ import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
 import java.time.OffsetDateTime;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
@@ -205,6 +211,145 @@ class ResourceFetcherUnitTest {
         assertTrue(exception.getMessage().contains("Unexpected resource type: Practitioner"));
     }
 
+    @Test
+    public void testStreamingWithPrefetch_Eob() {
+        ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor();
+        try {
+            ResourceFetcher fetcher = new ResourceFetcher(
+                    new MockBlueButtonClient(FhirContext.forDstu3()),
+                    UUID.randomUUID(),
+                    UUID.randomUUID(),
+                    DPCResourceType.ExplanationOfBenefit,
+                    MockBlueButtonClient.TEST_LAST_UPDATED.minusDays(1),
+                    MockBlueButtonClient.getBfdTransactionTime(),
+                    30,
+                    prefetchExecutor,
+                    false
+            );
+
+            List<Resource> streamed = fetcher.streamResources(testPatient, Map.of()).toList().blockingGet();
+            List<Resource> fetched = getResourceFetcher(
+                    DPCResourceType.ExplanationOfBenefit,
+                    MockBlueButtonClient.TEST_LAST_UPDATED.minusDays(1),
+                    MockBlueButtonClient.getBfdTransactionTime()
+            ).fetchResources(testPatient, Map.of());
+
+            assertEquals(32, streamed.size());
+            assertEquals(fetched.stream().map(Resource::getId).toList(), streamed.stream().map(Resource::getId).toList());
+        } finally {
+            prefetchExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRawJsonPassthrough_Eob() {
+        ResourceFetcher fetcher = new ResourceFetcher(
+                new MockBlueButtonClient(FhirContext.forDstu3()),
+                UUID.randomUUID(),
+                UUID.randomUUID(),
+                DPCResourceType.ExplanationOfBenefit,
+                MockBlueButtonClient.TEST_LAST_UPDATED.minusDays(1),
+                MockBlueButtonClient.getBfdTransactionTime(),
+                30,
+                null,
+                true
+        );
+
+        List<Resource> passedThrough = fetcher.fetchResources(testPatient, Map.of());
+        List<Resource> parsed = getResourceFetcher(
+                DPCResourceType.ExplanationOfBenefit,
+                MockBlueButtonClient.TEST_LAST_UPDATED.minusDays(1),
+                MockBlueButtonClient.getBfdTransactionTime()
+        ).fetchResources(testPatient, Map.of());
+
+        // Everything lookback and the since filter look at should match what parsing the whole resource gives
+        assertEquals(32, passedThrough.size());
+        assertEquals(parsed.size(), passedThrough.size());
+        for (int i = 0; i < parsed.size(); i++) {
+            ExplanationOfBenefit expected = (ExplanationOfBenefit) parsed.get(i);
+            ExplanationOfBenefit actual = (ExplanationOfBenefit) passedThrough.get(i);
+
+            assertInstanceOf(PassthroughExplanationOfBenefit.class, actual);
+            assertEquals(expected.getIdElement().getIdPart(), actual.getIdElement().getIdPart());
+            assertEquals(expected.getMeta().getLastUpdated(), actual.getMeta().getLastUpdated());
+            assertEquals(toYearMonth(expected.getBillablePeriod().getEnd()), toYearMonth(actual.getBillablePeriod().getEnd()));
+            assertTrue(expected.getOrganization().getIdentifier().equalsDeep(actual.getOrganization().getIdentifier()));
+            assertTrue(expected.getProvider().getIdentifier().equalsDeep(actual.getProvider().getIdentifier()));
+            assertEquals(
+                    expected.getCareTeam().stream().map(careTeam -> careTeam.getProvider().getIdentifier().getValue()).toList(),
+                    actual.getCareTeam().stream().map(careTeam -> careTeam.getProvider().getIdentifier().getValue()).toList());
+        }
+    }
+
+    @Test
+    public void testErrorFetchingNextPage() {
+        MockBlueButtonClient failingClient = Mockito.spy(new MockBlueButtonClient(FhirContext.forDstu3()));
+        Mockito.doThrow(new ResourceNotFoundException("test exception"))
+                .when(failingClient).requestNextBundleFromServer(any(), any());
+
+        ResourceFetcher fetcher = getResourceFetcher(
+                DPCResourceType.ExplanationOfBenefit,
+                MockBlueButtonClient.TEST_LAST_UPDATED.minusDays(1),
+                MockBlueButtonClient.getBfdTransactionTime(),
+                failingClient
+        );
+
+        // The first page is still emitted, followed by the error
+        List<Resource> resources = fetcher.streamResources(testPatient, Map.of()).toList().blockingGet();
+        Resource last = resources.get(resources.size() - 1);
+        assertTrue(resources.size() > 1);
+        assertTrue(resources.subList(0, resources.size() - 1).stream().allMatch(ExplanationOfBenefit.class::isInstance));
+        assertEquals(String.format("ExplanationOfBenefit resource not found in Blue Button for id: %s", testPatientMbi),
+                ((OperationOutcome) last).getIssueFirstRep().getDetails().getText());
+    }
+
+    @Test
+    public void testRetriesWhenLimited() {
+        MockBlueButtonClient limitedClient = Mockito.spy(new MockBlueButtonClient(FhirContext.forDstu3()));
+        Mockito.doThrow(new BlueButtonLimitExceededException("test limit"))
+                .doCallRealMethod()
+                .when(limitedClient).requestNextBundleFromServer(any(), any());
+
+        ResourceFetcher fetcher = getResourceFetcher(
+                DPCResourceType.ExplanationOfBenefit,
+                MockBlueButtonClient.TEST_LAST_UPDATED.minusDays(1),
+                MockBlueButtonClient.getBfdTransactionTime(),
+                limitedClient
+        );
+
+        List<Resource> resources = fetcher.fetchResources(testPatient, Map.of());
+        List<Resource> expected = getResourceFetcher(
+                DPCResourceType.ExplanationOfBenefit,
+                MockBlueButtonClient.TEST_LAST_UPDATED.minusDays(1),
+                MockBlueButtonClient.getBfdTransactionTime()
+        ).fetchResources(testPatient, Map.of());
+
+        assertEquals(expected.size(), resources.size());
+        assertTrue(resources.stream().allMatch(ExplanationOfBenefit.class::isInstance));
+    }
+
+    @Test
+    public void testInterruptedFetchIsNotAnOutcome() {
+        ResourceFetcher fetcher = Mockito.spy(
+                getResourceFetcher(
+                    DPCResourceType.Patient,
+                    MockBlueButtonClient.TEST_LAST_UPDATED.minusDays(1),
+                    MockBlueButtonClient.getBfdTransactionTime(),
+                    bbClient
+            )
+        );
+        Mockito.doThrow(new IllegalStateException("Interrupted waiting for BlueButton", new InterruptedException()))
+                .when(fetcher).fetchFirst(eq(testPatient), any());
+
+        assertThrows(IllegalStateException.class, () -> fetcher.fetchResources(testPatient, Map.of()));
+    }
+
+    // The mock client stamps some EoBs' billable periods with the current time, so we can only compare them to the month
+    @SuppressWarnings("JdkObsolete") // Date class is used by FHIR stu3 Period model
+    private static YearMonth toYearMonth(Date date) {
+        return date == null ? null : YearMonth.from(date.toInstant().atZone(ZoneId.systemDefault()));
+    }
+
     private ResourceFetcher getResourceFetcher(DPCResourceType resourceType, OffsetDateTime since, OffsetDateTime transactionTime) {
         return getResourceFetcher(resourceType, since, transactionTime, new MockBlueButtonClient(FhirContext.forDstu3()));
     }
@@ -2,19 +2,25 @@ package gov.cms.dpc.aggregation.engine;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
+import gov.cms.dpc.aggregation.util.AggregationUtils;
 import gov.cms.dpc.common.utils.GzipUtil;
 import gov.cms.dpc.fhir.DPCResourceType;
+import gov.cms.dpc.queue.GzipSeekIndex;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 import gov.cms.dpc.queue.models.JobQueueBatchFile;
 import org.apache.commons.io.FileUtils;
 import org.hl7.fhir.dstu3.model.Patient;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -42,11 +48,13 @@ class ResourceWriterUnitTest {
 		when(jobQueueBatch.getJobID()).thenReturn(jobId);
 		when(jobQueueBatchFile.getCount()).thenReturn(1);
 
-		ResourceWriter resourceWriter = new ResourceWriter(fhirContext, jobQueueBatch, DPCResourceType.Patient, operationsConfig);
+		ResourceFileStreams fileStreams = new ResourceFileStreams();
+		ResourceWriter resourceWriter = new ResourceWriter(fhirContext, jobQueueBatch, DPCResourceType.Patient, operationsConfig, fileStreams);
 
 		Patient patient = new Patient();
 		patient.setId("123");
 		resourceWriter.writeBatch(new AtomicInteger(0), List.of(patient));
+		fileStreams.close();
 
 		String outputPath = ResourceWriter.formOutputFilePath(operationsConfig.getExportPath(), batchId, DPCResourceType.Patient, 0);
 		String inputString = GzipUtil.decompress(outputPath);
@@ -73,7 +81,8 @@ class ResourceWriterUnitTest {
 		when(jobQueueBatch.getJobID()).thenReturn(jobId);
 		when(jobQueueBatchFile.getCount()).thenReturn(0);
 
-		ResourceWriter resourceWriter = new ResourceWriter(fhirContext, jobQueueBatch, DPCResourceType.Patient, operationsConfig);
+		ResourceFileStreams fileStreams = new ResourceFileStreams();
+		ResourceWriter resourceWriter = new ResourceWriter(fhirContext, jobQueueBatch, DPCResourceType.Patient, operationsConfig, fileStreams);
 
 		Patient patient1 = new Patient();
 		patient1.setId("1");
@@ -83,6 +92,7 @@ class ResourceWriterUnitTest {
 		// Write the first patient to a compressed file, then append the second
 		resourceWriter.writeBatch(new AtomicInteger(0), List.of(patient1));
 		resourceWriter.writeBatch(new AtomicInteger(0), List.of(patient2));
+		fileStreams.close();
 
 		String outputPath = ResourceWriter.formOutputFilePath(operationsConfig.getExportPath(), batchId, DPCResourceType.Patient, 0);
 		String inputString = GzipUtil.decompress(outputPath);
@@ -94,4 +104,125 @@ class ResourceWriterUnitTest {
 		assertEquals(patient1.getIdPart(), readPatient1.getIdPart());
 		assertEquals(patient2.getIdPart(), readPatient2.getIdPart());
 	}
+
+	@Test
+	void canRollOverFile() throws IOException {
+		UUID jobId = UUID.randomUUID();
+		UUID batchId = UUID.randomUUID();
+
+		OperationsConfig operationsConfig = new OperationsConfig(
+			1,
+			FileUtils.getTempDirectory().toString(),
+			1
+		);
+
+		JobQueueBatch jobQueueBatch = mock(JobQueueBatch.class);
+		JobQueueBatchFile firstFile = mock(JobQueueBatchFile.class);
+		JobQueueBatchFile secondFile = mock(JobQueueBatchFile.class);
+
+		when(jobQueueBatch.addJobQueueFile(DPCResourceType.Patient, 0, 1)).thenReturn(firstFile);
+		when(jobQueueBatch.addJobQueueFile(DPCResourceType.Patient, 1, 1)).thenReturn(secondFile);
+		when(jobQueueBatch.getBatchID()).thenReturn(batchId);
+		when(jobQueueBatch.getJobID()).thenReturn(jobId);
+		when(firstFile.getCount()).thenReturn(1);
+		when(secondFile.getCount()).thenReturn(1);
+
+		ResourceFileStreams fileStreams = new ResourceFileStreams();
+		ResourceWriter resourceWriter = new ResourceWriter(fhirContext, jobQueueBatch, DPCResourceType.Patient, operationsConfig, fileStreams);
+
+		Patient patient1 = new Patient();
+		patient1.setId("1");
+		Patient patient2 = new Patient();
+		patient2.setId("2");
+
+		// Moving on to the next sequence finishes the first file
+		AtomicInteger counter = new AtomicInteger(0);
+		resourceWriter.writeBatch(counter, List.of(patient1));
+		resourceWriter.writeBatch(counter, List.of(patient2));
+
+		String firstPath = ResourceWriter.formOutputFilePath(operationsConfig.getExportPath(), batchId, DPCResourceType.Patient, 0);
+		assertEquals(patient1.getIdPart(), parser.parseResource(Patient.class, GzipUtil.decompress(firstPath)).getIdPart());
+
+		fileStreams.close();
+		String secondPath = ResourceWriter.formOutputFilePath(operationsConfig.getExportPath(), batchId, DPCResourceType.Patient, 1);
+		assertEquals(patient2.getIdPart(), parser.parseResource(Patient.class, GzipUtil.decompress(secondPath)).getIdPart());
+	}
+
+	@Test
+	void tracksChecksumAcrossResume() throws IOException {
+		UUID jobId = UUID.randomUUID();
+		UUID batchId = UUID.randomUUID();
+
+		OperationsConfig operationsConfig = new OperationsConfig(
+			10,
+			FileUtils.getTempDirectory().toString(),
+			1
+		);
+
+		JobQueueBatch jobQueueBatch = mock(JobQueueBatch.class);
+		JobQueueBatchFile jobQueueBatchFile = new JobQueueBatchFile(jobId, batchId, DPCResourceType.Patient, 0, 1);
+
+		when(jobQueueBatch.addJobQueueFile(DPCResourceType.Patient, 0, 1)).thenReturn(jobQueueBatchFile);
+		when(jobQueueBatch.getBatchID()).thenReturn(batchId);
+		when(jobQueueBatch.getJobID()).thenReturn(jobId);
+
+		Patient patient1 = new Patient();
+		patient1.setId("1");
+		Patient patient2 = new Patient();
+		patient2.setId("2");
+
+		// Write the first patient, then pause
+		ResourceFileStreams firstStreams = new ResourceFileStreams();
+		new ResourceWriter(fhirContext, jobQueueBatch, DPCResourceType.Patient, operationsConfig, firstStreams)
+			.writeBatch(new AtomicInteger(0), List.of(patient1));
+		firstStreams.close();
+
+		// Resume with a fresh set of streams, which has to pick the checksum back up
+		jobQueueBatchFile.appendCount(1);
+		ResourceFileStreams secondStreams = new ResourceFileStreams();
+		new ResourceWriter(fhirContext, jobQueueBatch, DPCResourceType.Patient, operationsConfig, secondStreams)
+			.writeBatch(new AtomicInteger(0), List.of(patient2));
+		secondStreams.close();
+
+		File outputFile = new File(ResourceWriter.formOutputFilePath(operationsConfig.getExportPath(), batchId, DPCResourceType.Patient, 0));
+		assertEquals(2, GzipUtil.decompress(outputFile.getPath()).split("\\n").length);
+		assertArrayEquals(AggregationUtils.generateChecksum(outputFile), jobQueueBatchFile.getChecksum());
+		assertEquals(outputFile.length(), jobQueueBatchFile.getFileLength());
+	}
+
+	@Test
+	void indexesGzipMembersAcrossResume() throws IOException {
+		UUID jobId = UUID.randomUUID();
+		UUID batchId = UUID.randomUUID();
+		JobQueueBatchFile batchFile = new JobQueueBatchFile(jobId, batchId, DPCResourceType.Patient, 0, 1);
+		String path = ResourceWriter.formOutputFilePath(FileUtils.getTempDirectory().toString(), batchId, DPCResourceType.Patient, 0);
+
+		// A line a bit bigger than a quarter of a member, so a member fills up every four lines
+		byte[] line = "x".repeat((int) (GzipSeekIndex.MEMBER_SIZE / 4) + 1).getBytes(StandardCharsets.UTF_8);
+		long lineLength = line.length + 1;
+
+		// Write six lines, then pause and resume for six more
+		for (int pass = 0; pass < 2; pass++) {
+			ResourceFileStreams fileStreams = new ResourceFileStreams();
+			ResourceFileStreams.OpenFile openFile = fileStreams.open(batchFile, path, pass > 0);
+			for (int i = 0; i < 6; i++) {
+				openFile.writeLine(line);
+			}
+			openFile.flush();
+			fileStreams.close();
+		}
+
+		// Two members for each pass, the second pass starting its own member
+		GzipSeekIndex seekIndex = GzipSeekIndex.decode(batchFile.getSeekIndex());
+		assertEquals(4, seekIndex.getMemberCount());
+		assertEquals(12 * lineLength, seekIndex.getUncompressedLength());
+
+		File outputFile = new File(path);
+		for (long offset : new long[] {0, 5 * lineLength, 6 * lineLength, 11 * lineLength}) {
+			try (InputStream stream = seekIndex.open(outputFile, offset)) {
+				assertEquals(12 * lineLength - offset, stream.readAllBytes().length);
+			}
+		}
+		assertEquals(12, GzipUtil.decompress(path).split("\\n").length);
+	}
 }
@@ -69,6 +69,33 @@ class ConsentServiceImplUnitTest {
         assertEquals(0, results.get().size(), "Expected consent results to be an empty list");
     }
 
+    @Test
+    void testUsesWarmIndex() {
+        final String testMbi = "0OO0OO0OO00";
+        final OptOutIndex optOutIndex = Mockito.mock(OptOutIndex.class);
+        consentService = new ConsentServiceImpl(mockConsentDAO, testFhirUrl, optOutIndex);
+
+        Mockito.when(optOutIndex.lookup(anyList())).thenReturn(Optional.of(List.of(new ConsentResult())));
+
+        Optional<List<ConsentResult>> results = consentService.getConsent(testMbi);
+        assertEquals(1, results.orElseThrow().size());
+        Mockito.verify(optOutIndex).lookup(List.of("http://hl7.org/fhir/sid/us-mbi|" + testMbi));
+        Mockito.verify(mockConsentDAO, Mockito.never()).findByMbis(anyList());
+    }
+
+    @Test
+    void testFallsBackWhenIndexCold() {
+        final String testMbi = "0OO0OO0OO00";
+        final OptOutIndex optOutIndex = Mockito.mock(OptOutIndex.class);
+        consentService = new ConsentServiceImpl(mockConsentDAO, testFhirUrl, optOutIndex);
+
+        Mockito.when(optOutIndex.lookup(anyList())).thenReturn(Optional.empty());
+        Mockito.when(mockConsentDAO.findByMbis(anyList())).thenReturn(List.of(createConsentEntity(testMbi)));
+
+        Optional<List<ConsentResult>> results = consentService.getConsent(testMbi);
+        assertEquals(1, results.orElseThrow().size());
+    }
+
     private ConsentEntity createConsentEntity(String mbi) {
         return ConsentEntity.defaultConsentEntity(Optional.of(UUID.randomUUID()), Optional.of("test_hicn"), Optional.of(mbi));
     }
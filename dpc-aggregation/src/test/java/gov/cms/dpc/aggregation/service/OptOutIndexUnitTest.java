@@ -0,0 +1,124 @@
+package gov.cms.dpc.aggregation.service;
+
+import com.codahale.metrics.MetricRegistry;
+import gov.cms.dpc.common.consent.entities.ConsentEntity;
+import gov.cms.dpc.common.jdbi.ConsentDAO;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+
+@ExtendWith(MockitoExtension.class)
+class OptOutIndexUnitTest {
+    private static final String OPTED_OUT_MBI = "http://hl7.org/fhir/sid/us-mbi|0OO0OO0OO00";
+    private static final String OPTED_IN_MBI = "http://hl7.org/fhir/sid/us-mbi|0OO0OO0OO01";
+    private static final OffsetDateTime LOADED_AT = OffsetDateTime.of(2024, 5, 1, 12, 0, 0, 0, ZoneOffset.UTC);
+
+    @Mock
+    private ConsentDAO consentDAO;
+
+    private OptOutIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = new OptOutIndex(consentDAO, new MetricRegistry(), Duration.ofSeconds(60), Duration.ofSeconds(600));
+    }
+
+    @Test
+    void testColdUntilLoaded() {
+        assertFalse(index.isWarm());
+        assertTrue(index.lookup(List.of(OPTED_OUT_MBI)).isEmpty());
+    }
+
+    @Test
+    void testLoadKeepsOnlyOptedOutMbis() {
+        final ConsentEntity optOut = createConsentEntity(OPTED_OUT_MBI, ConsentEntity.OPT_OUT, LocalDate.of(2024, 4, 1), LOADED_AT);
+        final ConsentEntity optIn = createConsentEntity(OPTED_OUT_MBI, ConsentEntity.OPT_IN, LocalDate.of(2024, 3, 1), LOADED_AT);
+        final ConsentEntity otherOptIn = createConsentEntity(OPTED_IN_MBI, ConsentEntity.OPT_IN, LocalDate.of(2024, 3, 1), LOADED_AT);
+        Mockito.when(consentDAO.list()).thenReturn(List.of(optOut, optIn, otherOptIn));
+
+        index.refresh();
+        assertTrue(index.isWarm());
+
+        final List<ConsentResult> results = index.lookup(List.of(OPTED_OUT_MBI)).orElseThrow();
+        assertEquals(2, results.size());
+        final ConsentResult optOutResult = results.stream()
+                .filter(result -> result.getConsentId().equals(optOut.getId().toString()))
+                .findFirst()
+                .orElseThrow();
+        assertTrue(optOutResult.isActive());
+        assertEquals(ConsentResult.PolicyType.OPT_OUT, optOutResult.getPolicyType());
+        assertEquals(LocalDate.of(2024, 4, 1), optOutResult.getConsentDate().toInstant().atOffset(ZoneOffset.UTC).toLocalDate());
+
+        // Nothing can opt the other MBI out, so there's nothing to keep for it
+        assertEquals(Optional.of(List.of()), index.lookup(List.of(OPTED_IN_MBI)));
+    }
+
+    @Test
+    void testUpdateReadsChangesPastWatermark() {
+        final ConsentEntity optOut = createConsentEntity(OPTED_OUT_MBI, ConsentEntity.OPT_OUT, LocalDate.of(2024, 4, 1), LOADED_AT);
+        final ConsentEntity otherOptIn = createConsentEntity(OPTED_IN_MBI, ConsentEntity.OPT_IN, LocalDate.of(2024, 3, 1), LOADED_AT);
+        Mockito.when(consentDAO.list()).thenReturn(List.of(optOut, otherOptIn));
+        index.refresh();
+
+        // The opted out MBI opts back in, and the other MBI opts out
+        final OffsetDateTime changedAt = LOADED_AT.plusMinutes(5);
+        final ConsentEntity newOptIn = createConsentEntity(OPTED_OUT_MBI, ConsentEntity.OPT_IN, LocalDate.of(2024, 5, 1), changedAt);
+        final ConsentEntity newOptOut = createConsentEntity(OPTED_IN_MBI, ConsentEntity.OPT_OUT, LocalDate.of(2024, 5, 1), changedAt);
+        Mockito.when(consentDAO.findUpdatedSince(LOADED_AT.minus(OptOutIndex.WATERMARK_OVERLAP))).thenReturn(List.of(newOptIn, newOptOut));
+        Mockito.when(consentDAO.findByMbis(List.of(OPTED_IN_MBI))).thenReturn(List.of(otherOptIn, newOptOut));
+        index.refresh();
+
+        assertEquals(2, index.lookup(List.of(OPTED_OUT_MBI)).orElseThrow().size());
+        assertEquals(2, index.lookup(List.of(OPTED_IN_MBI)).orElseThrow().size());
+        assertEquals(4, index.lookup(List.of(OPTED_OUT_MBI, OPTED_IN_MBI)).orElseThrow().size());
+
+        // Re-reading the same changes doesn't duplicate them
+        Mockito.when(consentDAO.findUpdatedSince(changedAt.minus(OptOutIndex.WATERMARK_OVERLAP))).thenReturn(List.of(newOptIn, newOptOut));
+        index.refresh();
+        assertEquals(2, index.lookup(List.of(OPTED_OUT_MBI)).orElseThrow().size());
+        assertEquals(2, index.lookup(List.of(OPTED_IN_MBI)).orElseThrow().size());
+    }
+
+    @Test
+    void testColdWhenStale() {
+        index = new OptOutIndex(consentDAO, new MetricRegistry(), Duration.ofSeconds(60), Duration.ZERO);
+        Mockito.when(consentDAO.list()).thenReturn(List.of());
+        index.refresh();
+
+        assertFalse(index.isWarm());
+        assertTrue(index.lookup(List.of(OPTED_OUT_MBI)).isEmpty());
+    }
+
+    @Test
+    void testTurnedOff() {
+        index = new OptOutIndex(consentDAO, new MetricRegistry(), Duration.ZERO, Duration.ofSeconds(600));
+        index.start();
+        index.stop();
+
+        Mockito.verify(consentDAO, Mockito.never()).list();
+        Mockito.verify(consentDAO, Mockito.never()).findUpdatedSince(any());
+        assertTrue(index.lookup(List.of(OPTED_OUT_MBI)).isEmpty());
+    }
+
+    private static ConsentEntity createConsentEntity(String mbi, String policyCode, LocalDate effectiveDate, OffsetDateTime updatedAt) {
+        final ConsentEntity entity = ConsentEntity.defaultConsentEntity(Optional.of(UUID.randomUUID()), Optional.empty(), Optional.of(mbi));
+        entity.setPolicyCode(policyCode);
+        entity.setEffectiveDate(effectiveDate);
+        entity.setUpdatedAt(updatedAt);
+        return entity;
+    }
+}
@@ -79,6 +79,14 @@ public class DPCAPIConfiguration extends Configuration implements IDPCQueueDatab
     @Min(0)
     private int jobTimeoutInSeconds;
 
+    // How often the BFD transaction time is refreshed in the background, 0 turns the background refresh off
+    @Min(0)
+    private int transactionTimeRefreshSeconds = 30;
+
+    // How old a cached BFD transaction time can get before new jobs fetch it from BFD themselves, 0 always fetches it
+    @Min(0)
+    private int transactionTimeMaxStalenessSeconds = 120;
+
     public TokenPolicy getTokenPolicy() {
         return tokenPolicy;
     }
@@ -169,6 +177,14 @@ public class DPCAPIConfiguration extends Configuration implements IDPCQueueDatab
         return jobTimeoutInSeconds;
     }
 
+    public int getTransactionTimeRefreshSeconds() {
+        return transactionTimeRefreshSeconds;
+    }
+
+    public int getTransactionTimeMaxStalenessSeconds() {
+        return transactionTimeMaxStalenessSeconds;
+    }
+
     public List<String> getLookBackExemptOrgs() {
         if(lookBackExemptOrgs == null){
             return new ArrayList<>();
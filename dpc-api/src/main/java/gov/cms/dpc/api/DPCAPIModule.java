@@ -5,12 +5,14 @@ import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
 import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
 import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.Binder;
 import com.google.inject.Provides;
 import gov.cms.dpc.api.auth.jwt.IJTICache;
 import gov.cms.dpc.api.auth.jwt.JwtKeyLocator;
 import gov.cms.dpc.api.converters.ChecksumConverterProvider;
 import gov.cms.dpc.api.converters.HttpRangeHeaderParamConverterProvider;
+import gov.cms.dpc.api.core.TransactionTimeProvider;
 import gov.cms.dpc.queue.FileManager;
 import gov.cms.dpc.api.jdbi.IpAddressDAO;
 import gov.cms.dpc.api.jdbi.PublicKeyDAO;
@@ -23,6 +25,7 @@ import gov.cms.dpc.api.tasks.keys.UploadPublicKey;
 import gov.cms.dpc.api.tasks.tokens.DeleteToken;
 import gov.cms.dpc.api.tasks.tokens.GenerateClientTokens;
 import gov.cms.dpc.api.tasks.tokens.ListClientTokens;
+import gov.cms.dpc.bluebutton.client.BlueButtonClient;
 import gov.cms.dpc.common.annotations.APIV1;
 import gov.cms.dpc.common.annotations.ExportPath;
 import gov.cms.dpc.common.annotations.JobTimeout;
@@ -46,6 +49,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.vyarus.dropwizard.guice.module.support.DropwizardAwareModule;
 
+import java.time.Duration;
+
 public class DPCAPIModule extends DropwizardAwareModule<DPCAPIConfiguration> {
 
     private static final Logger logger = LoggerFactory.getLogger(DPCAPIModule.class);
@@ -143,6 +148,12 @@ public class DPCAPIModule extends DropwizardAwareModule<DPCAPIConfiguration> {
         return environment().metrics();
     }
 
+    @Provides
+    @Singleton
+    public ObjectMapper provideObjectMapper() {
+        return environment().getObjectMapper();
+    }
+
     @Provides
     @ExportPath
     public String provideExportPath() {
@@ -223,4 +234,14 @@ public class DPCAPIModule extends DropwizardAwareModule<DPCAPIConfiguration> {
     public int provideJobTimeoutInSeconds() {
         return configuration().getJobTimeoutInSeconds();
     }
+
+    @Provides
+    @Singleton
+    public TransactionTimeProvider provideTransactionTimeProvider(BlueButtonClient bfdClient, MetricRegistry metricRegistry) {
+        final TransactionTimeProvider provider = new TransactionTimeProvider(bfdClient, metricRegistry,
+                Duration.ofSeconds(configuration().getTransactionTimeRefreshSeconds()),
+                Duration.ofSeconds(configuration().getTransactionTimeMaxStalenessSeconds()));
+        environment().lifecycle().manage(provider);
+        return provider;
+    }
 }
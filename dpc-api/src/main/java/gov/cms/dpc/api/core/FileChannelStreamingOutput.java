@@ -0,0 +1,76 @@
+package gov.cms.dpc.api.core;
+
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Implements {@link StreamingOutput} on a region of a file that's sent exactly as it is on disk, for downloads that need
+ * no transcoding, so the response length is known up front.
+ * <p>
+ * The file is memory mapped and written out in chunks big enough that Jetty writes them straight to the socket, instead
+ * of copying them into its own buffer first. Jersey only gives us an {@link OutputStream}, never the socket's channel,
+ * so {@link FileChannel#transferTo} can't hand the file to the OS, and through a stream it's slower than this.
+ */
+public class FileChannelStreamingOutput implements StreamingOutput {
+	// Size of the chunks written to a plain output stream, kept above Jetty's default output aggregation size
+	static final int WRITE_CHUNK_SIZE = 64 * 1024;
+	// How much of the file is mapped at a time
+	static final long MAP_REGION_SIZE = 8L * 1024 * 1024;
+
+	private final File file;
+	private final long offset;
+	private final long length;
+
+	/**
+	 * @param file   - the file to send
+	 * @param offset - where in the file to start
+	 * @param length - the number of bytes to send
+	 */
+	public FileChannelStreamingOutput(File file, long offset, long length) {
+		this.file = file;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * @return the number of bytes written, to use as the response's content length
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	@Override
+	public void write(OutputStream outputStream) throws IOException, WebApplicationException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			writeMapped(channel, outputStream);
+			outputStream.flush();
+		} catch (IOException e) {
+			throw new WebApplicationException("Unable to write file", e, Response.Status.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	private void writeMapped(FileChannel channel, OutputStream outputStream) throws IOException {
+		if (offset + length > channel.size()) {
+			throw new IOException(String.format("File is %d bytes, too short to send %d bytes from %d", channel.size(), length, offset));
+		}
+		final byte[] chunk = new byte[(int) Math.min(WRITE_CHUNK_SIZE, Math.max(length, 1))];
+		long written = 0;
+		while (written < length) {
+			final MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, offset + written, Math.min(MAP_REGION_SIZE, length - written));
+			while (region.hasRemaining()) {
+				final int count = Math.min(chunk.length, region.remaining());
+				region.get(chunk, 0, count);
+				outputStream.write(chunk, 0, count);
+			}
+			written += region.capacity();
+		}
+	}
+}
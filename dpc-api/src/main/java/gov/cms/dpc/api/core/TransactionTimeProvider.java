@@ -0,0 +1,143 @@
+package gov.cms.dpc.api.core;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import gov.cms.dpc.api.APIHelpers;
+import gov.cms.dpc.bluebutton.client.BlueButtonClient;
+import gov.cms.dpc.common.utils.MetricMaker;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the BFD transaction time used for new jobs, so that kicking off an export doesn't wait on a round trip to BFD.
+ * <p>
+ * The transaction time is refreshed in the background on a short interval. If it hasn't been refreshed within the max
+ * staleness, e.g. because BFD is failing, the next caller fetches it from BFD itself, the same way every export used to.
+ * The transaction time never moves backwards, even if BFD reports an earlier time than one it has already returned.
+ */
+public class TransactionTimeProvider implements Managed {
+    private static final Logger logger = LoggerFactory.getLogger(TransactionTimeProvider.class);
+
+    private final BlueButtonClient bfdClient;
+    private final Duration refreshInterval;
+    private final Duration maxStaleness;
+    private final Meter refreshFailureMeter;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private volatile FetchedTime latest;
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param bfdClient       - {@link BlueButtonClient} to fetch the transaction time from
+     * @param metricRegistry  - {@link MetricRegistry} to register the provider's metrics with
+     * @param refreshInterval - how often to refresh in the background, zero only fetches when a caller needs it
+     * @param maxStaleness    - how old a transaction time can be before callers stop using it, zero fetches on every call
+     */
+    public TransactionTimeProvider(BlueButtonClient bfdClient, MetricRegistry metricRegistry, Duration refreshInterval, Duration maxStaleness) {
+        this.bfdClient = bfdClient;
+        this.refreshInterval = refreshInterval;
+        this.maxStaleness = maxStaleness;
+
+        final var metricMaker = new MetricMaker(metricRegistry, TransactionTimeProvider.class);
+        this.refreshFailureMeter = metricMaker.registerMeter("refreshFailure");
+        metricMaker.registerCachedGauge("consecutiveRefreshFailures", consecutiveFailures::get);
+        metricMaker.registerCachedGauge("secondsSinceRefresh", this::getSecondsSinceRefresh);
+    }
+
+    @Override
+    public void start() {
+        if (refreshInterval.isZero()) {
+            logger.info("Background refresh of the BFD transaction time is turned off");
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "bfd-transaction-time");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::refreshQuietly, 0, refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the BFD transaction time to use for a new job
+     */
+    public OffsetDateTime get() {
+        final FetchedTime current = latest;
+        if (isFresh(current)) {
+            return current.transactionTime();
+        }
+        return refreshIfStale();
+    }
+
+    private synchronized OffsetDateTime refreshIfStale() {
+        // Another caller may have refreshed it while we waited
+        final FetchedTime current = latest;
+        if (isFresh(current)) {
+            return current.transactionTime();
+        }
+        return refresh();
+    }
+
+    /**
+     * Fetches the transaction time from BFD, keeping the one we have if BFD returns an earlier one.
+     *
+     * @return the transaction time
+     */
+    synchronized OffsetDateTime refresh() {
+        final OffsetDateTime fetched;
+        try {
+            fetched = APIHelpers.fetchTransactionTime(bfdClient);
+        } catch (RuntimeException e) {
+            refreshFailureMeter.mark();
+            consecutiveFailures.incrementAndGet();
+            throw e;
+        }
+        consecutiveFailures.set(0);
+
+        OffsetDateTime transactionTime = fetched;
+        final FetchedTime current = latest;
+        if (current != null && current.transactionTime().isAfter(fetched)) {
+            logger.warn("BFD returned transaction time {}, which is before {}, keeping the later time", fetched, current.transactionTime());
+            transactionTime = current.transactionTime();
+        }
+        latest = new FetchedTime(transactionTime, Instant.now());
+        return transactionTime;
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (Exception e) {
+            // Keep the schedule going, callers fetch it themselves once it's too stale
+            logger.error("Unable to refresh the BFD transaction time", e);
+        }
+    }
+
+    private boolean isFresh(FetchedTime fetchedTime) {
+        return fetchedTime != null && Duration.between(fetchedTime.fetchedAt(), Instant.now()).compareTo(maxStaleness) < 0;
+    }
+
+    private Long getSecondsSinceRefresh() {
+        final FetchedTime current = latest;
+        return current == null ? -1 : Duration.between(current.fetchedAt(), Instant.now()).toSeconds();
+    }
+
+    private record FetchedTime(OffsetDateTime transactionTime, Instant fetchedAt) {
+    }
+}
@@ -7,6 +7,8 @@ import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.core.Response;
 
+import java.util.Optional;
+
 @Produces("application/json")
 @Path("/Jobs")
 public abstract class AbstractJobResource {
@@ -17,5 +19,5 @@ public abstract class AbstractJobResource {
 
     @Path("/{jobID}")
     @GET
-    public abstract Response checkJobStatus(OrganizationPrincipal organizationPrincipal, @NoHtml String jobID);
+    public abstract Response checkJobStatus(OrganizationPrincipal organizationPrincipal, @NoHtml String jobID, Optional<String> manifestETag);
 }
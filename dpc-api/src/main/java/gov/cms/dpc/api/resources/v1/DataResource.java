@@ -2,9 +2,13 @@ package gov.cms.dpc.api.resources.v1;
 
 import com.codahale.metrics.annotation.ExceptionMetered;
 import com.codahale.metrics.annotation.Timed;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import gov.cms.dpc.api.auth.OrganizationPrincipal;
 import gov.cms.dpc.api.auth.annotations.Authorizer;
 import gov.cms.dpc.api.core.CompressibleStreamingOutput;
+import gov.cms.dpc.api.core.FileChannelStreamingOutput;
 import gov.cms.dpc.api.models.RangeHeader;
 import gov.cms.dpc.api.resources.AbstractDataResource;
 import gov.cms.dpc.common.annotations.NoHtml;
@@ -30,6 +34,7 @@ import org.slf4j.LoggerFactory;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
@@ -38,6 +43,7 @@ import java.time.temporal.ChronoUnit;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
 import java.util.stream.Collectors;
 
 import static gov.cms.dpc.fhir.dropwizard.filters.StreamingContentSizeFilter.X_CONTENT_LENGTH;
@@ -55,14 +61,21 @@ public class DataResource extends AbstractDataResource {
     private static final int CHUNK_SIZE = 1024 * 1024; // Return a maximum of 1MB chunks, but we can modify this later
                                                        // if we need to
     private static final String ACCEPTED_RANGE_VALUE = "bytes";
+    private static final int COMPLETED_FILE_CACHE_SIZE = 10_000;
 
     private final FileManager manager;
     private final IJobQueue queue;
+    // Files of completed jobs don't change until the job expires, so we only have to look them up once
+    private final Cache<FileKey, CompletedFile> completedFiles;
 
     @Inject
     public DataResource(FileManager manager, IJobQueue queue) {
         this.manager = manager;
         this.queue = queue;
+        this.completedFiles = Caffeine.newBuilder()
+                .maximumSize(COMPLETED_FILE_CACHE_SIZE)
+                .expireAfter(Expiry.creating((FileKey key, CompletedFile file) -> Duration.between(OffsetDateTime.now(ZoneOffset.UTC), file.expirationTime())))
+                .build();
     }
 
     @Path("/{fileID}.ndjson")
@@ -88,7 +101,11 @@ public class DataResource extends AbstractDataResource {
             @HeaderParam(HttpHeaders.IF_NONE_MATCH) @ApiParam(value = "Download file only if provided SHA256 checksum doesn't match") Optional<String> fileChecksum,
             @HeaderParam(HttpHeaders.IF_MODIFIED_SINCE) @ApiParam(value = "Download file only if provided timestamp (milliseconds since Unix Epoch) is older than file creation timestamp", example = "1575394136") Optional<String> modifiedHeader,
             @PathParam("fileID") @ApiParam(required = true, value = "NDJSON file name", example = "728b270d-d7de-4143-82fe-d3ccd92cebe4-1-coverage.ndjson") @NoHtml String fileID) {
-        final FileManager.FilePointer filePointer = this.manager.getFile(organizationPrincipal.getID(), fileID);
+        final Optional<FileManager.FilePointer> file = getUnexpiredFile(organizationPrincipal.getID(), fileID);
+        if (file.isEmpty()) {
+            return Response.status(Response.Status.GONE).build();
+        }
+        final FileManager.FilePointer filePointer = file.get();
 
         if (returnCachedValue(filePointer, fileChecksum, modifiedHeader)) {
             return Response.status(Response.Status.NOT_MODIFIED).build();
@@ -136,19 +153,12 @@ public class DataResource extends AbstractDataResource {
             @HeaderParam(HttpHeaders.ACCEPT_ENCODING) @ApiParam(value = "Accept-Encoding header", example = "gzip") Optional<String> acceptEncoding,
             @PathParam("fileID") @ApiParam(required = true, value = "NDJSON file name", example = "728b270d-d7de-4143-82fe-d3ccd92cebe4-1-coverage.ndjson") @NoHtml String fileID) {
 
-        final FileManager.FilePointer filePointer = this.manager.getFile(organizationPrincipal.getID(), fileID);
-
         // If job is expired, the files should no longer be accessible
-        List<JobQueueBatch> batches = queue.getJobBatches(filePointer.getJobID());
-        Set<JobStatus> jobStatusSet = batches.stream().map(JobQueueBatch::getStatus).collect(Collectors.toSet());
-        if (jobStatusSet.size() == 1 && jobStatusSet.contains(JobStatus.COMPLETED)) {
-            OffsetDateTime lastCompleteTime = JobResource.getLatestBatchCompleteTime(batches);
-
-            if (lastCompleteTime
-                    .isBefore(OffsetDateTime.now(ZoneOffset.UTC).minusHours(JobResource.JOB_EXPIRATION_HOURS))) {
-                return Response.status(Response.Status.GONE).build();
-            }
+        final Optional<FileManager.FilePointer> file = getUnexpiredFile(organizationPrincipal.getID(), fileID);
+        if (file.isEmpty()) {
+            return Response.status(Response.Status.GONE).build();
         }
+        final FileManager.FilePointer filePointer = file.get();
 
         // If we're provided a file checksum, verify it matches, if so, return a 304
         if (returnCachedValue(filePointer, fileChecksum, modifiedHeader)) {
@@ -178,22 +188,60 @@ public class DataResource extends AbstractDataResource {
         return responseBuilder.build();
     }
 
-    private Response buildDefaultResponse(String fileID, FileManager.FilePointer filePointer, boolean compressResponse) {
-        FileInputStream fileInputStream;
-        try {
-            fileInputStream = new FileInputStream(filePointer.getFile());
-        } catch (IOException e) {
-            throw new WebApplicationException(String.format("Unable to open file `%s`.`.", fileID), e,
-                    Response.Status.INTERNAL_SERVER_ERROR);
+    /**
+     * Looks up a file, and whether its job has expired. Files of completed jobs are cached until the job expires.
+     *
+     * @param organizationID - {@link UUID} of the organization the file belongs to
+     * @param fileID         - name of the file
+     * @return The {@link FileManager.FilePointer}, or empty if the file's job has expired
+     */
+    private Optional<FileManager.FilePointer> getUnexpiredFile(UUID organizationID, String fileID) {
+        final FileKey key = new FileKey(organizationID, fileID);
+        final CompletedFile cached = completedFiles.getIfPresent(key);
+        if (cached != null) {
+            return cached.isExpired() ? Optional.empty() : Optional.of(cached.filePointer());
+        }
+
+        final FileManager.FilePointer filePointer = this.manager.getFile(organizationID, fileID);
+
+        // Files of a job that's still running can't have expired
+        List<JobQueueBatch> batches = queue.getJobBatches(filePointer.getJobID());
+        Set<JobStatus> jobStatusSet = batches.stream().map(JobQueueBatch::getStatus).collect(Collectors.toSet());
+        if (jobStatusSet.size() != 1 || !jobStatusSet.contains(JobStatus.COMPLETED)) {
+            return Optional.of(filePointer);
         }
 
-        StreamingOutput streamingOutput = new CompressibleStreamingOutput(fileInputStream, filePointer.isCompressed(), compressResponse);
+        final CompletedFile completedFile = new CompletedFile(filePointer, JobResource.getLatestBatchCompleteTime(batches));
+        if (completedFile.isExpired()) {
+            return Optional.empty();
+        }
+        completedFiles.put(key, completedFile);
+        return Optional.of(filePointer);
+    }
 
-        Response.ResponseBuilder builder = Response
+    private Response buildDefaultResponse(String fileID, FileManager.FilePointer filePointer, boolean compressResponse) {
+        final Response.ResponseBuilder builder = Response
             .status(Response.Status.OK)
-            .entity(streamingOutput)
             .header(HttpHeaders.ETAG, filePointer.getChecksum())
             .header(HttpHeaders.LAST_MODIFIED, filePointer.getCreationTime().toInstant().toEpochMilli());
+
+        if (filePointer.isCompressed() == compressResponse) {
+            // The file is already in the encoding we're responding with, so send it as it is on disk, with its length
+            final FileChannelStreamingOutput fileOutput = new FileChannelStreamingOutput(filePointer.getFile(), 0, filePointer.getFile().length());
+            builder.entity(fileOutput)
+                // Set the X-Content-Length header, so we can manually override what Jersey does
+                .header(X_CONTENT_LENGTH, fileOutput.getLength());
+        } else {
+            final FileInputStream fileInputStream;
+            try {
+                fileInputStream = new FileInputStream(filePointer.getFile());
+            } catch (IOException e) {
+                throw new WebApplicationException(String.format("Unable to open file `%s`.`.", fileID), e,
+                        Response.Status.INTERNAL_SERVER_ERROR);
+            }
+            builder.entity(new CompressibleStreamingOutput(fileInputStream, filePointer.isCompressed(), compressResponse));
+        }
+
         if (compressResponse) {
             builder.encoding("gzip");
         }
@@ -216,14 +264,13 @@ public class DataResource extends AbstractDataResource {
                     Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE);
         }
 
-        // We need to get an uncompressed input stream, then move our cursor to the offset we want. We can't use a
-        // RandomAccessFile because our file is more than likely compressed.
+        // We need an uncompressed input stream that starts at the offset we want. Our file is more than likely
+        // compressed, so it's decompressed from the nearest gzip member before the offset.
         try {
-            InputStream uncompressedInputStream = filePointer.getUncompressedInputStream();
+            InputStream uncompressedInputStream = filePointer.getUncompressedInputStream(rangeStart);
 
             // Build a new stream that starts at the beginning of our range and ends at the
             // end
-            uncompressedInputStream.skipNBytes(rangeStart);
             BoundedInputStream boundedInputStream = BoundedInputStream.builder()
                     .setInputStream(uncompressedInputStream)
                     .setMaxCount(len)
@@ -273,6 +320,19 @@ public class DataResource extends AbstractDataResource {
         return false;
     }
 
+    private record FileKey(UUID organizationID, String fileID) {
+    }
+
+    private record CompletedFile(FileManager.FilePointer filePointer, OffsetDateTime completeTime) {
+        OffsetDateTime expirationTime() {
+            return completeTime.plusHours(JobResource.JOB_EXPIRATION_HOURS);
+        }
+
+        boolean isExpired() {
+            return expirationTime().isBefore(OffsetDateTime.now(ZoneOffset.UTC));
+        }
+    }
+
     // True if we should gzip our response, false otherwise
     @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
     private boolean shouldGzipCompress(Optional<String> acceptEncoding) {
@@ -10,8 +10,8 @@ import gov.cms.dpc.api.DPCAPIConfiguration;
 import gov.cms.dpc.api.auth.OrganizationPrincipal;
 import gov.cms.dpc.api.auth.annotations.Authorizer;
 import gov.cms.dpc.api.auth.annotations.PathAuthorizer;
+import gov.cms.dpc.api.core.TransactionTimeProvider;
 import gov.cms.dpc.api.resources.AbstractGroupResource;
-import gov.cms.dpc.bluebutton.client.BlueButtonClient;
 import gov.cms.dpc.common.annotations.APIV1;
 import gov.cms.dpc.common.annotations.NoHtml;
 import gov.cms.dpc.common.logging.SplunkTimestamp;
@@ -56,16 +56,16 @@ public class GroupResource extends AbstractGroupResource {
     static final String SYNTHETIC_BENE_ID = "-19990000000001";
 
     private final String baseURL;
-    private final BlueButtonClient bfdClient;
+    private final TransactionTimeProvider transactionTimeProvider;
     private final DPCAPIConfiguration config;
     private final DataService dataService;
 
     @Inject
-    public GroupResource(DataService dataService, @Named("attribution") IGenericClient client, @APIV1 String baseURL, BlueButtonClient bfdClient, DPCAPIConfiguration config) {
+    public GroupResource(DataService dataService, @Named("attribution") IGenericClient client, @APIV1 String baseURL, TransactionTimeProvider transactionTimeProvider, DPCAPIConfiguration config) {
         super(client);
         this.dataService = dataService;
         this.baseURL = baseURL;
-        this.bfdClient = bfdClient;
+        this.transactionTimeProvider = transactionTimeProvider;
         this.config = config;
     }
 
@@ -304,7 +304,7 @@ public class GroupResource extends AbstractGroupResource {
         final var resources = handleTypeQueryParam(resourceTypes);
         final var since = handleSinceQueryParam(sinceParam);
 
-        final var transactionTime = APIHelpers.fetchTransactionTime(bfdClient);
+        final var transactionTime = transactionTimeProvider.get();
         final var requestingIP = APIHelpers.fetchRequestingIP(request);
         final String requestUrl = APIHelpers.fetchRequestUrl(request);
 
@@ -2,6 +2,11 @@ package gov.cms.dpc.api.resources.v1;
 
 import com.codahale.metrics.annotation.ExceptionMetered;
 import com.codahale.metrics.annotation.Timed;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import gov.cms.dpc.api.auth.OrganizationPrincipal;
 import gov.cms.dpc.api.auth.annotations.Authorizer;
 import gov.cms.dpc.api.resources.AbstractJobResource;
@@ -12,6 +17,7 @@ import gov.cms.dpc.fhir.DPCResourceType;
 import gov.cms.dpc.fhir.FHIRExtractors;
 import gov.cms.dpc.queue.IJobQueue;
 import gov.cms.dpc.queue.JobStatus;
+import gov.cms.dpc.queue.JobSummary;
 import gov.cms.dpc.queue.exceptions.JobQueueFailure;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 import gov.cms.dpc.queue.models.JobQueueBatchFile;
@@ -19,15 +25,19 @@ import io.dropwizard.auth.Auth;
 import io.swagger.annotations.*;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.Response;
+import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.bouncycastle.util.encoders.Hex;
 import org.eclipse.jetty.http.HttpStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
@@ -47,14 +57,23 @@ public class JobResource extends AbstractJobResource {
     public static final int JOB_EXPIRATION_HOURS = 24;
     public static final DateTimeFormatter HTTP_DATE_FORMAT =
             DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss z", Locale.US).withZone(ZoneId.of("GMT"));
+    private static final int COMPLETED_MANIFEST_CACHE_SIZE = 10_000;
 
     private final IJobQueue queue;
     private final String baseURL;
+    private final ObjectMapper mapper;
+    // The manifest of a completed job doesn't change until the job expires, so we only have to build it once
+    private final Cache<UUID, CompletedManifest> completedManifests;
 
     @Inject
-    public JobResource(IJobQueue queue, @APIV1 String baseURL) {
+    public JobResource(IJobQueue queue, @APIV1 String baseURL, ObjectMapper mapper) {
         this.queue = queue;
         this.baseURL = baseURL;
+        this.mapper = mapper;
+        this.completedManifests = Caffeine.newBuilder()
+                .maximumSize(COMPLETED_MANIFEST_CACHE_SIZE)
+                .expireAfter(Expiry.creating((UUID jobID, CompletedManifest manifest) -> Duration.between(OffsetDateTime.now(ZoneOffset.UTC), manifest.expirationTime())))
+                .build();
     }
 
     @Override
@@ -70,42 +89,51 @@ public class JobResource extends AbstractJobResource {
     @ApiResponses({
             @ApiResponse(code = 200, message = "Export job has completed. Any failures are listed in the response body", response = JobCompletionModel.class),
             @ApiResponse(code = 202, message = "Export job is in progress. X-Progress header is present with the format \"<STATUS>: <50.00%>\""),
+            @ApiResponse(code = 304, message = "Export job has completed, and its output hasn't changed from the provided ETag"),
             @ApiResponse(code = 404, message = "Export job cannot be found"),
             @ApiResponse(code = 410, message = "Job has expired"),
             @ApiResponse(code = 500, message = "Export job has failed with no results")
     })
-    public Response checkJobStatus(@Auth OrganizationPrincipal organizationPrincipal, @PathParam("jobID") @NoHtml String jobID) {
+    public Response checkJobStatus(@Auth OrganizationPrincipal organizationPrincipal, @PathParam("jobID") @NoHtml String jobID,
+                                   @HeaderParam(HttpHeaders.IF_NONE_MATCH) @ApiParam(value = "Only return the job output if it doesn't match the provided ETag") Optional<String> manifestETag) {
         final UUID jobUUID = UUID.fromString(jobID);
         final UUID orgUUID = FHIRExtractors.getEntityUUID(organizationPrincipal.getOrganization().getId());
-        final List<JobQueueBatch> batches = this.queue.getJobBatches(jobUUID);
 
-        if (batches.isEmpty()) {
+        final CompletedManifest cached = this.completedManifests.getIfPresent(jobUUID);
+        if (cached != null) {
+            if (!cached.organizationID().equals(orgUUID)) {
+                return Response.status(HttpStatus.UNAUTHORIZED_401).entity("Invalid organization for job").build();
+            }
+            return buildManifestResponse(Response.noContent(), cached, manifestETag).build();
+        }
+
+        // Clients poll this for as long as the job runs, so only the summary is loaded until the job is completed
+        final JobSummary summary = this.queue.getJobSummary(jobUUID);
+        logger.debug("Fetched job summary: {}", summary);
+
+        if (summary.batchCount() == 0) {
             return Response.status(HttpStatus.NOT_FOUND_404).entity("Could not find job").build();
         }
 
         // Validate the batches
-        for (JobQueueBatch batch : batches) {
-            logger.debug("Fetched Batch: {}", batch);
-            if (!batch.getOrgID().equals(orgUUID)) {
-                return Response.status(HttpStatus.UNAUTHORIZED_401).entity("Invalid organization for job").build();
-            }
-            if (batch.getStatus() == JobStatus.FAILED) {
-                throw new JobQueueFailure(jobUUID, batch.getBatchID(), "Batch failed");
-            }
-            if (!batch.isValid()) {
-                throw new JobQueueFailure(jobUUID, batch.getBatchID(), "Fetched an invalid job model");
-            }
+        if (!summary.orgIDs().equals(Set.of(orgUUID))) {
+            return Response.status(HttpStatus.UNAUTHORIZED_401).entity("Invalid organization for job").build();
+        }
+        if (summary.failedBatchID() != null) {
+            throw new JobQueueFailure(jobUUID, summary.failedBatchID(), "Batch failed");
+        }
+        if (summary.invalidBatchID() != null) {
+            throw new JobQueueFailure(jobUUID, summary.invalidBatchID(), "Fetched an invalid job model");
         }
 
         Response.ResponseBuilder builder = Response.noContent();
-        Set<JobStatus> jobStatusSet = batches.stream().map(JobQueueBatch::getStatus).collect(Collectors.toSet());
 
-        if (jobStatusSet.contains(JobStatus.RUNNING) || jobStatusSet.contains(JobStatus.QUEUED)) {
+        if (summary.hasStatus(JobStatus.RUNNING) || summary.hasStatus(JobStatus.QUEUED)) {
             // The job is still being processed
-            builder = buildJobStatusInProgress(builder, batches, jobStatusSet);
-        } else if (jobStatusSet.size() == 1 && jobStatusSet.contains(JobStatus.COMPLETED)) {
+            builder = buildJobStatusInProgress(builder, summary);
+        } else if (summary.isCompleted()) {
             // All batches in the job have finished
-            builder = buildJobStatusCompleted(builder, batches);
+            builder = buildJobStatusCompleted(builder, jobUUID, orgUUID, summary, manifestETag);
         } else {
             builder = builder.status(HttpStatus.ACCEPTED_202);
         }
@@ -116,17 +144,16 @@ public class JobResource extends AbstractJobResource {
     /**
      * Builds a job status response for an in progress job. Includes the current progress in the X-Progress header.
      *
-     * @param builder      - The current response builder
-     * @param batches      - The list of batches made up in a job
-     * @param jobStatusSet - The list of all possible statuses in the job
+     * @param builder - The current response builder
+     * @param summary - The summary of the batches made up in a job
      * @return the response builder
      */
-    private Response.ResponseBuilder buildJobStatusInProgress(Response.ResponseBuilder builder, List<JobQueueBatch> batches, Set<JobStatus> jobStatusSet) {
+    private Response.ResponseBuilder buildJobStatusInProgress(Response.ResponseBuilder builder, JobSummary summary) {
         String progress = "QUEUED: 0.00%";
 
-        if (jobStatusSet.contains(JobStatus.RUNNING) || jobStatusSet.contains(JobStatus.COMPLETED)) {
-            final int processedPatients = batches.stream().mapToInt(JobQueueBatch::getPatientsProcessed).sum();
-            final int totalPatients = batches.stream().mapToInt(b -> b.getPatients().size()).sum();
+        if (summary.hasStatus(JobStatus.RUNNING) || summary.hasStatus(JobStatus.COMPLETED)) {
+            final long processedPatients = summary.processedPatients();
+            final long totalPatients = summary.totalPatients();
             progress = String.format("RUNNING: %.2f%%", totalPatients > 0 ? (processedPatients * 100.0f) / totalPatients : 0f);
         }
 
@@ -136,19 +163,25 @@ public class JobResource extends AbstractJobResource {
     /**
      * Builds a job status response for a completed job. Includes the list of files created from the job.
      *
-     * @param builder - The current response builder
-     * @param batches - The list of batches made up in a job
+     * @param builder      - The current response builder
+     * @param jobID        - The job to load the list of files of
+     * @param orgID        - The organization the job belongs to
+     * @param summary      - The summary of the batches made up in a job
+     * @param manifestETag - The ETag of the output the client already has, if any
      * @return the response builder
      */
-    private Response.ResponseBuilder buildJobStatusCompleted(Response.ResponseBuilder builder, List<JobQueueBatch> batches) {
-        OffsetDateTime lastCompleteTime = getLatestBatchCompleteTime(batches);
+    private Response.ResponseBuilder buildJobStatusCompleted(Response.ResponseBuilder builder, UUID jobID, UUID orgID, JobSummary summary, Optional<String> manifestETag) {
+        OffsetDateTime lastCompleteTime = summary.completeTime();
 
         if (lastCompleteTime.isBefore(OffsetDateTime.now(ZoneOffset.UTC).minusHours(JOB_EXPIRATION_HOURS))) {
             return builder.status(HttpStatus.GONE_410);
         }
 
-        builder.header(HttpHeaders.EXPIRES, lastCompleteTime.plusDays(1).format(HTTP_DATE_FORMAT));
-
+        // Only now do we need the batches, for their files
+        final List<JobQueueBatch> batches = this.queue.getJobBatches(jobID);
+        if (batches.isEmpty()) {
+            return builder.status(HttpStatus.NOT_FOUND_404).entity("Could not find job");
+        }
         JobQueueBatch firstBatch = batches.get(0);
 
         final JobCompletionModel completionModel = new JobCompletionModel(
@@ -158,7 +191,39 @@ public class JobResource extends AbstractJobResource {
                 formOutputList(batches, true),
                 buildJobExtension(batches));
 
-        return builder.status(HttpStatus.OK_200).entity(completionModel);
+        final CompletedManifest manifest = new CompletedManifest(orgID, lastCompleteTime, serializeManifest(completionModel));
+        this.completedManifests.put(jobID, manifest);
+        return buildManifestResponse(builder, manifest, manifestETag);
+    }
+
+    /**
+     * Builds a job status response from the serialized output of a completed job, or a 304 if the client already has it.
+     *
+     * @param builder      - The current response builder
+     * @param manifest     - The output of the job
+     * @param manifestETag - The ETag of the output the client already has, if any
+     * @return the response builder
+     */
+    private Response.ResponseBuilder buildManifestResponse(Response.ResponseBuilder builder, CompletedManifest manifest, Optional<String> manifestETag) {
+        if (manifest.isExpired()) {
+            return builder.status(HttpStatus.GONE_410);
+        }
+
+        builder.header(HttpHeaders.EXPIRES, manifest.completeTime().plusDays(1).format(HTTP_DATE_FORMAT))
+                .header(HttpHeaders.ETAG, manifest.eTag());
+
+        if (manifestETag.filter(manifest::matches).isPresent()) {
+            return builder.status(HttpStatus.NOT_MODIFIED_304);
+        }
+        return builder.status(HttpStatus.OK_200).entity(manifest.body());
+    }
+
+    private byte[] serializeManifest(JobCompletionModel completionModel) {
+        try {
+            return this.mapper.writeValueAsBytes(completionModel);
+        } catch (JsonProcessingException e) {
+            throw new WebApplicationException("Unable to serialize job output", e, Response.Status.INTERNAL_SERVER_ERROR);
+        }
     }
 
     /**
@@ -222,4 +287,34 @@ public class JobResource extends AbstractJobResource {
                 .map(b -> b.getCompleteTime().get())
                 .max(OffsetDateTime::compareTo).get();
     }
+
+    private record CompletedManifest(UUID organizationID, OffsetDateTime completeTime, byte[] body, String eTag) {
+        CompletedManifest(UUID organizationID, OffsetDateTime completeTime, byte[] body) {
+            this(organizationID, completeTime, body, computeETag(body));
+        }
+
+        OffsetDateTime expirationTime() {
+            return completeTime.plusHours(JOB_EXPIRATION_HOURS);
+        }
+
+        boolean isExpired() {
+            return expirationTime().isBefore(OffsetDateTime.now(ZoneOffset.UTC));
+        }
+
+        // If-None-Match can list several tags, or match anything
+        boolean matches(String ifNoneMatch) {
+            return Arrays.stream(ifNoneMatch.split(","))
+                    .map(String::trim)
+                    .anyMatch(tag -> tag.equals("*") || tag.equals(eTag));
+        }
+
+        // A strong ETag, since the body is the same byte for byte as long as it's cached
+        private static String computeETag(byte[] body) {
+            final SHA256Digest digest = new SHA256Digest();
+            digest.update(body, 0, body.length);
+            final byte[] checksum = new byte[digest.getDigestSize()];
+            digest.doFinal(checksum, 0);
+            return String.format("\"%s\"", Hex.toHexString(checksum));
+        }
+    }
 }
@@ -17,8 +17,8 @@ import gov.cms.dpc.api.DPCAPIConfiguration;
 import gov.cms.dpc.api.auth.OrganizationPrincipal;
 import gov.cms.dpc.api.auth.annotations.Authorizer;
 import gov.cms.dpc.api.auth.annotations.PathAuthorizer;
+import gov.cms.dpc.api.core.TransactionTimeProvider;
 import gov.cms.dpc.api.resources.AbstractPatientResource;
-import gov.cms.dpc.bluebutton.client.BlueButtonClient;
 import gov.cms.dpc.common.annotations.APIV1;
 import gov.cms.dpc.common.annotations.NoHtml;
 import gov.cms.dpc.common.logging.SplunkTimestamp;
@@ -72,7 +72,7 @@ public class PatientResource extends AbstractPatientResource {
 
     private final FhirValidator validator;
     private final DataService dataService;
-    private final BlueButtonClient bfdClient;
+    private final TransactionTimeProvider transactionTimeProvider;
     private final String baseURL;
     private final DPCAPIConfiguration config;
 
@@ -80,13 +80,13 @@ public class PatientResource extends AbstractPatientResource {
     public PatientResource(@Named("attribution") IGenericClient client,
                            FhirValidator validator,
                            DataService dataService,
-                           BlueButtonClient bfdClient,
+                           TransactionTimeProvider transactionTimeProvider,
                            @APIV1 String baseURL,
                            DPCAPIConfiguration config) {
         super(client);
         this.validator = validator;
         this.dataService = dataService;
-        this.bfdClient = bfdClient;
+        this.transactionTimeProvider = transactionTimeProvider;
         this.baseURL = baseURL;
         this.config = config;
     }
@@ -235,7 +235,7 @@ public class PatientResource extends AbstractPatientResource {
                 List.of(patientMbi),
                 List.of(DPCResourceType.Patient, DPCResourceType.ExplanationOfBenefit, DPCResourceType.Coverage),
                 since,
-                APIHelpers.fetchTransactionTime(bfdClient),
+                transactionTimeProvider.get(),
                 requestingIP,
                 requestUrl,
                 false,
@@ -244,7 +244,7 @@ public class PatientResource extends AbstractPatientResource {
             return Response.status(Response.Status.ACCEPTED).contentLocation(URI.create(this.baseURL + "/Jobs/" + jobID)).build();
         } else {
             // Submit synchronous job
-            Resource result = dataService.retrieveData(orgId, orgNPI, providerNPI, List.of(patientMbi), since, APIHelpers.fetchTransactionTime(bfdClient),
+            Resource result = dataService.retrieveData(orgId, orgNPI, providerNPI, List.of(patientMbi), since, transactionTimeProvider.get(),
                 requestingIP, requestUrl, DPCResourceType.Patient, DPCResourceType.ExplanationOfBenefit, DPCResourceType.Coverage);
             if (DPCResourceType.Bundle.getPath().equals(result.getResourceType().getPath())) {
                 // A Bundle containing patient data was returned
@@ -298,7 +298,7 @@ public class PatientResource extends AbstractPatientResource {
             List.of(mbi),
             resourceTypesList,
             since,
-            APIHelpers.fetchTransactionTime(bfdClient),
+            transactionTimeProvider.get(),
             requestingIP,
             requestUrl,
             false,
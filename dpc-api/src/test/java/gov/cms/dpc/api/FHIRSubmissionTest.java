@@ -3,10 +3,12 @@ package gov.cms.dpc.api;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.gclient.*;
+import com.codahale.metrics.MetricRegistry;
 import gov.cms.dpc.api.auth.DPCAuthCredentials;
 import gov.cms.dpc.api.auth.OrganizationPrincipal;
 import gov.cms.dpc.api.auth.staticauth.StaticAuthFilter;
 import gov.cms.dpc.api.auth.staticauth.StaticAuthenticator;
+import gov.cms.dpc.api.core.TransactionTimeProvider;
 import gov.cms.dpc.api.resources.v1.GroupResource;
 import gov.cms.dpc.api.resources.v1.JobResource;
 import gov.cms.dpc.bluebutton.client.BlueButtonClient;
@@ -22,6 +24,7 @@ import gov.cms.dpc.queue.service.DataService;
 import gov.cms.dpc.testing.BufferedLoggerHandler;
 import io.dropwizard.auth.AuthFilter;
 import io.dropwizard.auth.AuthValueFactoryProvider;
+import io.dropwizard.jackson.Jackson;
 import io.dropwizard.testing.junit5.DropwizardExtensionsSupport;
 import io.dropwizard.testing.junit5.ResourceExtension;
 import jakarta.ws.rs.client.WebTarget;
@@ -39,6 +42,7 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mockito;
 
+import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.util.Date;
 import java.util.List;
@@ -77,8 +81,8 @@ class FHIRSubmissionTest {
     private static final List<String> testBeneficiaries = List.of("0Z00Z00ZZ01", "0Z00Z00ZZ02", "0Z00Z00ZZ03", "0Z00Z00ZZ04");
 
     private final ResourceExtension groupResource = ResourceExtension.builder()
-            .addResource(new GroupResource(dataService, client, TEST_BASE_URL, bfdClient, new DPCAPIConfiguration()))
-            .addResource(new JobResource(queue, TEST_BASE_URL))
+            .addResource(new GroupResource(dataService, client, TEST_BASE_URL, new TransactionTimeProvider(bfdClient, new MetricRegistry(), Duration.ZERO, Duration.ZERO), new DPCAPIConfiguration()))
+            .addResource(new JobResource(queue, TEST_BASE_URL, Jackson.newObjectMapper()))
             .setTestContainerFactory(testContainer)
             .addProvider(staticFilter)
             .addProvider(new AuthValueFactoryProvider.Binder<>(OrganizationPrincipal.class))
@@ -0,0 +1,121 @@
+package gov.cms.dpc.api.core;
+
+import jakarta.ws.rs.WebApplicationException;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileChannelStreamingOutputUnitTest {
+	@TempDir
+	File tempDir;
+
+	@Test
+	void writesWholeFileToStream() throws IOException {
+		// Bigger than a write chunk, so it takes more than one
+		String data = "file data".repeat(FileChannelStreamingOutput.WRITE_CHUNK_SIZE / 4);
+		File file = writeFile(data);
+
+		FileChannelStreamingOutput output = new FileChannelStreamingOutput(file, 0, file.length());
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		output.write(baos);
+
+		assertEquals(data, baos.toString(StandardCharsets.UTF_8));
+		assertEquals(file.length(), output.getLength());
+	}
+
+	@Test
+	void writesRegionOfFile() throws IOException {
+		File file = writeFile("12345_region_54321");
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new FileChannelStreamingOutput(file, 6, 6).write(baos);
+
+		assertEquals("region", baos.toString(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	void writesAcrossMapRegions() throws IOException {
+		// Two whole regions and part of a third
+		byte[] data = randomBytes(2 * (int) FileChannelStreamingOutput.MAP_REGION_SIZE + 12345);
+		File file = writeFile(data);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new FileChannelStreamingOutput(file, 0, file.length()).write(baos);
+
+		assertArrayEquals(data, baos.toByteArray());
+	}
+
+	@Test
+	void writesExactlyOneMapRegion() throws IOException {
+		byte[] data = randomBytes((int) FileChannelStreamingOutput.MAP_REGION_SIZE);
+		File file = writeFile(data);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new FileChannelStreamingOutput(file, 0, file.length()).write(baos);
+
+		assertArrayEquals(data, baos.toByteArray());
+	}
+
+	@Test
+	void writesRegionOfFileAcrossMapBoundary() throws IOException {
+		int regionSize = (int) FileChannelStreamingOutput.MAP_REGION_SIZE;
+		byte[] data = randomBytes(2 * regionSize);
+		File file = writeFile(data);
+
+		// Starts just before the end of the first region, and ends just after the end of the second
+		int offset = regionSize - 7;
+		int length = regionSize + 5;
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new FileChannelStreamingOutput(file, offset, length).write(baos);
+
+		assertArrayEquals(Arrays.copyOfRange(data, offset, offset + length), baos.toByteArray());
+	}
+
+	@Test
+	void writesEmptyFile() throws IOException {
+		File file = writeFile("");
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new FileChannelStreamingOutput(file, 0, 0).write(baos);
+
+		assertEquals(0, baos.size());
+	}
+
+	@Test
+	void handlesFileShorterThanLength() throws IOException {
+		File file = writeFile("short");
+		FileChannelStreamingOutput output = new FileChannelStreamingOutput(file, 0, 100);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		WebApplicationException exception = assertThrows(WebApplicationException.class, () -> output.write(baos));
+		assertEquals("Unable to write file", exception.getMessage());
+	}
+
+	private File writeFile(String data) throws IOException {
+		File file = File.createTempFile("test", ".ndjson", tempDir);
+		FileUtils.write(file, data, StandardCharsets.UTF_8);
+		return file;
+	}
+
+	private File writeFile(byte[] data) throws IOException {
+		File file = File.createTempFile("test", ".ndjson", tempDir);
+		FileUtils.writeByteArrayToFile(file, data);
+		return file;
+	}
+
+	private static byte[] randomBytes(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+}
@@ -0,0 +1,96 @@
+package gov.cms.dpc.api.core;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import gov.cms.dpc.bluebutton.client.BlueButtonClient;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+
+class TransactionTimeProviderUnitTest {
+    private static final Instant EARLIER = Instant.parse("2024-05-01T12:00:00Z");
+    private static final Instant LATER = Instant.parse("2024-05-01T13:00:00Z");
+
+    private BlueButtonClient bfdClient;
+    private MetricRegistry metricRegistry;
+
+    @BeforeEach
+    void setUp() {
+        bfdClient = Mockito.mock(BlueButtonClient.class);
+        metricRegistry = new MetricRegistry();
+    }
+
+    @Test
+    void testCachedUntilStale() {
+        Mockito.when(bfdClient.requestPatientFromServer(anyString(), isNull(), isNull())).thenReturn(bundleAt(EARLIER), bundleAt(LATER));
+        final TransactionTimeProvider provider = createProvider(Duration.ofMinutes(1));
+
+        assertEquals(atUtc(EARLIER), provider.get());
+        assertEquals(atUtc(EARLIER), provider.get());
+        Mockito.verify(bfdClient, Mockito.times(1)).requestPatientFromServer(anyString(), isNull(), isNull());
+    }
+
+    @Test
+    void testFetchedEveryTimeWithoutStaleness() {
+        Mockito.when(bfdClient.requestPatientFromServer(anyString(), isNull(), isNull())).thenReturn(bundleAt(EARLIER), bundleAt(LATER));
+        final TransactionTimeProvider provider = createProvider(Duration.ZERO);
+
+        assertEquals(atUtc(EARLIER), provider.get());
+        assertEquals(atUtc(LATER), provider.get());
+        Mockito.verify(bfdClient, Mockito.times(2)).requestPatientFromServer(anyString(), isNull(), isNull());
+    }
+
+    @Test
+    void testNeverMovesBackwards() {
+        Mockito.when(bfdClient.requestPatientFromServer(anyString(), isNull(), isNull())).thenReturn(bundleAt(LATER), bundleAt(EARLIER));
+        final TransactionTimeProvider provider = createProvider(Duration.ZERO);
+
+        assertEquals(atUtc(LATER), provider.get());
+        assertEquals(atUtc(LATER), provider.get(), "An earlier time from BFD is ignored");
+    }
+
+    @Test
+    void testRefreshFailure() {
+        Mockito.when(bfdClient.requestPatientFromServer(anyString(), isNull(), isNull()))
+            .thenThrow(new FhirClientConnectionException("BFD is down"))
+            .thenReturn(bundleAt(EARLIER));
+        final TransactionTimeProvider provider = createProvider(Duration.ZERO);
+
+        // Callers see the failure, the same as when they fetched it themselves
+        assertThrows(FhirClientConnectionException.class, provider::get);
+        assertEquals(1, metricRegistry.meter(MetricRegistry.name(TransactionTimeProvider.class, "refreshFailure")).getCount());
+        assertEquals(1, gaugeValue("consecutiveRefreshFailures"));
+
+        assertEquals(atUtc(EARLIER), provider.get());
+    }
+
+    private TransactionTimeProvider createProvider(Duration maxStaleness) {
+        return new TransactionTimeProvider(bfdClient, metricRegistry, Duration.ZERO, maxStaleness);
+    }
+
+    private Object gaugeValue(String name) {
+        final Gauge<?> gauge = metricRegistry.getGauges().get(MetricRegistry.name(TransactionTimeProvider.class, name));
+        return gauge.getValue();
+    }
+
+    private static Bundle bundleAt(Instant lastUpdated) {
+        final Bundle bundle = new Bundle();
+        bundle.getMeta().setLastUpdated(Date.from(lastUpdated));
+        return bundle;
+    }
+
+    private static OffsetDateTime atUtc(Instant instant) {
+        return instant.atOffset(ZoneOffset.UTC);
+    }
+}
@@ -5,9 +5,11 @@ import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.read.ListAppender;
+import com.codahale.metrics.MetricRegistry;
 import gov.cms.dpc.api.APITestHelpers;
 import gov.cms.dpc.api.DPCAPIConfiguration;
 import gov.cms.dpc.api.auth.OrganizationPrincipal;
+import gov.cms.dpc.api.core.TransactionTimeProvider;
 import gov.cms.dpc.bluebutton.client.BlueButtonClient;
 import gov.cms.dpc.fhir.FHIRExtractors;
 import gov.cms.dpc.queue.FileManager;
@@ -25,6 +27,7 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mockito;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
@@ -52,7 +55,7 @@ public class AttestationUnitTests {
         final DataService dataService = new DataService(mockQueue, FhirContext.forDstu3(), "/", 1, fileManager);
         final IGenericClient mockClient = Mockito.mock(IGenericClient.class);
         final BlueButtonClient mockBfdClient = Mockito.mock(BlueButtonClient.class);
-        groupResource = new GroupResource(dataService, mockClient, "http://local.test", mockBfdClient, new DPCAPIConfiguration());
+        groupResource = new GroupResource(dataService, mockClient, "http://local.test", new TransactionTimeProvider(mockBfdClient, new MetricRegistry(), Duration.ZERO, Duration.ZERO), new DPCAPIConfiguration());
     }
 
     @BeforeEach
@@ -138,9 +138,38 @@ class DataResourceUnitTest {
         assertEquals(HttpStatus.GONE_410, response.getStatus(), "Should have 410 Gone status");
     }
 
-    @ParameterizedTest
-    @MethodSource("downloadArgs")
-    void canDownloadFileRanges(boolean compressFile, Map<String, String> requestHeaders) throws IOException {
+    @Test
+    void testFileFromCompletedJobIsCached() throws IOException {
+        UUID jobId = UUID.randomUUID();
+
+        final File file = File.createTempFile("test", ".ndjson", FileUtils.getTempDirectory());
+        FileUtils.write(file, "This is a test", StandardCharsets.UTF_8);
+        Mockito.when(manager.getFile(Mockito.any(), Mockito.anyString()))
+            .thenReturn(new FileManager.FilePointer("", file.length(), jobId, OffsetDateTime.now(ZoneOffset.UTC), file, false));
+
+        UUID aggregatorId = UUID.randomUUID();
+        JobQueueBatch jobQueueBatch = new JobQueueBatch(jobId, null, null, null, Collections.emptyList(), null, null, null, null, null, true);
+        jobQueueBatch.setRunningStatus(aggregatorId);
+        jobQueueBatch.setCompletedStatus(aggregatorId);
+        jobQueueBatch.setCompleteTime(OffsetDateTime.now(ZoneOffset.UTC));
+        Mockito.when(queue.getJobBatches(jobId)).thenReturn(List.of(jobQueueBatch));
+
+        // Its own file name, so it's not cached for the other tests
+        final Invocation.Builder builder = RESOURCE.target("/v1/Data/cached.ndjson")
+            .request()
+            .header(HttpHeaders.ACCEPT, "application/ndjson");
+
+        assertEquals(HttpStatus.OK_200, builder.head().getStatus());
+        final Response response = builder.get();
+        assertEquals(HttpStatus.OK_200, response.getStatus());
+        assertEquals("This is a test", readResponse(response, false));
+
+        // Only the first request had to look up the file and its job
+        Mockito.verify(manager, Mockito.times(1)).getFile(Mockito.any(), Mockito.anyString());
+        Mockito.verify(queue, Mockito.times(1)).getJobBatches(jobId);
+    }
+
+boolean compressFile, Map<String, String> requestHeaders) throws IOException {
         final File tempPath = FileUtils.getTempDirectory();
         final int length = 4 * 1024 * 1024;
         final String randomString = buildRandomString();
@@ -8,10 +8,12 @@ import ca.uhn.fhir.rest.gclient.ICreateTyped;
 import ca.uhn.fhir.rest.gclient.IOperationUntypedWithInput;
 import ca.uhn.fhir.rest.gclient.IReadExecutable;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.net.HttpHeaders;
 import gov.cms.dpc.api.APITestHelpers;
 import gov.cms.dpc.api.DPCAPIConfiguration;
 import gov.cms.dpc.api.auth.OrganizationPrincipal;
+import gov.cms.dpc.api.core.TransactionTimeProvider;
 import gov.cms.dpc.bluebutton.client.BlueButtonClient;
 import gov.cms.dpc.common.utils.NPIUtil;
 import gov.cms.dpc.fhir.DPCIdentifierSystem;
@@ -33,6 +35,7 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
@@ -76,7 +79,7 @@ public class GroupResourceUnitTest {
         config.setLookBackExemptOrgs(new LinkedList<>());
         fileManager = new FileManager("/", mockQueue);
         dataService = new DataService(mockQueue, FhirContext.forDstu3(), "/", 1,  fileManager);
-        resource = new GroupResource(dataService, attributionClient, "http://localhost:3002/v1", mockBfdClient, config);
+        resource = new GroupResource(dataService, attributionClient, "http://localhost:3002/v1", new TransactionTimeProvider(mockBfdClient, new MetricRegistry(), Duration.ZERO, Duration.ZERO), config);
     }
 
     @Test
@@ -1,5 +1,7 @@
 package gov.cms.dpc.api.resources.v1;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import gov.cms.dpc.api.APITestHelpers;
 import gov.cms.dpc.common.models.JobCompletionModel;
 import gov.cms.dpc.common.utils.NPIUtil;
@@ -10,17 +12,21 @@ import gov.cms.dpc.queue.exceptions.JobQueueFailure;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 import gov.cms.dpc.queue.models.JobQueueBatchFile;
 import gov.cms.dpc.testing.BufferedLoggerHandler;
+import io.dropwizard.jackson.Jackson;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.Response;
 import org.bouncycastle.util.encoders.Hex;
 import org.eclipse.jetty.http.HttpStatus;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 
+import java.io.IOException;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
@@ -36,6 +42,7 @@ public class JobResourceTest {
     static final String TEST_BASEURL = "http://localhost:8080";
     static final String TEST_JOB_URL = TEST_BASEURL + "/api/v1/Group/%s/$export";
     static final String OTHER_ORGANIZATION = "46ac7ad6-7487-4dd0-baa0-6e2c8cae76a1";
+    static final ObjectMapper MAPPER = new ObjectMapper().registerModule(new JavaTimeModule());
 
     /**
      * Test that a non-existent job is handled correctly
@@ -44,10 +51,10 @@ public class JobResourceTest {
     public void testNonExistentJob() {
         final var jobID = UUID.randomUUID();
         final var queue = new MemoryBatchQueue(100);
-        final var resource = new JobResource(queue, TEST_BASEURL);
+        final var resource = new JobResource(queue, TEST_BASEURL, Jackson.newObjectMapper());
         final var organizationPrincipal = APITestHelpers.makeOrganizationPrincipal();
 
-        final Response response = resource.checkJobStatus(organizationPrincipal, jobID.toString());
+        final Response response = resource.checkJobStatus(organizationPrincipal, jobID.toString(), Optional.empty());
 
         assertEquals(HttpStatus.NOT_FOUND_404, response.getStatus());
     }
@@ -71,8 +78,8 @@ public class JobResourceTest {
                 OffsetDateTime.now(ZoneOffset.UTC), null, null, true, false);
 
         // Test the response
-        final var resource = new JobResource(queue, TEST_BASEURL);
-        final Response response = resource.checkJobStatus(organizationPrincipal, jobID.toString());
+        final var resource = new JobResource(queue, TEST_BASEURL, Jackson.newObjectMapper());
+        final Response response = resource.checkJobStatus(organizationPrincipal, jobID.toString(), Optional.empty());
         assertAll(() -> assertEquals(HttpStatus.ACCEPTED_202, response.getStatus()),
                 () -> assertEquals("QUEUED: 0.00%", response.getHeaderString("X-Progress")));
     }
@@ -100,8 +107,8 @@ public class JobResourceTest {
         queue.completeBatch(runningJob.get(), AGGREGATOR_ID);
 
         // Test the response
-        final var resource = new JobResource(queue, TEST_BASEURL);
-        final Response response = resource.checkJobStatus(organizationPrincipal, jobID.toString());
+        final var resource = new JobResource(queue, TEST_BASEURL, Jackson.newObjectMapper());
+        final Response response = resource.checkJobStatus(organizationPrincipal, jobID.toString(), Optional.empty());
         assertAll(() -> assertEquals(HttpStatus.ACCEPTED_202, response.getStatus()),
                 () -> assertEquals("RUNNING: 33.33%", response.getHeaderString("X-Progress")));
     }
@@ -136,8 +143,8 @@ public class JobResourceTest {
         queue.completeBatch(runningJob, AGGREGATOR_ID);
 
         // Test the response
-        final var resource = new JobResource(queue, TEST_BASEURL);
-        final Response response = resource.checkJobStatus(organizationPrincipal, jobID.toString());
+        final var resource = new JobResource(queue, TEST_BASEURL, Jackson.newObjectMapper());
+        final Response response = resource.checkJobStatus(organizationPrincipal, jobID.toString(), Optional.empty());
         assertAll(() -> assertEquals(HttpStatus.OK_200, response.getStatus()));
 
         var expires = ZonedDateTime.parse(response.getHeaderString("Expires"), JobResource.HTTP_DATE_FORMAT);
@@ -145,7 +152,7 @@ public class JobResourceTest {
                 () -> assertTrue(expires.isBefore(ZonedDateTime.now().plusHours(25))));
 
         // Test the completion model
-        final var completion = (JobCompletionModel) response.getEntity();
+        final var completion = readCompletion(response);
         assertAll(() -> assertEquals(JobQueueBatch.validResourceTypes.size(), completion.getOutput().size()),
                 () -> assertEquals(0, completion.getError().size()));
         assertEquals(completion.getRequest(), requestUrl);
@@ -155,6 +162,57 @@ public class JobResourceTest {
     }
 
 
+    /**
+     * Test that a completed job's output is only built once, and isn't sent again to a client that already has it
+     */
+    @Test
+    public void testCompletedJobIsCached() {
+        final var organizationPrincipal = APITestHelpers.makeOrganizationPrincipal();
+        final var orgID = FHIRExtractors.getEntityUUID(organizationPrincipal.getOrganization().getId());
+        final var queue = new MemoryBatchQueue(100);
+
+        // Setup a completed job
+        final var jobID = queue.createJob(orgID,
+                TEST_ORG_NPI,
+                TEST_PROVIDER_NPI,
+                List.of(TEST_PATIENT_ID),
+                JobQueueBatch.validResourceTypes,
+                null,
+                OffsetDateTime.now(ZoneOffset.UTC), null, null, true, false);
+        queue.claimBatch(AGGREGATOR_ID);
+
+        final var runningJob = queue.getJobBatches(jobID).get(0);
+        runningJob.fetchNextPatient(AGGREGATOR_ID);
+        runningJob.addJobQueueFile(DPCResourceType.Patient, 0, 1);
+        queue.completeBatch(runningJob, AGGREGATOR_ID);
+
+        final var resource = new JobResource(queue, TEST_BASEURL, Jackson.newObjectMapper());
+        final Response response = resource.checkJobStatus(organizationPrincipal, jobID.toString(), Optional.empty());
+        final String eTag = response.getHeaderString(HttpHeaders.ETAG);
+        assertAll(() -> assertEquals(HttpStatus.OK_200, response.getStatus()),
+                () -> assertTrue(eTag.startsWith("\"") && eTag.endsWith("\"")));
+
+        // Served from the cache, even though the files have changed underneath it
+        runningJob.addJobQueueFile(DPCResourceType.Coverage, 0, 1);
+        final Response cachedResponse = resource.checkJobStatus(organizationPrincipal, jobID.toString(), Optional.of("\"some other etag\""));
+        assertAll(() -> assertEquals(HttpStatus.OK_200, cachedResponse.getStatus()),
+                () -> assertEquals(eTag, cachedResponse.getHeaderString(HttpHeaders.ETAG)),
+                () -> assertArrayEquals((byte[]) response.getEntity(), (byte[]) cachedResponse.getEntity()),
+                () -> assertEquals(1, readCompletion(cachedResponse).getOutput().size()));
+
+        final Response notModified = resource.checkJobStatus(organizationPrincipal, jobID.toString(), Optional.of(eTag));
+        assertAll(() -> assertEquals(HttpStatus.NOT_MODIFIED_304, notModified.getStatus()),
+                () -> assertEquals(eTag, notModified.getHeaderString(HttpHeaders.ETAG)),
+                () -> assertNull(notModified.getEntity()));
+
+        final Response listed = resource.checkJobStatus(organizationPrincipal, jobID.toString(), Optional.of("\"some other etag\", " + eTag));
+        assertEquals(HttpStatus.NOT_MODIFIED_304, listed.getStatus());
+
+        // Still checks the organization
+        final Response wrongOrg = resource.checkJobStatus(APITestHelpers.makeOrganizationPrincipal(OTHER_ORGANIZATION), jobID.toString(), Optional.of(eTag));
+        assertEquals(HttpStatus.UNAUTHORIZED_401, wrongOrg.getStatus());
+    }
+
     /**
      * Test with a successful job with one patient error
      */
@@ -182,12 +240,12 @@ public class JobResourceTest {
         queue.completeBatch(runningJob, AGGREGATOR_ID);
 
         // Test the response for ok
-        final var resource = new JobResource(queue, TEST_BASEURL);
-        final Response response = resource.checkJobStatus(organizationPrincipal, jobID.toString());
+        final var resource = new JobResource(queue, TEST_BASEURL, Jackson.newObjectMapper());
+        final Response response = resource.checkJobStatus(organizationPrincipal, jobID.toString(), Optional.empty());
         assertAll(() -> assertEquals(HttpStatus.OK_200, response.getStatus()));
 
         // Test the completion model
-        final var completion = (JobCompletionModel) response.getEntity();
+        final var completion = readCompletion(response);
         assertAll(() -> assertEquals(0, completion.getOutput().size()),
                 () -> assertEquals(1, completion.getError().size()));
         assertEquals(completion.getRequest(), requestUrl);
@@ -219,8 +277,8 @@ public class JobResourceTest {
         queue.failBatch(runningJob, AGGREGATOR_ID);
 
         // Test the response
-        final var resource = new JobResource(queue, TEST_BASEURL);
-        JobQueueFailure exception = assertThrows(JobQueueFailure.class, () -> resource.checkJobStatus(organizationPrincipal, jobID.toString()));
+        final var resource = new JobResource(queue, TEST_BASEURL, Jackson.newObjectMapper());
+        JobQueueFailure exception = assertThrows(JobQueueFailure.class, () -> resource.checkJobStatus(organizationPrincipal, jobID.toString(), Optional.empty()));
         assertEquals(String.format("Operation on Job(%s) Batch(%s) failed for reason: Batch failed", jobID, runningJob.getBatchID()), exception.getMessage());
     }
 
@@ -249,15 +307,15 @@ public class JobResourceTest {
             batch.setCompleteTime(timeAgo);
         }
 
-        final var resource = new JobResource(queue, TEST_BASEURL);
-        var response = resource.checkJobStatus(organizationPrincipal, jobId.toString());
+        final var resource = new JobResource(queue, TEST_BASEURL, Jackson.newObjectMapper());
+        var response = resource.checkJobStatus(organizationPrincipal, jobId.toString(), Optional.empty());
         assertEquals(HttpStatus.GONE_410, response.getStatus());
 
         for (JobQueueBatch batch : batches) {
             batch.setCompleteTime(OffsetDateTime.now().minusHours(23));
         }
 
-        response = resource.checkJobStatus(organizationPrincipal, jobId.toString());
+        response = resource.checkJobStatus(organizationPrincipal, jobId.toString(), Optional.empty());
         assertEquals(HttpStatus.OK_200, response.getStatus());
     }
 
@@ -291,16 +349,16 @@ public class JobResourceTest {
         queue.completeBatch(runningJob, AGGREGATOR_ID);
 
         // Try accessing it with the wrong org (should be unauthorized)
-        final var resource = new JobResource(queue, TEST_BASEURL);
-        final Response responseWrong = resource.checkJobStatus(organizationPrincipalWrong, jobID.toString());
+        final var resource = new JobResource(queue, TEST_BASEURL, Jackson.newObjectMapper());
+        final Response responseWrong = resource.checkJobStatus(organizationPrincipalWrong, jobID.toString(), Optional.empty());
         assertAll(() -> assertEquals(HttpStatus.UNAUTHORIZED_401, responseWrong.getStatus()));
 
         // Access it with the right org (should be authorized)
-        final Response responseRight = resource.checkJobStatus(organizationPrincipalCorrect, jobID.toString());
+        final Response responseRight = resource.checkJobStatus(organizationPrincipalCorrect, jobID.toString(), Optional.empty());
         assertAll(() -> assertEquals(HttpStatus.OK_200, responseRight.getStatus()));
 
         // Test the completion model
-        final var completion = (JobCompletionModel) responseRight.getEntity();
+        final var completion = readCompletion(responseRight);
         assertAll(() -> assertEquals(JobQueueBatch.validResourceTypes.size(), completion.getOutput().size()),
                 () -> assertEquals(0, completion.getError().size()));
         for (JobCompletionModel.OutputEntry entry : completion.getOutput()) {
@@ -313,7 +371,7 @@ public class JobResourceTest {
      */
     @Test
     public void testBuildOutputEntryExtension() {
-        final var resource = new JobResource(null, "");
+        final var resource = new JobResource(null, "", Jackson.newObjectMapper());
         final var file = new JobQueueBatchFile(UUID.randomUUID(), UUID.fromString("f1e518f5-4977-47c6-971b-7eeaf1b433e8"), DPCResourceType.Patient, 0, 11);
         file.setChecksum(Hex.decode("9d251cea787379c603af13f90c26a9b2a4fbb1e029793ae0f688c5631cdb6a1b"));
         file.setFileLength(7202L);
@@ -326,7 +384,7 @@ public class JobResourceTest {
 
     @Test
     public void testBuildJobExtension() {
-        final var resource = new JobResource(null, "");
+        final var resource = new JobResource(null, "", Jackson.newObjectMapper());
         final var batch = new JobQueueBatch(
                 UUID.randomUUID(),
                 UUID.randomUUID(),
@@ -346,4 +404,12 @@ public class JobResourceTest {
                 () -> assertEquals(JobCompletionModel.COMPLETE_TIME_URL, extension.get(1).getUrl()),
                 () -> assertEquals(batch.getCompleteTime().orElseThrow(), extension.get(1).getValueDateTime()));
     }
+
+    private static JobCompletionModel readCompletion(Response response) {
+        try {
+            return MAPPER.readValue((byte[]) response.getEntity(), JobCompletionModel.class);
+        } catch (IOException e) {
+            throw new AssertionError("Unable to read job output", e);
+        }
+    }
 }
@@ -629,8 +629,8 @@ class PatientResourceTest extends AbstractSecureApplicationTest {
         assertTrue(batch.getResourceTypes().containsAll( List.of(DPCResourceType.Patient, DPCResourceType.Coverage, DPCResourceType.ExplanationOfBenefit) ));
         assertFalse(batch.isBulk());
 
-        assertEquals(1, batch.getPatients().size());
-        String mbiFromJob = batch.getPatients().get(0);
+        assertEquals(1, batch.getPatientCount());
+        String mbiFromJob = queue.getBatchPatients(batch.getBatchID()).get(0);
         assertEquals(mbi, mbiFromJob);
     }
 
@@ -688,8 +688,8 @@ class PatientResourceTest extends AbstractSecureApplicationTest {
         assertTrue(batch.getResourceTypes().containsAll( List.of(DPCResourceType.Patient, DPCResourceType.Coverage, DPCResourceType.ExplanationOfBenefit) ));
         assertFalse(batch.isBulk());
 
-        assertEquals(1, batch.getPatients().size());
-        String mbiFromJob = batch.getPatients().get(0);
+        assertEquals(1, batch.getPatientCount());
+        String mbiFromJob = queue.getBatchPatients(batch.getBatchID()).get(0);
         assertEquals(mbi, mbiFromJob);
     }
 
@@ -8,10 +8,12 @@ import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
 import ca.uhn.fhir.validation.FhirValidator;
 import ca.uhn.fhir.validation.ValidationOptions;
 import ca.uhn.fhir.validation.ValidationResult;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.net.HttpHeaders;
 import gov.cms.dpc.api.APITestHelpers;
 import gov.cms.dpc.api.DPCAPIConfiguration;
 import gov.cms.dpc.api.auth.OrganizationPrincipal;
+import gov.cms.dpc.api.core.TransactionTimeProvider;
 import gov.cms.dpc.bluebutton.client.BlueButtonClient;
 import gov.cms.dpc.common.utils.NPIUtil;
 import gov.cms.dpc.fhir.DPCIdentifierSystem;
@@ -34,6 +36,7 @@ import org.mockito.Answers;
 import org.mockito.Mock;
 
 import java.net.URI;
+import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
@@ -69,7 +72,7 @@ class PatientResourceUnitTest {
     void setUp() {
         openMocks(this);
         config.setLookBackExemptOrgs(List.of());
-        patientResource = new PatientResource(attributionClient, fhirValidator, dataService, bfdClient, baseUrl, config);
+        patientResource = new PatientResource(attributionClient, fhirValidator, dataService, new TransactionTimeProvider(bfdClient, new MetricRegistry(), Duration.ZERO, Duration.ZERO), baseUrl, config);
     }
 
     @Test
@@ -6,10 +6,19 @@ import ca.uhn.fhir.rest.client.api.IGenericClient;
 import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Binder;
 import com.google.inject.Provides;
+import com.google.inject.Scopes;
+import gov.cms.dpc.bluebutton.client.AdaptiveConcurrencyLimiter;
+import gov.cms.dpc.bluebutton.client.AsyncBlueButtonClient;
+import gov.cms.dpc.bluebutton.client.AsyncBlueButtonClientImpl;
 import gov.cms.dpc.bluebutton.client.BlueButtonClient;
 import gov.cms.dpc.bluebutton.client.BlueButtonClientImpl;
+import gov.cms.dpc.bluebutton.client.BlueButtonResponseCache;
+import gov.cms.dpc.bluebutton.client.CachingBlueButtonClient;
+import gov.cms.dpc.bluebutton.client.MockAsyncBlueButtonClient;
 import gov.cms.dpc.bluebutton.client.MockBlueButtonClient;
+import gov.cms.dpc.bluebutton.client.RequestHedger;
 import gov.cms.dpc.bluebutton.config.BBClientConfiguration;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration.HedgingConfiguration;
 import gov.cms.dpc.bluebutton.config.BlueButtonBundleConfiguration;
 import gov.cms.dpc.bluebutton.exceptions.BlueButtonClientSetupException;
 import gov.cms.dpc.bluebutton.health.BlueButtonHealthCheck;
@@ -17,12 +26,19 @@ import gov.cms.dpc.fhir.configuration.ConnectionPoolConfiguration;
 import gov.cms.dpc.fhir.configuration.TimeoutConfiguration;
 import io.dropwizard.core.Configuration;
 import jakarta.inject.Named;
+import jakarta.inject.Provider;
+import jakarta.inject.Singleton;
 import org.apache.hc.client5.http.classic.HttpClient;
 import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
 import org.apache.hc.client5.http.impl.classic.HttpClients;
 import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
 import org.apache.hc.client5.http.socket.ConnectionSocketFactory;
 import org.apache.hc.client5.http.socket.PlainConnectionSocketFactory;
+import org.apache.hc.client5.http.ssl.ClientTlsStrategyBuilder;
 import org.apache.hc.client5.http.ssl.SSLConnectionSocketFactory;
 import org.apache.hc.client5.http.ssl.TrustSelfSignedStrategy;
 import org.apache.hc.core5.http.*;
@@ -47,7 +63,7 @@ import java.security.cert.CertificateException;
 import java.util.MissingResourceException;
 
 /**
- * Guice module for building and injecting the {@link BlueButtonClient}.
+ * Guice module for building and injecting the {@link BlueButtonClient} and {@link AsyncBlueButtonClient}.
  *
  * @param <T> - Dropwizard {@link Configuration} class that implements {@link BlueButtonBundleConfiguration}
  */
@@ -80,11 +96,41 @@ public class BlueButtonClientModule<T extends Configuration & BlueButtonBundleCo
         }
 
         logger.info("Blue Button health checks are {}.", healthCheckEnabled ? "enabled" : "disabled");
+
+        // Shared like the limiter, so the hedge budget covers all of the JVM's requests to BlueButton. It's bound
+        // rather than provided, so its threads are shut down when the application stops.
+        binder.bind(RequestHedger.class).in(Scopes.SINGLETON);
+    }
+
+    @Provides
+    public BlueButtonClient provideBlueButtonClient(@Named("bbclient") IGenericClient fhirRestClient, MetricRegistry registry, AdaptiveConcurrencyLimiter limiter, RequestHedger hedger, Provider<BlueButtonResponseCache> responseCache) {
+        final BlueButtonClient client = bbClientConfiguration.isUseBfdMock() ? new MockBlueButtonClient(fhirRestClient.getFhirContext()) : new BlueButtonClientImpl(fhirRestClient, this.bbClientConfiguration, registry, limiter, hedger);
+        return bbClientConfiguration.getResponseCache().isEnabled() ? new CachingBlueButtonClient(client, responseCache.get(), fhirRestClient.getFhirContext()) : client;
     }
 
     @Provides
-    public BlueButtonClient provideBlueButtonClient(@Named("bbclient") IGenericClient fhirRestClient, MetricRegistry registry) {
-        return bbClientConfiguration.isUseBfdMock() ? new MockBlueButtonClient(fhirRestClient.getFhirContext()) : new BlueButtonClientImpl(fhirRestClient, this.bbClientConfiguration, registry);
+    @Singleton
+    public BlueButtonResponseCache provideResponseCache(MetricRegistry registry) {
+        return new BlueButtonResponseCache(this.bbClientConfiguration.getResponseCache(), registry);
+    }
+
+    @Provides
+    @Singleton
+    public AsyncBlueButtonClient provideAsyncBlueButtonClient(FhirContext fhirContext, Provider<CloseableHttpAsyncClient> httpClient, MetricRegistry registry) {
+        // Only start the async HTTP client if it's going to be used
+        return bbClientConfiguration.isUseBfdMock() ? new MockAsyncBlueButtonClient(fhirContext) : new AsyncBlueButtonClientImpl(httpClient.get(), fhirContext, this.bbClientConfiguration, registry);
+    }
+
+    @Provides
+    @Singleton
+    public AdaptiveConcurrencyLimiter provideConcurrencyLimiter(MetricRegistry registry) {
+        // Every client shares the one limiter, so it sees all of the JVM's requests to BlueButton
+        return new AdaptiveConcurrencyLimiter(this.bbClientConfiguration.getConcurrencyLimit(), registry);
+    }
+
+    @Provides
+    public HedgingConfiguration provideHedgingConfiguration() {
+        return this.bbClientConfiguration.getHedging();
     }
 
     @Provides
@@ -116,6 +162,12 @@ public class BlueButtonClientModule<T extends Configuration & BlueButtonBundleCo
         return buildMutualTlsClient(keyStore, this.bbClientConfiguration.getKeystore().getDefaultPassword().toCharArray());
     }
 
+    @Provides
+    @Singleton
+    public CloseableHttpAsyncClient provideHttpAsyncClient(KeyStore keyStore) {
+        return buildMutualTlsAsyncClient(keyStore, this.bbClientConfiguration.getKeystore().getDefaultPassword().toCharArray());
+    }
+
     /**
      * Helper function get the keystore from either the location specified in the Configuration file, or from the JAR resources.
      * If the Config path is set, the helper will try to pull from the absolute file path.
@@ -176,6 +228,31 @@ public class BlueButtonClientModule<T extends Configuration & BlueButtonBundleCo
             .build();
     }
 
+    /**
+     * Helper function to build a started {@link CloseableHttpAsyncClient} that authenticates with the Blue Button server
+     * the same way as {@link #buildMutualTlsClient(KeyStore, char[])}, with the same time-outs and pool sizes.
+     *
+     * @param keyStore     {@link KeyStore} containing, at a minimum, the client tls certificate and private key
+     * @param keyStorePass password for keystore (default: "changeit")
+     * @return {@link CloseableHttpAsyncClient} ready to send requests
+     */
+    private CloseableHttpAsyncClient buildMutualTlsAsyncClient(KeyStore keyStore, char[] keyStorePass) {
+        final SSLContext sslContext = getSSLContext(keyStore, keyStorePass);
+        final ConnectionPoolConfiguration connectionPools = this.bbClientConfiguration.getConnectionPoolConfiguration();
+        final PoolingAsyncClientConnectionManager connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+            .setTlsStrategy(ClientTlsStrategyBuilder.create().setSslContext(sslContext).build())
+            .setMaxConnTotal(connectionPools.getPoolMaxTotal())
+            .setMaxConnPerRoute(connectionPools.getPoolMaxPerRoute())
+            .build();
+
+        final CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+            .setDefaultRequestConfig(getClientRequestConfig())
+            .setConnectionManager(connectionManager)
+            .build();
+        client.start();
+        return client;
+    }
+
     /**
      * Builds a {@link RequestConfig} with the appropriate time-outs for our BFD client.
      * @return {@link RequestConfig}
@@ -0,0 +1,311 @@
+package gov.cms.dpc.bluebutton.client;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration.ConcurrencyLimitConfiguration;
+import gov.cms.dpc.bluebutton.exceptions.BlueButtonLimitExceededException;
+import gov.cms.dpc.common.utils.MetricMaker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of requests to BlueButton in flight at once, adjusting the limit to how BlueButton is coping
+ * (additive increase, multiplicative decrease).
+ * <p>
+ * Every request that comes back in time while at least half the limit is in use raises the limit by one. A request
+ * that times out, fails to connect, gets a 429 or 5xx, or is slow lowers the limit by the backoff ratio. Other errors,
+ * like a 404, leave the limit alone. What counts as slow depends on the kind of request, since a page of EoBs takes far
+ * longer than a Patient search: each kind keeps a moving average of its latency, and a request is slow once it takes
+ * the latency ratio times that average, and at least the min latency threshold. Requests over the limit wait, up to the max wait,
+ * for a slot to free up, and are rejected with a {@link BlueButtonLimitExceededException} after that. Requests that
+ * shouldn't wait at all, like hedges, can {@link #tryReserve()} a slot instead.
+ * <p>
+ * One limiter is meant to be shared by everything in the JVM that calls BlueButton.
+ */
+public class AdaptiveConcurrencyLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+
+    // How many requests of a kind are needed before its average is trusted to judge what's slow
+    private static final int BASELINE_SAMPLES = 20;
+    // Weight of each new request in the moving average
+    private static final double BASELINE_WEIGHT = 0.05;
+
+    private final ConcurrencyLimitConfiguration config;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotFreed = lock.newCondition();
+    private final Meter rejectedMeter;
+    private final Meter droppedMeter;
+    private final Map<String, LatencyBaseline> baselines = new ConcurrentHashMap<>();
+
+    // Guarded by lock
+    private double limit;
+    private int inFlight;
+    private int waiting;
+
+    public AdaptiveConcurrencyLimiter(ConcurrencyLimitConfiguration config, MetricRegistry metricRegistry) {
+        this.config = config;
+        this.limit = Math.max(config.getMinLimit(), Math.min(config.getMaxLimit(), config.getInitialLimit()));
+
+        final var metricMaker = new MetricMaker(metricRegistry, AdaptiveConcurrencyLimiter.class);
+        this.rejectedMeter = metricMaker.registerMeter("rejected");
+        this.droppedMeter = metricMaker.registerMeter("dropped");
+        metricMaker.registerCachedGauge("limit", this::getLimit);
+        metricMaker.registerCachedGauge("inFlight", this::getInFlight);
+        metricMaker.registerCachedGauge("queueDepth", this::getWaiting);
+    }
+
+    /**
+     * Makes a request to BlueButton once there's a slot for it under the limit.
+     *
+     * @param kind    - kind of request, whose usual latency decides whether this one was slow
+     * @param request - the request
+     * @param <T>     - what the request returns
+     * @return what the request returned
+     * @throws BlueButtonLimitExceededException - If no slot freed up within the max wait
+     * @throws IllegalStateException            - If the thread was interrupted while waiting for a slot
+     */
+    public <T> T call(String kind, Supplier<T> request) {
+        if (!config.isEnabled()) {
+            return request.get();
+        }
+
+        acquire();
+        return new Reservation(true).call(kind, request);
+    }
+
+    /**
+     * Takes a slot for a request only if one is free right now, for requests that are better skipped than kept
+     * waiting. The slot is given back once the request made through the {@link Reservation} is done, or when the
+     * reservation is cancelled.
+     *
+     * @return the reservation, or empty if every slot is in use
+     */
+    public Optional<Reservation> tryReserve() {
+        if (!config.isEnabled()) {
+            return Optional.of(new Reservation(false));
+        }
+
+        lock.lock();
+        try {
+            if (inFlight >= (int) limit) {
+                return Optional.empty();
+            }
+            inFlight++;
+            return Optional.of(new Reservation(true));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void acquire() {
+        lock.lock();
+        try {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxWaitMillis());
+            waiting++;
+            try {
+                while (inFlight >= (int) limit) {
+                    if (remainingNanos <= 0) {
+                        rejectedMeter.mark();
+                        throw new BlueButtonLimitExceededException(String.format("Waited %dms for one of %d BlueButton request slots", config.getMaxWaitMillis(), (int) limit));
+                    }
+                    remainingNanos = slotFreed.awaitNanos(remainingNanos);
+                }
+            } finally {
+                waiting--;
+            }
+            inFlight++;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a BlueButton request slot", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Outcome outcome) {
+        lock.lock();
+        try {
+            // Only raise the limit when it's actually being used, otherwise it grows without ever being tested
+            if (outcome == Outcome.SUCCEEDED && inFlight * 2 >= limit) {
+                limit = Math.min(config.getMaxLimit(), limit + 1);
+            } else if (outcome == Outcome.DROPPED) {
+                droppedMeter.mark();
+                limit = Math.max(config.getMinLimit(), limit * config.getBackoffRatio());
+                logger.debug("BlueButton request dropped, lowering limit to {}", (int) limit);
+            }
+            inFlight--;
+            slotFreed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the request took much longer than is usual for its kind
+     */
+    private boolean isSlow(String kind, long elapsedNanos) {
+        final long minNanos = TimeUnit.MILLISECONDS.toNanos(config.getMinLatencyThresholdMillis());
+        return baselines.computeIfAbsent(kind, k -> new LatencyBaseline())
+                .record(elapsedNanos, config.getLatencyRatio(), minNanos);
+    }
+
+    /**
+     * @return true if the error shows that BlueButton, or the way to it, is overloaded
+     */
+    static boolean isOverloaded(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException || cause instanceof FhirClientConnectionException) {
+                return true;
+            }
+            if (cause instanceof BaseServerResponseException response
+                    && (response.getStatusCode() == 429 || response.getStatusCode() >= 500)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the highest the limit can be raised to
+     */
+    public int getMaxLimit() {
+        return config.getMaxLimit();
+    }
+
+    int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A slot taken for one request.
+     */
+    public final class Reservation {
+        private final boolean holdsSlot;
+        private final AtomicReference<ReservationState> state = new AtomicReference<>(ReservationState.RESERVED);
+
+        private Reservation(boolean holdsSlot) {
+            this.holdsSlot = holdsSlot;
+        }
+
+        /**
+         * Makes the request in the reserved slot.
+         *
+         * @param kind    - kind of request, whose usual latency decides whether this one was slow
+         * @param request - the request
+         * @param <T>     - what the request returns
+         * @return what the request returned
+         * @throws CancellationException - If the reservation was cancelled before the request was made
+         */
+        public <T> T call(String kind, Supplier<T> request) {
+            if (!state.compareAndSet(ReservationState.RESERVED, ReservationState.RUNNING)) {
+                throw new CancellationException("BlueButton request slot was cancelled");
+            }
+
+            final long start = System.nanoTime();
+            Outcome outcome = Outcome.IGNORED;
+            try {
+                final T result = request.get();
+                outcome = isSlow(kind, System.nanoTime() - start) ? Outcome.DROPPED : Outcome.SUCCEEDED;
+                return result;
+            } catch (RuntimeException e) {
+                outcome = isOverloaded(e) ? Outcome.DROPPED : Outcome.IGNORED;
+                throw e;
+            } finally {
+                // A request that was cancelled part way says nothing about how BlueButton is coping
+                if (state.getAndSet(ReservationState.DONE) == ReservationState.CANCELLED) {
+                    outcome = Outcome.IGNORED;
+                }
+                giveBack(outcome);
+            }
+        }
+
+        /**
+         * Cancels the reservation. The slot is given back right away if the request hasn't been made yet, otherwise
+         * once it's done.
+         */
+        public void cancel() {
+            if (state.compareAndSet(ReservationState.RESERVED, ReservationState.CANCELLED)) {
+                giveBack(Outcome.IGNORED);
+            } else {
+                state.compareAndSet(ReservationState.RUNNING, ReservationState.CANCELLED);
+            }
+        }
+
+        private void giveBack(Outcome outcome) {
+            if (holdsSlot) {
+                release(outcome);
+            }
+        }
+    }
+
+    /**
+     * Moving average of how long one kind of request takes.
+     */
+    private static final class LatencyBaseline {
+        private long samples;
+        private double averageNanos;
+
+        /**
+         * Adds a request to the average.
+         *
+         * @return true if the request was slow compared to the average before it
+         */
+        synchronized boolean record(long elapsedNanos, double ratio, long minNanos) {
+            final boolean slow = samples >= BASELINE_SAMPLES
+                    && elapsedNanos > Math.max(minNanos, ratio * averageNanos);
+            // Slow requests still count, so the average follows BlueButton if it gets slower for good
+            averageNanos = samples == 0 ? elapsedNanos : averageNanos + BASELINE_WEIGHT * (elapsedNanos - averageNanos);
+            samples++;
+            return slow;
+        }
+    }
+
+    private enum ReservationState {
+        RESERVED,
+        RUNNING,
+        CANCELLED,
+        DONE
+    }
+
+    private enum Outcome {
+        SUCCEEDED,
+        DROPPED,
+        IGNORED
+    }
+}
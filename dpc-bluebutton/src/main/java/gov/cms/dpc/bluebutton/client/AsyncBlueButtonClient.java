@@ -0,0 +1,28 @@
+package gov.cms.dpc.bluebutton.client;
+
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.dstu3.model.Bundle;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking version of {@link BlueButtonClient}. Each request returns as soon as it's sent, and its future completes
+ * once BlueButton has responded, so a caller can have many requests in flight without holding a thread for each.
+ * <p>
+ * The futures complete with the same results, and fail with the same exceptions, as the matching
+ * {@link BlueButtonClient} methods, e.g. a {@link ResourceNotFoundException} for a patient that doesn't exist.
+ */
+public interface AsyncBlueButtonClient {
+
+    CompletableFuture<Bundle> requestPatientFromServerByMbi(String mbi, Map<String, String> headers);
+
+    CompletableFuture<Bundle> requestPatientFromServer(String beneId, DateRangeParam lastUpdated, Map<String, String> headers);
+
+    CompletableFuture<Bundle> requestEOBFromServer(String beneId, DateRangeParam lastUpdated, Map<String, String> headers);
+
+    CompletableFuture<Bundle> requestCoverageFromServer(String beneId, DateRangeParam lastUpdated, Map<String, String> headers);
+
+    CompletableFuture<Bundle> requestNextBundleFromServer(Bundle bundle, Map<String, String> headers);
+}
@@ -0,0 +1,242 @@
+package gov.cms.dpc.bluebutton.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration;
+import gov.cms.dpc.common.Constants;
+import gov.cms.dpc.common.utils.MetricMaker;
+import gov.cms.dpc.fhir.DPCIdentifierSystem;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.hl7.fhir.dstu3.model.*;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * {@link AsyncBlueButtonClient} on the async Apache HttpClient, which sends requests and reads responses on a few I/O
+ * threads instead of one thread per request.
+ * <p>
+ * Requests are searched the same way as {@link BlueButtonClientImpl} does, including lowering the count when BlueButton
+ * times out, and are recorded in the same timers and exception meters. Parsing a response is done on the common
+ * {@link java.util.concurrent.ForkJoinPool}, so that big bundles don't hold up the I/O threads.
+ */
+public class AsyncBlueButtonClientImpl implements AsyncBlueButtonClient {
+
+    private static final List<String> REQUEST_METRICS = List.of(BlueButtonClientImpl.REQUEST_PATIENT_METRIC, BlueButtonClientImpl.REQUEST_EOB_METRIC, BlueButtonClientImpl.REQUEST_COVERAGE_METRIC, BlueButtonClientImpl.REQUEST_NEXT_METRIC);
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncBlueButtonClientImpl.class);
+
+    private final CloseableHttpAsyncClient httpClient;
+    private final FhirContext fhirContext;
+    private final BBClientConfiguration config;
+    private final Map<String, Timer> timers;
+    private final Map<String, Meter> exceptionMeters;
+
+    /**
+     * @param httpClient     - started {@link CloseableHttpAsyncClient} set up to reach BlueButton
+     * @param fhirContext    - {@link FhirContext} to parse responses with
+     * @param config         - {@link BBClientConfiguration}
+     * @param metricRegistry - {@link MetricRegistry} for the client's metrics
+     */
+    public AsyncBlueButtonClientImpl(CloseableHttpAsyncClient httpClient, FhirContext fhirContext, BBClientConfiguration config, MetricRegistry metricRegistry) {
+        this.httpClient = httpClient;
+        this.fhirContext = fhirContext;
+        this.config = config;
+        // Registered under BlueButtonClientImpl, so both clients' requests land in the same metrics
+        final var metricMaker = new MetricMaker(metricRegistry, BlueButtonClientImpl.class);
+        this.exceptionMeters = metricMaker.registerMeters(REQUEST_METRICS);
+        this.timers = metricMaker.registerTimers(REQUEST_METRICS);
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestPatientFromServerByMbi(String mbi, Map<String, String> headers) {
+        return instrumentCall(BlueButtonClientImpl.REQUEST_PATIENT_METRIC, () -> {
+            // Searched with a POST, like BlueButtonClientImpl, so the MBI doesn't end up in a URL
+            final SimpleHttpRequest request = SimpleRequestBuilder.post(formServerBase() + "/Patient/_search")
+                .setBody("identifier=" + BlueButtonClientImpl.encodeParam(DPCIdentifierSystem.MBI.getSystem() + "|" + mbi), ContentType.APPLICATION_FORM_URLENCODED)
+                .build();
+            return execute(request, headers);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestPatientFromServer(String patientId, DateRangeParam lastUpdated, Map<String, String> headers) {
+        logger.debug("Attempting to fetch patient ID {} from baseURL: {}", patientId, config.getServerBaseUrl());
+        return instrumentCall(BlueButtonClientImpl.REQUEST_PATIENT_METRIC, () ->
+            fetchBundle(Patient.class.getSimpleName(), "_id=" + BlueButtonClientImpl.encodeParam(patientId), patientId, lastUpdated, headers));
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestEOBFromServer(String patientId, DateRangeParam lastUpdated, Map<String, String> headers) {
+        logger.debug("Attempting to fetch EOBs for patient ID {} from baseURL: {}", patientId, config.getServerBaseUrl());
+        return instrumentCall(BlueButtonClientImpl.REQUEST_EOB_METRIC, () ->
+            fetchBundle(ExplanationOfBenefit.class.getSimpleName(), "patient=" + BlueButtonClientImpl.encodeParam(patientId) + "&excludeSAMHSA=true", patientId, lastUpdated, headers));
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestCoverageFromServer(String patientId, DateRangeParam lastUpdated, Map<String, String> headers) {
+        logger.debug("Attempting to fetch Coverage for patient ID {} from baseURL: {}", patientId, config.getServerBaseUrl());
+        return instrumentCall(BlueButtonClientImpl.REQUEST_COVERAGE_METRIC, () ->
+            fetchBundle(Coverage.class.getSimpleName(), "beneficiary=" + BlueButtonClientImpl.encodeParam("Patient/" + patientId), patientId, lastUpdated, headers));
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestNextBundleFromServer(Bundle bundle, Map<String, String> headers) {
+        return instrumentCall(BlueButtonClientImpl.REQUEST_NEXT_METRIC, () -> {
+            final String nextURL = bundle.getLink(IBaseBundle.LINK_NEXT).getUrl();
+            logger.debug("Attempting to fetch next bundle from url: {}", nextURL);
+
+            return fetchWithRetry("next", nextURL, count -> BlueButtonClientImpl.replaceCount(nextURL, count), config.getMaxResourcesCount(), headers);
+        });
+    }
+
+    /**
+     * Read a FHIR Bundle from BlueButton, the same way {@link BlueButtonClientImpl} does.
+     *
+     * @param resourceType - FHIR resource type to search
+     * @param criteria     - encoded search criteria that match the patientID
+     * @param patientID    - id of patient
+     * @param lastUpdated  - the lastUpdated date to search for
+     * @param headers      - headers to pass on to BlueButton
+     * @return future of the FHIR Bundle resource
+     */
+    private CompletableFuture<Bundle> fetchBundle(String resourceType, String criteria, String patientID, DateRangeParam lastUpdated, Map<String, String> headers) {
+        final IntFunction<String> formUrl = count ->
+            BlueButtonClientImpl.formSearchUrl(config.getServerBaseUrl(), fhirContext, resourceType, criteria, lastUpdated, count);
+        final int count = config.getMaxResourcesCount();
+
+        return fetchWithRetry(resourceType, formUrl.apply(count), formUrl, count, headers)
+            .thenApply(bundle -> {
+                // Case where patientID does not exist at all
+                if (!bundle.hasEntry() && lastUpdated == null) {
+                    throw new ResourceNotFoundException("No patient found with ID: " + patientID);
+                }
+                return bundle;
+            });
+    }
+
+    /**
+     * Fetches a bundle, and if BlueButton times out, tries again with half the count until it drops below the minimum.
+     *
+     * @param description  - what's being fetched, for logging
+     * @param url          - the URL to fetch
+     * @param formRetryUrl - forms the URL to try again with, given a lower count
+     * @param count        - count the URL asks for
+     * @param headers      - headers to pass on to BlueButton
+     * @return future of the bundle
+     */
+    private CompletableFuture<Bundle> fetchWithRetry(String description, String url, IntFunction<String> formRetryUrl, int count, Map<String, String> headers) {
+        return execute(SimpleRequestBuilder.get(url).build(), headers)
+            .exceptionallyCompose(error -> {
+                final Throwable cause = unwrap(error);
+                if (cause instanceof FhirClientConnectionException && cause.getCause() instanceof SocketTimeoutException) {
+                    // If it drops below our minimum we can't complete the call, so pass on the exception
+                    final int reducedCount = count / 2;
+                    if (reducedCount >= config.getMinResourcesCount()) {
+                        logger.warn("Timed out fetching {} bundle from BFD with count: {}.  Lowering count and trying again.", description, count);
+                        return fetchWithRetry(description, formRetryUrl.apply(reducedCount), formRetryUrl, reducedCount, headers);
+                    }
+                }
+                return CompletableFuture.failedFuture(cause);
+            });
+    }
+
+    // Sends the request, and parses the bundle in the response
+    private CompletableFuture<Bundle> execute(SimpleHttpRequest request, Map<String, String> headers) {
+        request.setHeader(Constants.INCLUDE_IDENTIFIERS_HEADER, "mbi");
+        request.setHeader(HttpHeaders.ACCEPT, EncodingEnum.JSON.getResourceContentTypeNonLegacy());
+        if (headers != null) {
+            headers.entrySet().stream()
+                    .filter(e -> StringUtils.isNotBlank(e.getValue()))
+                    .forEach(e -> request.setHeader(e.getKey(), e.getValue()));
+        }
+
+        final CompletableFuture<SimpleHttpResponse> response = new CompletableFuture<>();
+        httpClient.execute(request, new FutureCallback<>() {
+            @Override
+            public void completed(SimpleHttpResponse result) {
+                if (result.getCode() >= 400) {
+                    response.completeExceptionally(BaseServerResponseException.newInstance(result.getCode(), result.getReasonPhrase()));
+                } else {
+                    response.complete(result);
+                }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                // Wrapped the same way HAPI wraps I/O errors, so callers can treat timeouts alike from either client
+                response.completeExceptionally(ex instanceof IOException ? new FhirClientConnectionException(ex) : ex);
+            }
+
+            @Override
+            public void cancelled() {
+                response.cancel(false);
+            }
+        });
+        return response.thenApplyAsync(this::parseBundle);
+    }
+
+    private Bundle parseBundle(SimpleHttpResponse response) {
+        final ContentType contentType = response.getContentType();
+        final EncodingEnum encoding = contentType == null ? null : EncodingEnum.forContentType(contentType.getMimeType());
+        final byte[] body = response.getBodyBytes();
+        return (encoding == null ? EncodingEnum.JSON : encoding).newParser(fhirContext)
+            .parseResource(Bundle.class, body == null ? "" : new String(body, StandardCharsets.UTF_8));
+    }
+
+    private String formServerBase() {
+        return StringUtils.removeEnd(config.getServerBaseUrl(), "/");
+    }
+
+    /**
+     * Instrument a call to Blue Button, timing it until its future completes.
+     *
+     * @param metricName - The name of the method
+     * @param supplier   - the call as lambda to instrumented
+     * @param <T>        - the type the call's future completes with
+     * @return the future returned by the supplier (i.e. call)
+     */
+    private <T> CompletableFuture<T> instrumentCall(String metricName, Supplier<CompletableFuture<T>> supplier) {
+        final var timerContext = timers.get(metricName).time();
+        CompletableFuture<T> future;
+        try {
+            future = supplier.get();
+        } catch (RuntimeException ex) {
+            future = CompletableFuture.failedFuture(ex);
+        }
+        return future.whenComplete((result, error) -> {
+            timerContext.stop();
+            if (error != null) {
+                exceptionMeters.get(metricName).mark();
+            }
+        });
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+}
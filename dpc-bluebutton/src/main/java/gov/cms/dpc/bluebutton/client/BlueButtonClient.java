@@ -7,6 +7,7 @@ import org.hl7.fhir.dstu3.model.Bundle;
 import org.hl7.fhir.dstu3.model.CapabilityStatement;
 
 import java.security.GeneralSecurityException;
+import java.util.List;
 import java.util.Map;
 
 
@@ -14,6 +15,13 @@ public interface BlueButtonClient {
 
     Bundle requestPatientFromServerByMbi(String mbi, Map<String, String> headers) throws ResourceNotFoundException, GeneralSecurityException;
 
+    /**
+     * Searches for the patients of several MBIs at once, instead of calling
+     * {@link #requestPatientFromServerByMbi(String, Map)} for each of them. MBIs that don't match a patient are left out
+     * of the results, which aren't in any particular order.
+     */
+    Bundle requestPatientsFromServerByMbis(List<String> mbis, Map<String, String> headers) throws ResourceNotFoundException;
+
     Bundle requestPatientFromServer(String beneId, DateRangeParam lastUpdated, Map<String, String> headers) throws ResourceNotFoundException;
 
     Bundle requestEOBFromServer(String beneId, DateRangeParam lastUpdated, Map<String, String> headers) throws ResourceNotFoundException;
@@ -22,6 +30,18 @@ public interface BlueButtonClient {
 
     Bundle requestNextBundleFromServer(Bundle bundle, Map<String, String> headers) throws ResourceNotFoundException;
 
+    /**
+     * Same search as {@link #requestEOBFromServer(String, DateRangeParam, Map)}, but returns the {@link Bundle} as the
+     * JSON BlueButton sent, without parsing it.
+     */
+    byte[] requestEOBJsonFromServer(String beneId, DateRangeParam lastUpdated, Map<String, String> headers) throws ResourceNotFoundException;
+
+    /**
+     * Same as {@link #requestNextBundleFromServer(Bundle, Map)}, but returns the next {@link Bundle} as the JSON
+     * BlueButton sent, without parsing it.
+     */
+    byte[] requestNextBundleJsonFromServer(Bundle bundle, Map<String, String> headers) throws ResourceNotFoundException;
+
     CapabilityStatement requestCapabilityStatement() throws ResourceNotFoundException;
 }
 
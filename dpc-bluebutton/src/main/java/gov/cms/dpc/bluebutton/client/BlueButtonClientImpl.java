@@ -1,10 +1,18 @@
 package gov.cms.dpc.bluebutton.client;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.api.SearchStyleEnum;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
 import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
 import ca.uhn.fhir.rest.gclient.*;
+import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
@@ -23,21 +31,26 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.SocketTimeoutException;
 import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.function.IntFunction;
 import java.util.function.Supplier;
 
 
 public class BlueButtonClientImpl implements BlueButtonClient {
 
-    private static final String REQUEST_PATIENT_METRIC = "requestPatient";
-    private static final String REQUEST_EOB_METRIC = "requestEOB";
-    private static final String REQUEST_COVERAGE_METRIC = "requestCoverage";
-    private static final String REQUEST_NEXT_METRIC = "requestNextBundle";
+    static final String REQUEST_PATIENT_METRIC = "requestPatient";
+    static final String REQUEST_EOB_METRIC = "requestEOB";
+    static final String REQUEST_COVERAGE_METRIC = "requestCoverage";
+    static final String REQUEST_NEXT_METRIC = "requestNextBundle";
     private static final String REQUEST_CAPABILITIES_METRIC = "requestCapabilities";
     private static final List<String> REQUEST_METRICS = List.of(REQUEST_PATIENT_METRIC, REQUEST_EOB_METRIC, REQUEST_COVERAGE_METRIC, REQUEST_NEXT_METRIC, REQUEST_CAPABILITIES_METRIC);
 
@@ -47,14 +60,33 @@ public class BlueButtonClientImpl implements BlueButtonClient {
     private final BBClientConfiguration config;
     private final Map<String, Timer> timers;
     private final Map<String, Meter> exceptionMeters;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final RequestHedger hedger;
 
     private static String formBeneficiaryID(String fromPatientID) {
         return "Patient/" + fromPatientID;
     }
 
     public BlueButtonClientImpl(@Named("bbclient") IGenericClient client, BBClientConfiguration config, MetricRegistry metricRegistry) {
+        this(client, config, metricRegistry, new AdaptiveConcurrencyLimiter(config.getConcurrencyLimit(), metricRegistry));
+    }
+
+    private BlueButtonClientImpl(IGenericClient client, BBClientConfiguration config, MetricRegistry metricRegistry, AdaptiveConcurrencyLimiter limiter) {
+        this(client, config, metricRegistry, limiter, new RequestHedger(config.getHedging(), limiter, metricRegistry));
+    }
+
+    /**
+     * @param client         - HAPI client for BlueButton
+     * @param config         - {@link BBClientConfiguration}
+     * @param metricRegistry - {@link MetricRegistry} for the client's metrics
+     * @param limiter        - {@link AdaptiveConcurrencyLimiter} every request goes through, shared with other clients
+     * @param hedger         - {@link RequestHedger} for the searches and page loads, shared with other clients
+     */
+    public BlueButtonClientImpl(IGenericClient client, BBClientConfiguration config, MetricRegistry metricRegistry, AdaptiveConcurrencyLimiter limiter, RequestHedger hedger) {
         this.client = client;
         this.config = config;
+        this.limiter = limiter;
+        this.hedger = hedger;
         final var metricMaker = new MetricMaker(metricRegistry, BlueButtonClientImpl.class);
         this.exceptionMeters = metricMaker.registerMeters(REQUEST_METRICS);
         this.timers = metricMaker.registerTimers(REQUEST_METRICS);
@@ -73,7 +105,7 @@ public class BlueButtonClientImpl implements BlueButtonClient {
         logger.debug("Attempting to fetch patient ID {} from baseURL: {}", patientId, client.getServerBase());
         ICriterion<ReferenceClientParam> criterion = new ReferenceClientParam(IAnyResource.SP_RES_ID).hasId(patientId);
         return instrumentCall(REQUEST_PATIENT_METRIC, () ->
-                fetchBundle(Patient.class, Collections.singletonList(criterion), patientId, lastUpdated, headers));
+                fetchBundle(REQUEST_PATIENT_METRIC, Patient.class, Collections.singletonList(criterion), patientId, lastUpdated, headers));
     }
 
     /**
@@ -98,6 +130,51 @@ public class BlueButtonClientImpl implements BlueButtonClient {
         });
     }
 
+    /**
+     * Queries Blue Button server for the patients of several MBIs at once. The MBIs are searched in chunks of
+     * mbiSearchChunkSize, each as a single search on all of the chunk's identifiers, and every page of the results is
+     * read.
+     * <p>
+     * The patients aren't returned in any particular order, and an MBI that doesn't match a patient is just missing from
+     * the results, so it's up to the caller to match patients back to their MBIs.
+     *
+     * @param mbis The MBIs
+     * @param headers
+     * @return {@link Bundle} A FHIR Bundle of the Patient resources matching any of the MBIs
+     */
+    @Override
+    public Bundle requestPatientsFromServerByMbis(List<String> mbis, Map<String, String> headers) throws ResourceNotFoundException {
+        final Bundle patients = new Bundle();
+        patients.setType(Bundle.BundleType.SEARCHSET);
+
+        final int chunkSize = config.getMbiSearchChunkSize();
+        for (int start = 0; start < mbis.size(); start += chunkSize) {
+            final List<String> chunk = mbis.subList(start, Math.min(start + chunkSize, mbis.size()));
+            logger.debug("Attempting to fetch {} patients by MBI from baseURL: {}", chunk.size(), client.getServerBase());
+
+            Bundle page = instrumentCall(REQUEST_PATIENT_METRIC, () -> {
+                IQuery<IBaseBundle> query = client
+                    .search()
+                    .forResource(Patient.class)
+                    .where(Patient.IDENTIFIER.exactly().systemAndValues(DPCIdentifierSystem.MBI.getSystem(), chunk))
+                    .usingStyle(SearchStyleEnum.POST);
+
+                return addBFDHeaders(query, headers)
+                    .returnBundle(Bundle.class)
+                    .execute();
+            });
+            page.getEntry().forEach(patients::addEntry);
+
+            while (page.getLink(IBaseBundle.LINK_NEXT) != null) {
+                page = requestNextBundleFromServer(page, headers);
+                page.getEntry().forEach(patients::addEntry);
+            }
+        }
+
+        patients.setTotal(patients.getEntry().size());
+        return patients;
+    }
+
     /**
      * Queries Blue Button server for Explanations of Benefit associated with a given patient
      * <p>
@@ -125,7 +202,8 @@ public class BlueButtonClientImpl implements BlueButtonClient {
         criteria.add(new TokenClientParam("excludeSAMHSA").exactly().code("true"));
 
         return instrumentCall(REQUEST_EOB_METRIC, () ->
-                fetchBundle(ExplanationOfBenefit.class,
+                fetchBundle(REQUEST_EOB_METRIC,
+                        ExplanationOfBenefit.class,
                         criteria,
                         patientId,
                         lastUpdated,
@@ -158,7 +236,7 @@ public class BlueButtonClientImpl implements BlueButtonClient {
         criteria.add(Coverage.BENEFICIARY.hasId(formBeneficiaryID(patientId)));
 
         return instrumentCall(REQUEST_COVERAGE_METRIC, () ->
-                fetchBundle(Coverage.class, criteria, patientId, lastUpdated, headers));
+                fetchBundle(REQUEST_COVERAGE_METRIC, Coverage.class, criteria, patientId, lastUpdated, headers));
     }
 
     @Override
@@ -172,10 +250,10 @@ public class BlueButtonClientImpl implements BlueButtonClient {
 
             while( nextBundle == null ) {
                 try {
-                    nextBundle = client
+                    nextBundle = hedger.call(REQUEST_NEXT_METRIC, () -> client
                         .loadPage()
                         .next(bundle)
-                        .execute();
+                        .execute());
                 } catch (FhirClientConnectionException e) {
                     // If we timed out, lower count and try again
                     if (e.getCause() instanceof SocketTimeoutException) {
@@ -200,6 +278,34 @@ public class BlueButtonClientImpl implements BlueButtonClient {
         });
     }
 
+    /**
+     * Queries Blue Button server for Explanations of Benefit associated with a given patient, and returns the JSON
+     * {@link Bundle} without parsing it. Unlike {@link #requestEOBFromServer(String, DateRangeParam, Map)}, a patient
+     * that doesn't exist can't be told apart from one without EOBs, that's left to the caller.
+     *
+     * @param patientId The {@link Patient} resource's ID
+     * @param headers
+     * @return The JSON of a {@link Bundle} containing a number (possibly 0) of {@link ExplanationOfBenefit} objects
+     */
+    @Override
+    public byte[] requestEOBJsonFromServer(String patientId, DateRangeParam lastUpdated, Map<String, String> headers) {
+        logger.debug("Attempting to fetch EOB JSON for patient ID {} from baseURL: {}", patientId, client.getServerBase());
+
+        final IntFunction<String> formUrl = count -> formEOBSearchUrl(patientId, lastUpdated, count);
+        return instrumentCall(REQUEST_EOB_METRIC, () ->
+                fetchJson(REQUEST_EOB_METRIC, ExplanationOfBenefit.class.getSimpleName(), formUrl.apply(config.getMaxResourcesCount()), formUrl, headers));
+    }
+
+    @Override
+    public byte[] requestNextBundleJsonFromServer(Bundle bundle, Map<String, String> headers) throws ResourceNotFoundException {
+        return instrumentCall(REQUEST_NEXT_METRIC, () -> {
+            var nextURL = bundle.getLink(IBaseBundle.LINK_NEXT).getUrl();
+            logger.debug("Attempting to fetch next bundle JSON from url: {}", nextURL);
+
+            return fetchJson(REQUEST_NEXT_METRIC, "next", nextURL, count -> replaceCount(nextURL, count), headers);
+        });
+    }
+
     @Override
     public CapabilityStatement requestCapabilityStatement() throws ResourceNotFoundException {
         return instrumentCall(REQUEST_CAPABILITIES_METRIC, () -> client
@@ -211,13 +317,15 @@ public class BlueButtonClientImpl implements BlueButtonClient {
     /**
      * Read a FHIR Bundle from BlueButton. Limits the returned size by resourcesPerRequest.
      *
+     * @param metricName - The name of the calling method's metrics, and the kind of request it's hedged as
      * @param resourceClass - FHIR Resource class
      * @param criteria - For the resource class the correct criteria that match the patientID
      * @param patientID - id of patient
      * @param lastUpdated - the lastUpdated date to search for
      * @return FHIR Bundle resource
      */
-    private <T extends IBaseResource> Bundle fetchBundle(Class<T> resourceClass,
+    private <T extends IBaseResource> Bundle fetchBundle(String metricName,
+                                                         Class<T> resourceClass,
                                                          List<ICriterion<? extends IParam>> criteria,
                                                          String patientID,
                                                          DateRangeParam lastUpdated,
@@ -230,7 +338,7 @@ public class BlueButtonClientImpl implements BlueButtonClient {
         Bundle bundle = null;
         while( bundle == null ) {
             try {
-                bundle = iQuery.execute();
+                bundle = hedger.call(metricName, iQuery::execute);
             } catch (FhirClientConnectionException e) {
                 // If we timed out, lower count and try again
                 if (e.getCause() instanceof SocketTimeoutException) {
@@ -260,6 +368,102 @@ public class BlueButtonClientImpl implements BlueButtonClient {
         return bundle;
     }
 
+    /**
+     * Read the JSON of a FHIR Bundle from BlueButton, without parsing it. Limits the returned size the same way
+     * {@link #fetchBundle(String, Class, List, String, DateRangeParam, Map)} does.
+     *
+     * @param metricName - The name of the calling method's metrics, and the kind of request it's hedged as
+     * @param description - what's being fetched, for logging
+     * @param url - the URL to fetch
+     * @param formRetryUrl - forms the URL to try again with, given a lower count
+     * @param headers - headers to pass on to BlueButton
+     * @return the JSON of the bundle
+     */
+    private byte[] fetchJson(String metricName, String description, String url, IntFunction<String> formRetryUrl, Map<String, String> headers) {
+        int count = config.getMaxResourcesCount();
+        String currentUrl = url;
+
+        // At the end of this block, we either have the bundle or we've thrown an exception
+        while (true) {
+            try {
+                final String attemptUrl = currentUrl;
+                return hedger.call(metricName, () -> getJson(attemptUrl, headers));
+            } catch (FhirClientConnectionException e) {
+                // If we timed out, lower count and try again
+                if (e.getCause() instanceof SocketTimeoutException) {
+                    logger.warn("Timed out fetching {} bundle JSON from BFD with count: {}.  Lowering count and trying again.", description, count);
+
+                    // Get the new count.
+                    // If it drops below our minimum we can't complete the call, so rethrow the exception.
+                    count = reduceCountOnTimeout(count);
+                    if (count < config.getMinResourcesCount()) {
+                        throw e;
+                    }
+                    currentUrl = formRetryUrl.apply(count);
+                } else {
+                    // Not caused by a timeout.  Rethrow and let the caller handle it.
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // Makes a GET request through the same HTTP client as our FHIR client, and returns the body without parsing it
+    private byte[] getJson(String url, Map<String, String> headers) {
+        final IHttpClient httpClient = client.getFhirContext().getRestfulClientFactory()
+            .getHttpClient(new StringBuilder(url), null, null, RequestTypeEnum.GET, Collections.emptyList());
+        final IHttpRequest request = httpClient.createGetRequest(client.getFhirContext(), EncodingEnum.JSON);
+        request.addHeader(Constants.INCLUDE_IDENTIFIERS_HEADER, "mbi");
+        if (headers != null) {
+            headers.entrySet().stream()
+                    .filter(e -> StringUtils.isNotBlank(e.getValue()))
+                    .forEach(e -> request.addHeader(e.getKey(), e.getValue()));
+        }
+
+        IHttpResponse response = null;
+        try {
+            response = request.execute();
+            final byte[] body;
+            try (InputStream entity = response.readEntity()) {
+                body = entity == null ? new byte[0] : entity.readAllBytes();
+            }
+            if (response.getStatus() >= 400) {
+                throw BaseServerResponseException.newInstance(response.getStatus(), response.getStatusInfo());
+            }
+            return body;
+        } catch (IOException e) {
+            throw new FhirClientConnectionException(e);
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+
+    // Forms the same EOB search URL as requestEOBFromServer's query
+    private String formEOBSearchUrl(String patientId, DateRangeParam lastUpdated, int count) {
+        return formSearchUrl(client.getServerBase(), client.getFhirContext(), ExplanationOfBenefit.class.getSimpleName(),
+            "patient=" + encodeParam(patientId) + "&excludeSAMHSA=true", lastUpdated, count);
+    }
+
+    // Forms a search URL for the resource type, the criteria have to be encoded already
+    static String formSearchUrl(String serverBase, FhirContext fhirContext, String resourceType, String criteria, DateRangeParam lastUpdated, int count) {
+        final StringBuilder url = new StringBuilder(StringUtils.removeEnd(serverBase, "/"))
+            .append('/').append(resourceType)
+            .append('?').append(criteria)
+            .append("&_count=").append(count);
+        if (lastUpdated != null) {
+            for (DateParam param : lastUpdated.getValuesAsQueryTokens()) {
+                url.append("&_lastUpdated=").append(encodeParam(param.getValueAsQueryToken(fhirContext)));
+            }
+        }
+        return url.toString();
+    }
+
+    static String encodeParam(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
     /**
      * Instrument a call to Blue Button.
      *
@@ -269,16 +473,19 @@ public class BlueButtonClientImpl implements BlueButtonClient {
      * @return the value returned by the supplier (i.e. call)
      */
     private <T> T instrumentCall(String metricName, Supplier<T> supplier) {
-        final var timerContext = timers.get(metricName).time();
-        try {
-            return supplier.get();
-        } catch(Exception ex) {
-            final var exceptionMeter = exceptionMeters.get(metricName);
-            exceptionMeter.mark();
-            throw ex;
-        } finally {
-            timerContext.stop();
-        }
+        // Time spent waiting on the limiter isn't part of the request's time
+        return limiter.call(metricName, () -> {
+            final var timerContext = timers.get(metricName).time();
+            try {
+                return supplier.get();
+            } catch(Exception ex) {
+                final var exceptionMeter = exceptionMeters.get(metricName);
+                exceptionMeter.mark();
+                throw ex;
+            } finally {
+                timerContext.stop();
+            }
+        });
     }
 
     private IQuery<?> addBFDHeaders(IQuery<?> query, Map<String, String> headers) {
@@ -320,17 +527,19 @@ public class BlueButtonClientImpl implements BlueButtonClient {
     private void updateNextCount(Bundle bundle, int count) {
         Bundle.BundleLinkComponent link = bundle.getLink(IBaseBundle.LINK_NEXT);
 
-        // Get the old URI and swap _count
-        UriBuilder uriBuilder = UriBuilder.fromUri(URI.create(link.getUrl()));
-        uriBuilder.replaceQueryParam("_count", count);
-        URI newUri = uriBuilder.build();
-
         // Assign a new list of links with our new URI
         bundle.setLink(List.of(
             new Bundle.BundleLinkComponent(
                 new StringType(IBaseBundle.LINK_NEXT),
-                new UriType(newUri.toString())
+                new UriType(replaceCount(link.getUrl(), count))
             )
         ));
 	}
+
+    // Swaps the _count parameter of a URL
+    static String replaceCount(String url, int count) {
+        UriBuilder uriBuilder = UriBuilder.fromUri(URI.create(url));
+        uriBuilder.replaceQueryParam("_count", count);
+        return uriBuilder.build().toString();
+    }
 }
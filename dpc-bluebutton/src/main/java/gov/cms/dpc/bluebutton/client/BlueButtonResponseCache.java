@@ -0,0 +1,213 @@
+package gov.cms.dpc.bluebutton.client;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration.ResponseCacheConfiguration;
+import gov.cms.dpc.common.utils.MetricMaker;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the JSON of BlueButton responses for a short time, in memory and optionally as gzipped files on disk.
+ * <p>
+ * Both tiers expire entries after the TTL, and evict the oldest entries once they're over their size limit. Every
+ * response is written to both tiers, and one found on disk is brought back into memory. Whether a response can be cached
+ * at all, and what it's cached under, is up to the caller.
+ */
+public class BlueButtonResponseCache {
+    private static final Logger logger = LoggerFactory.getLogger(BlueButtonResponseCache.class);
+
+    private static final String FILE_SUFFIX = ".json.gz";
+    private static final long BYTES_PER_MEGABYTE = 1024L * 1024L;
+    // How often the disk tier is checked for expired files and its size limit
+    private static final Duration SWEEP_INTERVAL = Duration.ofMinutes(1);
+
+    private final Duration ttl;
+    private final Cache<String, byte[]> memory;
+    private final Path diskPath;
+    private final long maxDiskBytes;
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+    private final Meter hitMeter;
+    private final Meter diskHitMeter;
+    private final Meter missMeter;
+
+    public BlueButtonResponseCache(ResponseCacheConfiguration config, MetricRegistry metricRegistry) {
+        this.ttl = Duration.ofSeconds(config.getTtlSeconds());
+        this.memory = CacheBuilder.newBuilder()
+            .maximumWeight(config.getMaxMemoryMegabytes() * BYTES_PER_MEGABYTE)
+            .<String, byte[]>weigher((key, value) -> value.length)
+            .expireAfterWrite(ttl.toMillis(), TimeUnit.MILLISECONDS)
+            .build();
+        this.diskPath = StringUtils.isBlank(config.getDiskPath()) ? null : Paths.get(config.getDiskPath());
+        this.maxDiskBytes = config.getMaxDiskMegabytes() * BYTES_PER_MEGABYTE;
+        if (diskPath != null) {
+            try {
+                Files.createDirectories(diskPath);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to create BlueButton response cache directory " + diskPath, e);
+            }
+        }
+
+        final var metricMaker = new MetricMaker(metricRegistry, BlueButtonResponseCache.class);
+        this.hitMeter = metricMaker.registerMeter("hit");
+        this.diskHitMeter = metricMaker.registerMeter("diskHit");
+        this.missMeter = metricMaker.registerMeter("miss");
+        metricMaker.registerCachedGauge("entries", memory::size);
+    }
+
+    /**
+     * @param key - what the response was cached under
+     * @return the JSON of the response, if it's cached and hasn't expired
+     */
+    public Optional<byte[]> get(String key) {
+        final byte[] cached = memory.getIfPresent(key);
+        if (cached != null) {
+            hitMeter.mark();
+            return Optional.of(cached);
+        }
+
+        final Optional<byte[]> fromDisk = readFromDisk(key);
+        if (fromDisk.isPresent()) {
+            diskHitMeter.mark();
+            memory.put(key, fromDisk.get());
+        } else {
+            missMeter.mark();
+        }
+        return fromDisk;
+    }
+
+    /**
+     * @param key  - what to cache the response under
+     * @param json - the JSON of the response
+     */
+    public void put(String key, byte[] json) {
+        memory.put(key, json);
+        writeToDisk(key, json);
+    }
+
+    private Optional<byte[]> readFromDisk(String key) {
+        if (diskPath == null) {
+            return Optional.empty();
+        }
+        final Path file = fileFor(key);
+        try {
+            if (isExpired(Files.getLastModifiedTime(file))) {
+                Files.deleteIfExists(file);
+                return Optional.empty();
+            }
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+                return Optional.of(in.readAllBytes());
+            }
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            // A file that can't be read is treated as missing, and is overwritten the next time it's fetched
+            logger.warn("Unable to read cached BlueButton response {}", file, e);
+            return Optional.empty();
+        }
+    }
+
+    private void writeToDisk(String key, byte[] json) {
+        if (diskPath == null) {
+            return;
+        }
+        // Written next to the final file and moved over it, so readers never see a partial file
+        final Path file = fileFor(key);
+        final Path temp = diskPath.resolve(UUID.randomUUID() + ".tmp");
+        try {
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp))) {
+                out.write(json);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // The disk tier is only an optimization, the response is still in memory
+            logger.warn("Unable to write cached BlueButton response {}", file, e);
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+        }
+        maybeSweepDisk();
+    }
+
+    private void maybeSweepDisk() {
+        final long now = System.nanoTime();
+        final long last = lastSweep.get();
+        if (now - last >= SWEEP_INTERVAL.toNanos() && lastSweep.compareAndSet(last, now)) {
+            sweepDisk();
+        }
+    }
+
+    /**
+     * Deletes expired files, then the oldest files until the disk tier is under its size limit.
+     */
+    void sweepDisk() {
+        final List<CachedFile> files = new ArrayList<>();
+        try (Stream<Path> paths = Files.list(diskPath)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (!path.getFileName().toString().endsWith(FILE_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    final FileTime modified = Files.getLastModifiedTime(path);
+                    if (isExpired(modified)) {
+                        Files.deleteIfExists(path);
+                    } else {
+                        files.add(new CachedFile(path, modified, Files.size(path)));
+                    }
+                } catch (NoSuchFileException e) {
+                    // Already gone
+                }
+            }
+
+            long total = files.stream().mapToLong(CachedFile::size).sum();
+            files.sort(Comparator.comparing(CachedFile::modified));
+            for (CachedFile file : files) {
+                if (total <= maxDiskBytes) {
+                    break;
+                }
+                Files.deleteIfExists(file.path());
+                total -= file.size();
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to sweep BlueButton response cache directory {}", diskPath, e);
+        }
+    }
+
+    private boolean isExpired(FileTime modified) {
+        return modified.toInstant().plus(ttl).isBefore(Instant.now());
+    }
+
+    // Keys can be long and hold characters that aren't allowed in file names, so files are named by their hash
+    Path fileFor(String key) {
+        return diskPath.resolve(Hashing.sha256().hashString(key, StandardCharsets.UTF_8) + FILE_SUFFIX);
+    }
+
+    private record CachedFile(Path path, FileTime modified, long size) {
+    }
+}
@@ -0,0 +1,156 @@
+package gov.cms.dpc.bluebutton.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.net.URIBuilder;
+import org.hl7.fhir.dstu3.model.*;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * {@link BlueButtonClient} that answers repeated searches from a {@link BlueButtonResponseCache}, instead of going back
+ * to BlueButton.
+ * <p>
+ * Only searches with an upper bound on lastUpdated are cached. The upper bound is the job's BFD transaction time, and
+ * nothing BlueButton returns for it can change later, so a cached response is exactly what BlueButton would send again.
+ * The bound is part of what a response is cached under, so a response is never used for a search at a different
+ * transaction time. Next pages are cached the same way, by their URL, as long as it carries the bound.
+ * Searches by MBI and the capability statement always go to BlueButton.
+ */
+public class CachingBlueButtonClient implements BlueButtonClient {
+
+    private final BlueButtonClient client;
+    private final BlueButtonResponseCache cache;
+    private final FhirContext fhirContext;
+
+    public CachingBlueButtonClient(BlueButtonClient client, BlueButtonResponseCache cache, FhirContext fhirContext) {
+        this.client = client;
+        this.cache = cache;
+        this.fhirContext = fhirContext;
+    }
+
+    @Override
+    public Bundle requestPatientFromServerByMbi(String mbi, Map<String, String> headers) throws ResourceNotFoundException, GeneralSecurityException {
+        return client.requestPatientFromServerByMbi(mbi, headers);
+    }
+
+    @Override
+    public Bundle requestPatientsFromServerByMbis(List<String> mbis, Map<String, String> headers) throws ResourceNotFoundException {
+        return client.requestPatientsFromServerByMbis(mbis, headers);
+    }
+
+    @Override
+    public Bundle requestPatientFromServer(String beneId, DateRangeParam lastUpdated, Map<String, String> headers) throws ResourceNotFoundException {
+        return cachedBundle(formSearchKey(Patient.class.getSimpleName(), beneId, lastUpdated),
+            () -> client.requestPatientFromServer(beneId, lastUpdated, headers));
+    }
+
+    @Override
+    public Bundle requestEOBFromServer(String beneId, DateRangeParam lastUpdated, Map<String, String> headers) throws ResourceNotFoundException {
+        return cachedBundle(formSearchKey(ExplanationOfBenefit.class.getSimpleName(), beneId, lastUpdated),
+            () -> client.requestEOBFromServer(beneId, lastUpdated, headers));
+    }
+
+    @Override
+    public Bundle requestCoverageFromServer(String beneId, DateRangeParam lastUpdated, Map<String, String> headers) throws ResourceNotFoundException {
+        return cachedBundle(formSearchKey(Coverage.class.getSimpleName(), beneId, lastUpdated),
+            () -> client.requestCoverageFromServer(beneId, lastUpdated, headers));
+    }
+
+    @Override
+    public Bundle requestNextBundleFromServer(Bundle bundle, Map<String, String> headers) throws ResourceNotFoundException {
+        return cachedBundle(formNextKey(bundle), () -> client.requestNextBundleFromServer(bundle, headers));
+    }
+
+    @Override
+    public byte[] requestEOBJsonFromServer(String beneId, DateRangeParam lastUpdated, Map<String, String> headers) throws ResourceNotFoundException {
+        // Kept apart from the parsed searches, since this is BlueButton's JSON as it was sent
+        return cachedJson(formSearchKey("raw:" + ExplanationOfBenefit.class.getSimpleName(), beneId, lastUpdated),
+            () -> client.requestEOBJsonFromServer(beneId, lastUpdated, headers));
+    }
+
+    @Override
+    public byte[] requestNextBundleJsonFromServer(Bundle bundle, Map<String, String> headers) throws ResourceNotFoundException {
+        return cachedJson(formNextKey(bundle).map(key -> "raw:" + key),
+            () -> client.requestNextBundleJsonFromServer(bundle, headers));
+    }
+
+    @Override
+    public CapabilityStatement requestCapabilityStatement() throws ResourceNotFoundException {
+        return client.requestCapabilityStatement();
+    }
+
+    private Bundle cachedBundle(Optional<String> key, Supplier<Bundle> request) {
+        if (key.isEmpty()) {
+            return request.get();
+        }
+        final Optional<byte[]> cached = cache.get(key.get());
+        if (cached.isPresent()) {
+            return fhirContext.newJsonParser().parseResource(Bundle.class, new String(cached.get(), StandardCharsets.UTF_8));
+        }
+
+        final Bundle bundle = request.get();
+        cache.put(key.get(), fhirContext.newJsonParser().encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8));
+        return bundle;
+    }
+
+    private byte[] cachedJson(Optional<String> key, Supplier<byte[]> request) {
+        if (key.isEmpty()) {
+            return request.get();
+        }
+        final Optional<byte[]> cached = cache.get(key.get());
+        if (cached.isPresent()) {
+            return cached.get();
+        }
+
+        final byte[] json = request.get();
+        cache.put(key.get(), json);
+        return json;
+    }
+
+    /**
+     * @return what a search is cached under, or empty if it has no upper bound on lastUpdated and can't be cached
+     */
+    Optional<String> formSearchKey(String resourceType, String beneId, DateRangeParam lastUpdated) {
+        if (lastUpdated == null || lastUpdated.getUpperBound() == null) {
+            return Optional.empty();
+        }
+        final String range = lastUpdated.getValuesAsQueryTokens().stream()
+            .map(param -> param.getValueAsQueryToken(fhirContext))
+            .collect(Collectors.joining(","));
+        return Optional.of(String.join("|", resourceType, beneId, range));
+    }
+
+    /**
+     * @return what a next page is cached under, or empty if its URL has no upper bound on lastUpdated
+     */
+    Optional<String> formNextKey(Bundle bundle) {
+        final Bundle.BundleLinkComponent next = bundle.getLink(IBaseBundle.LINK_NEXT);
+        if (next == null) {
+            return Optional.empty();
+        }
+        try {
+            final List<NameValuePair> params = new URIBuilder(next.getUrl()).getQueryParams();
+            final boolean bounded = params.stream()
+                .filter(param -> "_lastUpdated".equals(param.getName()) && param.getValue() != null)
+                .map(param -> new DateParam(param.getValue()).getPrefix())
+                .anyMatch(prefix -> prefix == ParamPrefixEnum.LESSTHAN || prefix == ParamPrefixEnum.LESSTHAN_OR_EQUALS);
+            return bounded ? Optional.of("next|" + next.getUrl()) : Optional.empty();
+        } catch (URISyntaxException | RuntimeException e) {
+            // Anything we can't make sense of just isn't cached
+            return Optional.empty();
+        }
+    }
+}
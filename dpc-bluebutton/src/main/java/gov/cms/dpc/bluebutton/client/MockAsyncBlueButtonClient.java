@@ -0,0 +1,55 @@
+package gov.cms.dpc.bluebutton.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import org.hl7.fhir.dstu3.model.Bundle;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * {@link AsyncBlueButtonClient} that answers from the same test data as {@link MockBlueButtonClient}. Each future is
+ * already complete when it's returned.
+ */
+public class MockAsyncBlueButtonClient implements AsyncBlueButtonClient {
+
+    private final MockBlueButtonClient client;
+
+    public MockAsyncBlueButtonClient(FhirContext fhirContext) {
+        this.client = new MockBlueButtonClient(fhirContext);
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestPatientFromServerByMbi(String mbi, Map<String, String> headers) {
+        return complete(() -> client.requestPatientFromServerByMbi(mbi, headers));
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestPatientFromServer(String beneId, DateRangeParam lastUpdated, Map<String, String> headers) {
+        return complete(() -> client.requestPatientFromServer(beneId, lastUpdated, headers));
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestEOBFromServer(String beneId, DateRangeParam lastUpdated, Map<String, String> headers) {
+        return complete(() -> client.requestEOBFromServer(beneId, lastUpdated, headers));
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestCoverageFromServer(String beneId, DateRangeParam lastUpdated, Map<String, String> headers) {
+        return complete(() -> client.requestCoverageFromServer(beneId, lastUpdated, headers));
+    }
+
+    @Override
+    public CompletableFuture<Bundle> requestNextBundleFromServer(Bundle bundle, Map<String, String> headers) {
+        return complete(() -> client.requestNextBundleFromServer(bundle, headers));
+    }
+
+    private static CompletableFuture<Bundle> complete(Supplier<Bundle> request) {
+        try {
+            return CompletableFuture.completedFuture(request.get());
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
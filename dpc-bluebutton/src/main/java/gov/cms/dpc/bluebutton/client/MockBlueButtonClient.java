@@ -103,6 +103,26 @@ public class MockBlueButtonClient implements BlueButtonClient {
         return loadBundle(SAMPLE_PATIENT_PATH_PREFIX, MBI_BENE_ID_MAP.getOrDefault(mbi,""));
     }
 
+    @Override
+    public Bundle requestPatientsFromServerByMbis(List<String> mbis, Map<String, String> headers) throws ResourceNotFoundException {
+        final Bundle patients = new Bundle();
+        patients.setType(Bundle.BundleType.SEARCHSET);
+
+        // Like BFD, unknown MBIs are left out, and a patient with several of the MBIs is only returned once.
+        // TEST_PATIENT_TIME_OUT is left out as well, so that it still hangs when it's looked up on its own.
+        mbis.stream()
+            .filter(mbi -> !Objects.equals(mbi, TEST_PATIENT_TIME_OUT))
+            .map(MBI_BENE_ID_MAP::get)
+            .filter(Objects::nonNull)
+            .distinct()
+            .map(beneId -> loadBundle(SAMPLE_PATIENT_PATH_PREFIX, beneId))
+            .flatMap(bundle -> bundle.getEntry().stream())
+            .forEach(patients::addEntry);
+
+        patients.setTotal(patients.getEntry().size());
+        return patients;
+    }
+
     @Override
     public Bundle requestPatientFromServer(String beneId, DateRangeParam lastUpdated, Map<String, String> headers) throws ResourceNotFoundException {
         return isInDateRange(lastUpdated) ?
@@ -144,6 +164,16 @@ public class MockBlueButtonClient implements BlueButtonClient {
         }
     }
 
+    @Override
+    public byte[] requestEOBJsonFromServer(String beneId, DateRangeParam lastUpdated, Map<String, String> headers) throws ResourceNotFoundException {
+        return encodeJson(requestEOBFromServer(beneId, lastUpdated, headers));
+    }
+
+    @Override
+    public byte[] requestNextBundleJsonFromServer(Bundle bundle, Map<String, String> headers) throws ResourceNotFoundException {
+        return encodeJson(requestNextBundleFromServer(bundle, headers));
+    }
+
     @Override
     public CapabilityStatement requestCapabilityStatement() throws ResourceNotFoundException {
         final var path = SAMPLE_METADATA_PATH_PREFIX + "meta.xml";
@@ -260,6 +290,10 @@ public class MockBlueButtonClient implements BlueButtonClient {
         }
     }
 
+    private byte[] encodeJson(Bundle bundle) {
+        return parserJson.encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8);
+    }
+
     /**
      * Tries reading the resource as both an xml and json file to figure out which one it is, then returns the correct
      * file extension.
@@ -0,0 +1,301 @@
+package gov.cms.dpc.bluebutton.client;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration.HedgingConfiguration;
+import gov.cms.dpc.common.utils.MetricMaker;
+import io.dropwizard.lifecycle.Managed;
+import jakarta.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Hedges requests to BlueButton: when a request has taken longer than the rolling p95 of its kind, a second copy is
+ * sent and whichever succeeds first is used, the other is cancelled. Only requests that are safe to repeat should be
+ * hedged. The hedger keeps a timer for each kind of request it's given, so the p95 only covers the requests it hedges.
+ * <p>
+ * Hedges are paid for out of a budget that every request adds the budget ratio to, so hedging can add at most that
+ * share of extra load on BlueButton. A hedge also needs a slot of its own from the {@link AdaptiveConcurrencyLimiter},
+ * and is skipped rather than waiting for one. A request that's slow once the budget has run out, or while the limiter
+ * is full, just waits.
+ * <p>
+ * The copies run on a pool of twice the limiter's max limit threads, since each request holding a slot has at most its
+ * primary and one hedge running. Stopping the hedger shuts the pool down.
+ */
+public class RequestHedger implements Managed {
+    private static final Logger logger = LoggerFactory.getLogger(RequestHedger.class);
+
+    // The budget is kept in thousandths of a hedge, and can save up for this many hedges
+    private static final long HEDGE_COST = 1000;
+    private static final long MAX_BUDGET = 10 * HEDGE_COST;
+    // How long a p95 is used for before it's read from the timer again, since reading it isn't free
+    private static final long DELAY_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // How long a copy's thread can sit idle before it's let go
+    private static final long IDLE_THREAD_SECONDS = 60;
+
+    private final HedgingConfiguration config;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final ThreadPoolExecutor executor;
+    private final long deposit;
+    private final AtomicLong budget = new AtomicLong(0);
+    private final MetricMaker metricMaker;
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, CachedDelay> delays = new ConcurrentHashMap<>();
+    private final Meter requestMeter;
+    private final Meter hedgeMeter;
+    private final Meter hedgeWonMeter;
+    private final Meter budgetExhaustedMeter;
+    private final Meter limitedMeter;
+
+    /**
+     * @param config         - {@link HedgingConfiguration}
+     * @param limiter        - {@link AdaptiveConcurrencyLimiter} the hedges take their slots from
+     * @param metricRegistry - {@link MetricRegistry} for the hedger's metrics
+     */
+    @Inject
+    public RequestHedger(HedgingConfiguration config, AdaptiveConcurrencyLimiter limiter, MetricRegistry metricRegistry) {
+        this.config = config;
+        this.limiter = limiter;
+        this.deposit = Math.round(config.getBudgetRatio() * HEDGE_COST);
+        final int threads = 2 * Math.max(1, limiter.getMaxLimit());
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "bb-hedge-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+
+        this.metricMaker = new MetricMaker(metricRegistry, RequestHedger.class);
+        this.requestMeter = metricMaker.registerMeter("request");
+        this.hedgeMeter = metricMaker.registerMeter("hedged");
+        this.hedgeWonMeter = metricMaker.registerMeter("hedgeWon");
+        this.budgetExhaustedMeter = metricMaker.registerMeter("budgetExhausted");
+        this.limitedMeter = metricMaker.registerMeter("limited");
+        metricMaker.registerCachedGauge("hedgeRate", () -> ratio(hedgeMeter, requestMeter));
+        metricMaker.registerCachedGauge("winRate", () -> ratio(hedgeWonMeter, hedgeMeter));
+    }
+
+    @Override
+    public void start() {
+        // Threads are only started as requests come in
+    }
+
+    @Override
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Makes a request to BlueButton, hedging it if it's slow.
+     *
+     * @param kind    - kind of request, whose p95 is how long the request can take before it's hedged. Passed on to
+     *                the limiter along with the hedge.
+     * @param request - the request, which has to be safe to send twice
+     * @param <T>     - what the request returns
+     * @return what the first copy of the request to succeed returned
+     */
+    public <T> T call(String kind, Supplier<T> request) {
+        if (!config.isEnabled()) {
+            return request.get();
+        }
+        requestMeter.mark();
+        deposit(deposit);
+
+        final long start = System.nanoTime();
+        final Hedge<T> hedge = new Hedge<>();
+        hedge.send(request, false, () -> {});
+
+        final T result = awaitHedged(hedge, kind, request);
+        getTimer(kind).update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return result;
+    }
+
+    private <T> T awaitHedged(Hedge<T> hedge, String kind, Supplier<T> request) {
+        final long delayNanos = getDelayNanos(kind);
+        if (delayNanos >= 0) {
+            try {
+                // Until there's a hedge, the result is the primary's
+                return hedge.await(delayNanos);
+            } catch (TimeoutException e) {
+                sendHedge(hedge, kind, request, delayNanos);
+            }
+        }
+        return hedge.await();
+    }
+
+    private <T> void sendHedge(Hedge<T> hedge, String kind, Supplier<T> request, long delayNanos) {
+        if (!tryWithdraw()) {
+            budgetExhaustedMeter.mark();
+            return;
+        }
+        // A hedge that has to wait for a slot is only adding to the load it's trying to get around
+        final Optional<AdaptiveConcurrencyLimiter.Reservation> reservation = limiter.tryReserve();
+        if (reservation.isEmpty()) {
+            deposit(HEDGE_COST);
+            limitedMeter.mark();
+            return;
+        }
+
+        hedgeMeter.mark();
+        logger.debug("BlueButton request took over {}ms, hedging it", TimeUnit.NANOSECONDS.toMillis(delayNanos));
+        final AdaptiveConcurrencyLimiter.Reservation slot = reservation.get();
+        hedge.send(() -> slot.call(kind, request), true, slot::cancel);
+    }
+
+    /**
+     * @return how long to wait before hedging a request of the kind, or -1 if it shouldn't be hedged
+     */
+    long getDelayNanos(String kind) {
+        final long now = System.nanoTime();
+        final CachedDelay cached = delays.get(kind);
+        if (cached != null && now - cached.readAt() < DELAY_REFRESH_NANOS) {
+            return cached.delayNanos();
+        }
+
+        final Timer timer = getTimer(kind);
+        long delayNanos = -1;
+        if (timer.getCount() >= config.getMinSamples()) {
+            final long p95 = (long) timer.getSnapshot().get95thPercentile();
+            delayNanos = Math.max(p95, TimeUnit.MILLISECONDS.toNanos(config.getMinDelayMillis()));
+        }
+        delays.put(kind, new CachedDelay(delayNanos, now));
+        return delayNanos;
+    }
+
+    // How long the hedged requests of each kind took, from the primary being sent to the first copy succeeding
+    private Timer getTimer(String kind) {
+        return timers.computeIfAbsent(kind, name -> metricMaker.registerTimer(MetricRegistry.name("latency", name)));
+    }
+
+    private void deposit(long amount) {
+        budget.accumulateAndGet(amount, (current, added) -> Math.min(MAX_BUDGET, current + added));
+    }
+
+    private boolean tryWithdraw() {
+        long current;
+        do {
+            current = budget.get();
+            if (current < HEDGE_COST) {
+                return false;
+            }
+        } while (!budget.compareAndSet(current, current - HEDGE_COST));
+        return true;
+    }
+
+    private static Double ratio(Meter numerator, Meter denominator) {
+        final double rate = denominator.getOneMinuteRate();
+        return rate == 0 ? 0.0 : numerator.getOneMinuteRate() / rate;
+    }
+
+    private static RuntimeException rethrow(Throwable error) {
+        if (error instanceof RuntimeException runtimeException) {
+            return runtimeException;
+        }
+        if (error instanceof Error e) {
+            throw e;
+        }
+        return new CompletionException(error);
+    }
+
+    private record CachedDelay(long delayNanos, long readAt) {
+    }
+
+    private record Copy(Future<?> future, Runnable onCancel, boolean isHedge) {
+        void cancel() {
+            future.cancel(true);
+            onCancel.run();
+        }
+    }
+
+    /**
+     * Collects the copies of a request, keeping the first to succeed and cancelling the rest. If they all fail, the
+     * primary's error is used.
+     */
+    private final class Hedge<T> {
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final List<Copy> copies = new CopyOnWriteArrayList<>();
+        // Whether the hedge or the primary succeeded first, null until one has
+        private final AtomicReference<Boolean> winnerIsHedge = new AtomicReference<>();
+        private volatile Throwable primaryError;
+
+        void send(Supplier<T> request, boolean isHedge, Runnable onCancel) {
+            pending.incrementAndGet();
+            final Future<?> future = executor.submit(() -> {
+                try {
+                    completed(request.get(), null, isHedge);
+                } catch (Throwable e) {
+                    completed(null, e, isHedge);
+                }
+            });
+            copies.add(new Copy(future, onCancel, isHedge));
+            // A copy may have already won before this one was added
+            final Boolean winner = winnerIsHedge.get();
+            if (winner != null) {
+                cancelLosers(winner);
+            }
+        }
+
+        void completed(T value, Throwable error, boolean isHedge) {
+            if (error == null) {
+                if (winnerIsHedge.compareAndSet(null, isHedge)) {
+                    result.complete(value);
+                    if (isHedge) {
+                        hedgeWonMeter.mark();
+                    }
+                    cancelLosers(isHedge);
+                }
+                return;
+            }
+            if (!isHedge) {
+                primaryError = error;
+            }
+            if (pending.decrementAndGet() == 0) {
+                final Throwable failure = primaryError != null ? primaryError : error;
+                result.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure);
+            }
+        }
+
+        // Cancels the copies other than the winner, so they don't keep tying up BlueButton or a limiter slot
+        private void cancelLosers(boolean winnerIsHedge) {
+            copies.stream()
+                .filter(copy -> copy.isHedge() != winnerIsHedge)
+                .forEach(Copy::cancel);
+        }
+
+        T await() {
+            try {
+                return result.get();
+            } catch (ExecutionException e) {
+                throw rethrow(e.getCause());
+            } catch (InterruptedException e) {
+                copies.forEach(Copy::cancel);
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for BlueButton", e);
+            }
+        }
+
+        T await(long timeoutNanos) throws TimeoutException {
+            try {
+                return result.get(timeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                throw rethrow(e.getCause());
+            } catch (InterruptedException e) {
+                copies.forEach(Copy::cancel);
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for BlueButton", e);
+            }
+        }
+    }
+}
@@ -3,6 +3,8 @@ package gov.cms.dpc.bluebutton.config;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import gov.cms.dpc.fhir.configuration.FHIRClientConfiguration;
 import jakarta.validation.Valid;
+import jakarta.validation.constraints.DecimalMax;
+import jakarta.validation.constraints.DecimalMin;
 import jakarta.validation.constraints.Max;
 import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotEmpty;
@@ -25,11 +27,31 @@ public class BBClientConfiguration extends FHIRClientConfiguration {
     @Max(1000)
     private int minResourcesCount = 100;
 
+    // The number of MBIs sent in a single Patient search when looking up several patients at once
+    @Min(1)
+    @Max(1000)
+    private int mbiSearchChunkSize = 100;
+
     @Valid
     @NotNull
     @JsonProperty("keyStore")
     private KeystoreConfiguration keystore = new KeystoreConfiguration();
 
+    @Valid
+    @NotNull
+    @JsonProperty("concurrencyLimit")
+    private ConcurrencyLimitConfiguration concurrencyLimit = new ConcurrencyLimitConfiguration();
+
+    @Valid
+    @NotNull
+    @JsonProperty("hedging")
+    private HedgingConfiguration hedging = new HedgingConfiguration();
+
+    @Valid
+    @NotNull
+    @JsonProperty("responseCache")
+    private ResponseCacheConfiguration responseCache = new ResponseCacheConfiguration();
+
     private boolean useBfdMock = false;
 
     public int getMaxResourcesCount() {
@@ -38,11 +60,26 @@ public class BBClientConfiguration extends FHIRClientConfiguration {
     public int getMinResourcesCount() {
         return minResourcesCount;
     }
+    public int getMbiSearchChunkSize() {
+        return mbiSearchChunkSize;
+    }
 
     public KeystoreConfiguration getKeystore() {
         return keystore;
     }
 
+    public ConcurrencyLimitConfiguration getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    public HedgingConfiguration getHedging() {
+        return hedging;
+    }
+
+    public ResponseCacheConfiguration getResponseCache() {
+        return responseCache;
+    }
+
     public BBClientConfiguration() {
         // Not used
     }
@@ -103,4 +140,234 @@ public class BBClientConfiguration extends FHIRClientConfiguration {
             this.location = location;
         }
     }
+
+    /**
+     * Settings for the limit on concurrent requests to BlueButton, which adapts to how BlueButton is coping.
+     */
+    public static class ConcurrencyLimitConfiguration {
+
+        // Turns the limit off, leaving only the connection pool to hold back requests
+        private boolean enabled = false;
+
+        @Min(1)
+        private int initialLimit = 20;
+
+        @Min(1)
+        private int minLimit = 1;
+
+        @Min(1)
+        private int maxLimit = 100;
+
+        // How long a request waits for a slot before it's rejected
+        @Min(0)
+        private long maxWaitMillis = 5000;
+
+        // Requests this many times slower than is usual for their kind count as BlueButton being overloaded, the same
+        // as a timeout or 5xx
+        @DecimalMin("1.5")
+        private double latencyRatio = 3.0;
+
+        // Requests faster than this never count as slow, however quick their kind usually is
+        @Min(1)
+        private long minLatencyThresholdMillis = 1000;
+
+        // What the limit is multiplied by when BlueButton is overloaded
+        @DecimalMin("0.1")
+        @DecimalMax("0.99")
+        private double backoffRatio = 0.9;
+
+        public ConcurrencyLimitConfiguration() {
+            // Jackson required
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getInitialLimit() {
+            return initialLimit;
+        }
+
+        public void setInitialLimit(int initialLimit) {
+            this.initialLimit = initialLimit;
+        }
+
+        public int getMinLimit() {
+            return minLimit;
+        }
+
+        public void setMinLimit(int minLimit) {
+            this.minLimit = minLimit;
+        }
+
+        public int getMaxLimit() {
+            return maxLimit;
+        }
+
+        public void setMaxLimit(int maxLimit) {
+            this.maxLimit = maxLimit;
+        }
+
+        public long getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+
+        public void setMaxWaitMillis(long maxWaitMillis) {
+            this.maxWaitMillis = maxWaitMillis;
+        }
+
+        public double getLatencyRatio() {
+            return latencyRatio;
+        }
+
+        public void setLatencyRatio(double latencyRatio) {
+            this.latencyRatio = latencyRatio;
+        }
+
+        public long getMinLatencyThresholdMillis() {
+            return minLatencyThresholdMillis;
+        }
+
+        public void setMinLatencyThresholdMillis(long minLatencyThresholdMillis) {
+            this.minLatencyThresholdMillis = minLatencyThresholdMillis;
+        }
+
+        public double getBackoffRatio() {
+            return backoffRatio;
+        }
+
+        public void setBackoffRatio(double backoffRatio) {
+            this.backoffRatio = backoffRatio;
+        }
+    }
+
+    /**
+     * Settings for hedging slow requests to BlueButton, by sending a second copy of a request that's taking longer than
+     * most and using whichever response comes back first.
+     */
+    public static class HedgingConfiguration {
+
+        private boolean enabled = false;
+
+        // The most extra requests hedging can add, as a share of all requests
+        @DecimalMin("0.0")
+        @DecimalMax("1.0")
+        private double budgetRatio = 0.05;
+
+        // Requests are never hedged sooner than this, however fast they usually are
+        @Min(0)
+        private long minDelayMillis = 100;
+
+        // How many requests of a kind have to be timed before they're hedged
+        @Min(1)
+        private int minSamples = 100;
+
+        public HedgingConfiguration() {
+            // Jackson required
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public double getBudgetRatio() {
+            return budgetRatio;
+        }
+
+        public void setBudgetRatio(double budgetRatio) {
+            this.budgetRatio = budgetRatio;
+        }
+
+        public long getMinDelayMillis() {
+            return minDelayMillis;
+        }
+
+        public void setMinDelayMillis(long minDelayMillis) {
+            this.minDelayMillis = minDelayMillis;
+        }
+
+        public int getMinSamples() {
+            return minSamples;
+        }
+
+        public void setMinSamples(int minSamples) {
+            this.minSamples = minSamples;
+        }
+    }
+
+    /**
+     * Settings for caching BlueButton's responses to searches that are bounded by a transaction time, so that pulling the
+     * same patients again soon after doesn't go back to BlueButton.
+     */
+    public static class ResponseCacheConfiguration {
+
+        private boolean enabled = false;
+
+        // How long a response is kept, in memory and on disk
+        @Min(1)
+        private long ttlSeconds = 900;
+
+        // Limit on the size of the JSON kept in memory
+        @Min(1)
+        private long maxMemoryMegabytes = 256;
+
+        // Directory to also keep compressed responses in, so they outlast memory evictions and restarts. Left blank, there's no disk tier.
+        private String diskPath;
+
+        // Limit on the size of the compressed responses kept on disk
+        @Min(1)
+        private long maxDiskMegabytes = 10240;
+
+        public ResponseCacheConfiguration() {
+            // Jackson required
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getTtlSeconds() {
+            return ttlSeconds;
+        }
+
+        public void setTtlSeconds(long ttlSeconds) {
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        public long getMaxMemoryMegabytes() {
+            return maxMemoryMegabytes;
+        }
+
+        public void setMaxMemoryMegabytes(long maxMemoryMegabytes) {
+            this.maxMemoryMegabytes = maxMemoryMegabytes;
+        }
+
+        public String getDiskPath() {
+            return diskPath;
+        }
+
+        public void setDiskPath(String diskPath) {
+            this.diskPath = diskPath;
+        }
+
+        public long getMaxDiskMegabytes() {
+            return maxDiskMegabytes;
+        }
+
+        public void setMaxDiskMegabytes(long maxDiskMegabytes) {
+            this.maxDiskMegabytes = maxDiskMegabytes;
+        }
+    }
 }
@@ -0,0 +1,13 @@
+package gov.cms.dpc.bluebutton.exceptions;
+
+/**
+ * Thrown when a request to BlueButton waits too long for a slot under the concurrency limit, so it's never sent.
+ */
+public class BlueButtonLimitExceededException extends RuntimeException {
+
+    public static final long serialVersionUID = 42L;
+
+    public BlueButtonLimitExceededException(String message) {
+        super(message);
+    }
+}
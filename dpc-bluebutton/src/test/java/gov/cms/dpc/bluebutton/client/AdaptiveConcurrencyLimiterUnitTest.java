@@ -0,0 +1,217 @@
+package gov.cms.dpc.bluebutton.client;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.codahale.metrics.MetricRegistry;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration.ConcurrencyLimitConfiguration;
+import gov.cms.dpc.bluebutton.exceptions.BlueButtonLimitExceededException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveConcurrencyLimiterUnitTest {
+    private static final String KIND = "request";
+
+    private ConcurrencyLimitConfiguration config;
+    private MetricRegistry metricRegistry;
+
+    @BeforeEach
+    void setUp() {
+        config = new ConcurrencyLimitConfiguration();
+        config.setEnabled(true);
+        config.setInitialLimit(2);
+        config.setMinLimit(1);
+        config.setMaxLimit(3);
+        config.setMaxWaitMillis(50);
+        config.setMinLatencyThresholdMillis(1000);
+        config.setBackoffRatio(0.5);
+        metricRegistry = new MetricRegistry();
+    }
+
+    @Test
+    void testRaisesLimitOnSuccessUpToMax() {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(config, metricRegistry);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals("ok", limiter.call(KIND, () -> "ok"));
+        }
+        assertEquals(3, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void testLowersLimitWhenOverloadedDownToMin() {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(config, metricRegistry);
+
+        assertThrows(FhirClientConnectionException.class, () -> limiter.call(KIND, () -> {
+            throw new FhirClientConnectionException(new SocketTimeoutException("timed out"));
+        }));
+        assertEquals(1, limiter.getLimit());
+
+        assertThrows(InternalErrorException.class, () -> limiter.call(KIND, () -> {
+            throw new InternalErrorException("overloaded");
+        }));
+        assertEquals(1, limiter.getLimit(), "Never drops below the min");
+        assertEquals(2, metricRegistry.meter(MetricRegistry.name(AdaptiveConcurrencyLimiter.class, "dropped")).getCount());
+    }
+
+    @Test
+    void testLowersLimitWhenSlowForItsKind() {
+        config.setMinLatencyThresholdMillis(1);
+        config.setMaxLimit(100);
+        config.setInitialLimit(20);
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(config, metricRegistry);
+
+        // Usually slow, but not a sign of overload until the average has been built up
+        for (int i = 0; i < 20; i++) {
+            limiter.call("slow", () -> {
+                sleep(50);
+                return "slow";
+            });
+        }
+        for (int i = 0; i < 20; i++) {
+            limiter.call(KIND, () -> "fast");
+        }
+        assertEquals(20, limiter.getLimit());
+
+        // As slow as the slow kind always is, but far slower than this kind usually is
+        limiter.call(KIND, () -> {
+            sleep(50);
+            return "slow";
+        });
+        assertEquals(10, limiter.getLimit());
+
+        limiter.call("slow", () -> {
+            sleep(50);
+            return "slow";
+        });
+        assertEquals(10, limiter.getLimit(), "Usual latency for its kind");
+    }
+
+    @Test
+    void testInterruptedWhileWaiting() throws Exception {
+        config.setInitialLimit(1);
+        config.setMaxWaitMillis(5000);
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(config, metricRegistry);
+        final AdaptiveConcurrencyLimiter.Reservation holder = limiter.tryReserve().orElseThrow();
+
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(IllegalStateException.class, () -> limiter.call(KIND, () -> "never sent"));
+            assertTrue(Thread.currentThread().isInterrupted(), "Interrupt is kept for the caller");
+        } finally {
+            Thread.interrupted();
+            holder.cancel();
+        }
+        assertEquals(0, metricRegistry.meter(MetricRegistry.name(AdaptiveConcurrencyLimiter.class, "rejected")).getCount());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void testIgnoresOtherErrors() {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(config, metricRegistry);
+
+        assertThrows(ResourceNotFoundException.class, () -> limiter.call(KIND, () -> {
+            throw new ResourceNotFoundException("missing");
+        }));
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void testRejectsAfterMaxWait() throws Exception {
+        config.setInitialLimit(1);
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(config, metricRegistry);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<String> holder = executor.submit(() -> limiter.call(KIND, () -> {
+                started.countDown();
+                await(finish);
+                return "done";
+            }));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            assertThrows(BlueButtonLimitExceededException.class, () -> limiter.call(KIND, () -> "never sent"));
+            assertEquals(1, metricRegistry.meter(MetricRegistry.name(AdaptiveConcurrencyLimiter.class, "rejected")).getCount());
+            assertEquals(0, limiter.getWaiting());
+
+            finish.countDown();
+            assertEquals("done", holder.get(5, TimeUnit.SECONDS));
+            assertEquals("ok", limiter.call(KIND, () -> "ok"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testTryReserveDoesNotWait() {
+        config.setInitialLimit(1);
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(config, metricRegistry);
+
+        final AdaptiveConcurrencyLimiter.Reservation reservation = limiter.tryReserve().orElseThrow();
+        assertTrue(limiter.tryReserve().isEmpty(), "No free slot");
+        assertEquals(0, metricRegistry.meter(MetricRegistry.name(AdaptiveConcurrencyLimiter.class, "rejected")).getCount());
+
+        // Cancelling an unused reservation gives its slot back
+        reservation.cancel();
+        assertEquals(0, limiter.getInFlight());
+        assertThrows(CancellationException.class, () -> reservation.call(KIND, () -> "never sent"));
+
+        assertEquals("ok", limiter.tryReserve().orElseThrow().call(KIND, () -> "ok"));
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void testCancelledRequestLeavesLimit() {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(config, metricRegistry);
+        final AdaptiveConcurrencyLimiter.Reservation reservation = limiter.tryReserve().orElseThrow();
+
+        assertThrows(FhirClientConnectionException.class, () -> reservation.call(KIND, () -> {
+            reservation.cancel();
+            assertEquals(1, limiter.getInFlight(), "Slot is held until the request is done");
+            throw new FhirClientConnectionException(new SocketTimeoutException("aborted"));
+        }));
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void testDisabled() {
+        config.setEnabled(false);
+        config.setInitialLimit(1);
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(config, metricRegistry);
+
+        // Calls straight through, even from inside another call
+        assertEquals("ok", limiter.call(KIND, () -> limiter.call(KIND, () -> "ok")));
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
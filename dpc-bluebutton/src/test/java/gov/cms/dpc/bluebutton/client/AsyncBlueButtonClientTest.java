@@ -0,0 +1,221 @@
+package gov.cms.dpc.bluebutton.client;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Stage;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigRenderOptions;
+import gov.cms.dpc.bluebutton.BlueButtonClientModule;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration;
+import gov.cms.dpc.fhir.DPCIdentifierSystem;
+import gov.cms.dpc.testing.BufferedLoggerHandler;
+import org.eclipse.jetty.http.HttpStatus;
+import org.hl7.fhir.dstu3.model.*;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockserver.client.MockServerClient;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.matchers.Times;
+import org.mockserver.model.Header;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.Parameter;
+import org.mockserver.model.ParameterBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.MissingResourceException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(BufferedLoggerHandler.class)
+class AsyncBlueButtonClientTest {
+    // A random example patient (Jane Doe)
+    private static final String TEST_PATIENT_ID = "-20140000008325";
+    private static final String TEST_PATIENT_MBI = "2SW4N00AA00";
+    // A patient id that should not exist in bluebutton
+    private static final String TEST_NONEXISTENT_PATIENT_ID = "31337";
+    private static final String TEST_EOB_TIMEOUT_PATIENT_ID = "-20140000008326";
+
+    private static final String SAMPLE_EOB_PATH_PREFIX = "bb-test-data/eob/";
+    private static final String SAMPLE_COVERAGE_PATH_PREFIX = "bb-test-data/coverage/";
+    private static final String SAMPLE_PATIENT_PATH_PREFIX = "bb-test-data/patient/";
+
+    private static final DateRangeParam TEST_LAST_UPDATED = new DateRangeParam().setUpperBoundInclusive(new java.util.Date());
+    private static final String TEST_LAST_UPDATED_STRING = "le" + TEST_LAST_UPDATED.getUpperBound().getValueAsString();
+
+    private static AsyncBlueButtonClient bbc;
+    private static ClientAndServer mockServer;
+
+    private static int timeoutDelay;
+    private static String maxCountStr;
+    private static String halfCountStr;
+
+    @BeforeAll
+    static void setupBlueButtonClient() {
+        final BBClientConfiguration config = getClientConfig();
+
+        // Delay necessary in mock server response to force a client timeout
+        timeoutDelay = config.getTimeouts().getSocketTimeout() * 2;
+        maxCountStr = Integer.toString(config.getMaxResourcesCount());
+        halfCountStr = Integer.toString(config.getMaxResourcesCount() / 2);
+
+        final Injector injector = Guice.createInjector(Stage.DEVELOPMENT, new TestModule(), new BlueButtonClientModule<>(config));
+        bbc = injector.getInstance(AsyncBlueButtonClient.class);
+
+        mockServer = ClientAndServer.startClientAndServer(8083);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        mockServer.stop();
+    }
+
+    @BeforeEach
+    void resetExpectations() {
+        new MockServerClient("localhost", 8083).reset();
+    }
+
+    @Test
+    void shouldGetPatientByMbi() throws Exception {
+        new MockServerClient("localhost", 8083)
+            .when(
+                HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/v1/fhir/Patient/_search")
+                    .withBody(ParameterBody.params(Parameter.param("identifier", DPCIdentifierSystem.MBI.getSystem() + "|" + TEST_PATIENT_MBI))),
+                Times.unlimited()
+            )
+            .respond(response(getRawXML(SAMPLE_PATIENT_PATH_PREFIX + TEST_PATIENT_ID + ".xml"), 1));
+
+        final Bundle bundle = bbc.requestPatientFromServerByMbi(TEST_PATIENT_MBI, null).get(10, TimeUnit.SECONDS);
+        assertEquals(1, bundle.getEntry().size());
+        assertEquals(TEST_PATIENT_ID, bundle.getEntryFirstRep().getResource().getIdElement().getIdPart());
+    }
+
+    @Test
+    void shouldGetEOBAndCoverageFromPatientID() throws Exception {
+        createMockServerExpectation("/v1/fhir/ExplanationOfBenefit", getRawXML(SAMPLE_EOB_PATH_PREFIX + TEST_PATIENT_ID + ".xml"),
+            List.of(
+                Parameter.param("patient", TEST_PATIENT_ID),
+                Parameter.param("excludeSAMHSA", "true"),
+                Parameter.param("_lastUpdated", TEST_LAST_UPDATED_STRING)),
+            false);
+        createMockServerExpectation("/v1/fhir/Coverage", getRawXML(SAMPLE_COVERAGE_PATH_PREFIX + TEST_PATIENT_ID + ".xml"),
+            List.of(
+                Parameter.param("beneficiary", "Patient/" + TEST_PATIENT_ID),
+                Parameter.param("_lastUpdated", TEST_LAST_UPDATED_STRING)),
+            false);
+
+        final Bundle eobs = bbc.requestEOBFromServer(TEST_PATIENT_ID, TEST_LAST_UPDATED, null).get(10, TimeUnit.SECONDS);
+        assertEquals(10, eobs.getEntry().size(), "The demo patient's first bundle should have exactly 10 EOBs");
+        eobs.getEntry().forEach(entry -> assertInstanceOf(ExplanationOfBenefit.class, entry.getResource()));
+
+        final Bundle coverage = bbc.requestCoverageFromServer(TEST_PATIENT_ID, TEST_LAST_UPDATED, null).get(10, TimeUnit.SECONDS);
+        assertTrue(coverage.hasEntry());
+        coverage.getEntry().forEach(entry -> assertInstanceOf(Coverage.class, entry.getResource()));
+    }
+
+    @Test
+    void shouldFailWhenResourceNotFound() {
+        final ExecutionException e = assertThrows(ExecutionException.class,
+            () -> bbc.requestPatientFromServer(TEST_NONEXISTENT_PATIENT_ID, null, null).get(10, TimeUnit.SECONDS));
+        assertInstanceOf(ResourceNotFoundException.class, e.getCause());
+    }
+
+    @Test
+    void shouldReturnOnSingleTimeoutGettingNext() throws Exception {
+        final List<Parameter> params = List.of(
+            Parameter.param("patient", TEST_EOB_TIMEOUT_PATIENT_ID),
+            Parameter.param("startIndex", maxCountStr),
+            Parameter.param("excludeSAMHSA", "true"));
+        createMockServerExpectation("/v1/fhir/ExplanationOfBenefit", "Not needed", withCount(params, maxCountStr), true);
+        createMockServerExpectation("/v1/fhir/ExplanationOfBenefit", getRawXML(SAMPLE_EOB_PATH_PREFIX + TEST_EOB_TIMEOUT_PATIENT_ID + "_10.xml"),
+            withCount(params, halfCountStr), false);
+
+        final Bundle response = bbc.requestNextBundleFromServer(buildBundleWithNextEoB(TEST_EOB_TIMEOUT_PATIENT_ID), null).get(30, TimeUnit.SECONDS);
+        assertEquals(10, response.getEntry().size(), "This demo patient should have exactly 10 EOBs");
+    }
+
+    @Test
+    void shouldFailOnMultipleTimeoutsGettingResource() {
+        final List<Parameter> params = List.of(
+            Parameter.param("patient", TEST_EOB_TIMEOUT_PATIENT_ID),
+            Parameter.param("excludeSAMHSA", "true"));
+        createMockServerExpectation("/v1/fhir/ExplanationOfBenefit", "Not needed", withCount(params, maxCountStr), true);
+        createMockServerExpectation("/v1/fhir/ExplanationOfBenefit", "Not needed", withCount(params, halfCountStr), true);
+
+        final ExecutionException e = assertThrows(ExecutionException.class,
+            () -> bbc.requestEOBFromServer(TEST_EOB_TIMEOUT_PATIENT_ID, null, null).get(30, TimeUnit.SECONDS));
+        assertInstanceOf(FhirClientConnectionException.class, e.getCause());
+    }
+
+    private static List<Parameter> withCount(List<Parameter> params, String count) {
+        final List<Parameter> withCount = new ArrayList<>(params);
+        withCount.add(Parameter.param("_count", count));
+        return withCount;
+    }
+
+    private static void createMockServerExpectation(String path, String payload, List<Parameter> qStringParams, boolean timeout) {
+        new MockServerClient("localhost", 8083)
+            .when(
+                HttpRequest.request()
+                    .withMethod("GET")
+                    .withPath(path)
+                    .withQueryStringParameters(qStringParams),
+                Times.unlimited()
+            )
+            .respond(response(payload, timeout ? timeoutDelay : 1));
+    }
+
+    private static org.mockserver.model.HttpResponse response(String payload, int delay) {
+        return org.mockserver.model.HttpResponse.response()
+            .withStatusCode(HttpStatus.OK_200)
+            .withHeader(new Header("Content-Type", "application/fhir+xml;charset=UTF-8"))
+            .withBody(payload)
+            .withDelay(TimeUnit.MILLISECONDS, delay);
+    }
+
+    // Creates a test bundle with a next link so we don't have to rely on pre-created test data
+    private static Bundle buildBundleWithNextEoB(String patientId) {
+        String nextUrl = "http://localhost:8083/v1/fhir/ExplanationOfBenefit?patient=%s&_count=%s&startIndex=%s&excludeSAMHSA=true"
+            .formatted(patientId, maxCountStr, maxCountStr);
+
+        return new Bundle()
+            .addLink(new Bundle.BundleLinkComponent(new StringType(Bundle.LINK_NEXT), new UriType(nextUrl)));
+    }
+
+    private static BBClientConfiguration getClientConfig() {
+        final String options = ConfigFactory.load("test.application.conf").getConfig("bbclient").root().render(ConfigRenderOptions.concise());
+
+        try {
+            return new ObjectMapper().readValue(options, BBClientConfiguration.class);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String getRawXML(String path) {
+        try (InputStream sampleData = AsyncBlueButtonClientTest.class.getClassLoader().getResourceAsStream(path)) {
+            if (sampleData == null) {
+                throw new MissingResourceException("Cannot find sample requests", AsyncBlueButtonClientTest.class.getName(), path);
+            }
+
+            return new String(sampleData.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            fail("Failed opening path: %s".formatted(path));
+            return "";
+        }
+    }
+}
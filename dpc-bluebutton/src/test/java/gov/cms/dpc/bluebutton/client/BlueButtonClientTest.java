@@ -168,6 +168,24 @@ class BlueButtonClientTest {
         assertEquals(10, nextResponse.getEntry().size());
     }
 
+    @Test
+    void shouldGetEOBJsonFromPatientID() {
+        createBasicScenario();
+
+        byte[] response = bbc.requestEOBJsonFromServer(TEST_PATIENT_ID, TEST_LAST_UPDATED, null);
+        assertEquals(getRawXML(SAMPLE_EOB_PATH_PREFIX + TEST_PATIENT_ID + ".xml"), new String(response, StandardCharsets.UTF_8),
+            "The bundle should be returned exactly as it was sent");
+    }
+
+    @Test
+    void shouldGetNextBundleJson() {
+        createNextScenario();
+
+        byte[] response = bbc.requestNextBundleJsonFromServer(buildBundleWithNextEoB(TEST_PATIENT_ID, maxCount, maxCount), null);
+        assertEquals(getRawXML(SAMPLE_EOB_PATH_PREFIX + TEST_PATIENT_ID + "_" + maxCountStr + ".xml"), new String(response, StandardCharsets.UTF_8),
+            "The next bundle should be returned exactly as it was sent");
+    }
+
     @Test
     void shouldReturnBundleContainingOnlyEOBs() {
         createBasicScenario();
@@ -239,6 +257,14 @@ class BlueButtonClientTest {
         assertEquals(10, response.getEntry().size(), "This demo patient should have exactly 10 EOBs");
     }
 
+    @Test
+    void shouldReturnOnSingleTimeoutGettingResourceJson() {
+        createFetchBundleTimeOutAndRecoverScenario();
+
+        final byte[] response = bbc.requestEOBJsonFromServer(TEST_EOB_TIMEOUT_PATIENT_ID, TEST_LAST_UPDATED, null);
+        assertTrue(response.length > 0, "Should get the bundle after lowering the count");
+    }
+
     @Test
     void shouldThrowOnMultipleTimeoutsGettingNext() {
         createNextBundleTimeOutScenario();
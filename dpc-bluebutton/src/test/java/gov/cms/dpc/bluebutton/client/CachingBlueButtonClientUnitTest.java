@@ -0,0 +1,158 @@
+package gov.cms.dpc.bluebutton.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import com.codahale.metrics.MetricRegistry;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration.ResponseCacheConfiguration;
+import org.hl7.fhir.dstu3.model.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+
+class CachingBlueButtonClientUnitTest {
+    private static final FhirContext fhirContext = FhirContext.forDstu3();
+    private static final String BENE_ID = "-20140000008325";
+    private static final Date TRANSACTION_TIME = Date.from(Instant.parse("2024-05-01T12:00:00Z"));
+
+    @TempDir
+    Path diskPath;
+
+    private BlueButtonClient bbClient;
+    private ResponseCacheConfiguration config;
+
+    @BeforeEach
+    void setUp() {
+        bbClient = Mockito.mock(BlueButtonClient.class);
+        config = new ResponseCacheConfiguration();
+        config.setEnabled(true);
+        Mockito.when(bbClient.requestEOBFromServer(eq(BENE_ID), any(), any())).thenAnswer(invocation -> buildEoBBundle());
+    }
+
+    @Test
+    void testRepeatedSearchIsCached() {
+        final CachingBlueButtonClient client = createClient();
+
+        final Bundle first = client.requestEOBFromServer(BENE_ID, bounded(TRANSACTION_TIME), null);
+        final Bundle second = client.requestEOBFromServer(BENE_ID, bounded(TRANSACTION_TIME), null);
+
+        Mockito.verify(bbClient, Mockito.times(1)).requestEOBFromServer(eq(BENE_ID), any(), any());
+        assertNotSame(first, second, "Every hit gets its own copy");
+        assertEquals(1, second.getEntry().size());
+        assertEquals("eob-1", second.getEntryFirstRep().getResource().getIdElement().getIdPart());
+    }
+
+    @Test
+    void testDifferentTransactionTimeIsNotCached() {
+        final CachingBlueButtonClient client = createClient();
+
+        client.requestEOBFromServer(BENE_ID, bounded(TRANSACTION_TIME), null);
+        client.requestEOBFromServer(BENE_ID, bounded(Date.from(TRANSACTION_TIME.toInstant().plus(1, ChronoUnit.SECONDS))), null);
+
+        Mockito.verify(bbClient, Mockito.times(2)).requestEOBFromServer(eq(BENE_ID), any(), any());
+    }
+
+    @Test
+    void testUnboundedSearchIsNotCached() {
+        final CachingBlueButtonClient client = createClient();
+
+        client.requestEOBFromServer(BENE_ID, null, null);
+        client.requestEOBFromServer(BENE_ID, new DateRangeParam().setLowerBoundExclusive(TRANSACTION_TIME), null);
+        client.requestEOBFromServer(BENE_ID, null, null);
+
+        Mockito.verify(bbClient, Mockito.times(3)).requestEOBFromServer(eq(BENE_ID), any(), any());
+    }
+
+    @Test
+    void testNextPageKeyNeedsBound() {
+        final CachingBlueButtonClient client = createClient();
+
+        final Bundle bounded = new Bundle().addLink(new Bundle.BundleLinkComponent(new StringType(Bundle.LINK_NEXT),
+            new UriType("https://bfd/v1/fhir/ExplanationOfBenefit?patient=1&startIndex=10&_lastUpdated=le2024-05-01T12%3A00%3A00Z")));
+        final Bundle unbounded = new Bundle().addLink(new Bundle.BundleLinkComponent(new StringType(Bundle.LINK_NEXT),
+            new UriType("https://bfd/v1/fhir/ExplanationOfBenefit?patient=1&startIndex=10&_lastUpdated=gt2024-05-01T12%3A00%3A00Z")));
+
+        assertTrue(client.formNextKey(bounded).isPresent());
+        assertTrue(client.formNextKey(unbounded).isEmpty());
+        assertTrue(client.formNextKey(new Bundle()).isEmpty());
+    }
+
+    @Test
+    void testDiskTierOutlastsMemory() {
+        config.setDiskPath(diskPath.toString());
+        createClient().requestEOBFromServer(BENE_ID, bounded(TRANSACTION_TIME), null);
+
+        // A new cache starts with nothing in memory
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final CachingBlueButtonClient client = new CachingBlueButtonClient(bbClient, new BlueButtonResponseCache(config, metricRegistry), fhirContext);
+        final Bundle bundle = client.requestEOBFromServer(BENE_ID, bounded(TRANSACTION_TIME), null);
+
+        Mockito.verify(bbClient, Mockito.times(1)).requestEOBFromServer(eq(BENE_ID), any(), any());
+        assertEquals(1, bundle.getEntry().size());
+        assertEquals(1, metricRegistry.meter(MetricRegistry.name(BlueButtonResponseCache.class, "diskHit")).getCount());
+    }
+
+    @Test
+    void testExpiredDiskEntryIsNotUsed() throws Exception {
+        config.setDiskPath(diskPath.toString());
+        config.setTtlSeconds(60);
+        final BlueButtonResponseCache cache = new BlueButtonResponseCache(config, new MetricRegistry());
+        cache.put("key", "{}".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(cache.fileFor("key"), FileTime.from(Instant.now().minus(2, ChronoUnit.MINUTES)));
+
+        final BlueButtonResponseCache restarted = new BlueButtonResponseCache(config, new MetricRegistry());
+        assertTrue(restarted.get("key").isEmpty());
+        assertFalse(Files.exists(restarted.fileFor("key")), "Expired files are deleted when they're found");
+    }
+
+    @Test
+    void testSweepKeepsDiskUnderLimit() throws Exception {
+        config.setDiskPath(diskPath.toString());
+        config.setMaxDiskMegabytes(1);
+        final BlueButtonResponseCache cache = new BlueButtonResponseCache(config, new MetricRegistry());
+
+        // Random bytes don't compress, so each file is about 600KB and only the newest fits
+        final Random random = new Random(42);
+        for (String key : new String[]{"older", "newer"}) {
+            final byte[] json = new byte[600 * 1024];
+            random.nextBytes(json);
+            cache.put(key, json);
+        }
+        Files.setLastModifiedTime(cache.fileFor("older"), FileTime.from(Instant.now().minus(1, ChronoUnit.MINUTES)));
+        cache.sweepDisk();
+
+        assertFalse(Files.exists(cache.fileFor("older")));
+        assertTrue(Files.exists(cache.fileFor("newer")));
+    }
+
+    private CachingBlueButtonClient createClient() {
+        return new CachingBlueButtonClient(bbClient, new BlueButtonResponseCache(config, new MetricRegistry()), fhirContext);
+    }
+
+    private static DateRangeParam bounded(Date transactionTime) {
+        return new DateRangeParam().setUpperBoundInclusive(transactionTime);
+    }
+
+    private static Bundle buildEoBBundle() {
+        final Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.getMeta().setLastUpdated(TRANSACTION_TIME);
+        final ExplanationOfBenefit eob = new ExplanationOfBenefit();
+        eob.setId("eob-1");
+        bundle.addEntry().setResource(eob);
+        return bundle;
+    }
+}
@@ -0,0 +1,196 @@
+package gov.cms.dpc.bluebutton.client;
+
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration.ConcurrencyLimitConfiguration;
+import gov.cms.dpc.bluebutton.config.BBClientConfiguration.HedgingConfiguration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestHedgerUnitTest {
+    private static final String KIND = "request";
+
+    private HedgingConfiguration config;
+    private MetricRegistry metricRegistry;
+    private AdaptiveConcurrencyLimiter limiter;
+    private Timer timer;
+
+    @BeforeEach
+    void setUp() {
+        config = new HedgingConfiguration();
+        config.setEnabled(true);
+        config.setBudgetRatio(1.0);
+        config.setMinDelayMillis(10);
+        config.setMinSamples(5);
+        metricRegistry = new MetricRegistry();
+        final ConcurrencyLimitConfiguration limitConfig = new ConcurrencyLimitConfiguration();
+        limitConfig.setEnabled(true);
+        limitConfig.setInitialLimit(1);
+        limitConfig.setMaxLimit(1);
+        limiter = new AdaptiveConcurrencyLimiter(limitConfig, metricRegistry);
+        // The hedger picks up the timer of its kind from the registry
+        timer = metricRegistry.timer(MetricRegistry.name(RequestHedger.class, "latency", KIND));
+        for (int i = 0; i < 5; i++) {
+            timer.update(1, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    void testHedgeWinsWhenPrimaryIsSlow() {
+        final RequestHedger hedger = new RequestHedger(config, limiter, metricRegistry);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        // The first copy hangs until it's cancelled
+        final String result = hedger.call(KIND, () -> {
+            if (attempts.incrementAndGet() == 1) {
+                sleep(TimeUnit.SECONDS.toMillis(5));
+                return "primary";
+            }
+            return "hedge";
+        });
+
+        assertEquals("hedge", result);
+        assertEquals(1, meterCount("hedged"));
+        assertEquals(1, meterCount("hedgeWon"));
+    }
+
+    @Test
+    void testLosingCopyIsCancelled() throws InterruptedException {
+        final RequestHedger hedger = new RequestHedger(config, limiter, metricRegistry);
+        final AtomicInteger attempts = new AtomicInteger();
+        final CountDownLatch primaryCancelled = new CountDownLatch(1);
+
+        final String result = hedger.call(KIND, () -> {
+            if (attempts.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(5));
+                } catch (InterruptedException e) {
+                    primaryCancelled.countDown();
+                }
+                return "primary";
+            }
+            return "hedge";
+        });
+
+        assertEquals("hedge", result);
+        assertTrue(primaryCancelled.await(5, TimeUnit.SECONDS), "Primary should be interrupted");
+        assertEquals(0, limiter.getInFlight(), "Hedge gave its slot back");
+    }
+
+    @Test
+    void testNotHedgedWithoutFreeSlot() {
+        final RequestHedger hedger = new RequestHedger(config, limiter, metricRegistry);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        // The caller's own request holds the only slot, like it does in the BlueButton client
+        assertEquals("slow", limiter.call(KIND, () -> hedger.call(KIND, () -> {
+            attempts.incrementAndGet();
+            sleep(50);
+            return "slow";
+        })));
+        assertEquals(1, attempts.get());
+        assertEquals(0, meterCount("hedged"));
+        assertEquals(1, meterCount("limited"));
+        assertEquals(0, limiter.getWaiting(), "Never waited for a slot");
+    }
+
+    @Test
+    void testFastRequestsAreNotHedged() {
+        final RequestHedger hedger = new RequestHedger(config, limiter, metricRegistry);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        assertEquals("ok", hedger.call(KIND, () -> {
+            attempts.incrementAndGet();
+            return "ok";
+        }));
+        assertEquals(1, attempts.get());
+        assertEquals(0, meterCount("hedged"));
+    }
+
+    @Test
+    void testNotHedgedUntilEnoughSamples() {
+        final RequestHedger hedger = new RequestHedger(config, limiter, metricRegistry);
+
+        assertEquals(-1, hedger.getDelayNanos("other"));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(10), hedger.getDelayNanos(KIND), "Never sooner than the min delay");
+    }
+
+    @Test
+    void testTimesEachKind() {
+        final RequestHedger hedger = new RequestHedger(config, limiter, metricRegistry);
+
+        assertEquals("ok", hedger.call("other", () -> "ok"));
+        assertEquals(5, timer.getCount(), "Other kinds don't count towards this one");
+        assertEquals(1, metricRegistry.timer(MetricRegistry.name(RequestHedger.class, "latency", "other")).getCount());
+    }
+
+    @Test
+    void testStopShutsDownThreads() {
+        final RequestHedger hedger = new RequestHedger(config, limiter, metricRegistry);
+        assertEquals("ok", hedger.call(KIND, () -> "ok"));
+
+        hedger.stop();
+        assertThrows(RejectedExecutionException.class, () -> hedger.call(KIND, () -> "ok"));
+    }
+
+    @Test
+    void testBudgetLimitsHedges() {
+        config.setBudgetRatio(0.0);
+        final RequestHedger hedger = new RequestHedger(config, limiter, metricRegistry);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        assertEquals("slow", hedger.call(KIND, () -> {
+            attempts.incrementAndGet();
+            sleep(50);
+            return "slow";
+        }));
+        assertEquals(1, attempts.get());
+        assertEquals(0, meterCount("hedged"));
+        assertEquals(1, meterCount("budgetExhausted"));
+    }
+
+    @Test
+    void testPrimaryErrorWhenAllCopiesFail() {
+        final RequestHedger hedger = new RequestHedger(config, limiter, metricRegistry);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        final ResourceNotFoundException e = assertThrows(ResourceNotFoundException.class, () -> hedger.call(KIND, () -> {
+            final int attempt = attempts.incrementAndGet();
+            sleep(attempt == 1 ? 50 : 0);
+            throw new ResourceNotFoundException("attempt " + attempt);
+        }));
+        assertEquals(2, attempts.get());
+        assertTrue(e.getMessage().contains("attempt 1"));
+    }
+
+    @Test
+    void testDisabled() {
+        config.setEnabled(false);
+        final RequestHedger hedger = new RequestHedger(config, limiter, metricRegistry);
+        final Thread caller = Thread.currentThread();
+
+        // Runs on the calling thread
+        assertEquals(caller, hedger.call(KIND, Thread::currentThread));
+        assertEquals(0, meterCount("request"));
+    }
+
+    private long meterCount(String name) {
+        return metricRegistry.meter(MetricRegistry.name(RequestHedger.class, name)).getCount();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -12,6 +12,7 @@ import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.query.Query;
 
+import java.time.OffsetDateTime;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -71,4 +72,25 @@ public class ConsentDAO extends AbstractDAO<ConsentEntity> {
             return results.getResultList();
         }
     }
+
+    /**
+     * Finds every consent record created or changed after the given time, oldest change first.
+     *
+     * @param since - only records with an updated_at after this are returned
+     * @return the matching {@link ConsentEntity}s
+     */
+    public final List<ConsentEntity> findUpdatedSince(OffsetDateTime since) {
+        try (Session session = this.sessionFactory.openSession()) {
+            final CriteriaBuilder builder = session.getCriteriaBuilder();
+            final CriteriaQuery<ConsentEntity> query = builder.createQuery(ConsentEntity.class);
+            final Root<ConsentEntity> root = query.from(ConsentEntity.class);
+
+            query.select(root)
+                    .where(builder.greaterThan(root.get(ConsentEntity_.updatedAt), since))
+                    .orderBy(builder.asc(root.get(ConsentEntity_.updatedAt)));
+
+            final Query<ConsentEntity> results = session.createQuery(query);
+            return results.getResultList();
+        }
+    }
 }
@@ -86,6 +86,16 @@ public class MetricMaker {
         registerMetric(name, () -> new CachedGaugeFromSupplier<>(1, TimeUnit.SECONDS, loadSupplier));
     }
 
+    /**
+     * Remove a group of metrics, all of those registered under the passed in name and its sub names
+     *
+     * @param name of the group, like "organization.{id}"
+     */
+    public synchronized void removeMetrics(String name) {
+        final var metricName = MetricRegistry.name(klass, name);
+        metricRegistry.removeMatching((candidate, metric) -> candidate.equals(metricName) || candidate.startsWith(metricName + "."));
+    }
+
     /**
      * Register a metric or retrieve a previously registered metric
      *
@@ -8,6 +8,7 @@ import org.junit.jupiter.api.Test;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -42,4 +43,16 @@ class MetricMakerUnitTest {
             assertEquals(meter, metricMaker.registerMeter(name));
         });
     }
+
+    @Test
+    void testRemoveMetrics() {
+        MetricRegistry realRegistry = new MetricRegistry();
+        MetricMaker realMaker = new MetricMaker(realRegistry, klass);
+        realMaker.registerTimer("org.1.waitTime");
+        realMaker.registerCachedGauge("org.1.depth", () -> 1);
+        realMaker.registerTimer("org.10.waitTime");
+
+        realMaker.removeMetrics("org.1");
+        assertEquals(Set.of(MetricRegistry.name(klass, "org.10.waitTime")), realRegistry.getNames());
+    }
 }
@@ -10,6 +10,7 @@ import io.github.azagniotov.metrics.reporter.cloudwatch.DimensionedName;
 import jakarta.inject.Inject;
 import jakarta.inject.Named;
 
+import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -23,9 +24,10 @@ public class AwsDistributedBatchQueue extends DistributedBatchQueue {
 		MetricRegistry metricRegistry,
 		@Named("QueueAge") ScheduledReporter ageReporter,
 		@Named("QueueSize") ScheduledReporter sizeReporter,
-		DPCAwsQueueConfiguration awsConfig
+		DPCAwsQueueConfiguration awsConfig,
+		Optional<ClaimPolicy> claimPolicy
 	) {
-		super(factory, batchSize, metricRegistry);
+		super(factory, batchSize, metricRegistry, claimPolicy);
 
 		// Setup queue size metric
 		DimensionedName queueSizeName = DimensionedName
@@ -0,0 +1,22 @@
+package gov.cms.dpc.queue;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Decides which organization an aggregator claims its next batch from.
+ * <p>
+ * Within an organization, batches are always claimed by priority and then submit time. A policy only decides the order
+ * the organizations are served in. A queue without a policy claims strictly by priority and submit time across every
+ * organization, the way the queue always has.
+ */
+public interface ClaimPolicy {
+
+    /**
+     * Orders the organizations with queued batches by which should be claimed from first.
+     *
+     * @param queues - the queued and running work of each organization with at least one queued batch
+     * @return the organizations to try claiming from, in order. Organizations left out aren't claimed from this time.
+     */
+    List<UUID> rankOrganizations(List<OrganizationQueue> queues);
+}
@@ -1,7 +1,9 @@
 package gov.cms.dpc.queue;
 
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import gov.cms.dpc.common.converters.hibernate.StringListConverter;
 import gov.cms.dpc.common.hibernate.queue.DPCQueueManagedSessionFactory;
 import gov.cms.dpc.common.utils.MetricMaker;
 import gov.cms.dpc.queue.annotations.QueueBatchSize;
@@ -10,7 +12,9 @@ import gov.cms.dpc.queue.exceptions.JobQueueFailure;
 import gov.cms.dpc.queue.exceptions.JobQueueUnhealthy;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 import gov.cms.dpc.queue.models.JobQueueBatchFile;
+import gov.cms.dpc.queue.models.JobQueueBatchPatients;
 import jakarta.inject.Inject;
+import jakarta.persistence.LockModeType;
 import jakarta.persistence.criteria.CriteriaBuilder;
 import jakarta.persistence.criteria.CriteriaQuery;
 import jakarta.persistence.criteria.Root;
@@ -21,19 +25,43 @@ import org.hibernate.query.Query;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * Implements a distributed {@link gov.cms.dpc.queue.models.JobQueueBatch} using a Postgres database
+ * <p>
+ * Whenever batches are queued, a notification is sent when the transaction commits. Aggregators that find the queue
+ * empty wait on those notifications, and only check the queue on their own every {@link #IDLE_POLLING_FREQUENCY}, to
+ * pick up anything that was queued while notifications weren't coming in.
+ * <p>
+ * When a {@link ClaimPolicy} is bound, each claim first summarizes every organization's queued
+ * and running work, and then locks the next batch of the organizations in the order the policy ranks them. The queue
+ * depth and wait of each organization seen this way are reported as gauges, and every claim reports the time its batch
+ * waited under its organization. An organization's metrics are removed once it has no queued or running batches, so
+ * only the organizations with work in the queue are reported.
  */
 public class DistributedBatchQueue extends JobQueueCommon {
 
@@ -41,34 +69,118 @@ public class DistributedBatchQueue extends JobQueueCommon {
     private static final Logger logger = LoggerFactory.getLogger(DistributedBatchQueue.class);
     private static final String DB_UNHEALTHY = "Database cluster is not responding";
     private static final String JOB_UNHEALTHY = "Aggregator is not making progress on the queue";
+    // Only saved while the batch is still running on the aggregator, so a batch that's been restarted isn't overwritten
+    private static final String UPDATE_PROGRESS = "UPDATE job_queue_batch SET patient_index = ?, update_time = ? WHERE batch_id = ? AND aggregator_id = ? AND status = 1";
+    // The comma joined patients column from before job_queue_batch_patients, which instances that haven't been upgraded
+    // still write and read
+    private static final String WRITE_LEGACY_PATIENTS = "UPDATE job_queue_batch SET patients = ? WHERE batch_id = ?";
+    private static final String READ_LEGACY_PATIENTS = "SELECT patients FROM job_queue_batch WHERE batch_id = :batchID";
+    private static final StringListConverter LEGACY_PATIENTS_CONVERTER = new StringListConverter();
+    private static final String UPSERT_FILE = """
+            INSERT INTO job_queue_batch_file (batch_id, resource_type, sequence, job_id, file_name, count, checksum, file_length, digest_state, seek_index)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+            ON CONFLICT (batch_id, resource_type, sequence) DO UPDATE
+            SET count = excluded.count, checksum = excluded.checksum, file_length = excluded.file_length, digest_state = excluded.digest_state,
+                seek_index = excluded.seek_index
+            """;
+    // Everything JobSummary holds, worked out from the job's batches in the database, see JobSummary#of for the Java version
+    private static final String SUMMARIZE_JOB = """
+            SELECT COUNT(*),
+                COUNT(*) FILTER (WHERE status = 0),
+                COUNT(*) FILTER (WHERE status = 1),
+                COUNT(*) FILTER (WHERE status = 2),
+                COUNT(*) FILTER (WHERE status = 3),
+                COALESCE(SUM(CASE WHEN status = 2 THEN COALESCE(patient_count, 0) ELSE COALESCE(patient_index, -1) + 1 END), 0),
+                COALESCE(SUM(COALESCE(patient_count, 0)), 0),
+                STRING_AGG(DISTINCT CAST(organization_id AS varchar), ','),
+                EXTRACT(EPOCH FROM MIN(submit_time)),
+                EXTRACT(EPOCH FROM MAX(complete_time)),
+                MIN(CAST(batch_id AS varchar)) FILTER (WHERE status = 3),
+                MIN(CAST(batch_id AS varchar)) FILTER (WHERE NOT CASE status
+                    WHEN 0 THEN submit_time IS NOT NULL AND aggregator_id IS NULL
+                    WHEN 1 THEN submit_time IS NOT NULL AND start_time IS NOT NULL AND update_time IS NOT NULL AND aggregator_id IS NOT NULL
+                    WHEN 2 THEN submit_time IS NOT NULL AND start_time IS NOT NULL AND update_time IS NOT NULL AND complete_time IS NOT NULL AND aggregator_id IS NULL
+                    ELSE FALSE END)
+            FROM job_queue_batch
+            WHERE job_id = :jobID
+            """;
+    private static final String CLAIM_NEXT = "SELECT Cast(batch_id as varchar) batch_id FROM job_queue_batch WHERE status = 0 ORDER BY priority ASC, submit_time ASC LIMIT 1 FOR UPDATE SKIP LOCKED";
+    private static final String CLAIM_NEXT_FOR_ORGANIZATION = "SELECT Cast(batch_id as varchar) batch_id FROM job_queue_batch WHERE status = 0 AND organization_id = :orgID ORDER BY priority ASC, submit_time ASC LIMIT 1 FOR UPDATE SKIP LOCKED";
+    // The next batch of each organization with queued work, along with how much of its work is queued and running
+    private static final String SUMMARIZE_ORGANIZATIONS = """
+            SELECT Cast(h.organization_id as varchar) organization_id,
+                   h.queued,
+                   COALESCE(r.running, 0) running,
+                   COALESCE(h.priority, 2147483647) priority,
+                   COALESCE(EXTRACT(EPOCH FROM current_timestamp - h.submit_time), 0) head_wait,
+                   COALESCE(EXTRACT(EPOCH FROM current_timestamp - GREATEST(h.submit_time, r.last_start)), 0) idle
+            FROM (
+                SELECT DISTINCT ON (organization_id) organization_id, priority, submit_time,
+                       COUNT(*) OVER (PARTITION BY organization_id) queued
+                FROM job_queue_batch
+                WHERE status = 0
+                ORDER BY organization_id, priority ASC, submit_time ASC
+            ) h
+            LEFT JOIN (
+                SELECT organization_id, COUNT(*) running, MAX(start_time) last_start
+                FROM job_queue_batch
+                WHERE status = 1
+                GROUP BY organization_id
+            ) r ON r.organization_id = h.organization_id
+            """;
+    // Which of the organizations still have queued or running batches
+    private static final String ACTIVE_ORGANIZATIONS = "SELECT DISTINCT Cast(organization_id as varchar) organization_id FROM job_queue_batch WHERE status IN (0, 1) AND organization_id IN (:orgIDs)";
+    static final Duration IDLE_POLLING_FREQUENCY = Duration.ofSeconds(30);
 
     // Object variables
     private final SessionFactory factory;
+    private final QueueNotificationListener listener;
+    // The listener's generation from right before each aggregator last checked the queue
+    private final Map<UUID, Long> seenGenerations = new ConcurrentHashMap<>();
+    // Each organization's work as of the last fair share claim, read by the per-organization gauges
+    private volatile Map<UUID, OrganizationQueue> organizationQueues = Map.of();
+    // The organizations with metrics registered, until they run out of work
+    private final Set<UUID> organizationsWithMetrics = ConcurrentHashMap.newKeySet();
 
     // Metrics
+    private final MetricMaker metricMaker;
     private final Timer waitTimer; // The wait time for a job to start
     private final Timer partialTimer; // The time to complete each partial of a batch
+    private final Timer checkpointTimer; // The time to save the progress of a batch
+    private final Meter checkpointFileMeter; // The files saved by checkpoints
     private final Timer successTimer; // The work time a successful job takes
     private final Timer failureTimer; // The work time a failed job takes
 
 
+    public DistributedBatchQueue(
+            DPCQueueManagedSessionFactory factory,
+            int batchSize,
+            MetricRegistry metricRegistry
+    ) {
+        this(factory, batchSize, metricRegistry, Optional.empty());
+    }
+
     @Inject
     public DistributedBatchQueue(
             DPCQueueManagedSessionFactory factory,
             @QueueBatchSize int batchSize,
-            MetricRegistry metricRegistry
+            MetricRegistry metricRegistry,
+            Optional<ClaimPolicy> claimPolicy
     ) {
-        super(batchSize);
+        super(batchSize, claimPolicy);
 
         this.factory = factory.getSessionFactory();
+        this.listener = new QueueNotificationListener(this.factory, metricRegistry);
 
         // Metrics
-        final var metricBuilder = new MetricMaker(metricRegistry, DistributedBatchQueue.class);
-        this.waitTimer = metricBuilder.registerTimer("waitTime");
-        this.partialTimer = metricBuilder.registerTimer("partialTime");
-        this.successTimer = metricBuilder.registerTimer("successTime");
-        this.failureTimer = metricBuilder.registerTimer("failureTime");
-        metricBuilder.registerCachedGauge("queueLength", this::queueSize);
+        this.metricMaker = new MetricMaker(metricRegistry, DistributedBatchQueue.class);
+        this.waitTimer = this.metricMaker.registerTimer("waitTime");
+        this.partialTimer = this.metricMaker.registerTimer("partialTime");
+        this.checkpointTimer = this.metricMaker.registerTimer("checkpointTime");
+        this.checkpointFileMeter = this.metricMaker.registerMeter("checkpointFile");
+        this.successTimer = this.metricMaker.registerTimer("successTime");
+        this.failureTimer = this.metricMaker.registerTimer("failureTime");
+        this.metricMaker.registerCachedGauge("queueLength", this::queueSize);
     }
 
     @Override
@@ -87,7 +199,12 @@ public class DistributedBatchQueue extends JobQueueCommon {
             try {
                 for ( JobQueueBatch batch : jobBatches ) {
                     session.persist(batch);
+                    session.persist(new JobQueueBatchPatients(batch.getBatchID(), batch.getPatients()));
                 }
+                // Instances that haven't been upgraded yet may claim these batches, and only look in the legacy column
+                session.flush();
+                session.doWork(connection -> writeLegacyPatients(connection, jobBatches));
+                notifyBatchesQueued(session);
                 tx.commit();
             } catch (Exception e) {
                 logger.error("Cannot add job batches to database", e);
@@ -137,6 +254,95 @@ public class DistributedBatchQueue extends JobQueueCommon {
         }
     }
 
+    @Override
+    public JobSummary getJobSummary(UUID jobID) {
+        try (final Session session = this.factory.openSession()) {
+            final Object[] row = session.createNativeQuery(SUMMARIZE_JOB, Object[].class)
+                    .setParameter("jobID", jobID)
+                    .getSingleResult();
+
+            final Map<JobStatus, Integer> statusCounts = new EnumMap<>(JobStatus.class);
+            final JobStatus[] statuses = JobStatus.values();
+            for (int i = 0; i < statuses.length; i++) {
+                final int count = ((Number) row[1 + i]).intValue();
+                if (count > 0) {
+                    statusCounts.put(statuses[i], count);
+                }
+            }
+            final Set<UUID> orgIDs = row[7] == null ? Set.of() : Arrays.stream(((String) row[7]).split(","))
+                    .map(UUID::fromString)
+                    .collect(Collectors.toSet());
+
+            return new JobSummary(((Number) row[0]).intValue(),
+                    statusCounts,
+                    ((Number) row[5]).longValue(),
+                    ((Number) row[6]).longValue(),
+                    orgIDs,
+                    fromEpochSeconds(row[8]),
+                    fromEpochSeconds(row[9]),
+                    row[10] == null ? null : UUID.fromString((String) row[10]),
+                    row[11] == null ? null : UUID.fromString((String) row[11]));
+        }
+    }
+
+    private static OffsetDateTime fromEpochSeconds(Object epochSeconds) {
+        if (epochSeconds == null) {
+            return null;
+        }
+        final BigDecimal value = new BigDecimal(epochSeconds.toString());
+        final BigDecimal seconds = value.setScale(0, RoundingMode.FLOOR);
+        return Instant.ofEpochSecond(seconds.longValueExact(), value.subtract(seconds).movePointRight(9).longValue())
+                .atOffset(ZoneOffset.UTC);
+    }
+
+    @Override
+    public List<String> getBatchPatients(UUID batchID) {
+        try (final Session session = this.factory.openSession()) {
+            final Transaction tx = session.beginTransaction();
+            try {
+                return loadPatients(session, batchID);
+            } finally {
+                tx.commit();
+            }
+        }
+    }
+
+    /**
+     * Loads the patients of a batch, falling back to the legacy patients column for batches queued by instances that
+     * haven't been upgraded, which don't write to job_queue_batch_patients.
+     *
+     * @param session - The active database session
+     * @param batchID - The batch to load the patients of
+     * @return the patients of the batch
+     * @throws JobQueueFailure - If the batch has no patients stored in either place
+     */
+    private List<String> loadPatients(Session session, UUID batchID) {
+        final JobQueueBatchPatients patients = session.get(JobQueueBatchPatients.class, batchID);
+        if (patients != null) {
+            return patients.getPatients();
+        }
+
+        final Optional<String> legacyPatients = session.createNativeQuery(READ_LEGACY_PATIENTS, String.class)
+                .setParameter("batchID", batchID)
+                .uniqueResultOptional();
+        if (legacyPatients.isEmpty()) {
+            throw new JobQueueFailure(String.format("Batch %s has no stored patients", batchID));
+        }
+        logger.warn("Batch {} has no job_queue_batch_patients row, using its legacy patients column", batchID);
+        return LEGACY_PATIENTS_CONVERTER.convertToEntityAttribute(legacyPatients.get());
+    }
+
+    private static void writeLegacyPatients(Connection connection, List<JobQueueBatch> batches) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(WRITE_LEGACY_PATIENTS)) {
+            for (JobQueueBatch batch : batches) {
+                statement.setString(1, LEGACY_PATIENTS_CONVERTER.convertToDatabaseColumn(batch.getPatients()));
+                statement.setObject(2, batch.getBatchID());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
     @SuppressWarnings({"unchecked", "rawtypes"})
     @Override
     public Optional<JobQueueBatchFile> getJobBatchFile(UUID organizationID, String fileName) {
@@ -167,10 +373,11 @@ public class DistributedBatchQueue extends JobQueueCommon {
 
     @Override
     public Optional<JobQueueBatch> claimBatch(UUID aggregatorID) {
+        this.seenGenerations.put(aggregatorID, this.listener.getGeneration());
+
         try (final Session session = this.factory.openSession()) {
             final Transaction tx = session.beginTransaction();
             try {
-                this.restartStuckBatches(session);
                 return this.claimBatchFromDatabase(session, aggregatorID);
             } finally {
                 tx.commit();
@@ -178,37 +385,39 @@ public class DistributedBatchQueue extends JobQueueCommon {
         }
     }
 
+    @Override
+    public void awaitBatch(UUID aggregatorID, Duration pollingFrequency) throws InterruptedException {
+        final Long seenGeneration = this.seenGenerations.get(aggregatorID);
+        if (seenGeneration == null || !this.listener.isListening()) {
+            super.awaitBatch(aggregatorID, pollingFrequency);
+            return;
+        }
+        this.listener.await(seenGeneration, IDLE_POLLING_FREQUENCY);
+    }
+
+    @Override
+    public void startListening() {
+        this.listener.start();
+    }
+
+    @Override
+    public void stopListening() throws InterruptedException {
+        this.listener.stop();
+    }
+
     /**
-     * Looks for any job batches that have stopped processing and are stuck in a running state. Restart those batches
-     * so they can be picked up again.
+     * Tells listening aggregators that batches have been queued. The notification is only sent if the transaction commits.
      *
      * @param session - The active database session
      */
-    private void restartStuckBatches(Session session) {
-        // Find stuck batches
-        List<String> stuckBatchIDs = session.createNativeQuery("SELECT Cast(batch_id as varchar) batch_id FROM job_queue_batch WHERE status = 1 AND update_time < current_timestamp - interval '15 minutes' FOR UPDATE SKIP LOCKED",
-                        String.class)
-                .getResultList();
-
-        // Unstick stuck batches
-        if ( stuckBatchIDs != null && !stuckBatchIDs.isEmpty() ) {
-            final CriteriaBuilder builder = session.getCriteriaBuilder();
-            final CriteriaQuery<JobQueueBatch> query = builder.createQuery(JobQueueBatch.class);
-            final Root<JobQueueBatch> root = query.from(JobQueueBatch.class);
-
-            query.select(root);
-            query.where(root.get("batchID").in(stuckBatchIDs.stream().map(UUID::fromString).toList()));
-            final List<JobQueueBatch> stuckJobList = session.createQuery(query).getResultList();
-
-            for ( JobQueueBatch stuckJob : stuckJobList ) {
-                logger.warn("Restarting stuck batch... batchID={}", stuckJob.getBatchID());
-                stuckJob.restartBatch();
-                session.merge(stuckJob);
+    static void notifyBatchesQueued(Session session) {
+        session.doWork(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("NOTIFY " + QueueNotificationListener.CHANNEL);
             }
-        }
+        });
     }
 
-
     /**
      * Claim a new batch to process from the database
      *
@@ -218,13 +427,21 @@ public class DistributedBatchQueue extends JobQueueCommon {
      */
     private Optional<JobQueueBatch> claimBatchFromDatabase(Session session, UUID aggregatorID) {
         // Claim a new batch
-        Optional<String> batchID = session.createNativeQuery("SELECT Cast(batch_id as varchar) batch_id FROM job_queue_batch WHERE status = 0 ORDER BY priority ASC, submit_time ASC LIMIT 1 FOR UPDATE SKIP LOCKED",
-                        String.class)
-                .uniqueResultOptional();
+        final Optional<ClaimPolicy> claimPolicy = this.getClaimPolicy();
+        final Optional<String> batchID = claimPolicy.isPresent()
+                ? lockNextBatchByOrganization(session, claimPolicy.get())
+                : session.createNativeQuery(CLAIM_NEXT, String.class).uniqueResultOptional();
+        // Only fair share claims register the per-organization metrics
+        if (claimPolicy.isPresent()) {
+            removeIdleOrganizationMetrics(session);
+        }
 
         if ( batchID.isPresent() ) {
             JobQueueBatch batch = session.get(JobQueueBatch.class, UUID.fromString(batchID.get()));
             try {
+                // Only the aggregator working the batch needs its patients, so they're left out until now. A batch
+                // without them is failed, rather than completed without any output.
+                batch.setPatients(loadPatients(session, batch.getBatchID()));
                 batch.setRunningStatus(aggregatorID);
             } catch (Exception e) {
                 logger.error("Failed to mark job as running. Marking the job as failed", e);
@@ -236,6 +453,10 @@ public class DistributedBatchQueue extends JobQueueCommon {
 
             final var delay = Duration.between(batch.getStartTime().orElseThrow(), batch.getUpdateTime().orElseThrow());
             waitTimer.update(delay.toMillis(), TimeUnit.MILLISECONDS);
+            if (claimPolicy.isPresent()) {
+                batch.getSubmitTime().ifPresent(submitTime -> organizationTimer(batch.getOrgID(), "waitTime")
+                        .update(Duration.between(submitTime, batch.getStartTime().orElseThrow()).toMillis(), TimeUnit.MILLISECONDS));
+            }
 
             return Optional.of(batch);
         } else {
@@ -243,13 +464,106 @@ public class DistributedBatchQueue extends JobQueueCommon {
         }
     }
 
+    /**
+     * Locks the next batch of the first organization the {@link ClaimPolicy} ranks, moving on to the next organization
+     * when another aggregator already has every batch of one locked.
+     *
+     * @param session     - The active database session
+     * @param claimPolicy - The {@link ClaimPolicy} ranking the organizations
+     * @return the ID of the locked batch, if any organization had one to claim
+     */
+    private Optional<String> lockNextBatchByOrganization(Session session, ClaimPolicy claimPolicy) {
+        final List<OrganizationQueue> queues = loadOrganizationQueues(session);
+        this.organizationQueues = queues.stream().collect(Collectors.toUnmodifiableMap(OrganizationQueue::orgID, queue -> queue));
+        queues.forEach(queue -> registerOrganizationGauges(queue.orgID()));
+
+        for (UUID orgID : claimPolicy.rankOrganizations(queues)) {
+            final Optional<String> batchID = session.createNativeQuery(CLAIM_NEXT_FOR_ORGANIZATION, String.class)
+                    .setParameter("orgID", orgID)
+                    .uniqueResultOptional();
+            if (batchID.isPresent()) {
+                return batchID;
+            }
+        }
+        return Optional.empty();
+    }
+
+    private List<OrganizationQueue> loadOrganizationQueues(Session session) {
+        final List<Object[]> rows = session.createNativeQuery(SUMMARIZE_ORGANIZATIONS, Object[].class).getResultList();
+        return rows.stream()
+                .map(row -> new OrganizationQueue(UUID.fromString((String) row[0]),
+                        ((Number) row[1]).longValue(),
+                        ((Number) row[2]).longValue(),
+                        ((Number) row[3]).intValue(),
+                        ((Number) row[4]).longValue(),
+                        ((Number) row[5]).longValue()))
+                .toList();
+    }
+
+    private void registerOrganizationGauges(UUID orgID) {
+        organizationsWithMetrics.add(orgID);
+        metricMaker.registerCachedGauge(organizationMetricName(orgID, "queueDepth"), () -> {
+            final OrganizationQueue queue = organizationQueues.get(orgID);
+            return queue == null ? 0L : queue.queued();
+        });
+        metricMaker.registerCachedGauge(organizationMetricName(orgID, "queueWaitSeconds"), () -> {
+            final OrganizationQueue queue = organizationQueues.get(orgID);
+            return queue == null ? 0L : queue.headWaitSeconds();
+        });
+    }
+
+    private Timer organizationTimer(UUID orgID, String name) {
+        organizationsWithMetrics.add(orgID);
+        return metricMaker.registerTimer(organizationMetricName(orgID, name));
+    }
+
+    /**
+     * Removes the metrics of organizations that no longer have queued or running batches, so an organization's metrics
+     * don't outlive its work.
+     *
+     * @param session - The active database session
+     */
+    private void removeIdleOrganizationMetrics(Session session) {
+        // The organizations in the last summary have queued batches, so they don't need to be looked up
+        final Map<UUID, OrganizationQueue> queued = this.organizationQueues;
+        final List<UUID> candidates = organizationsWithMetrics.stream()
+                .filter(orgID -> !queued.containsKey(orgID))
+                .toList();
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        final Set<UUID> active = session.createNativeQuery(ACTIVE_ORGANIZATIONS, String.class)
+                .setParameterList("orgIDs", candidates)
+                .getResultList()
+                .stream()
+                .map(UUID::fromString)
+                .collect(Collectors.toSet());
+        candidates.stream()
+                .filter(orgID -> !active.contains(orgID))
+                .forEach(orgID -> {
+                    organizationsWithMetrics.remove(orgID);
+                    metricMaker.removeMetrics(MetricRegistry.name("organization", orgID.toString()));
+                });
+    }
+
+    private static String organizationMetricName(UUID orgID, String name) {
+        return MetricRegistry.name("organization", orgID.toString(), name);
+    }
+
     @Override
     public void pauseBatch(JobQueueBatch job, UUID aggregatorID) {
         try (final Session session = this.factory.openSession()) {
             final Transaction tx = session.beginTransaction();
             try {
+                if (!isRunningOn(session, job, aggregatorID)) {
+                    logger.warn("Not pausing batch {}, it is no longer running on aggregator {}", job.getBatchID(), aggregatorID);
+                    return;
+                }
                 job.setPausedStatus(aggregatorID);
                 session.merge(job);
+                // A paused batch goes back in the queue for another aggregator to pick up
+                notifyBatchesQueued(session);
             } finally {
                 tx.commit();
             }
@@ -258,23 +572,87 @@ public class DistributedBatchQueue extends JobQueueCommon {
         }
     }
 
+    /**
+     * Saves the progress of a running batch: its patient index, update time and any files that changed since the last
+     * checkpoint. The rest of the batch, including its patient list, hasn't changed since it was claimed, so it isn't
+     * merged or even read.
+     *
+     * @param job          - the job to add progress to
+     * @param aggregatorID - the current aggregator working the job
+     * @throws JobQueueFailure if the batch is no longer running on this aggregator
+     */
     @Override
     public void completePartialBatch(JobQueueBatch job, UUID aggregatorID) {
-        try (final Session session = this.factory.openSession()) {
+        final Optional<OffsetDateTime> lastUpdate = job.getUpdateTime();
+        job.setUpdateTime();
+        final List<JobQueueBatchFile> changedFiles = job.getJobQueueBatchFiles().stream()
+                .filter(JobQueueBatchFile::isChanged)
+                .toList();
+
+        try (final Session session = this.factory.openSession();
+             final Timer.Context ignored = checkpointTimer.time()) {
             final Transaction tx = session.beginTransaction();
+            final boolean owned;
             try {
-                final Optional<OffsetDateTime> lastUpdate = job.getUpdateTime();
+                owned = session.doReturningWork(connection -> {
+                    if (!updateProgress(connection, job, aggregatorID)) {
+                        return false;
+                    }
+                    upsertFiles(connection, changedFiles);
+                    return true;
+                });
+                if (owned) {
+                    tx.commit();
+                } else {
+                    tx.rollback();
+                }
+            } catch (Exception e) {
+                tx.rollback();
+                throw new JobQueueFailure(job.getJobID(), job.getBatchID(), e);
+            }
+            if (!owned) {
+                throw new JobQueueFailure(job.getJobID(), job.getBatchID(), String.format("Batch is no longer running on aggregator %s", aggregatorID));
+            }
+        }
+        changedFiles.forEach(JobQueueBatchFile::clearChanged);
+        checkpointFileMeter.mark(changedFiles.size());
 
-                // We just need to persist the job, as any results will be attached to the job and cascade
-                JobQueueBatch mergedJob = session.merge(job);
+        if (lastUpdate.isPresent() && job.getUpdateTime().isPresent()) {
+            final var delay = Duration.between(lastUpdate.get(), job.getUpdateTime().get());
+            partialTimer.update(delay.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
 
-                final var delay = Duration.between(lastUpdate.orElseThrow(), job.getUpdateTime().orElseThrow());
-                partialTimer.update(delay.toMillis(), TimeUnit.MILLISECONDS);
+    private static boolean updateProgress(Connection connection, JobQueueBatch job, UUID aggregatorID) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(UPDATE_PROGRESS)) {
+            statement.setObject(1, job.getPatientIndex().orElse(null), Types.INTEGER);
+            statement.setObject(2, job.getUpdateTime().orElse(null));
+            statement.setObject(3, job.getBatchID());
+            statement.setObject(4, aggregatorID);
+            return statement.executeUpdate() == 1;
+        }
+    }
 
-                mergedJob.setUpdateTime();
-            } finally {
-                tx.commit();
+    private static void upsertFiles(Connection connection, List<JobQueueBatchFile> files) throws SQLException {
+        if (files.isEmpty()) {
+            return;
+        }
+        // Sent as a single batch, so it's one round trip no matter how many files changed
+        try (PreparedStatement statement = connection.prepareStatement(UPSERT_FILE)) {
+            for (JobQueueBatchFile file : files) {
+                statement.setObject(1, file.getBatchID());
+                statement.setInt(2, file.getResourceType().ordinal());
+                statement.setInt(3, file.getSequence());
+                statement.setObject(4, file.getJobID());
+                statement.setString(5, file.getFileName());
+                statement.setInt(6, file.getCount());
+                statement.setBytes(7, file.getChecksum());
+                statement.setLong(8, file.getFileLength());
+                statement.setBytes(9, file.getDigestState());
+                statement.setBytes(10, file.getSeekIndex());
+                statement.addBatch();
             }
+            statement.executeBatch();
         }
     }
 
@@ -287,6 +665,10 @@ public class DistributedBatchQueue extends JobQueueCommon {
         try (final Session session = this.factory.openSession()) {
             final Transaction tx = session.beginTransaction();
             try {
+                if (!isRunningOn(session, job, aggregatorID)) {
+                    logger.warn("Not completing batch {}, it is no longer running on aggregator {}", job.getBatchID(), aggregatorID);
+                    return;
+                }
                 job.setCompletedStatus(aggregatorID);
                 session.merge(job);
 
@@ -303,6 +685,10 @@ public class DistributedBatchQueue extends JobQueueCommon {
         try (final Session session = this.factory.openSession()) {
             final Transaction tx = session.beginTransaction();
             try {
+                if (!isRunningOn(session, job, aggregatorID)) {
+                    logger.warn("Not failing batch {}, it is no longer running on aggregator {}", job.getBatchID(), aggregatorID);
+                    return;
+                }
                 job.setFailedStatus();
                 session.merge(job);
 
@@ -314,6 +700,22 @@ public class DistributedBatchQueue extends JobQueueCommon {
         }
     }
 
+    /**
+     * Locks the batch's row and checks it's still running on the given aggregator.  A batch that's been restarted, or
+     * claimed by another aggregator, has to be left alone.
+     *
+     * @param session      - the session whose transaction holds the lock
+     * @param job          - the job to check
+     * @param aggregatorID - the aggregator that thinks it's working the job
+     * @return true if the batch is still running on the aggregator
+     */
+    private static boolean isRunningOn(Session session, JobQueueBatch job, UUID aggregatorID) {
+        final JobQueueBatch current = session.find(JobQueueBatch.class, job.getBatchID(), LockModeType.PESSIMISTIC_WRITE);
+        return current != null
+                && current.getStatus() == JobStatus.RUNNING
+                && current.getAggregatorID().equals(Optional.ofNullable(aggregatorID));
+    }
+
     @Override
     public long queueSize() {
         try (final Session session = this.factory.openSession()) {
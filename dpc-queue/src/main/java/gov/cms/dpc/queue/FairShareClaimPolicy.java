@@ -0,0 +1,77 @@
+package gov.cms.dpc.queue;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Shares the aggregators between organizations, so that one organization's large export can't hold every aggregator
+ * while other organizations wait.
+ * <p>
+ * Organizations are still served by the priority of their next batch, so single patient and smoke test jobs go first.
+ * Between organizations at the same priority, the one with the fewest running batches for its weight is served next,
+ * which takes turns between them in proportion to their weights. An organization can also be capped at a number of
+ * running batches. The cap is checked against what was running when the claim started, so aggregators claiming at the
+ * same moment can take an organization one or two batches over it.
+ * <p>
+ * To keep bulk work from waiting forever behind a steady stream of higher priority work, an organization's priority is
+ * raised a step for every aging interval it goes without a batch starting.
+ */
+public class FairShareClaimPolicy implements ClaimPolicy {
+
+    // How far an organization's priority is raised each aging interval, four steps take bulk work (5000) to the
+    // priority of a single patient job (1000)
+    static final int PRIORITY_AGING_STEP = 1000;
+    private static final int DEFAULT_WEIGHT = 1;
+
+    private final Map<UUID, Integer> weights;
+    private final int maxRunningPerOrganization;
+    private final Duration agingInterval;
+    private final Comparator<OrganizationQueue> order;
+
+    /**
+     * @param weights                   - share of the aggregators given to specific organizations, every other
+     *                                  organization has a weight of 1
+     * @param maxRunningPerOrganization - the most batches an organization can have running at once, 0 for no cap
+     * @param agingInterval             - how long an organization waits before its priority is raised a step, zero
+     *                                  never raises it
+     */
+    public FairShareClaimPolicy(Map<UUID, Integer> weights, int maxRunningPerOrganization, Duration agingInterval) {
+        weights.forEach((orgID, weight) -> {
+            if (weight == null || weight < 1) {
+                throw new IllegalArgumentException(String.format("Weight of organization %s must be at least 1", orgID));
+            }
+        });
+        if (maxRunningPerOrganization < 0) {
+            throw new IllegalArgumentException("Max running batches per organization cannot be negative");
+        }
+        this.weights = Map.copyOf(weights);
+        this.maxRunningPerOrganization = maxRunningPerOrganization;
+        this.agingInterval = agingInterval;
+        this.order = Comparator.comparingLong(this::agedPriority)
+                .thenComparingDouble(this::load)
+                .thenComparing(Comparator.comparingLong(OrganizationQueue::headWaitSeconds).reversed());
+    }
+
+    @Override
+    public List<UUID> rankOrganizations(List<OrganizationQueue> queues) {
+        return queues.stream()
+                .filter(queue -> maxRunningPerOrganization == 0 || queue.running() < maxRunningPerOrganization)
+                .sorted(order)
+                .map(OrganizationQueue::orgID)
+                .toList();
+    }
+
+    long agedPriority(OrganizationQueue queue) {
+        if (agingInterval.toSeconds() == 0) {
+            return queue.headPriority();
+        }
+        return queue.headPriority() - (queue.idleSeconds() / agingInterval.toSeconds()) * PRIORITY_AGING_STEP;
+    }
+
+    private double load(OrganizationQueue queue) {
+        return (double) queue.running() / weights.getOrDefault(queue.orgID(), DEFAULT_WEIGHT);
+    }
+}
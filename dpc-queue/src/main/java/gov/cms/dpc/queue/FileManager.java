@@ -10,6 +10,7 @@ import org.bouncycastle.util.encoders.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -68,7 +69,21 @@ public class FileManager {
             batchFile.getJobID(),
             jobQueueBatch.getStartTime().orElseThrow(() -> new IllegalStateException("Cannot find start time of completed job")),
             new File(path.toString()),
-            compressed);
+            compressed,
+            compressed ? decodeSeekIndex(batchFile) : null);
+    }
+
+    private static GzipSeekIndex decodeSeekIndex(JobQueueBatchFile batchFile) {
+        if (batchFile.getSeekIndex() == null) {
+            return null;
+        }
+        try {
+            return GzipSeekIndex.decode(batchFile.getSeekIndex());
+        } catch (IllegalArgumentException e) {
+            // Not fatal, ranges are read from the start of the file instead
+            logger.warn("Unable to decode seek index of file {}", batchFile.getFileName(), e);
+            return null;
+        }
     }
 
     public static class FilePointer {
@@ -79,14 +94,20 @@ public class FileManager {
         private final OffsetDateTime creationTime;
         private final File file;
         private final boolean compressed;
+        private final GzipSeekIndex seekIndex;
 
         public FilePointer(String checksum, long fileSize, UUID jobID, OffsetDateTime creationTime, File file, boolean compressed) {
+            this(checksum, fileSize, jobID, creationTime, file, compressed, null);
+        }
+
+        public FilePointer(String checksum, long fileSize, UUID jobID, OffsetDateTime creationTime, File file, boolean compressed, GzipSeekIndex seekIndex) {
             this.checksum = checksum;
             this.fileSize = fileSize;
             this.jobID = jobID;
             this.creationTime = creationTime;
             this.file = file;
             this.compressed = compressed;
+            this.seekIndex = seekIndex;
         }
 
         public String getChecksum() {
@@ -118,5 +139,37 @@ public class FileManager {
                 return new FileInputStream(file);
             }
         }
+
+        /**
+         * Opens the uncompressed contents of the file part way through. A compressed file with a seek index only has to
+         * be decompressed from the start of the gzip member holding the offset, otherwise it's decompressed from the start.
+         *
+         * @param offset - offset in the uncompressed contents to start reading from
+         * @return An {@link InputStream} of the uncompressed contents, starting at the offset
+         * @throws IOException - If the file can't be read, or ends before the offset
+         */
+        public InputStream getUncompressedInputStream(long offset) throws IOException {
+            if (compressed && seekIndex != null) {
+                return seekIndex.open(file, offset);
+            }
+
+            final FileInputStream fileStream = new FileInputStream(file);
+            try {
+                if (compressed) {
+                    final InputStream stream = new GZIPInputStream(fileStream);
+                    stream.skipNBytes(offset);
+                    return stream;
+                }
+                if (offset > fileStream.getChannel().size()) {
+                    throw new EOFException(String.format("File is shorter than offset %d", offset));
+                }
+                // Moving the channel moves the stream along with it
+                fileStream.getChannel().position(offset);
+                return fileStream;
+            } catch (IOException e) {
+                fileStream.close();
+                throw e;
+            }
+        }
     }
 }
@@ -0,0 +1,145 @@
+package gov.cms.dpc.queue;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Index of the gzip members in an export file, so that reading from the middle of the file only has to decompress from
+ * the start of the member holding that offset, instead of from the start of the file.
+ * <p>
+ * Each entry is the offset of a member's first byte in the uncompressed contents of the file, and the offset of its
+ * header in the compressed file. The aggregator starts a new member every {@link #MEMBER_SIZE} bytes, and records the
+ * index on the file's {@link gov.cms.dpc.queue.models.JobQueueBatchFile}, along with the uncompressed length, so a
+ * resumed batch can keep adding to it.
+ */
+public class GzipSeekIndex {
+
+    // Uncompressed bytes written to a member before starting the next one, which bounds how much a read has to skip
+    public static final long MEMBER_SIZE = 4L * 1024 * 1024;
+
+    private long[] uncompressedOffsets;
+    private long[] compressedOffsets;
+    private int size;
+    private long uncompressedLength;
+
+    public GzipSeekIndex() {
+        this.uncompressedOffsets = new long[8];
+        this.compressedOffsets = new long[8];
+    }
+
+    /**
+     * Records the start of a new member.
+     *
+     * @param uncompressedOffset - offset of the member's first byte in the uncompressed contents
+     * @param compressedOffset   - offset of the member's header in the compressed file
+     */
+    public void addMember(long uncompressedOffset, long compressedOffset) {
+        if (size > 0 && (uncompressedOffset < uncompressedOffsets[size - 1] || compressedOffset <= compressedOffsets[size - 1])) {
+            throw new IllegalArgumentException("Members must be added in the order they're written");
+        }
+        if (size == uncompressedOffsets.length) {
+            uncompressedOffsets = Arrays.copyOf(uncompressedOffsets, size * 2);
+            compressedOffsets = Arrays.copyOf(compressedOffsets, size * 2);
+        }
+        uncompressedOffsets[size] = uncompressedOffset;
+        compressedOffsets[size] = compressedOffset;
+        size++;
+        uncompressedLength = Math.max(uncompressedLength, uncompressedOffset);
+    }
+
+    /**
+     * @return The number of members in the file
+     */
+    public int getMemberCount() {
+        return size;
+    }
+
+    /**
+     * @return The length of the file's uncompressed contents, as of the last write
+     */
+    public long getUncompressedLength() {
+        return uncompressedLength;
+    }
+
+    public void setUncompressedLength(long uncompressedLength) {
+        this.uncompressedLength = uncompressedLength;
+    }
+
+    /**
+     * Opens the compressed file at the member holding the given offset, and skips to it.
+     *
+     * @param file   - the compressed file
+     * @param offset - offset in the uncompressed contents to start reading from
+     * @return An {@link InputStream} of the uncompressed contents, starting at the offset
+     * @throws IOException - If the file can't be read, or ends before the offset
+     */
+    public InputStream open(File file, long offset) throws IOException {
+        // The last member that starts at or before the offset
+        int member = Arrays.binarySearch(uncompressedOffsets, 0, size, offset);
+        if (member < 0) {
+            member = -member - 2;
+        } else {
+            // Empty members share an offset with the next one, take the last of them
+            while (member + 1 < size && uncompressedOffsets[member + 1] == offset) {
+                member++;
+            }
+        }
+        if (member < 0) {
+            throw new IOException("File has no member before offset " + offset);
+        }
+
+        final FileInputStream fileStream = new FileInputStream(file);
+        try {
+            // Moving the channel moves the stream along with it
+            fileStream.getChannel().position(compressedOffsets[member]);
+            // Reads on through the members that follow, the same as it would from the start of the file
+            final InputStream stream = new GZIPInputStream(fileStream);
+            stream.skipNBytes(offset - uncompressedOffsets[member]);
+            return stream;
+        } catch (IOException e) {
+            fileStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The index encoded for storage, see {@link #decode(byte[])}
+     */
+    public byte[] encode() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(Long.BYTES * (1 + size * 2));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(uncompressedLength);
+            for (int i = 0; i < size; i++) {
+                out.writeLong(uncompressedOffsets[i]);
+                out.writeLong(compressedOffsets[i]);
+            }
+        } catch (IOException e) {
+            // Can't happen writing to memory
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param encoded - an index from {@link #encode()}
+     * @return The decoded index
+     * @throws IllegalArgumentException - If the index isn't encoded correctly
+     */
+    public static GzipSeekIndex decode(byte[] encoded) {
+        if (encoded.length < Long.BYTES || (encoded.length - Long.BYTES) % (Long.BYTES * 2) != 0) {
+            throw new IllegalArgumentException(String.format("Seek index of %d bytes is not a valid length", encoded.length));
+        }
+        final GzipSeekIndex index = new GzipSeekIndex();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded))) {
+            final long length = in.readLong();
+            while (in.available() > 0) {
+                index.addMember(in.readLong(), in.readLong());
+            }
+            index.setUncompressedLength(length);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Seek index is not encoded correctly", e);
+        }
+        return index;
+    }
+}
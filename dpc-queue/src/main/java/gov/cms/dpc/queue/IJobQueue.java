@@ -4,6 +4,7 @@ import gov.cms.dpc.fhir.DPCResourceType;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 import gov.cms.dpc.queue.models.JobQueueBatchFile;
 
+import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.util.List;
 import java.util.Optional;
@@ -59,6 +60,24 @@ public interface IJobQueue {
      */
     List<JobQueueBatch> getJobBatches(UUID jobID);
 
+    /**
+     * Summarize the batches of a given job, regardless of job status, without loading them. Does not alter the job.
+     *
+     * @param jobID - the id of the job to summarize
+     * @return the {@link JobSummary}, with a batch count of 0 if the job isn't found
+     */
+    default JobSummary getJobSummary(UUID jobID) {
+        return JobSummary.of(getJobBatches(jobID));
+    }
+
+    /**
+     * Find the patients of a batch. Batches are found without their patients, only claiming a batch loads them.
+     *
+     * @param batchID - the id of the batch to search
+     * @return the batch's patients, empty if the batch isn't found
+     */
+    List<String> getBatchPatients(UUID batchID);
+
     /**
      * Find the {@link JobQueueBatchFile} that corresponds to the given file name
      *
@@ -76,6 +95,35 @@ public interface IJobQueue {
      */
     Optional<JobQueueBatch> claimBatch(UUID aggregatorID);
 
+    /**
+     * Waits until there may be a new batch to claim, after {@link #claimBatch(UUID)} came back empty.
+     * Queues that aren't told when batches are queued just wait out the polling frequency.
+     *
+     * @param aggregatorID     - the current aggregator waiting for work
+     * @param pollingFrequency - how long to wait when the queue can't tell that a batch was queued
+     * @throws InterruptedException if interrupted while waiting
+     */
+    default void awaitBatch(UUID aggregatorID, Duration pollingFrequency) throws InterruptedException {
+        Thread.sleep(pollingFrequency.toMillis());
+    }
+
+    /**
+     * Starts waking up aggregators waiting in {@link #awaitBatch(UUID, Duration)} as soon as a batch is queued, rather
+     * than at the end of their polling frequency. Only aggregators wait for batches, so only they start listening.
+     */
+    default void startListening() {
+        // Queues that aren't told when batches are queued have nothing to listen to
+    }
+
+    /**
+     * Stops listening for queued batches, releasing whatever {@link #startListening()} held on to.
+     *
+     * @throws InterruptedException if interrupted while waiting for the listening to stop
+     */
+    default void stopListening() throws InterruptedException {
+        // Queues that aren't told when batches are queued have nothing to stop
+    }
+
     /**
      * Pauses the current progress and allows another aggregator to pick up the batch.
      *
@@ -85,7 +133,9 @@ public interface IJobQueue {
     void pauseBatch(JobQueueBatch job, UUID aggregatorID);
 
     /**
-     * Alter the job's {@link JobStatus} to passed status. Called when the job batch is finished partially processing.
+     * Saves the progress of a running batch, called after one or more of its patients have been written. Only the
+     * patient index, update time and files that changed since the last call have to be saved, everything else is saved
+     * when the batch is paused, completed or failed.
      *
      * @param job          - the job to add progress to
      * @param aggregatorID - the current aggregator working the job
@@ -5,20 +5,111 @@ import gov.cms.dpc.queue.exceptions.JobQueueFailure;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 import io.reactivex.Observable;
 
+import java.time.Duration;
 import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 public abstract class JobQueueCommon implements IJobQueue {
 
+    // The order batches are claimed in within an organization
+    private static final Comparator<JobQueueBatch> CLAIM_ORDER = Comparator.comparing(JobQueueBatch::getPriority, Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(batch -> batch.getSubmitTime().orElse(OffsetDateTime.MAX));
+
     // Object variables
     private final int batchSize;
+    private final Optional<ClaimPolicy> claimPolicy;
 
     public abstract void submitJobBatches(List<JobQueueBatch> jobBatches);
 
     protected JobQueueCommon(int batchSize) {
+        this(batchSize, Optional.empty());
+    }
+
+    /**
+     * @param batchSize   - the most patients in each batch
+     * @param claimPolicy - how the organization to claim the next batch from is picked. Only the aggregation service
+     *                    binds a {@link ClaimPolicy}, without one batches are claimed by priority and submit time.
+     */
+    protected JobQueueCommon(int batchSize, Optional<ClaimPolicy> claimPolicy) {
         this.batchSize = batchSize;
+        this.claimPolicy = claimPolicy;
+    }
+
+    protected Optional<ClaimPolicy> getClaimPolicy() {
+        return claimPolicy;
+    }
+
+    /**
+     * Summarizes the work of each organization with queued batches, for the {@link ClaimPolicy} to rank.
+     *
+     * @param batches - every batch in the queue
+     * @param now     - the time to measure waits up to
+     * @return an {@link OrganizationQueue} for each organization with at least one queued batch
+     */
+    private static List<OrganizationQueue> summarizeOrganizations(Collection<JobQueueBatch> batches, OffsetDateTime now) {
+        final Map<UUID, List<JobQueueBatch>> byOrganization = batches.stream()
+                .collect(Collectors.groupingBy(JobQueueBatch::getOrgID));
+
+        final List<OrganizationQueue> queues = new ArrayList<>();
+        byOrganization.forEach((orgID, orgBatches) -> {
+            final Optional<JobQueueBatch> head = orgBatches.stream()
+                    .filter(batch -> batch.getStatus() == JobStatus.QUEUED)
+                    .min(CLAIM_ORDER);
+            if (head.isEmpty()) {
+                return;
+            }
+            final List<JobQueueBatch> running = orgBatches.stream()
+                    .filter(batch -> batch.getStatus() == JobStatus.RUNNING)
+                    .toList();
+            final OffsetDateTime submitted = head.get().getSubmitTime().orElse(now);
+            final OffsetDateTime waitingSince = running.stream()
+                    .map(batch -> batch.getStartTime().orElse(submitted))
+                    .filter(submitted::isBefore)
+                    .max(Comparator.naturalOrder())
+                    .orElse(submitted);
+
+            queues.add(new OrganizationQueue(orgID,
+                    orgBatches.stream().filter(batch -> batch.getStatus() == JobStatus.QUEUED).count(),
+                    running.size(),
+                    Optional.ofNullable(head.get().getPriority()).orElse(Integer.MAX_VALUE),
+                    Duration.between(submitted, now).toSeconds(),
+                    Duration.between(waitingSince, now).toSeconds()));
+        });
+        return queues;
+    }
+
+    /**
+     * Picks the next batch to claim, using the {@link ClaimPolicy}.
+     *
+     * @param batches - every batch in the queue
+     * @return the batch to claim, if there is one
+     */
+    protected Optional<JobQueueBatch> selectNextBatch(Collection<JobQueueBatch> batches) {
+        final List<JobQueueBatch> queued = batches.stream()
+                .filter(batch -> batch.getStatus() == JobStatus.QUEUED)
+                .toList();
+        if (claimPolicy.isEmpty()) {
+            return queued.stream().findFirst();
+        }
+
+        final List<UUID> ranked = claimPolicy.get().rankOrganizations(summarizeOrganizations(batches, OffsetDateTime.now()));
+        for (UUID orgID : ranked) {
+            final Optional<JobQueueBatch> next = queued.stream()
+                    .filter(batch -> batch.getOrgID().equals(orgID))
+                    .min(CLAIM_ORDER);
+            if (next.isPresent()) {
+                return next;
+            }
+        }
+        return Optional.empty();
     }
 
     @Override
@@ -7,6 +7,7 @@ import com.codahale.metrics.Slf4jReporter;
 import com.google.inject.Binder;
 import com.google.inject.Provides;
 import com.google.inject.Scopes;
+import com.google.inject.multibindings.OptionalBinder;
 import gov.cms.dpc.queue.annotations.AggregatorID;
 import gov.cms.dpc.queue.annotations.QueueBatchSize;
 import gov.cms.dpc.queue.config.DPCAwsQueueConfiguration;
@@ -59,6 +60,9 @@ public class JobQueueModule<T extends Configuration & DPCQueueConfig> extends Dr
                 .in(Scopes.SINGLETON);
         }
 
+        // Batches are claimed by priority unless the aggregation service binds a ClaimPolicy
+        OptionalBinder.newOptionalBinder(binder, ClaimPolicy.class);
+
         // Bind the healthcheck
         binder.bind(JobQueueHealthCheck.class);
         binder.bind(DataService.class);
@@ -0,0 +1,96 @@
+package gov.cms.dpc.queue;
+
+import gov.cms.dpc.queue.models.JobQueueBatch;
+
+import java.time.OffsetDateTime;
+import java.util.*;
+
+/**
+ * Summary of the batches of a job, which is all that's needed to report the job's status until it's completed.
+ *
+ * @param batchCount        - the number of batches in the job, 0 if the job can't be found
+ * @param statusCounts      - the number of batches in each status
+ * @param processedPatients - the number of patients processed across all batches
+ * @param totalPatients     - the number of patients across all batches
+ * @param orgIDs            - the organizations the batches belong to, which should only be one
+ * @param submitTime        - the earliest submit time of the batches, null if none have one
+ * @param completeTime      - the latest complete time of the batches, null if none have one
+ * @param failedBatchID     - one of the batches that failed, null if none have
+ * @param invalidBatchID    - one of the batches that isn't {@link JobQueueBatch#isValid()}, null if they all are
+ */
+public record JobSummary(int batchCount,
+                         Map<JobStatus, Integer> statusCounts,
+                         long processedPatients,
+                         long totalPatients,
+                         Set<UUID> orgIDs,
+                         OffsetDateTime submitTime,
+                         OffsetDateTime completeTime,
+                         UUID failedBatchID,
+                         UUID invalidBatchID) {
+
+    /**
+     * Summarizes batches that have already been loaded.
+     *
+     * @param batches - the batches of a job
+     * @return the {@link JobSummary}
+     */
+    public static JobSummary of(List<JobQueueBatch> batches) {
+        final Map<JobStatus, Integer> statusCounts = new EnumMap<>(JobStatus.class);
+        final Set<UUID> orgIDs = new HashSet<>();
+        long processedPatients = 0;
+        long totalPatients = 0;
+        OffsetDateTime submitTime = null;
+        OffsetDateTime completeTime = null;
+        UUID failedBatchID = null;
+        UUID invalidBatchID = null;
+
+        for (JobQueueBatch batch : batches) {
+            statusCounts.merge(batch.getStatus(), 1, Integer::sum);
+            orgIDs.add(batch.getOrgID());
+            processedPatients += batch.getPatientsProcessed();
+            totalPatients += batch.getPatientCount();
+            submitTime = earliest(submitTime, batch.getSubmitTime().orElse(null));
+            completeTime = latest(completeTime, batch.getCompleteTime().orElse(null));
+            if (failedBatchID == null && batch.getStatus() == JobStatus.FAILED) {
+                failedBatchID = batch.getBatchID();
+            }
+            if (invalidBatchID == null && !batch.isValid()) {
+                invalidBatchID = batch.getBatchID();
+            }
+        }
+
+        return new JobSummary(batches.size(), statusCounts, processedPatients, totalPatients, orgIDs,
+                submitTime, completeTime, failedBatchID, invalidBatchID);
+    }
+
+    /**
+     * @param status - the status to count
+     * @return the number of batches in the status
+     */
+    public int count(JobStatus status) {
+        return statusCounts.getOrDefault(status, 0);
+    }
+
+    /**
+     * @param status - the status to look for
+     * @return whether any batch is in the status
+     */
+    public boolean hasStatus(JobStatus status) {
+        return count(status) > 0;
+    }
+
+    /**
+     * @return whether the job has batches and every one of them is completed
+     */
+    public boolean isCompleted() {
+        return batchCount > 0 && count(JobStatus.COMPLETED) == batchCount;
+    }
+
+    private static OffsetDateTime earliest(OffsetDateTime current, OffsetDateTime time) {
+        return current == null || (time != null && time.isBefore(current)) ? time : current;
+    }
+
+    private static OffsetDateTime latest(OffsetDateTime current, OffsetDateTime time) {
+        return current == null || (time != null && time.isAfter(current)) ? time : current;
+    }
+}
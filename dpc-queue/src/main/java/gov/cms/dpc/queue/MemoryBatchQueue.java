@@ -50,6 +50,13 @@ public class MemoryBatchQueue extends JobQueueCommon {
                 .collect(Collectors.toList());
     }
 
+    @Override
+    public synchronized List<String> getBatchPatients(UUID batchID) {
+        return getBatch(batchID)
+                .map(JobQueueBatch::getPatients)
+                .orElse(List.of());
+    }
+
     @Override
     public synchronized Optional<JobQueueBatchFile> getJobBatchFile(UUID organizationID, String fileID) {
         return this.queue.values().stream()
@@ -62,10 +69,7 @@ public class MemoryBatchQueue extends JobQueueCommon {
     @Override
     public synchronized Optional<JobQueueBatch> claimBatch(UUID aggregatorID) {
         logger.debug("Pulling first QUEUED job");
-        final Optional<JobQueueBatch> first = this.queue.values()
-                .stream()
-                .filter(jobQueueBatch -> jobQueueBatch.getStatus().equals(JobStatus.QUEUED))
-                .findFirst();
+        final Optional<JobQueueBatch> first = this.selectNextBatch(this.queue.values());
 
         if (first.isPresent()) {
             try {
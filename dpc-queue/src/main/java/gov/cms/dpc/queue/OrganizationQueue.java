@@ -0,0 +1,17 @@
+package gov.cms.dpc.queue;
+
+import java.util.UUID;
+
+/**
+ * Snapshot of one organization's work in the queue, used by a {@link ClaimPolicy} to pick who is served next.
+ *
+ * @param orgID           - the organization
+ * @param queued          - the number of its batches waiting to be claimed
+ * @param running         - the number of its batches currently being worked
+ * @param headPriority    - the priority of the batch that would be claimed next for it
+ * @param headWaitSeconds - how long that batch has been waiting
+ * @param idleSeconds     - how long the organization has been waiting for a batch to start, either since its newest
+ *                        running batch started or since the next batch was submitted, whichever was later
+ */
+public record OrganizationQueue(UUID orgID, long queued, long running, int headPriority, long headWaitSeconds, long idleSeconds) {
+}
@@ -0,0 +1,194 @@
+package gov.cms.dpc.queue;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import gov.cms.dpc.common.utils.MetricMaker;
+import io.dropwizard.lifecycle.Managed;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listens for the Postgres notifications the {@link DistributedBatchQueue} sends whenever a batch is queued, so idle
+ * aggregation engines can wait for one instead of checking the queue over and over.
+ * <p>
+ * Notifications are received on a single connection, held by a daemon thread, which wakes up every waiting engine.
+ * Engines only wait on notifications while the connection is up, and go back to polling whenever it's been lost, or
+ * the listener has been stopped.
+ */
+class QueueNotificationListener implements Managed {
+    private static final Logger logger = LoggerFactory.getLogger(QueueNotificationListener.class);
+
+    static final String CHANNEL = "job_queue_batch";
+    // How long to wait before opening a connection again, after the last one failed
+    private static final Duration RECONNECT_DELAY = Duration.ofSeconds(5);
+    // How long a single read on the connection waits for notifications
+    private static final int RECEIVE_TIMEOUT_MILLIS = 1000;
+
+    private final ConnectionProvider connectionProvider;
+    private final Meter notificationMeter;
+    private final Meter connectionFailureMeter;
+    private final Object monitor = new Object();
+    private Thread thread;
+
+    // Both guarded by monitor
+    private long generation;
+    private boolean listening;
+
+    QueueNotificationListener(SessionFactory sessionFactory, MetricRegistry metricRegistry) {
+        this.connectionProvider = sessionFactory.unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry()
+                .getService(ConnectionProvider.class);
+
+        final var metricMaker = new MetricMaker(metricRegistry, QueueNotificationListener.class);
+        this.notificationMeter = metricMaker.registerMeter("notification");
+        this.connectionFailureMeter = metricMaker.registerMeter("connectionFailure");
+    }
+
+    /**
+     * Starts listening, if it hasn't already.
+     */
+    @Override
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this::listen, "queue-notification-listener");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops listening and closes the connection, sending waiting engines back to polling.
+     *
+     * @throws InterruptedException if interrupted while waiting for the listening thread to finish
+     */
+    @Override
+    public synchronized void stop() throws InterruptedException {
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        thread.join();
+        thread = null;
+        wakeUp(false);
+    }
+
+    /**
+     * @return whether notifications are being received, and it's worth waiting on them
+     */
+    boolean isListening() {
+        synchronized (monitor) {
+            return listening;
+        }
+    }
+
+    /**
+     * @return the number of times waiters have been woken up, to pass to {@link #await(long, Duration)} later
+     */
+    long getGeneration() {
+        synchronized (monitor) {
+            return generation;
+        }
+    }
+
+    /**
+     * Waits for a batch to be queued.
+     *
+     * @param seenGeneration - the generation from before the caller last checked the queue
+     * @param timeout        - the longest to wait
+     * @return true if a batch may have been queued since the generation was read, false if the wait timed out or
+     * notifications stopped coming in
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean await(long seenGeneration, Duration timeout) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeout.toNanos();
+        synchronized (monitor) {
+            while (generation == seenGeneration) {
+                final long remaining = deadline - System.nanoTime();
+                if (!listening || remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(monitor, remaining);
+            }
+            return true;
+        }
+    }
+
+    private void listen() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                receiveNotifications();
+            } catch (SQLException | RuntimeException e) {
+                connectionFailureMeter.mark();
+                logger.warn("Lost the connection listening for queued batches, polling the queue until it's back", e);
+                wakeUp(false);
+                try {
+                    Thread.sleep(RECONNECT_DELAY.toMillis());
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        logger.info("Stopped listening for queued batches on channel {}", CHANNEL);
+    }
+
+    /**
+     * Holds a connection listening for notifications, until the listener is stopped or the connection fails.
+     */
+    private void receiveNotifications() throws SQLException {
+        final Connection connection = connectionProvider.getConnection();
+        try {
+            // LISTEN only takes effect once it's committed
+            connection.setAutoCommit(true);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("LISTEN " + CHANNEL);
+            }
+            final PGConnection pgConnection = connection.unwrap(PGConnection.class);
+            logger.info("Listening for queued batches on channel {}", CHANNEL);
+            // Anything queued while we weren't listening was only found by polling, so have waiters check again
+            wakeUp(true);
+
+            while (!Thread.currentThread().isInterrupted()) {
+                final PGNotification[] notifications = pgConnection.getNotifications(RECEIVE_TIMEOUT_MILLIS);
+                if (notifications != null && notifications.length > 0) {
+                    notificationMeter.mark(notifications.length);
+                    wakeUp(true);
+                }
+            }
+        } finally {
+            closeQuietly(connection);
+        }
+    }
+
+    private void wakeUp(boolean isListening) {
+        synchronized (monitor) {
+            listening = isListening;
+            generation++;
+            monitor.notifyAll();
+        }
+    }
+
+    private void closeQuietly(Connection connection) {
+        // The connection goes back to the pool, so it shouldn't keep receiving notifications
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("UNLISTEN " + CHANNEL);
+        } catch (SQLException e) {
+            logger.debug("Unable to stop listening on channel {}", CHANNEL, e);
+        }
+        try {
+            connectionProvider.closeConnection(connection);
+        } catch (SQLException e) {
+            logger.debug("Unable to close the connection listening for queued batches", e);
+        }
+    }
+}
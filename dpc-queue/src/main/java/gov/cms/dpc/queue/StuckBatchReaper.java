@@ -0,0 +1,155 @@
+package gov.cms.dpc.queue;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import gov.cms.dpc.common.hibernate.queue.DPCQueueManagedSessionFactory;
+import gov.cms.dpc.common.utils.MetricMaker;
+import gov.cms.dpc.queue.models.JobQueueBatch;
+import io.dropwizard.lifecycle.Managed;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Root;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Restarts batches that have stopped making progress, e.g. because their aggregator died, so they can be claimed again.
+ * <p>
+ * Every aggregator runs a reaper, but only one of them reaps at a time. Each run takes a Postgres advisory lock for the
+ * length of its transaction, and a run that can't get the lock is skipped, since another aggregator is already reaping.
+ */
+public class StuckBatchReaper implements Managed {
+    private static final Logger logger = LoggerFactory.getLogger(StuckBatchReaper.class);
+
+    // Key of the advisory lock held while reaping, shared by every aggregator
+    static final long LOCK_KEY = 0x6470635265617065L;
+
+    private final SessionFactory factory;
+    private final Duration stuckThreshold;
+    private final Duration interval;
+    private final Meter restartedMeter;
+    private final Meter skippedMeter;
+    private final Timer reapTimer;
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param factory        - {@link DPCQueueManagedSessionFactory} of the queue database
+     * @param metricRegistry - {@link MetricRegistry} to register the reaper's metrics with
+     * @param stuckThreshold - how long a running batch can go without an update before it's restarted
+     * @param interval       - how often to look for stuck batches, zero turns the reaper off
+     */
+    @Inject
+    public StuckBatchReaper(DPCQueueManagedSessionFactory factory,
+                            MetricRegistry metricRegistry,
+                            @Named("stuckBatchThreshold") Duration stuckThreshold,
+                            @Named("stuckBatchReaperInterval") Duration interval) {
+        this.factory = factory.getSessionFactory();
+        this.stuckThreshold = stuckThreshold;
+        this.interval = interval;
+
+        final var metricMaker = new MetricMaker(metricRegistry, StuckBatchReaper.class);
+        this.restartedMeter = metricMaker.registerMeter("restartedBatch");
+        this.skippedMeter = metricMaker.registerMeter("skipped");
+        this.reapTimer = metricMaker.registerTimer("reapTime");
+    }
+
+    @Override
+    public void start() {
+        if (interval.isZero()) {
+            logger.info("Stuck batch reaper is turned off");
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "stuck-batch-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::reapQuietly, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Restarts every batch that has been running without an update for longer than the stuck threshold, unless another
+     * aggregator is already doing it.
+     *
+     * @return the number of batches restarted
+     */
+    int reap() {
+        try (final Session session = this.factory.openSession();
+             final Timer.Context ignored = reapTimer.time()) {
+            final Transaction tx = session.beginTransaction();
+            try {
+                final Boolean elected = session.createNativeQuery("SELECT pg_try_advisory_xact_lock(:key)", Boolean.class)
+                        .setParameter("key", LOCK_KEY)
+                        .uniqueResult();
+                if (!Boolean.TRUE.equals(elected)) {
+                    skippedMeter.mark();
+                    tx.commit();
+                    return 0;
+                }
+
+                final int restarted = restartStuckBatches(session);
+                tx.commit();
+                restartedMeter.mark(restarted);
+                return restarted;
+            } catch (RuntimeException e) {
+                tx.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private int restartStuckBatches(Session session) {
+        final List<String> stuckBatchIDs = session.createNativeQuery("SELECT Cast(batch_id as varchar) batch_id FROM job_queue_batch WHERE status = 1 AND update_time < current_timestamp - :seconds * interval '1 second' FOR UPDATE SKIP LOCKED",
+                        String.class)
+                .setParameter("seconds", stuckThreshold.toSeconds())
+                .getResultList();
+        if (stuckBatchIDs == null || stuckBatchIDs.isEmpty()) {
+            return 0;
+        }
+
+        final CriteriaBuilder builder = session.getCriteriaBuilder();
+        final CriteriaQuery<JobQueueBatch> query = builder.createQuery(JobQueueBatch.class);
+        final Root<JobQueueBatch> root = query.from(JobQueueBatch.class);
+
+        query.select(root);
+        query.where(root.get("batchID").in(stuckBatchIDs.stream().map(UUID::fromString).toList()));
+        final List<JobQueueBatch> stuckJobList = session.createQuery(query).getResultList();
+
+        for (JobQueueBatch stuckJob : stuckJobList) {
+            logger.warn("Restarting stuck batch... batchID={}", stuckJob.getBatchID());
+            stuckJob.restartBatch();
+            session.merge(stuckJob);
+        }
+        DistributedBatchQueue.notifyBatchesQueued(session);
+        return stuckJobList.size();
+    }
+
+    private void reapQuietly() {
+        try {
+            reap();
+        } catch (Exception e) {
+            // Keep the schedule going, the batches are still there for the next run
+            logger.error("Unable to restart stuck batches", e);
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package gov.cms.dpc.queue.models;
 
-import gov.cms.dpc.common.converters.hibernate.StringListConverter;
 import gov.cms.dpc.fhir.DPCResourceType;
 import gov.cms.dpc.queue.JobStatus;
 import gov.cms.dpc.queue.converters.ResourceTypeListConverter;
@@ -93,12 +92,18 @@ public class JobQueueBatch implements Serializable {
     private Integer priority;
 
     /**
-     * The list of patient-ids for the specified provider from the attribution server
+     * The list of patient-ids for the specified provider from the attribution server. Stored apart from the batch in
+     * {@link JobQueueBatchPatients}, and only loaded by the aggregator that claims the batch.
      */
-    @Convert(converter = StringListConverter.class)
-    @Column(name = "patients", columnDefinition = "text")
+    @Transient
     List<String> patients;
 
+    /**
+     * The number of patients in the batch
+     */
+    @Column(name = "patient_count")
+    private Integer patientCount;
+
     /**
      * The last processed patient index. Null indicates no patients have been processed yet.
      */
@@ -199,6 +204,7 @@ public class JobQueueBatch implements Serializable {
         this.orgNPI = orgNPI;
         this.providerNPI = providerNPI;
         this.patients = patients;
+        this.patientCount = patients == null ? 0 : patients.size();
         this.resourceTypes = resourceTypes;
         this.since = since;
         this.transactionTime = transactionTime;
@@ -270,10 +276,27 @@ public class JobQueueBatch implements Serializable {
         return priority;
     }
 
+    /**
+     * @return the batch's patients, or null if they haven't been loaded
+     */
     public List<String> getPatients() {
         return patients;
     }
 
+    /**
+     * Sets the batch's patients, once they have been loaded by the aggregator claiming the batch.
+     *
+     * @param patients - the patients stored for the batch
+     */
+    public void setPatients(List<String> patients) {
+        this.patients = patients;
+        this.patientCount = patients.size();
+    }
+
+    public int getPatientCount() {
+        return patientCount == null ? 0 : patientCount;
+    }
+
     public Optional<Integer> getPatientIndex() {
         return Optional.ofNullable(patientIndex);
     }
@@ -399,6 +422,23 @@ public class JobQueueBatch implements Serializable {
         return Optional.empty();
     }
 
+    /**
+     * Step the patient index back to the patient before the current one, so the current patient is fetched again when
+     * the batch is resumed. Only for a patient none of whose resources have been written.
+     *
+     * @param aggregatorID - the current aggregator working the job
+     */
+    public void rewindPatient(UUID aggregatorID) {
+        if (this.status != JobStatus.RUNNING) {
+            throw new JobQueueFailure(jobID, batchID, String.format("Cannot rewind batch. JobStatus: %s", this.status));
+        }
+        this.verifyAggregatorID(aggregatorID);
+        this.setUpdateTime();
+        if (this.patientIndex != null) {
+            this.patientIndex = this.patientIndex == 0 ? null : this.patientIndex - 1;
+        }
+    }
+
     /**
      * Pauses the current batch and allows another aggregator to pickup where left off
      *
@@ -429,8 +469,8 @@ public class JobQueueBatch implements Serializable {
         if (this.status != JobStatus.RUNNING) {
             throw new JobQueueFailure(jobID, batchID, String.format("Cannot complete. JobStatus: %s", this.status));
         }
-        if (!this.patients.isEmpty() && (this.patientIndex == null || this.getPatients().size() != this.patientIndex + 1)) {
-            throw new JobQueueFailure(jobID, batchID, String.format("Cannot complete. Job processing not finished. Only on patient %d of %d", this.getPatientIndex().orElse(-1) + 1, patients.size()));
+        if (this.getPatientCount() > 0 && (this.patientIndex == null || this.getPatientCount() != this.patientIndex + 1)) {
+            throw new JobQueueFailure(jobID, batchID, String.format("Cannot complete. Job processing not finished. Only on patient %d of %d", this.getPatientIndex().orElse(-1) + 1, this.getPatientCount()));
         }
         this.verifyAggregatorID(aggregatorID);
         this.status = JobStatus.COMPLETED;
@@ -502,7 +542,7 @@ public class JobQueueBatch implements Serializable {
      */
     public int getPatientsProcessed() {
         if (JobStatus.COMPLETED.equals(status)) {
-            return getPatients() == null ? 0 : getPatients().size();
+            return getPatientCount();
         }
         return getPatientIndex().orElse(-1) + 1;
     }
@@ -522,7 +562,7 @@ public class JobQueueBatch implements Serializable {
                 .append(providerID, that.providerID)
                 .append(status, that.status)
                 .append(priority, that.priority)
-                .append(patients, that.patients)
+                .append(patientCount, that.patientCount)
                 .append(patientIndex, that.patientIndex)
                 .append(resourceTypes, that.resourceTypes)
                 .append(since, that.since)
@@ -549,7 +589,7 @@ public class JobQueueBatch implements Serializable {
                 .append(providerNPI)
                 .append(status)
                 .append(priority)
-                .append(patients)
+                .append(patientCount)
                 .append(patientIndex)
                 .append(resourceTypes)
                 .append(since)
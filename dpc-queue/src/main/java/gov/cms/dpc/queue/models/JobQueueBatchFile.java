@@ -137,9 +137,21 @@ public class JobQueueBatchFile implements Serializable {
     @Column(name = "file_length")
     private long fileLength;
 
+    // Encoded state of the running checksum, so a resumed batch can keep appending to the file
+    @Column(name = "digest_state")
+    private byte[] digestState;
+
+    // Encoded GzipSeekIndex of the file's gzip members, so range requests can start decompressing part way through
+    @Column(name = "seek_index")
+    private byte[] seekIndex;
+
     @Transient
     private long patientFileSize;
 
+    // Whether the file has changed since it was last saved by a checkpoint, files loaded by Hibernate start out saved
+    @Transient
+    private boolean changed;
+
     public JobQueueBatchFile() {
         // for hibernate
     }
@@ -150,6 +162,7 @@ public class JobQueueBatchFile implements Serializable {
         this.jobID = jobID;
         this.fileName = formOutputFileName(batchID, resourceType, sequence);
         this.count = count;
+        this.changed = true;
     }
 
     public JobQueueBatchFileID getJobQueueBatchFileID() {
@@ -182,6 +195,7 @@ public class JobQueueBatchFile implements Serializable {
 
     public void appendCount(int count) {
         this.count += count;
+        this.changed = true;
     }
 
     public byte[] getChecksum() {
@@ -190,6 +204,7 @@ public class JobQueueBatchFile implements Serializable {
 
     public void setChecksum(byte[] checksum) {
         this.checksum = checksum;
+        this.changed = true;
     }
 
     public long getFileLength() {
@@ -198,6 +213,40 @@ public class JobQueueBatchFile implements Serializable {
 
     public void setFileLength(long fileLength) {
         this.fileLength = fileLength;
+        this.changed = true;
+    }
+
+    public byte[] getDigestState() {
+        return digestState;
+    }
+
+    public void setDigestState(byte[] digestState) {
+        this.digestState = digestState;
+        this.changed = true;
+    }
+
+    public byte[] getSeekIndex() {
+        return seekIndex;
+    }
+
+    public void setSeekIndex(byte[] seekIndex) {
+        this.seekIndex = seekIndex;
+        this.changed = true;
+    }
+
+    /**
+     * @return Whether the file has changed since it was last saved by
+     * {@link gov.cms.dpc.queue.IJobQueue#completePartialBatch(JobQueueBatch, java.util.UUID)}
+     */
+    public boolean isChanged() {
+        return changed;
+    }
+
+    /**
+     * Marks the file as saved, once a checkpoint has written it to the database.
+     */
+    public void clearChanged() {
+        this.changed = false;
     }
 
     public long getPatientFileSize() {
@@ -0,0 +1,54 @@
+package gov.cms.dpc.queue.models;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The patient list of a {@link JobQueueBatch}, kept in its own table so that loading a batch doesn't load its patients.
+ * Only the aggregator that claims a batch needs them, everything else (status polls, queue scans) only needs the count
+ * kept on the batch itself.
+ */
+@Entity
+@Table(name = "job_queue_batch_patients")
+public class JobQueueBatchPatients implements Serializable {
+    public static final long serialVersionUID = 1L;
+
+    /**
+     * The batch the patients belong to
+     */
+    @Id
+    @Column(name = "batch_id")
+    private UUID batchID;
+
+    /**
+     * The patient MBIs, in the order they are processed
+     */
+    @JdbcTypeCode(SqlTypes.ARRAY)
+    @Column(name = "patients", columnDefinition = "text[]", nullable = false)
+    private String[] patients;
+
+    public JobQueueBatchPatients() {
+        // for hibernate
+    }
+
+    public JobQueueBatchPatients(UUID batchID, List<String> patients) {
+        this.batchID = batchID;
+        this.patients = patients == null ? new String[0] : patients.toArray(String[]::new);
+    }
+
+    public UUID getBatchID() {
+        return batchID;
+    }
+
+    public List<String> getPatients() {
+        return List.of(patients);
+    }
+}
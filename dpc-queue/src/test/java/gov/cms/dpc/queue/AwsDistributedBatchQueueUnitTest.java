@@ -8,6 +8,7 @@ import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.junit.jupiter.api.Test;
 
+import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 
 import static org.mockito.Mockito.*;
@@ -39,7 +40,8 @@ class AwsDistributedBatchQueueUnitTest {
 			metricRegistry,
 			ageReporter,
 			sizeReporter,
-			config
+			config,
+			Optional.empty()
 			);
 
 		verify(ageReporter, times(1)).start(60, TimeUnit.SECONDS);
@@ -17,6 +17,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 
+import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.Collections;
@@ -33,12 +34,16 @@ class DistributedBatchQueueTest {
     private final UUID aggregatorID = UUID.randomUUID();
     private SessionFactory sessionFactory;
     private DistributedBatchQueue queue;
+    private StuckBatchReaper reaper;
+    private MetricRegistry metricRegistry;
 
     @BeforeEach
     void setUp() {
         final Configuration conf = new Configuration();
         sessionFactory = conf.configure().buildSessionFactory();
-        queue = new DistributedBatchQueue(new DPCQueueManagedSessionFactory(sessionFactory), 100, new MetricRegistry());
+        metricRegistry = new MetricRegistry();
+        queue = new DistributedBatchQueue(new DPCQueueManagedSessionFactory(sessionFactory), 100, metricRegistry);
+        reaper = new StuckBatchReaper(new DPCQueueManagedSessionFactory(sessionFactory), metricRegistry, Duration.ofMinutes(15), Duration.ZERO);
     }
 
     @AfterEach
@@ -47,6 +52,7 @@ class DistributedBatchQueueTest {
             final Transaction tx = session.beginTransaction();
             try {
                 session.createMutationQuery("delete from JobQueueBatchFile").executeUpdate();
+                session.createMutationQuery("delete from JobQueueBatchPatients").executeUpdate();
                 session.createMutationQuery("delete from JobQueueBatch").executeUpdate();
             } finally {
                 tx.commit();
@@ -56,15 +62,18 @@ class DistributedBatchQueueTest {
     }
 
     @Test
-    void testHandleStuckBatchWithClaim() {
+    void testHandleStuckBatchWithReaper() {
         // One organization id for both jobs
         final UUID orgID = UUID.randomUUID();
 
         final UUID firstBatchID = this.buildStuckBatchScenario(orgID);
 
-        // Fix the stuck job during the claim process
+        // Claiming leaves stuck batches to the reaper
         Optional<JobQueueBatch> stuckBatch = queue.claimBatch(aggregatorID);
-        assertFalse(stuckBatch.isPresent(), "Should have no job, but the stuck batch was released and is ready to be re-claimed");
+        assertFalse(stuckBatch.isPresent(), "Should have no job, the stuck batch hasn't been released yet");
+
+        assertEquals(1, reaper.reap(), "Should restart the stuck batch");
+        assertEquals(1, metricRegistry.meter(MetricRegistry.name(StuckBatchReaper.class, "restartedBatch")).getCount());
 
         // Re-claim the batch that was in a stuck state
         stuckBatch = queue.claimBatch(aggregatorID);
@@ -81,6 +90,28 @@ class DistributedBatchQueueTest {
         });
     }
 
+    @Test
+    void testReaperSkipsWhileAnotherReaps() {
+        this.buildStuckBatchScenario(UUID.randomUUID());
+
+        // Hold the reaper's lock, as another aggregator would while it's reaping
+        try (final Session session = sessionFactory.openSession()) {
+            final Transaction tx = session.beginTransaction();
+            try {
+                assertTrue(session.createNativeQuery("SELECT pg_try_advisory_xact_lock(:key)", Boolean.class)
+                        .setParameter("key", StuckBatchReaper.LOCK_KEY)
+                        .uniqueResult());
+
+                assertEquals(0, reaper.reap(), "Should leave the stuck batch to the aggregator holding the lock");
+                assertEquals(1, metricRegistry.meter(MetricRegistry.name(StuckBatchReaper.class, "skipped")).getCount());
+            } finally {
+                tx.commit();
+            }
+        }
+
+        assertEquals(1, reaper.reap(), "Should restart the stuck batch once the lock is released");
+    }
+
     @Test
     void testValidateHealthyQueue() {
         // This test is kind of crappy, since there is nothing to assert
@@ -3,33 +3,40 @@ package gov.cms.dpc.queue;
 import com.codahale.metrics.MetricRegistry;
 import gov.cms.dpc.common.hibernate.queue.DPCQueueManagedSessionFactory;
 import gov.cms.dpc.fhir.DPCResourceType;
+import gov.cms.dpc.queue.exceptions.JobQueueFailure;
 import gov.cms.dpc.queue.models.JobQueueBatch;
 import gov.cms.dpc.queue.models.JobQueueBatchFile;
+import gov.cms.dpc.queue.models.JobQueueBatchPatients;
 import gov.cms.dpc.testing.AbstractMultipleDAOTest;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 class DistributedBatchQueueUnitTest extends AbstractMultipleDAOTest {
 	DistributedBatchQueueUnitTest() {
-		super(JobQueueBatch.class, JobQueueBatchFile.class);
+		super(JobQueueBatch.class, JobQueueBatchFile.class, JobQueueBatchPatients.class);
 	}
 
 	private DistributedBatchQueue queue;
+	private MetricRegistry metricRegistry;
 	private Session session;
 
 	@BeforeEach
 	void setup() {
 		DPCQueueManagedSessionFactory sessionFactory = new DPCQueueManagedSessionFactory(db.getSessionFactory());
-		queue = new DistributedBatchQueue(sessionFactory, 100, new MetricRegistry());
+		metricRegistry = new MetricRegistry();
+		queue = new DistributedBatchQueue(sessionFactory, 100, metricRegistry);
 		session = sessionFactory.getSessionFactory().openSession();
 	}
 
@@ -133,6 +140,134 @@ class DistributedBatchQueueUnitTest extends AbstractMultipleDAOTest {
 		assertTrue(retrievedUpdateTime.isAfter(initialUpdateTime));
 	}
 
+	@Test
+	void test_completePartialBatch_saves_progress_and_files() {
+		Transaction transaction = session.beginTransaction();
+
+		UUID aggregatorId = UUID.randomUUID();
+		JobQueueBatch jobQueueBatch = new JobQueueBatch(
+			UUID.randomUUID(),
+			UUID.randomUUID(),
+			"orgNpi",
+			"providerNpi",
+			List.of("patient-1", "patient-2"),
+			List.of(DPCResourceType.Patient),
+			OffsetDateTime.now(),
+			OffsetDateTime.now(),
+			"reqIp",
+			"reqUrl",
+			true
+		);
+		jobQueueBatch.setAggregatorIDForTesting(aggregatorId);
+		jobQueueBatch.setRunningStatus(aggregatorId);
+		session.persist(jobQueueBatch);
+		transaction.commit();
+
+		jobQueueBatch.fetchNextPatient(aggregatorId);
+		JobQueueBatchFile file = jobQueueBatch.addJobQueueFile(DPCResourceType.Patient, 0, 1);
+		queue.completePartialBatch(jobQueueBatch, aggregatorId);
+		assertFalse(file.isChanged());
+
+		JobQueueBatch saved = queue.getBatch(jobQueueBatch.getBatchID()).orElseThrow();
+		assertEquals(Optional.of(0), saved.getPatientIndex());
+		assertEquals(1, saved.getJobQueueFile(DPCResourceType.Patient).orElseThrow().getCount());
+
+		// The same file is updated in place by the next checkpoint
+		jobQueueBatch.fetchNextPatient(aggregatorId);
+		jobQueueBatch.addJobQueueFile(DPCResourceType.Patient, 0, 1);
+		queue.completePartialBatch(jobQueueBatch, aggregatorId);
+
+		saved = queue.getBatch(jobQueueBatch.getBatchID()).orElseThrow();
+		assertEquals(Optional.of(1), saved.getPatientIndex());
+		assertEquals(1, saved.getJobQueueBatchFiles().size());
+		assertEquals(2, saved.getJobQueueFile(DPCResourceType.Patient).orElseThrow().getCount());
+	}
+
+	@Test
+	void test_completePartialBatch_rejects_batch_restarted_by_reaper() {
+		Transaction transaction = session.beginTransaction();
+
+		UUID aggregatorId = UUID.randomUUID();
+		JobQueueBatch jobQueueBatch = new JobQueueBatch(
+			UUID.randomUUID(),
+			UUID.randomUUID(),
+			"orgNpi",
+			"providerNpi",
+			List.of("patient-1", "patient-2"),
+			List.of(DPCResourceType.Patient),
+			OffsetDateTime.now(),
+			OffsetDateTime.now(),
+			"reqIp",
+			"reqUrl",
+			true
+		);
+		jobQueueBatch.setAggregatorIDForTesting(aggregatorId);
+		jobQueueBatch.setRunningStatus(aggregatorId);
+		session.persist(jobQueueBatch);
+		transaction.commit();
+
+		// Another aggregator's reaper restarts the batch while it's still being worked
+		transaction = session.beginTransaction();
+		session.createNativeMutationQuery("UPDATE job_queue_batch SET status = 0, aggregator_id = NULL WHERE batch_id = :batchID")
+			.setParameter("batchID", jobQueueBatch.getBatchID())
+			.executeUpdate();
+		transaction.commit();
+
+		jobQueueBatch.fetchNextPatient(aggregatorId);
+		JobQueueBatchFile file = jobQueueBatch.addJobQueueFile(DPCResourceType.Patient, 0, 1);
+		assertThrows(JobQueueFailure.class, () -> queue.completePartialBatch(jobQueueBatch, aggregatorId));
+		assertTrue(file.isChanged());
+
+		// Neither the progress nor the failure that follows overwrites the restarted batch
+		queue.failBatch(jobQueueBatch, aggregatorId);
+		JobQueueBatch saved = queue.getBatch(jobQueueBatch.getBatchID()).orElseThrow();
+		assertEquals(JobStatus.QUEUED, saved.getStatus());
+		assertEquals(Optional.empty(), saved.getPatientIndex());
+		assertTrue(saved.getJobQueueBatchFiles().isEmpty());
+	}
+
+	@Test
+	void test_completeBatch_leaves_batch_restarted_by_reaper() {
+		UUID aggregatorId = UUID.randomUUID();
+		JobQueueBatch jobQueueBatch = persistRunningBatch(aggregatorId);
+		jobQueueBatch.fetchNextPatient(aggregatorId);
+		jobQueueBatch.fetchNextPatient(aggregatorId);
+
+		Transaction transaction = session.beginTransaction();
+		session.createNativeMutationQuery("UPDATE job_queue_batch SET status = 0, aggregator_id = NULL WHERE batch_id = :batchID")
+			.setParameter("batchID", jobQueueBatch.getBatchID())
+			.executeUpdate();
+		transaction.commit();
+
+		queue.completeBatch(jobQueueBatch, aggregatorId);
+		JobQueueBatch saved = queue.getBatch(jobQueueBatch.getBatchID()).orElseThrow();
+		assertEquals(JobStatus.QUEUED, saved.getStatus());
+		assertEquals(Optional.empty(), saved.getPatientIndex());
+		assertTrue(saved.getCompleteTime().isEmpty());
+	}
+
+	@Test
+	void test_pauseBatch_leaves_batch_claimed_by_another_aggregator() {
+		UUID aggregatorId = UUID.randomUUID();
+		UUID otherAggregatorId = UUID.randomUUID();
+		JobQueueBatch jobQueueBatch = persistRunningBatch(aggregatorId);
+		jobQueueBatch.fetchNextPatient(aggregatorId);
+
+		// Restarted by the reaper and claimed again by another aggregator
+		Transaction transaction = session.beginTransaction();
+		session.createNativeMutationQuery("UPDATE job_queue_batch SET aggregator_id = :aggregatorID WHERE batch_id = :batchID")
+			.setParameter("aggregatorID", otherAggregatorId)
+			.setParameter("batchID", jobQueueBatch.getBatchID())
+			.executeUpdate();
+		transaction.commit();
+
+		queue.pauseBatch(jobQueueBatch, aggregatorId);
+		JobQueueBatch saved = queue.getBatch(jobQueueBatch.getBatchID()).orElseThrow();
+		assertEquals(JobStatus.RUNNING, saved.getStatus());
+		assertEquals(Optional.of(otherAggregatorId), saved.getAggregatorID());
+		assertEquals(Optional.empty(), saved.getPatientIndex());
+	}
+
 	@Test
 	void test_getJobBatchFile_handles_parsing_exception() {
 		UUID orgId = UUID.randomUUID();
@@ -184,4 +319,316 @@ class DistributedBatchQueueUnitTest extends AbstractMultipleDAOTest {
 		assertEquals(batchId, retrievedJobQueueBatchFile.getBatchID());
 		assertEquals(jobId, retrievedJobQueueBatchFile.getJobID());
 	}
+
+	@Test
+	void test_patients_only_loaded_by_claim() {
+		List<String> patients = List.of("1SQ3F00AA00", "2SQ3F00AA00");
+		UUID jobId = queue.createJob(
+			UUID.randomUUID(),
+			"orgNpi",
+			"providerNpi",
+			patients,
+			List.of(DPCResourceType.Patient),
+			null,
+			OffsetDateTime.now(),
+			"reqIp",
+			"reqUrl",
+			true,
+			false
+		);
+
+		JobQueueBatch found = queue.getJobBatches(jobId).get(0);
+		assertNull(found.getPatients());
+		assertEquals(2, found.getPatientCount());
+		assertEquals(patients, queue.getBatchPatients(found.getBatchID()));
+
+		JobQueueBatch claimed = queue.claimBatch(UUID.randomUUID()).orElseThrow();
+		assertEquals(patients, claimed.getPatients());
+	}
+
+	@Test
+	void test_patients_written_to_legacy_column() {
+		UUID jobId = createBulkJob(UUID.randomUUID());
+		UUID batchId = queue.getJobBatches(jobId).get(0).getBatchID();
+
+		String legacyPatients = session.createNativeQuery("SELECT patients FROM job_queue_batch WHERE batch_id = :batchID", String.class)
+			.setParameter("batchID", batchId)
+			.getSingleResult();
+		assertEquals(String.join(",", queue.getBatchPatients(batchId)), legacyPatients);
+	}
+
+	@Test
+	void test_claim_falls_back_to_legacy_patients() {
+		UUID jobId = createBulkJob(UUID.randomUUID());
+		UUID batchId = queue.getJobBatches(jobId).get(0).getBatchID();
+		List<String> patients = queue.getBatchPatients(batchId);
+
+		// Queued by an instance that only writes the legacy column
+		deleteBatchPatients(batchId);
+
+		JobQueueBatch claimed = queue.claimBatch(UUID.randomUUID()).orElseThrow();
+		assertEquals(batchId, claimed.getBatchID());
+		assertEquals(patients, claimed.getPatients());
+		assertEquals(patients.size(), claimed.getPatientCount());
+	}
+
+	@Test
+	void test_claim_fails_batch_without_patients() {
+		UUID jobId = createBulkJob(UUID.randomUUID());
+		UUID batchId = queue.getJobBatches(jobId).get(0).getBatchID();
+
+		deleteBatchPatients(batchId);
+		Transaction transaction = session.beginTransaction();
+		session.createNativeMutationQuery("UPDATE job_queue_batch SET patients = NULL WHERE batch_id = :batchID")
+			.setParameter("batchID", batchId)
+			.executeUpdate();
+		transaction.commit();
+
+		assertTrue(queue.claimBatch(UUID.randomUUID()).isEmpty());
+		assertEquals(JobStatus.FAILED, queue.getBatch(batchId).orElseThrow().getStatus());
+	}
+
+	@Test
+	void test_fair_share_claims_take_turns_between_organizations() {
+		useClaimPolicy(new FairShareClaimPolicy(Map.of(), 0, Duration.ZERO));
+		UUID orgA = UUID.randomUUID();
+		UUID orgB = UUID.randomUUID();
+		createBulkJob(orgA);
+		createBulkJob(orgA);
+		createBulkJob(orgB);
+
+		UUID aggregatorId = UUID.randomUUID();
+		JobQueueBatch first = queue.claimBatch(aggregatorId).orElseThrow();
+		JobQueueBatch second = queue.claimBatch(aggregatorId).orElseThrow();
+		JobQueueBatch third = queue.claimBatch(aggregatorId).orElseThrow();
+
+		assertNotEquals(first.getOrgID(), second.getOrgID());
+		assertEquals(orgA, third.getOrgID());
+		assertTrue(queue.claimBatch(aggregatorId).isEmpty());
+
+		assertEquals(2, metricRegistry.timer(MetricRegistry.name(DistributedBatchQueue.class, "organization", orgA.toString(), "waitTime")).getCount());
+		assertTrue(metricRegistry.getGauges().containsKey(MetricRegistry.name(DistributedBatchQueue.class, "organization", orgB.toString(), "queueDepth")));
+	}
+
+	@Test
+	void test_organization_metrics_removed_once_out_of_work() {
+		useClaimPolicy(new FairShareClaimPolicy(Map.of(), 0, Duration.ZERO));
+		UUID orgId = UUID.randomUUID();
+		createBulkJob(orgId);
+		String waitTime = MetricRegistry.name(DistributedBatchQueue.class, "organization", orgId.toString(), "waitTime");
+		String queueDepth = MetricRegistry.name(DistributedBatchQueue.class, "organization", orgId.toString(), "queueDepth");
+
+		UUID aggregatorId = UUID.randomUUID();
+		JobQueueBatch batch = queue.claimBatch(aggregatorId).orElseThrow();
+		assertTrue(queue.claimBatch(aggregatorId).isEmpty());
+		assertTrue(metricRegistry.getTimers().containsKey(waitTime), "Kept while the batch is running");
+		assertTrue(metricRegistry.getGauges().containsKey(queueDepth));
+
+		queue.failBatch(batch, aggregatorId);
+		assertTrue(queue.claimBatch(aggregatorId).isEmpty());
+		assertFalse(metricRegistry.getTimers().containsKey(waitTime));
+		assertFalse(metricRegistry.getGauges().containsKey(queueDepth));
+	}
+
+	@Test
+	void test_priority_claims_skip_organization_metrics() {
+		UUID orgId = UUID.randomUUID();
+		createBulkJob(orgId);
+
+		assertTrue(queue.claimBatch(UUID.randomUUID()).isPresent());
+		assertEquals(1, metricRegistry.timer(MetricRegistry.name(DistributedBatchQueue.class, "waitTime")).getCount());
+		assertTrue(metricRegistry.getNames().stream().noneMatch(name -> name.contains(orgId.toString())));
+	}
+
+	@Test
+	void test_fair_share_caps_running_batches() {
+		useClaimPolicy(new FairShareClaimPolicy(Map.of(), 1, Duration.ZERO));
+		UUID orgA = UUID.randomUUID();
+		createBulkJob(orgA);
+		createBulkJob(orgA);
+
+		UUID aggregatorId = UUID.randomUUID();
+		assertTrue(queue.claimBatch(aggregatorId).isPresent());
+		assertTrue(queue.claimBatch(aggregatorId).isEmpty(), "The organization already has as many batches running as it can");
+		assertEquals(1, queue.queueSize());
+	}
+
+	private JobQueueBatch persistRunningBatch(UUID aggregatorId) {
+		Transaction transaction = session.beginTransaction();
+		JobQueueBatch jobQueueBatch = new JobQueueBatch(
+			UUID.randomUUID(),
+			UUID.randomUUID(),
+			"orgNpi",
+			"providerNpi",
+			List.of("patient-1", "patient-2"),
+			List.of(DPCResourceType.Patient),
+			OffsetDateTime.now(),
+			OffsetDateTime.now(),
+			"reqIp",
+			"reqUrl",
+			true
+		);
+		jobQueueBatch.setAggregatorIDForTesting(aggregatorId);
+		jobQueueBatch.setRunningStatus(aggregatorId);
+		session.persist(jobQueueBatch);
+		transaction.commit();
+		return jobQueueBatch;
+	}
+
+	private void useClaimPolicy(ClaimPolicy claimPolicy) {
+		metricRegistry = new MetricRegistry();
+		queue = new DistributedBatchQueue(new DPCQueueManagedSessionFactory(db.getSessionFactory()), 100, metricRegistry, Optional.of(claimPolicy));
+	}
+
+	private UUID createBulkJob(UUID orgId) {
+		return queue.createJob(
+			orgId,
+			"orgNpi",
+			"providerNpi",
+			List.of("1SQ3F00AA00", "2SQ3F00AA00"),
+			List.of(DPCResourceType.Patient),
+			null,
+			OffsetDateTime.now(),
+			"reqIp",
+			"reqUrl",
+			true,
+			false
+		);
+	}
+
+	@Test
+	void test_getJobSummary_matches_batches() {
+		DistributedBatchQueue singlePatientQueue = new DistributedBatchQueue(new DPCQueueManagedSessionFactory(db.getSessionFactory()), 1, new MetricRegistry());
+		UUID orgId = UUID.randomUUID();
+		UUID jobId = singlePatientQueue.createJob(
+			orgId,
+			"orgNpi",
+			"providerNpi",
+			List.of("1SQ3F00AA00", "2SQ3F00AA00", "3SQ3F00AA00"),
+			List.of(DPCResourceType.Patient),
+			null,
+			OffsetDateTime.now(),
+			"reqIp",
+			"reqUrl",
+			true,
+			false
+		);
+
+		// One batch completed, one part way through and one still queued
+		UUID aggregatorId = UUID.randomUUID();
+		JobQueueBatch completed = singlePatientQueue.claimBatch(aggregatorId).orElseThrow();
+		completed.fetchNextPatient(aggregatorId);
+		singlePatientQueue.completeBatch(completed, aggregatorId);
+		JobQueueBatch running = singlePatientQueue.claimBatch(aggregatorId).orElseThrow();
+		running.fetchNextPatient(aggregatorId);
+		singlePatientQueue.completePartialBatch(running, aggregatorId);
+
+		JobSummary summary = singlePatientQueue.getJobSummary(jobId);
+		JobSummary expected = JobSummary.of(singlePatientQueue.getJobBatches(jobId));
+
+		assertEquals(3, summary.batchCount());
+		assertEquals(Map.of(JobStatus.QUEUED, 1, JobStatus.RUNNING, 1, JobStatus.COMPLETED, 1), summary.statusCounts());
+		assertEquals(expected.statusCounts(), summary.statusCounts());
+		assertEquals(2, summary.processedPatients());
+		assertEquals(expected.processedPatients(), summary.processedPatients());
+		assertEquals(3, summary.totalPatients());
+		assertEquals(Set.of(orgId), summary.orgIDs());
+		assertTrue(expected.submitTime().isEqual(summary.submitTime()));
+		assertTrue(expected.completeTime().isEqual(summary.completeTime()));
+		assertNull(summary.failedBatchID());
+		assertNull(summary.invalidBatchID());
+
+		singlePatientQueue.failBatch(running, aggregatorId);
+		assertEquals(running.getBatchID(), singlePatientQueue.getJobSummary(jobId).failedBatchID());
+	}
+
+	@Test
+	void test_getJobSummary_handles_missing_job() {
+		JobSummary summary = queue.getJobSummary(UUID.randomUUID());
+
+		assertEquals(0, summary.batchCount());
+		assertTrue(summary.orgIDs().isEmpty());
+		assertNull(summary.submitTime());
+		assertFalse(summary.isCompleted());
+	}
+
+ throws InterruptedException {
+		QueueNotificationListener listener = new QueueNotificationListener(db.getSessionFactory(), new MetricRegistry());
+		listener.start();
+		try {
+			awaitListening(listener);
+
+			long generation = listener.getGeneration();
+			queue.createJob(
+				UUID.randomUUID(),
+				"orgNpi",
+				"providerNpi",
+				List.of("1SQ3F00AA00"),
+				List.of(DPCResourceType.Patient),
+				null,
+				OffsetDateTime.now(),
+				"reqIp",
+				"reqUrl",
+				true,
+				false
+			);
+
+			assertTrue(listener.await(generation, Duration.ofSeconds(10)));
+		} finally {
+			listener.stop();
+		}
+	}
+
+	@Test
+	void test_listener_times_out_without_batches() throws InterruptedException {
+		QueueNotificationListener listener = new QueueNotificationListener(db.getSessionFactory(), new MetricRegistry());
+		listener.start();
+		try {
+			awaitListening(listener);
+
+			assertFalse(listener.await(listener.getGeneration(), Duration.ofMillis(100)));
+		} finally {
+			listener.stop();
+		}
+	}
+
+	@Test
+	void test_listener_stop_sends_waiters_back_to_polling() throws InterruptedException {
+		QueueNotificationListener listener = new QueueNotificationListener(db.getSessionFactory(), new MetricRegistry());
+		listener.start();
+		awaitListening(listener);
+
+		long generation = listener.getGeneration();
+		listener.stop();
+		assertFalse(listener.isListening());
+		assertTrue(listener.await(generation, Duration.ofSeconds(10)), "Waiters are woken up to go back to polling");
+		assertFalse(listener.await(listener.getGeneration(), Duration.ofSeconds(10)));
+
+		// Stopping again does nothing
+		listener.stop();
+	}
+
+	@Test
+	void test_awaitBatch_polls_before_listening() throws InterruptedException {
+		// The queue hasn't started listening, so there's nothing to wait on
+		long start = System.nanoTime();
+		queue.awaitBatch(UUID.randomUUID(), Duration.ofMillis(100));
+
+		assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(DistributedBatchQueue.IDLE_POLLING_FREQUENCY) < 0);
+	}
+
+	private static void awaitListening(QueueNotificationListener listener) throws InterruptedException {
+		for (int i = 0; i < 100 && !listener.isListening(); i++) {
+			Thread.sleep(100);
+		}
+		assertTrue(listener.isListening(), "Listener never connected");
+	}
+
+	private void deleteBatchPatients(UUID batchId) {
+		Transaction transaction = session.beginTransaction();
+		session.createNativeMutationQuery("DELETE FROM job_queue_batch_patients WHERE batch_id = :batchID")
+			.setParameter("batchID", batchId)
+			.executeUpdate();
+		transaction.commit();
+	}
 }
@@ -0,0 +1,89 @@
+package gov.cms.dpc.queue;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FairShareClaimPolicyUnitTest {
+	private final UUID orgA = UUID.randomUUID();
+	private final UUID orgB = UUID.randomUUID();
+
+	@Test
+	void test_least_served_organization_goes_first() {
+		FairShareClaimPolicy policy = new FairShareClaimPolicy(Map.of(), 0, Duration.ZERO);
+
+		List<UUID> ranked = policy.rankOrganizations(List.of(
+			new OrganizationQueue(orgA, 50, 4, 5000, 600, 0),
+			new OrganizationQueue(orgB, 5, 0, 5000, 10, 10)
+		));
+
+		assertEquals(List.of(orgB, orgA), ranked);
+	}
+
+	@Test
+	void test_weights_share_in_proportion() {
+		FairShareClaimPolicy policy = new FairShareClaimPolicy(Map.of(orgA, 4), 0, Duration.ZERO);
+
+		// Four running for a weight of 4 is the same share as one running for a weight of 1, so the longer wait wins
+		List<UUID> ranked = policy.rankOrganizations(List.of(
+			new OrganizationQueue(orgA, 50, 4, 5000, 600, 0),
+			new OrganizationQueue(orgB, 5, 1, 5000, 10, 10)
+		));
+		assertEquals(List.of(orgA, orgB), ranked);
+
+		ranked = policy.rankOrganizations(List.of(
+			new OrganizationQueue(orgA, 50, 5, 5000, 600, 0),
+			new OrganizationQueue(orgB, 5, 1, 5000, 10, 10)
+		));
+		assertEquals(List.of(orgB, orgA), ranked);
+	}
+
+	@Test
+	void test_priority_goes_before_share() {
+		FairShareClaimPolicy policy = new FairShareClaimPolicy(Map.of(), 0, Duration.ZERO);
+
+		List<UUID> ranked = policy.rankOrganizations(List.of(
+			new OrganizationQueue(orgA, 50, 4, 1000, 1, 0),
+			new OrganizationQueue(orgB, 5, 0, 5000, 600, 600)
+		));
+
+		assertEquals(List.of(orgA, orgB), ranked);
+	}
+
+	@Test
+	void test_waiting_organization_is_aged() {
+		FairShareClaimPolicy policy = new FairShareClaimPolicy(Map.of(), 0, Duration.ofMinutes(10));
+
+		// Forty minutes without a batch starting takes bulk work to the priority of a single patient
+		List<UUID> ranked = policy.rankOrganizations(List.of(
+			new OrganizationQueue(orgA, 50, 4, 1000, 1, 0),
+			new OrganizationQueue(orgB, 5, 0, 5000, 2400, 2400)
+		));
+
+		assertEquals(List.of(orgB, orgA), ranked);
+		assertEquals(1000, policy.agedPriority(new OrganizationQueue(orgB, 5, 0, 5000, 2400, 2400)));
+	}
+
+	@Test
+	void test_capped_organization_is_left_out() {
+		FairShareClaimPolicy policy = new FairShareClaimPolicy(Map.of(), 2, Duration.ZERO);
+
+		List<UUID> ranked = policy.rankOrganizations(List.of(
+			new OrganizationQueue(orgA, 50, 2, 1000, 600, 0),
+			new OrganizationQueue(orgB, 5, 1, 5000, 10, 10)
+		));
+
+		assertEquals(List.of(orgB), ranked);
+	}
+
+	@Test
+	void test_rejects_bad_weights() {
+		Map<UUID, Integer> weights = Map.of(orgA, 0);
+		assertThrows(IllegalArgumentException.class, () -> new FairShareClaimPolicy(weights, 0, Duration.ZERO));
+	}
+}
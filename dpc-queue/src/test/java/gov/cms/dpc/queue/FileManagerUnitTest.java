@@ -188,4 +188,42 @@ class FileManagerUnitTest {
 		InputStream inputStream = filePointer.getUncompressedInputStream();
 		assertEquals(testData, new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
 	}
+
+	@Test
+	void filePointerSeeksUncompressedFile() throws IOException {
+		File file = File.createTempFile("test", ".ndjson", FileUtils.getTempDirectory());
+		FileUtils.write(file, "0123456789", StandardCharsets.UTF_8);
+
+		FileManager.FilePointer filePointer = new FileManager.FilePointer("checksum", file.length(), UUID.randomUUID(), OffsetDateTime.now(), file, false);
+
+		try (InputStream inputStream = filePointer.getUncompressedInputStream(4)) {
+			assertEquals("456789", new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+		}
+		assertThrows(EOFException.class, () -> filePointer.getUncompressedInputStream(11));
+	}
+
+	@Test
+	void filePointerSeeksCompressedFileWithIndex() throws IOException {
+		File file = File.createTempFile("test", ".ndjson.gz", FileUtils.getTempDirectory());
+		byte[] firstMember = GzipUtil.compress("01234");
+		FileUtils.writeByteArrayToFile(file, firstMember);
+		FileUtils.writeByteArrayToFile(file, GzipUtil.compress("56789"), true);
+
+		GzipSeekIndex seekIndex = new GzipSeekIndex();
+		seekIndex.addMember(0, 0);
+		seekIndex.addMember(5, firstMember.length);
+		seekIndex.setUncompressedLength(10);
+
+		FileManager.FilePointer indexed = new FileManager.FilePointer("checksum", file.length(), UUID.randomUUID(), OffsetDateTime.now(), file, true, seekIndex);
+		FileManager.FilePointer unindexed = new FileManager.FilePointer("checksum", file.length(), UUID.randomUUID(), OffsetDateTime.now(), file, true);
+
+		for (FileManager.FilePointer filePointer : new FileManager.FilePointer[] {indexed, unindexed}) {
+			try (InputStream inputStream = filePointer.getUncompressedInputStream(3)) {
+				assertEquals("3456789", new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+			}
+			try (InputStream inputStream = filePointer.getUncompressedInputStream(7)) {
+				assertEquals("789", new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+			}
+		}
+	}
 }
@@ -0,0 +1,82 @@
+package gov.cms.dpc.queue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GzipSeekIndexUnitTest {
+	private static final String[] MEMBERS = {"first member\n", "second member\n", "third member\n"};
+
+	@TempDir
+	File tempDir;
+
+	@Test
+	void opensAtOffsetInEachMember() throws IOException {
+		GzipSeekIndex index = new GzipSeekIndex();
+		File file = writeMembers(index);
+		String contents = String.join("", MEMBERS);
+
+		for (int offset = 0; offset <= contents.length(); offset++) {
+			try (InputStream stream = index.open(file, offset)) {
+				assertEquals(contents.substring(offset), new String(stream.readAllBytes(), StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	@Test
+	void failsPastEndOfFile() throws IOException {
+		GzipSeekIndex index = new GzipSeekIndex();
+		File file = writeMembers(index);
+
+		assertThrows(EOFException.class, () -> index.open(file, index.getUncompressedLength() + 1));
+	}
+
+	@Test
+	void roundTripsEncoding() throws IOException {
+		GzipSeekIndex index = new GzipSeekIndex();
+		writeMembers(index);
+
+		GzipSeekIndex decoded = GzipSeekIndex.decode(index.encode());
+
+		assertEquals(MEMBERS.length, decoded.getMemberCount());
+		assertEquals(index.getUncompressedLength(), decoded.getUncompressedLength());
+		assertArrayEquals(index.encode(), decoded.encode());
+	}
+
+	@Test
+	void rejectsBadEncoding() {
+		assertThrows(IllegalArgumentException.class, () -> GzipSeekIndex.decode(new byte[3]));
+		assertThrows(IllegalArgumentException.class, () -> GzipSeekIndex.decode(new byte[Long.BYTES * 2]));
+	}
+
+	@Test
+	void rejectsMembersOutOfOrder() {
+		GzipSeekIndex index = new GzipSeekIndex();
+		index.addMember(100, 50);
+
+		assertThrows(IllegalArgumentException.class, () -> index.addMember(10, 60));
+		assertThrows(IllegalArgumentException.class, () -> index.addMember(200, 50));
+	}
+
+	// Writes each member as its own gzip member, the same as the aggregator does, and records them in the index
+	private File writeMembers(GzipSeekIndex index) throws IOException {
+		File file = File.createTempFile("test", ".ndjson.gz", tempDir);
+		long uncompressed = 0;
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			for (String member : MEMBERS) {
+				index.addMember(uncompressed, out.getChannel().position());
+				GZIPOutputStream gzip = new GZIPOutputStream(out);
+				gzip.write(member.getBytes(StandardCharsets.UTF_8));
+				gzip.finish();
+				uncompressed += member.length();
+			}
+		}
+		index.setUncompressedLength(uncompressed);
+		return file;
+	}
+}
@@ -88,7 +88,8 @@ class QueueTest {
                             metricRegistry,
                             reporter1,
                             reporter2,
-                            awsConfig
+                            awsConfig,
+                            Optional.empty()
                         );
                     } else {
                         throw new IllegalArgumentException("I'm not that kind of queue");
@@ -249,7 +250,7 @@ class QueueTest {
         final Optional<JobQueueBatch> job = queue.getJobBatches(jobId).stream().findFirst();
         assertAll(() -> assertTrue(job.isPresent(), "Should be present in the queue."),
                 () -> assertEquals(JobStatus.QUEUED, job.get().getStatus(), "Job should be in queue"),
-                () -> assertTrue(job.get().getPatients().isEmpty()));
+                () -> assertEquals(0, job.get().getPatientCount()));
     }
 
     void testInvalidJobBatch(JobQueueCommon queue) {
@@ -173,6 +173,23 @@ class JobQueueBatchTest {
         Mockito.verify(job, Mockito.times(job.getPatients().size() + 1)).verifyAggregatorID(aggregatorID);
     }
 
+    @Test
+    void testRewindPatient() {
+        final var job = createJobQueueBatch();
+        job.setRunningStatus(aggregatorID);
+
+        job.fetchNextPatient(aggregatorID);
+        job.fetchNextPatient(aggregatorID);
+        job.rewindPatient(aggregatorID);
+        assertEquals(0, job.getPatientIndex().get());
+        assertEquals("2", job.fetchNextPatient(aggregatorID).get());
+
+        job.rewindPatient(aggregatorID);
+        job.rewindPatient(aggregatorID);
+        assertTrue(job.getPatientIndex().isEmpty());
+        assertEquals("1", job.fetchNextPatient(aggregatorID).get());
+    }
+
     @Test
     void testFetchNextBatch_NotRunning() {
         final var job = Mockito.spy(createJobQueueBatch());
@@ -244,7 +261,7 @@ class JobQueueBatchTest {
         final var job = Mockito.spy(createJobQueueBatch());
         job.status = JobStatus.RUNNING;
         job.patientIndex = null;
-        job.patients = Collections.emptyList();
+        job.setPatients(Collections.emptyList());
 
         job.setCompletedStatus(aggregatorID);
 
@@ -0,0 +1,3 @@
+-- Run by Hibernate after it creates the test schema. The legacy patients column of job_queue_batch is still in the
+-- migrated schema, and written for instances that haven't been upgraded, but is no longer mapped by JobQueueBatch.
+ALTER TABLE job_queue_batch ADD COLUMN IF NOT EXISTS patients TEXT;